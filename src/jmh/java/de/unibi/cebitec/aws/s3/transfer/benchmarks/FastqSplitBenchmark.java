@@ -0,0 +1,69 @@
+package de.unibi.cebitec.aws.s3.transfer.benchmarks;
+
+import de.unibi.cebitec.aws.s3.transfer.model.features.Fastq;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Searching the start of a fastq record backwards from the end of a sample ({@link Fastq#findSplit}). Paired and
+ * unpaired short reads stop at the nearest record, long reads without a record start in the sample are scanned
+ * completely.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FastqSplitBenchmark {
+    private static final char[] BASES = {'A', 'C', 'G', 'T'};
+    @Param({"4096", "1048576", "16777216"})
+    public int sampleSize;
+    @Param({"paired", "unpaired", "long-reads"})
+    public String reads;
+    private String sample;
+    private Fastq fastq;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder(this.sampleSize + 1024);
+        int readLength = this.reads.equals("long-reads") ? this.sampleSize * 2 : 150;
+        for (long record = 1; sb.length() < this.sampleSize; record++) {
+            sb.append("@SRR000001.").append(record);
+            if (this.reads.equals("paired")) {
+                sb.append('/').append(record % 2 == 1 ? '1' : '2');
+            }
+            sb.append('\n');
+            for (int i = 0; i < readLength; i++) {
+                sb.append(BASES[random.nextInt(BASES.length)]);
+            }
+            sb.append("\n+\n");
+            for (int i = 0; i < readLength; i++) {
+                sb.append((char) ('!' + random.nextInt(41)));
+            }
+            sb.append('\n');
+        }
+        // the sample ends in the middle of a record like the sampled range of a split
+        this.sample = sb.substring(0, this.sampleSize);
+        this.fastq = new Fastq("http://localhost/benchmark.fastq");
+    }
+
+    @Benchmark
+    public long findSplit() {
+        return this.fastq.findSplit(this.sample, this.sampleSize);
+    }
+}
@@ -0,0 +1,64 @@
+package de.unibi.cebitec.aws.s3.transfer.benchmarks;
+
+import de.unibi.cebitec.aws.s3.transfer.model.GridDownloadOrganizer;
+import de.unibi.cebitec.aws.s3.transfer.model.down.IDownloadChunk;
+import de.unibi.cebitec.aws.s3.transfer.model.down.MultipartDownloadFile;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Selecting the chunks of every node of a grid download ({@link GridDownloadOrganizer#getChunkSubset}) and handing
+ * them to the transfer queue, as the downloaders do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Thread)
+public class GridSubsetBenchmark {
+    @Param({"10000", "1000000"})
+    public int chunks;
+    @Param({"4", "64"})
+    public int nodes;
+    private List<IDownloadChunk> allChunks;
+    private GridDownloadOrganizer[] organizers;
+
+    @Setup
+    public void setUp() {
+        MultipartDownloadFile f = new MultipartDownloadFile("key", Paths.get("benchmark"), this.chunks, true, 1);
+        this.allChunks = new ArrayList<>(this.chunks);
+        while (f.hasMoreParts()) {
+            this.allChunks.add(f.next());
+        }
+        this.organizers = new GridDownloadOrganizer[this.nodes];
+        for (int i = 0; i < this.nodes; i++) {
+            this.organizers[i] = new GridDownloadOrganizer(this.nodes, i + 1);
+        }
+    }
+
+    @Benchmark
+    public void allNodes(Blackhole bh) {
+        for (GridDownloadOrganizer organizer : this.organizers) {
+            for (IDownloadChunk chunk : organizer.getChunkSubset(this.allChunks)) {
+                bh.consume(chunk);
+            }
+        }
+    }
+}
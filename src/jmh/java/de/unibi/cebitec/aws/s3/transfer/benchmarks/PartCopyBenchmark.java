@@ -0,0 +1,118 @@
+package de.unibi.cebitec.aws.s3.transfer.benchmarks;
+
+import de.unibi.cebitec.aws.s3.transfer.model.down.FileSink;
+import de.unibi.cebitec.aws.s3.transfer.model.down.PartWriter;
+import de.unibi.cebitec.aws.s3.transfer.model.down.WriteBackend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copying the response of a ranged GET into the output file, as a part of a multipart download does: With the
+ * {@link PartWriter} of every {@link WriteBackend} and with the alternatives {@link FileChannel#transferFrom} and a
+ * plain stream copy. The source is in memory, so the file system and the copy loop are measured, not the network.
+ * <p>
+ * The file is created in the directory given by the system property bibis3.benchmark.dir (default: java.io.tmpdir).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PartCopyBenchmark {
+    @Param({"26214400"})
+    public long partSize;
+    private Path file;
+    private FileChannel out;
+
+    @State(Scope.Thread)
+    public static class Backend {
+        @Param({"CHANNEL", "DIRECT", "MMAP"})
+        public WriteBackend backend;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        Path dir = Paths.get(System.getProperty("bibis3.benchmark.dir", System.getProperty("java.io.tmpdir")));
+        this.file = Files.createTempFile(dir, "bibis3-benchmark", ".tmp");
+        // preallocated like the target of a multipart download
+        try (RandomAccessFile raf = new RandomAccessFile(this.file.toFile(), "rw")) {
+            raf.setLength(this.partSize);
+        }
+        this.out = FileChannel.open(this.file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.out.close();
+        Files.deleteIfExists(this.file);
+    }
+
+    /**
+     * The loop of the download parts.
+     */
+    @Benchmark
+    public long partWriter(Backend b) throws IOException {
+        InputStream in = new SourceStream(this.partSize);
+        long done = 0;
+        try (PartWriter writer = b.backend.newWriter(new FileSink(this.out), false)) {
+            while (done < this.partSize) {
+                int bytesRead = writer.read(in, (int) Math.min(writer.getBlockSize(), this.partSize - done));
+                if (bytesRead < 0) {
+                    break;
+                }
+                writer.write(bytesRead, done);
+                done += bytesRead;
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Let the channel pull from the response. Positional like the part writers, but no checksums on the way.
+     */
+    @Benchmark
+    public long transferFrom() throws IOException {
+        return this.out.transferFrom(Channels.newChannel(new SourceStream(this.partSize)), 0, this.partSize);
+    }
+
+    /**
+     * Copy through an output stream with a 64KB buffer. Not positional, so one writer per channel only.
+     */
+    @Benchmark
+    public long outputStream() throws IOException {
+        InputStream in = new SourceStream(this.partSize);
+        OutputStream os = Channels.newOutputStream(this.out.position(0));
+        byte[] buffer = new byte[65536];
+        long done = 0;
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) != -1) {
+            os.write(buffer, 0, bytesRead);
+            done += bytesRead;
+        }
+        return done;
+    }
+}
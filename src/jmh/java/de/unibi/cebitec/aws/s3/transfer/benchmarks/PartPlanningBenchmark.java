@@ -0,0 +1,95 @@
+package de.unibi.cebitec.aws.s3.transfer.benchmarks;
+
+import de.unibi.cebitec.aws.s3.transfer.model.down.MultipartDownloadFile;
+import de.unibi.cebitec.aws.s3.transfer.model.down.PartSizePlanner;
+import de.unibi.cebitec.aws.s3.transfer.model.up.MultipartUploadFile;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cutting a file into parts and handing them out one by one, as the transfer threads take them, for up to millions
+ * of parts. Planning does not depend on the part size, so tiny parts keep the (sparse) upload source small.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Thread)
+public class PartPlanningBenchmark {
+    private static final long PART_SIZE = 1024;
+    @Param({"10000", "1000000"})
+    public int parts;
+    private Path file;
+
+    @Setup
+    public void setUp() throws IOException {
+        Path dir = Paths.get(System.getProperty("bibis3.benchmark.dir", System.getProperty("java.io.tmpdir")));
+        this.file = Files.createTempFile(dir, "bibis3-benchmark", ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(this.file.toFile(), "rw")) {
+            raf.setLength(this.parts * PART_SIZE);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(this.file);
+    }
+
+    @Benchmark
+    public int download() {
+        MultipartDownloadFile f = new MultipartDownloadFile("key", this.file, this.parts * PART_SIZE, true, PART_SIZE);
+        int n = 0;
+        while (f.hasMoreParts()) {
+            f.next();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * The planned parts are merged back into ranges and cut again on demand, into fewer and larger parts. The planner
+     * does not go below {@link PartSizePlanner#MIN_PART_SIZE}, so the file is larger (and only virtual).
+     */
+    @Benchmark
+    public int adaptiveDownload() {
+        long size = this.parts * PartSizePlanner.MIN_PART_SIZE;
+        MultipartDownloadFile f = new MultipartDownloadFile("key", this.file, size, true, PartSizePlanner.MIN_PART_SIZE);
+        f.setPartSizePlanner(new PartSizePlanner(50));
+        int n = 0;
+        while (f.hasMoreParts()) {
+            f.next();
+            n++;
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int upload() {
+        MultipartUploadFile f = new MultipartUploadFile(this.file, "key", PART_SIZE);
+        int n = 0;
+        while (f.hasMoreParts()) {
+            f.next();
+            n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,40 @@
+package de.unibi.cebitec.aws.s3.transfer.benchmarks;
+
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Repetition of random data, delivered in blocks of at most 64KB like a network stream.
+ */
+class SourceStream extends InputStream {
+    private static final int BLOCK_SIZE = 65536;
+    private static final byte[] DATA = new byte[1048576];
+    private long remaining;
+    private int pos;
+
+    static {
+        new Random(42).nextBytes(DATA);
+    }
+
+    SourceStream(long length) {
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (this.remaining <= 0) {
+            return -1;
+        }
+        int n = (int) Math.min(Math.min(len, BLOCK_SIZE), Math.min(this.remaining, DATA.length - this.pos));
+        System.arraycopy(DATA, this.pos, b, off, n);
+        this.pos = (this.pos + n) % DATA.length;
+        this.remaining -= n;
+        return n;
+    }
+}
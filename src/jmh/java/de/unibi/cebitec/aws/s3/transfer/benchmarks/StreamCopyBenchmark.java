@@ -0,0 +1,82 @@
+package de.unibi.cebitec.aws.s3.transfer.benchmarks;
+
+import de.unibi.cebitec.aws.s3.transfer.streaming.Streamer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The copy loop of the streaming downloads ({@link Streamer#copy}) with its buffer of
+ * {@value Streamer#COPY_BUFFER_SIZE} bytes compared to other buffer sizes. The target is a file opened like the
+ * streamers do or a sink that drops the data, to see the cost of the loop itself.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StreamCopyBenchmark {
+    @Param({"67108864"})
+    public long size;
+    @Param({"4096", "16384", "65536", "262144"})
+    public int bufferSize;
+    @Param({"file", "discard"})
+    public String target;
+    private Path file;
+
+    @Setup
+    public void setUp() throws IOException {
+        if (this.target.equals("file")) {
+            Path dir = Paths.get(System.getProperty("bibis3.benchmark.dir", System.getProperty("java.io.tmpdir")));
+            this.file = Files.createTempFile(dir, "bibis3-benchmark", ".tmp");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (this.file != null) {
+            Files.deleteIfExists(this.file);
+        }
+    }
+
+    @Benchmark
+    public void copy() throws IOException {
+        try (OutputStream out = open()) {
+            Streamer.copy(new SourceStream(this.size), out, this.bufferSize);
+        }
+    }
+
+    private OutputStream open() throws IOException {
+        if (this.file == null) {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            };
+        }
+        return Files.newOutputStream(this.file, StandardOpenOption.CREATE);
+    }
+}
@@ -0,0 +1,119 @@
+package de.unibi.cebitec.aws.s3.transfer.benchmarks;
+
+import de.unibi.cebitec.aws.s3.transfer.model.down.FileSink;
+import de.unibi.cebitec.aws.s3.transfer.model.down.PartWriter;
+import de.unibi.cebitec.aws.s3.transfer.model.down.WriteBackend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the write backends for multipart downloads on a file system. Every backend writes a preallocated file
+ * part by part from several threads, like a download does, with in-memory data as source. The time includes flushing
+ * the file to disk.
+ * <p>
+ * The file is created in the directory given by the system property bibis3.benchmark.dir (default: java.io.tmpdir).
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WriteBackendBenchmark {
+    @Param({"CHANNEL", "DIRECT", "MMAP"})
+    public WriteBackend backend;
+    @Param({"1073741824"})
+    public long size;
+    @Param({"67108864"})
+    public long partSize;
+    @Param({"8"})
+    public int threads;
+    private ExecutorService threading;
+    private Path file;
+
+    @Setup
+    public void setUp() {
+        this.threading = Executors.newFixedThreadPool(this.threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.threading.shutdown();
+    }
+
+    @Setup(Level.Invocation)
+    public void createFile() throws IOException {
+        Path dir = Paths.get(System.getProperty("bibis3.benchmark.dir", System.getProperty("java.io.tmpdir")));
+        this.file = Files.createTempFile(dir, "bibis3-benchmark", ".tmp");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(this.file);
+    }
+
+    @Benchmark
+    public long writeFile() throws Exception {
+        // preallocated like the target of a multipart download
+        try (RandomAccessFile raf = new RandomAccessFile(this.file.toFile(), "rw")) {
+            raf.setLength(this.size);
+        }
+        try (FileChannel out = FileChannel.open(this.file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (long offset = 0; offset < this.size; offset += this.partSize) {
+                long position = offset;
+                long length = Math.min(this.partSize, this.size - offset);
+                futures.add(this.threading.submit(() -> writePart(out, position, length)));
+            }
+            long done = 0;
+            for (Future<Long> future : futures) {
+                done += future.get();
+            }
+            out.force(false);
+            return done;
+        }
+    }
+
+    private long writePart(FileChannel out, long position, long length) throws IOException {
+        InputStream in = new SourceStream(length);
+        long done = 0;
+        try (PartWriter writer = this.backend.newWriter(new FileSink(out), false)) {
+            while (done < length) {
+                int bytesRead = writer.read(in, (int) Math.min(writer.getBlockSize(), length - done));
+                if (bytesRead < 0) {
+                    break;
+                }
+                writer.write(bytesRead, position + done);
+                done += bytesRead;
+            }
+        }
+        return done;
+    }
+}
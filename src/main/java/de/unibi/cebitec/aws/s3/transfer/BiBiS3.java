@@ -12,24 +12,44 @@ import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.*;
+import de.unibi.cebitec.aws.s3.transfer.ctrl.ChecksumVerifier;
 import de.unibi.cebitec.aws.s3.transfer.ctrl.Cleaner;
+import de.unibi.cebitec.aws.s3.transfer.ctrl.DownloadCache;
 import de.unibi.cebitec.aws.s3.transfer.ctrl.Downloader;
+import de.unibi.cebitec.aws.s3.transfer.ctrl.ObjectLister;
 import de.unibi.cebitec.aws.s3.transfer.ctrl.Uploader;
+import de.unibi.cebitec.aws.s3.transfer.ctrl.UploadSync;
 import de.unibi.cebitec.aws.s3.transfer.ctrl.UrlDownloader;
+import de.unibi.cebitec.aws.s3.transfer.model.ChecksumManifest;
 import de.unibi.cebitec.aws.s3.transfer.model.GridDownloadOrganizer;
-import de.unibi.cebitec.aws.s3.transfer.model.InputFileList;
-import de.unibi.cebitec.aws.s3.transfer.model.OutputFileList;
+import de.unibi.cebitec.aws.s3.transfer.model.TransferQueue;
+import de.unibi.cebitec.aws.s3.transfer.model.down.HedgingPolicy;
+import de.unibi.cebitec.aws.s3.transfer.model.down.SyncState;
+import de.unibi.cebitec.aws.s3.transfer.model.down.WriteBackend;
+import de.unibi.cebitec.aws.s3.transfer.streaming.ParallelStreamer;
+import de.unibi.cebitec.aws.s3.transfer.streaming.StreamUploader;
 import de.unibi.cebitec.aws.s3.transfer.streaming.Streamer;
 import de.unibi.cebitec.aws.s3.transfer.streaming.UrlStreamer;
+import de.unibi.cebitec.aws.s3.transfer.util.BandwidthLimiter;
 import de.unibi.cebitec.aws.s3.transfer.util.CredentialsProvider;
+import de.unibi.cebitec.aws.s3.transfer.util.HttpTransport;
+import de.unibi.cebitec.aws.s3.transfer.util.LocalETagCache;
+import de.unibi.cebitec.aws.s3.transfer.util.MetricsEndpoint;
+import de.unibi.cebitec.aws.s3.transfer.util.ProgressReporter;
 import de.unibi.cebitec.aws.s3.transfer.util.S3RegionsProvider;
 import de.unibi.cebitec.aws.s3.transfer.util.S3URI;
 import de.unibi.cebitec.aws.s3.transfer.util.StdinInputReader;
+import de.unibi.cebitec.aws.s3.transfer.util.Throttling;
+import de.unibi.cebitec.aws.s3.transfer.util.TransferExecutors;
 import de.unibi.cebitec.aws.s3.transfer.util.UploadFilesCrawler;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -61,8 +81,14 @@ public class BiBiS3 {
     public static final long MIN_CHUNK_SIZE = 5242880; // 5MB is dictated by s3
     public static final String DEFAULT_REGION = "us-east-1";
     public static final int DEFAULT_THREAD_COUNT = 50;
+    // upper bound of the concurrent requests if they are adjusted at runtime
+    public static final int DEFAULT_ADAPTIVE_THREAD_COUNT = 256;
+    public static final int DEFAULT_LISTING_THREAD_COUNT = 8;
     public static final int RETRIES = 6;
     public static final int INCOMPLETE_HTTP_RESPONSE_RETRIES = 10;
+    public static final double DEFAULT_HEDGE_PERCENTILE = 10;
+    public static final double DEFAULT_HEDGE_BUDGET = 0.05;
+    public static final long DEFAULT_CACHE_SIZE_MB = 10240;
 
     /**
      * We disable the logging of the SDK (mostly used by the Apache HTTP Client)
@@ -80,6 +106,8 @@ public class BiBiS3 {
         clientConfig.setConnectionTimeout(1000 * 30); // 30 sec
         clientConfig.setSocketTimeout(1000 * 30); // 30 sec
         clientConfig.setMaxErrorRetry(RETRIES);
+        // count throttled requests for the adaptive concurrency
+        clientConfig.setRetryPolicy(Throttling.createRetryPolicy());
 
         CommandLineParser cli = new DefaultParser();
 
@@ -93,7 +121,7 @@ public class BiBiS3 {
 
         // create mutually exclusive command-line options
         intentOptions
-                .addOption(Option.builder("u").longOpt("upload").desc("Upload files. DEST has to be an S3 URL.").build())
+                .addOption(Option.builder("u").longOpt("upload").desc("Upload files. DEST has to be an S3 URL. SRC may be a named pipe or '-' for STDIN, the stream is uploaded in parallel chunks while it is read.").build())
                 .addOption(Option.builder("d").longOpt("download").desc("Download files. SRC has to be an S3 URL.").build())
                 .addOption(Option.builder("g").longOpt("download-url").desc("Download a file with Http GET from (pre-signed) S3-Http-Url. SRC has to be an Http-URL with Range support for Http GET.").build())
                 .addOption(Option.builder("c").longOpt("clean-up-parts").desc("Clean up all unfinished parts of previous multipart uploads that were initiated on the specified bucket over a week ago. BUCKET has to be an S3 URL.").build());
@@ -121,11 +149,24 @@ public class BiBiS3 {
                 .addOption(Option.builder("v").longOpt("version").desc("Version.").build())
                 .addOption(Option.builder("q").longOpt("quiet").desc("Disable all log messages.").build())
                 .addOption(Option.builder("t").longOpt("threads").hasArg().desc("Number of parallel threads to use (default: " + DEFAULT_THREAD_COUNT + ").").build())
+                .addOption(Option.builder().longOpt("virtual-threads").desc("Run the transfers on virtual threads (Java 21 or later), -t only limits the number of concurrent requests then. Allows thousands of concurrent requests for small files.").build())
+                .addOption(Option.builder().longOpt("adaptive-concurrency").desc("Adjust the number of concurrent requests at runtime: raised while the throughput rises, reduced when the server throttles (503 SlowDown) or the latency rises. -t is the upper bound (default: " + DEFAULT_ADAPTIVE_THREAD_COUNT + "). Applies to uploads and downloads of files, not to streaming.").build())
+                .addOption(Option.builder().longOpt("prefix-scheduling").desc("Interleave the requests across key prefixes (up to the last '/'), every prefix within a request budget that starts at the S3 limits of about 5,500 GET and 3,500 PUT requests per second, is halved when the prefix is throttled and raised slowly otherwise. Applies to uploads and downloads of files, not to streaming.").build())
+                .addOption(Option.builder().longOpt("async-engine").desc("Transfer the chunks of S3 uploads and downloads with a non-blocking HTTP client: A few event loop threads drive all requests, -t only limits the number of concurrent requests, and separate writer threads write the data to disk.").build())
+                .addOption(Option.builder().longOpt("max-download-rate").hasArg().argName("MB/s").desc("Limit the aggregate download rate of all threads. Takes a rate or a schedule of comma separated 'HH:MM=rate' entries that set the rate from that time of day on, e.g. '08:00=20,18:00=0'. 0 is unlimited.").build())
+                .addOption(Option.builder().longOpt("max-upload-rate").hasArg().argName("MB/s").desc("Limit the aggregate upload rate of all threads, like --max-download-rate.").build())
+                .addOption(Option.builder().longOpt("rate-control").hasArg().argName("file").desc("Override the rate limits while the transfer is running with lines 'download=<MB/s>' and 'upload=<MB/s>' in this file. The file is checked every few seconds, missing entries follow the configured limits.").build())
+                .addOption(Option.builder().longOpt("metrics").hasArg().argName("[host:]port").desc("Serve live metrics of the transfer in the Prometheus text format at http://host:port/metrics (host defaults to 127.0.0.1): transferred bytes, requests, retries, throttled requests, chunks in flight and queued, latency percentiles and thread states.").build())
+                .addOption(Option.builder().longOpt("progress-json").hasArg().argName("target").desc("Report the transfer as JSON lines to '-' (STDOUT, combine with -q), an open file descriptor number or a file: the start with the planned bytes, the progress every 5 seconds, every completed file with its checksums, retries, failures and a summary at the exit. Replaces the progress lines of the streaming downloads.").build())
+                .addOption(Option.builder().longOpt("listing-threads").hasArg().desc("Number of parallel threads listing the sub directories of a recursive download (default: " + DEFAULT_LISTING_THREAD_COUNT + ").").build())
                 .addOption(Option.builder().longOpt("access-key").hasArg().desc("AWS Access Key.").build())
                 .addOption(Option.builder().longOpt("secret-key").hasArg().desc("AWS Secret Key.").build())
                 .addOption(Option.builder().longOpt("session-token").hasArg().desc("AWS Session Token.").build())
                 .addOption(Option.builder().longOpt("chunk-size").hasArg().desc("Multipart chunk size in Bytes.").build())
+                .addOption(Option.builder().longOpt("adaptive-chunk-size").desc("Choose the chunk size of downloads from the transfer size, the number of threads and the measured throughput instead of using a fixed chunk size.").build())
                 .addOption(Option.builder().longOpt("streaming-download").desc("Run single threaded download and send special progress info to STDOUT.").build())
+                .addOption(Option.builder().longOpt("parallel-streaming").desc("Download a single file in parallel chunks and write it in order to DEST, which may be a named pipe or '-' for STDOUT. Progress info is sent like with --streaming-download, to STDERR if DEST is STDOUT.").build())
+                .addOption(Option.builder().longOpt("stream-window").hasArg().desc("Maximum memory in MB used for chunks of a parallel streaming download that have not been written yet (default: " + ParallelStreamer.DEFAULT_WINDOW_SIZE / 1048576 + ").").build())
                 .addOption(Option.builder().longOpt("region").hasArg().desc(s3RegionInfo.toString()).build())
                 .addOption(Option.builder().longOpt("endpoint").hasArg().desc("Endpoint for client authentication (default: standard AWS endpoint).").build())
                 .addOption(Option.builder().longOpt("create-bucket").desc("Create bucket if nonexistent.").build())
@@ -134,9 +175,25 @@ public class BiBiS3 {
                 .addOption(Option.builder().longOpt("grid-download-feature-fastq").desc("Download separate parts of a fastq file to different nodes into different files and make sure the file splits conserve the fastq file format.").build())
                 .addOption(Option.builder().longOpt("grid-nodes").hasArg().desc("Number of grid nodes.").build())
                 .addOption(Option.builder().longOpt("grid-current-node").hasArg().desc("Identifier of the node that is running this program (must be 1 >= i <= grid-nodes.").build())
+                .addOption(Option.builder().longOpt("mirror").hasArg().argName("url").desc("Another URL of the file downloaded with -g, can be specified multiple times. Mirrors with the same length share the chunks according to their throughput, failing or slow ones are dropped.").build())
+                .addOption(Option.builder().longOpt("url-list").hasArg().argName("file").desc("Download all URLs of a list with -g, '-' reads the list from STDIN. Each line holds a URL and optionally its destination relative to DEST (default: the file name of the URL), separated by whitespace. In this case the SRC argument has to be omitted.").build())
                 .addOption(Option.builder().longOpt("upload-list-stdin").desc("Take list of files to upload from STDIN. In this case the SRC argument has to be omitted.").build())
                 .addOption(Option.builder("m").longOpt("metadata").desc("Adds metadata to all uploads. Can be specified multiple times for additional metadata.").hasArgs().numberOfArgs(2).argName("key> <value").build())
-                .addOption(Option.builder().longOpt("reduced-redundancy").desc("Set the storage class for uploads to Reduced Redundancy instead of Standard.").build());
+                .addOption(Option.builder().longOpt("reduced-redundancy").desc("Set the storage class for uploads to Reduced Redundancy instead of Standard.").build())
+                .addOption(Option.builder().longOpt("hedge-delay").hasArg().desc("Enable hedged downloads: Issue a second request for a chunk whose request has not delivered any data or is slower than the --hedge-percentile of finished chunks after this many milliseconds. The faster request wins.").build())
+                .addOption(Option.builder().longOpt("hedge-percentile").hasArg().desc("Throughput percentile of finished chunks below which a running chunk is hedged (default: " + DEFAULT_HEDGE_PERCENTILE + ").").build())
+                .addOption(Option.builder().longOpt("hedge-budget").hasArg().desc("Maximum fraction of additional requests caused by hedging (default: " + DEFAULT_HEDGE_BUDGET + ").").build())
+                .addOption(Option.builder().longOpt("write-backend").hasArg().desc("How downloaded chunks are written to disk: 'channel' (positional writes from a small buffer, default), 'direct' (1MB writes from direct buffers) or 'mmap' (memory mapped file). WriteBackendBenchmark of the benchmarks profile compares them on a file system.").build())
+                .addOption(Option.builder().longOpt("no-chunk-splitting").desc("Do not split the remainder of slow chunks among idle threads at the end of a download.").build())
+                .addOption(Option.builder().longOpt("resume").desc("Resume interrupted multipart downloads. Finished parts are recorded in a journal file next to the target file and are not downloaded again.").build())
+                .addOption(Option.builder().longOpt("sync").desc("Only transfer files that are new or have changed (recursive transfers). Downloads keep the state of DEST in a " + SyncState.FILENAME + " file. Uploads list DEST and compare size and ETag of the objects with the local files.").build())
+                .addOption(Option.builder().longOpt("delete").desc("Delete local files that do not belong to an object of SRC (--sync downloads only).").build())
+                .addOption(Option.builder().longOpt("etag-cache").hasArg().argName("file").desc("Cache of the ETags of local files for --sync uploads (default: " + LocalETagCache.getDefaultFile() + ").").build())
+                .addOption(Option.builder().longOpt("cache-dir").hasArg().argName("dir").desc("Node-local cache of downloaded objects shared by all bibis3 processes on a host, e. g. the tasks of a grid job. Cached objects are handed out as read-only hard links, only objects missing in the cache are downloaded.").build())
+                .addOption(Option.builder().longOpt("cache-size").hasArg().argName("MB").desc("Size limit of the --cache-dir, least recently used objects are evicted (default: " + DEFAULT_CACHE_SIZE_MB + ").").build())
+                .addOption(Option.builder().longOpt("verify").desc("Compute the MD5 digests of all transferred files while they are transferred and compare them with the ETags. Fails if a file does not match.").build())
+                .addOption(Option.builder().longOpt("checksum-manifest").hasArg().argName("file").desc("Write the checksums of all transferred files to this tab separated file.").build())
+                .addOption(Option.builder().longOpt("checksums").hasArg().argName("list").desc("Comma separated list of additional checksums for the manifest: 'crc32c' (whole file) and 'sha256' (files transferred with a single request only).").build());
 
         // Get the root logger instance of the logback logger implementation to be able to set the logging level at runtime.
         ch.qos.logback.classic.Logger root = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
@@ -173,11 +230,17 @@ public class BiBiS3 {
             CommandLine cl = cli.parse(actionOptions, args);
             String[] positionalArgs = cl.getArgs();
             // Adjust number of required CLI parameters depending on whether upload-list-stdin is set or whether this is a clean up operation.
-            if (cl.hasOption("upload-list-stdin")) {
+            if (cl.hasOption("upload-list-stdin") || cl.hasOption("url-list")) {
                 if (positionalArgs.length < 1) {
                     throw new ParseException("Missing required argument: DEST");
                 } else if (positionalArgs.length > 1) {
-                    throw new ParseException("Using STDIN file list. SRC has to be omitted.");
+                    throw new ParseException("Using " + (cl.hasOption("url-list") ? "URL list" : "STDIN file list") + ". SRC has to be omitted.");
+                }
+                if (cl.hasOption("url-list") && !cl.hasOption("g")) {
+                    throw new ParseException("--url-list requires -g.");
+                }
+                if (cl.hasOption("url-list") && cl.hasOption("streaming-download")) {
+                    throw new ParseException("Streaming downloads are not supported for URL lists.");
                 }
             } else {
                 if (cl.hasOption("clean-up-parts")) {
@@ -225,6 +288,11 @@ public class BiBiS3 {
                 dest = positionalArgs[1];
             }
 
+            if (cl.hasOption("parallel-streaming") && dest.equals(ParallelStreamer.STDOUT)) {
+                // the data goes to STDOUT, everything else to STDERR
+                System.setOut(System.err);
+            }
+
             String endpoint = null;
             // Override endpoint with CLI parameter if present.
             if (cl.hasOption("endpoint")) {
@@ -244,6 +312,23 @@ public class BiBiS3 {
             }
             log.info("== Access key: {}   Bucket region: {}", credentials == null ? "none" : credentials.getAWSAccessKeyId(), region);
 
+            // Override thread count with CLI parameter if present.
+            boolean streaming = cl.hasOption("streaming-download") || cl.hasOption("parallel-streaming");
+            int defaultThreads = cl.hasOption("adaptive-concurrency") && !streaming ? DEFAULT_ADAPTIVE_THREAD_COUNT : DEFAULT_THREAD_COUNT;
+            int numOfThreads = defaultThreads;
+            try {
+                numOfThreads = Integer.parseInt(cl.getOptionValue("t", "" + defaultThreads));
+            } catch (NumberFormatException e) {
+                throw new ParseException("Invalid integer value for -t");
+            }
+            // the connection pools have to be sized before the clients are built
+            clientConfig.setMaxConnections(numOfThreads + 10);
+            HttpTransport.configure(numOfThreads + 10);
+            TransferExecutors.setVirtualThreads(cl.hasOption("virtual-threads"));
+            configureBandwidthLimits(cl);
+            startMetricsEndpoint(cl);
+            startProgressReporter(cl, src, dest);
+
             AmazonS3ClientBuilder builder = AmazonS3Client.builder();
             builder = endpoint == null ?
                     builder.withRegion(region) :
@@ -252,8 +337,18 @@ public class BiBiS3 {
                     .withCredentials(new AWSStaticCredentialsProvider(credentials))
                     .build();
 
+            if (cl.hasOption("async-engine") && (cl.hasOption("g") || cl.hasOption("streaming-download") || cl.hasOption("parallel-streaming"))) {
+                log.warn("The asynchronous engine is only used for uploads and downloads of S3 objects.");
+            }
+            if (cl.hasOption("adaptive-concurrency") && streaming) {
+                log.warn("The adaptive concurrency is not used for streaming.");
+            }
+            if (cl.hasOption("prefix-scheduling") && streaming) {
+                log.warn("The prefix scheduling is not used for streaming.");
+            }
+
             // Streaming download has its own handler.
-            if (cl.hasOption("streaming-download")) {
+            if (cl.hasOption("streaming-download") && !cl.hasOption("parallel-streaming")) {
                 if (cl.hasOption("d")) {
                     // we don't want the logger to mess up our progress output unless he has serious concerns
                     root.setLevel(ch.qos.logback.classic.Level.ERROR);
@@ -261,6 +356,7 @@ public class BiBiS3 {
                     Streamer streamer = new Streamer(s3uri.getKey(), FileSystems.getDefault().getPath(dest));
                     streamer.download(s3, s3uri.getBucket());
                     // Streaming download ends here. No parallelization as of yet.
+                    ProgressReporter.succeeded();
                     System.exit(0);
                 } else if (cl.hasOption("g")) {
                     // we don't want the logger to mess up our progress output unless he has serious concerns
@@ -268,6 +364,7 @@ public class BiBiS3 {
                     UrlStreamer streamer = new UrlStreamer(src, FileSystems.getDefault().getPath(dest));
                     streamer.download(src);
                     // Streaming download ends here. No parallelization as of yet.
+                    ProgressReporter.succeeded();
                     System.exit(0);
                 }
             }
@@ -291,14 +388,43 @@ public class BiBiS3 {
             // Set up and run the uploader/downloader.
             try {
                 try {
-                    // Override thread count with CLI parameter if present.
-                    int numOfThreads = DEFAULT_THREAD_COUNT;
+                    HedgingPolicy hedgingPolicy = createHedgingPolicy(cl);
+                    WriteBackend writeBackend;
                     try {
-                        numOfThreads = Integer.parseInt(cl.getOptionValue("t", "" + DEFAULT_THREAD_COUNT));
-                    } catch (NumberFormatException e) {
-                        throw new ParseException("Invalid integer value for -t");
+                        writeBackend = WriteBackend.fromName(cl.getOptionValue("write-backend", "channel"));
+                    } catch (IllegalArgumentException e) {
+                        throw new ParseException("Invalid value for --write-backend");
+                    }
+                    boolean parallelStreaming = cl.hasOption("parallel-streaming") && (cl.hasOption("d") || cl.hasOption("g"));
+                    if (parallelStreaming && (cl.hasOption("verify") || cl.hasOption("checksum-manifest"))) {
+                        throw new ParseException("--verify and --checksum-manifest are not supported for parallel streaming downloads");
+                    }
+                    ChecksumVerifier checksumVerifier = createChecksumVerifier(cl, chunkSize);
+                    // Parallel streaming download has its own handler as well.
+                    if (parallelStreaming) {
+                        int windowSize;
+                        try {
+                            windowSize = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, Long.parseLong(cl.getOptionValue("stream-window", "" + ParallelStreamer.DEFAULT_WINDOW_SIZE / 1048576))) * 1048576);
+                        } catch (NumberFormatException e) {
+                            throw new ParseException("Invalid integer value for --stream-window");
+                        }
+                        // we don't want the logger to mess up our progress output unless he has serious concerns
+                        root.setLevel(ch.qos.logback.classic.Level.ERROR);
+                        S3URI s3uri = cl.hasOption("d") ? new S3URI(src) : null;
+                        ParallelStreamer streamer = new ParallelStreamer(s3uri != null ? s3uri.getKey() : src, Paths.get(dest), numOfThreads, chunkSize);
+                        streamer.setWindowSize(windowSize);
+                        streamer.setHedgingPolicy(hedgingPolicy);
+                        streamer.setWriteBackend(writeBackend);
+                        streamer.setSplitSlowChunks(!cl.hasOption("no-chunk-splitting"));
+                        if (s3uri != null) {
+                            streamer.download(s3, s3uri.getBucket());
+                        } else {
+                            streamer.download(src);
+                        }
+                        ProgressReporter.succeeded();
+                        System.exit(0);
                     }
-                    clientConfig.setMaxConnections(numOfThreads + 10);
+
                     if (cl.hasOption("u") || cl.hasOption("d") || cl.hasOption("g")) {
                         log.info("== Copying from '{}' to '{}' in {} threads. Chunk size: {} Bytes", src, dest, numOfThreads, chunkSize);
                     }
@@ -321,65 +447,123 @@ public class BiBiS3 {
                             throw new IllegalArgumentException("Bucket does not exist!");
                         }
 
-                        // File lists to fill with files to be uploaded.
-                        InputFileList<Path> filesToUpload = new InputFileList<>();
-                        OutputFileList<Path, String> uploadTargetKeys = new OutputFileList<>();
+                        ObjectMetadata metadata = new ObjectMetadata();
+                        if (cl.hasOption("metadata")) {
+                            log.info("Adding metadata to all uploads:");
+                            for (Entry<Object, Object> entry : cl.getOptionProperties("metadata").entrySet()) {
+                                log.info("    " + entry.getKey().toString() + " = " + entry.getValue().toString());
+                                metadata.addUserMetadata(entry.getKey().toString(), entry.getValue().toString());
+                            }
+                        }
+
+                        // Upload of a stream of unknown length from STDIN or a named pipe.
+                        if (srcPath != null && (src.equals(StreamUploader.STDIN) || (Files.exists(srcPath)
+                                && !Files.isRegularFile(srcPath) && !Files.isDirectory(srcPath)))) {
+                            String key = s3uri.getKey();
+                            if (key.endsWith("/") || key.isEmpty()) {
+                                if (src.equals(StreamUploader.STDIN)) {
+                                    throw new ParseException("DEST has to be a full key for uploads from STDIN.");
+                                }
+                                key = key + srcPath.getFileName().toString();
+                            }
+                            if (cl.hasOption("async-engine")) {
+                                log.warn("The asynchronous engine is not supported for stream uploads.");
+                            }
+                            // every thread holds a part in memory, don't use the upper bound of the adaptive concurrency
+                            int streamThreads = numOfThreads;
+                            if (cl.hasOption("adaptive-concurrency")) {
+                                log.warn("The adaptive concurrency is not supported for stream uploads.");
+                                streamThreads = cl.hasOption("t") ? numOfThreads : DEFAULT_THREAD_COUNT;
+                            }
+                            try (InputStream in = src.equals(StreamUploader.STDIN) ? System.in : Files.newInputStream(srcPath)) {
+                                StreamUploader up = new StreamUploader(s3, in, s3uri.getBucket(), key, streamThreads, chunkSize, metadata, cl.hasOption("reduced-redundancy"));
+                                up.setChecksumVerifier(checksumVerifier);
+                                up.upload();
+                            }
+                            log.info("Upload successful.");
+                            ProgressReporter.succeeded();
+                            System.exit(0);
+                        }
+
+                        // Queue to fill with files to be uploaded while the upload is running.
+                        TransferQueue<Path, String> filesToUpload = new TransferQueue<>();
+                        UploadSync uploadSync = null;
+                        if (cl.hasOption("sync") && (!cl.hasOption("r") || cl.hasOption("upload-list-stdin"))) {
+                            throw new ParseException("--sync requires a recursive upload (-r).");
+                        }
+                        if (cl.hasOption("delete")) {
+                            throw new ParseException("--delete is only supported for downloads.");
+                        }
 
                         if (cl.hasOption("upload-list-stdin")) {
                             log.info("Using STDIN file list.");
-                            StdinInputReader reader = new StdinInputReader();
-                            List<String> files = reader.getStdinLines();
-                            for (String file : files) {
-                                if (!file.isEmpty()) {
-                                    Path filePath = Paths.get(file);
-                                    filesToUpload.put(filePath, Files.size(filePath));
-                                    String key = s3uri.getKey() + filePath.getFileName().toString();
-                                    uploadTargetKeys.put(filePath, key);
-                                    log.debug("Adding file via STDIN: {} {}", filePath, key);
+                            filesToUpload.fill("stdin-reader", queue -> {
+                                StdinInputReader reader = new StdinInputReader();
+                                List<String> files = reader.getStdinLines();
+                                for (String file : files) {
+                                    if (!file.isEmpty()) {
+                                        Path filePath = Paths.get(file);
+                                        String key = s3uri.getKey() + filePath.getFileName().toString();
+                                        queue.put(filePath, key, Files.size(filePath));
+                                        log.debug("Adding file via STDIN: {} {}", filePath, key);
+                                    }
                                 }
-                            }
+                            });
                         } else {
                             if (cl.hasOption("r")) {
                                 // Recursive upload.
                                 if (srcPath.toFile().isFile()) {
                                     log.error("Recursive option is set. Please specify a directory instead of a file as SRC.");
                                 }
-                                // fill file list
-                                UploadFilesCrawler crawler = new UploadFilesCrawler(s3uri.getKey());
-                                try {
-                                    Files.walkFileTree(srcPath, crawler);
-                                } catch (IOException | SecurityException e) {
-                                    log.error("Error while accessing some or all files in the source directory.");
+                                if (cl.hasOption("sync")) {
+                                    int listingThreads;
+                                    try {
+                                        listingThreads = Integer.parseInt(cl.getOptionValue("listing-threads", "" + DEFAULT_LISTING_THREAD_COUNT));
+                                    } catch (NumberFormatException e) {
+                                        throw new ParseException("Invalid integer value for --listing-threads");
+                                    }
+                                    Path cacheFile = cl.hasOption("etag-cache") ? Paths.get(cl.getOptionValue("etag-cache")) : LocalETagCache.getDefaultFile();
+                                    uploadSync = new UploadSync(s3, s3uri.getBucket(), LocalETagCache.open(cacheFile), chunkSize);
+                                    uploadSync.list(s3uri.getKey(), listingThreads);
                                 }
-                                filesToUpload = crawler.getFiles();
-                                uploadTargetKeys = crawler.getTargetKeys();
+                                UploadSync sync = uploadSync;
+                                // fill file list while uploading
+                                Path crawlRoot = srcPath;
+                                filesToUpload.fill("file-crawler", queue -> {
+                                    UploadFilesCrawler crawler = new UploadFilesCrawler(s3uri.getKey(), queue);
+                                    crawler.setFilter(sync);
+                                    try {
+                                        Files.walkFileTree(crawlRoot, crawler);
+                                    } catch (IOException | SecurityException e) {
+                                        log.error("Error while accessing some or all files in the source directory.");
+                                    }
+                                });
                             } else {
                                 // Single file upload.
                                 if (srcPath.toFile().isDirectory()) {
                                     log.error("{} is a directory. Use -r for recursive upload.", src);
                                 }
                                 // upload single file
-                                filesToUpload.put(srcPath, Files.size(srcPath));
                                 String key;
                                 if (s3uri.getKey().endsWith("/") || s3uri.getKey().isEmpty()) {
                                     key = s3uri.getKey() + srcPath.getFileName().toString();
                                 } else {
                                     key = s3uri.getKey();
                                 }
-                                uploadTargetKeys.put(srcPath, key);
-                            }
-                        }
-                        ObjectMetadata metadata = new ObjectMetadata();
-                        if (cl.hasOption("metadata")) {
-                            log.info("Adding metadata to all uploads:");
-                            for (Entry<Object, Object> entry : cl.getOptionProperties("metadata").entrySet()) {
-                                log.info("    " + entry.getKey().toString() + " = " + entry.getValue().toString());
-                                metadata.addUserMetadata(entry.getKey().toString(), entry.getValue().toString());
+                                filesToUpload.put(srcPath, key, Files.size(srcPath));
+                                filesToUpload.close();
                             }
                         }
                         // Instantiate uploader and start upload. Finally.
-                        Uploader up = new Uploader(s3, filesToUpload, s3uri.getBucket(), uploadTargetKeys, numOfThreads, chunkSize, metadata, cl.hasOption("reduced-redundancy"));
+                        Uploader up = new Uploader(s3, filesToUpload, s3uri.getBucket(), numOfThreads, chunkSize, metadata, cl.hasOption("reduced-redundancy"));
+                        up.setChecksumVerifier(checksumVerifier);
+                        up.setAsyncEngine(cl.hasOption("async-engine"));
+                        up.setAdaptiveConcurrency(cl.hasOption("adaptive-concurrency"));
+                        up.setPrefixScheduling(cl.hasOption("prefix-scheduling"));
                         up.upload();
+                        if (uploadSync != null) {
+                            uploadSync.finish();
+                        }
                         log.info("Upload successful.");
 
                     } else if (cl.hasOption("d")) {
@@ -388,19 +572,18 @@ public class BiBiS3 {
                         S3URI s3uri = new S3URI(src);
                         String keyPrefix = s3uri.getKey();
 
-                        // File lists to fill with files to be downloaded.
-                        InputFileList<String> filesToDownload = new InputFileList<>();
-                        OutputFileList<String, Path> fileDownloadDestinations = new OutputFileList<>();
+                        // Queue to fill with the files to download, while the download is running for recursive downloads.
+                        TransferQueue<String, Path> listedFiles = null;
+                        SyncState syncState = null;
+                        Path syncDir = null;
+                        if (cl.hasOption("sync") && !cl.hasOption("r")) {
+                            throw new ParseException("--sync requires a recursive download (-r).");
+                        }
+                        if (cl.hasOption("delete") && !cl.hasOption("sync")) {
+                            throw new ParseException("--delete requires --sync.");
+                        }
 
                         if (cl.hasOption("r")) {
-                            // get list of files to download for given prefix
-                            ListObjectsRequest listReq = new ListObjectsRequest();
-                            listReq.setBucketName(s3uri.getBucket());
-                            listReq.setPrefix(keyPrefix);
-                            listReq.setMaxKeys(Integer.MAX_VALUE);
-                            ObjectListing listing = s3.listObjects(listReq);
-                            List<S3ObjectSummary> items = listing.getObjectSummaries();
-
                             String dirname1, dirname = s3uri.getBucket();
                             if (!keyPrefix.isEmpty()) {
                                 dirname1 = keyPrefix.substring(0, keyPrefix.length() - 1);
@@ -410,25 +593,45 @@ public class BiBiS3 {
                                     dirname = keyPrefix;
                                 }
                             }
+                            Path listingDestination = destination;
+                            if (destination.startsWith(".") && destination.endsWith(".")) {
+                                listingDestination = destination.resolve(dirname);
+                            }
+                            Path destinationDir = listingDestination;
+                            if (cl.hasOption("sync")) {
+                                syncDir = destinationDir;
+                                syncState = SyncState.open(destinationDir);
+                            }
+                            SyncState sync = syncState;
 
-                            for (S3ObjectSummary item : items) {
-                                if (item.getKey().length() > keyPrefix.length()) {
-                                    filesToDownload.put(item.getKey(), item.getSize());
-                                    String relativePathString = item.getKey().substring(keyPrefix.length());
-                                    log.debug("relative path string: {}", relativePathString);
-                                    Path fileDestinationPath = destination;
-                                    if (destination.startsWith(".") && destination.endsWith(".")) {
-                                        fileDestinationPath = fileDestinationPath.resolve(dirname);
+                            // list the files to download for given prefix while downloading
+                            listedFiles = new TransferQueue<>();
+                            int listingThreads;
+                            try {
+                                listingThreads = Integer.parseInt(cl.getOptionValue("listing-threads", "" + DEFAULT_LISTING_THREAD_COUNT));
+                            } catch (NumberFormatException e) {
+                                throw new ParseException("Invalid integer value for --listing-threads");
+                            }
+                            listedFiles.fill("object-listing", queue -> {
+                                ObjectLister lister = new ObjectLister(s3, s3uri.getBucket(), listingThreads);
+                                lister.list(keyPrefix, item -> {
+                                    if (item.getKey().length() > keyPrefix.length()) {
+                                        String relativePathString = item.getKey().substring(keyPrefix.length());
+                                        log.debug("relative path string: {}", relativePathString);
+                                        Path fileDestinationPath = destinationDir.resolve(relativePathString);
+                                        log.debug("DEST-X: {}", fileDestinationPath);
+                                        if (sync != null && sync.check(item.getKey(), item.getSize(), item.getETag(), item.getLastModified() == null ? 0 : item.getLastModified().getTime(), fileDestinationPath)) {
+                                            log.debug("Skipping unchanged file: {}", fileDestinationPath);
+                                            return;
+                                        }
+                                        queue.put(item.getKey(), fileDestinationPath, item.getSize(), item.getETag());
                                     }
-                                    fileDestinationPath = fileDestinationPath.resolve(relativePathString);
-                                    log.debug("DEST-X: {}", fileDestinationPath);
-                                    fileDownloadDestinations.put(item.getKey(), fileDestinationPath);
+                                });
+                                if (queue.getCount() == 0 && (sync == null || sync.getListedCount() == 0)) {
+                                    log.error("No files available for recursive download. Please provide an existing and non-empty directory as SRC.");
+                                    System.exit(1);
                                 }
-                            }
-                            if (filesToDownload.isEmpty()) {
-                                log.error("No files available for recursive download. Please provide an existing and non-empty directory as SRC.");
-                                System.exit(1);
-                            }
+                            });
                         } else {
                             try {
                                 ObjectMetadata meta = null;
@@ -444,7 +647,7 @@ public class BiBiS3 {
                                         System.exit(1);
                                     }
                                 }
-                                filesToDownload.put(keyPrefix, meta.getContentLength());
+                                Path fileDestination = destination;
                                 if (destination.toFile().isDirectory()) {
                                     String filename;
                                     if (keyPrefix.contains("/")) {
@@ -452,12 +655,12 @@ public class BiBiS3 {
                                     } else {
                                         filename = keyPrefix;
                                     }
-                                    Path fullDestination = destination.resolve(filename);
-                                    fileDownloadDestinations.put(keyPrefix, fullDestination);
-                                    log.debug("Full Destination: {}", fullDestination);
-                                } else {
-                                    fileDownloadDestinations.put(keyPrefix, destination);
+                                    fileDestination = destination.resolve(filename);
+                                    log.debug("Full Destination: {}", fileDestination);
                                 }
+                                listedFiles = new TransferQueue<>(2);
+                                listedFiles.put(keyPrefix, fileDestination, meta.getContentLength(), meta.getETag());
+                                listedFiles.close();
                             } catch (AmazonClientException e) {
                                 log.error("SRC does not exist. Or maybe SRC is a directory (in that case use -r for recursive transfer) (Third possibility: Wrong credentials).");
                                 System.exit(1);
@@ -484,19 +687,58 @@ public class BiBiS3 {
                                     System.exit(1);
                                 }
                             }
-                            down = new Downloader(s3, s3uri.getBucket(), filesToDownload, fileDownloadDestinations, numOfThreads, chunkSize, organizer);
+                            down = new Downloader(s3, s3uri.getBucket(), listedFiles, numOfThreads, chunkSize, organizer);
                         } else {
                             // No grid download.
-                            down = new Downloader(s3, s3uri.getBucket(), filesToDownload, fileDownloadDestinations, numOfThreads, chunkSize);
+                            down = new Downloader(s3, s3uri.getBucket(), listedFiles, numOfThreads, chunkSize);
                         }
+                        down.setResume(cl.hasOption("resume"));
+                        down.setAdaptivePartSize(cl.hasOption("adaptive-chunk-size"));
+                        down.setSplitSlowChunks(!cl.hasOption("no-chunk-splitting"));
+                        down.setHedgingPolicy(hedgingPolicy);
+                        down.setWriteBackend(writeBackend);
+                        down.setChecksumVerifier(checksumVerifier);
+                        down.setSyncState(syncState);
+                        down.setDownloadCache(createDownloadCache(cl));
+                        down.setAsyncEngine(cl.hasOption("async-engine"));
+                        down.setAdaptiveConcurrency(cl.hasOption("adaptive-concurrency"));
+                        down.setPrefixScheduling(cl.hasOption("prefix-scheduling"));
                         // Start download.
                         down.download();
+                        if (syncState != null) {
+                            syncState.close();
+                            log.info("== Sync: {} files unchanged ({} Bytes), {} files downloaded.", syncState.getUnchangedFiles(), syncState.getUnchangedBytes(), syncState.getDownloadedFiles());
+                            if (cl.hasOption("delete")) {
+                                log.info("== Sync: {} extraneous files deleted.", syncState.deleteExtraneous(syncDir));
+                            }
+                        }
                         log.info("Download successful.");
                     } else if (cl.hasOption("g")) {
                         // Download URL task.
                         Path destination = Paths.get(dest);
                         UrlDownloader down;
-                        if (cl.hasOption("grid-download") && cl.hasOption("grid-nodes") && cl.hasOption("grid-current-node")) {
+                        if (cl.hasOption("url-list")) {
+                            if (cl.hasOption("grid-download")) {
+                                throw new ParseException("Grid downloads are not supported for URL lists.");
+                            }
+                            String listFile = cl.getOptionValue("url-list");
+                            TransferQueue<String, Path> urls = new TransferQueue<>();
+                            urls.fill("url-list-reader", queue -> {
+                                try (BufferedReader in = listFile.equals("-") ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                                        : Files.newBufferedReader(Paths.get(listFile), StandardCharsets.UTF_8)) {
+                                    String line;
+                                    while ((line = in.readLine()) != null) {
+                                        String[] fields = line.trim().split("\\s+", 2);
+                                        if (!fields[0].isEmpty()) {
+                                            Path target = destination.resolve(fields.length > 1 ? fields[1] : getUrlFileName(fields[0]));
+                                            queue.put(fields[0], target, -1);
+                                            log.debug("Adding URL: {} {}", fields[0], target);
+                                        }
+                                    }
+                                }
+                            });
+                            down = new UrlDownloader(urls, numOfThreads, chunkSize);
+                        } else if (cl.hasOption("grid-download") && cl.hasOption("grid-nodes") && cl.hasOption("grid-current-node")) {
                             // If this download is a grid download, then parse additional CLI parameters and create an organizer.
                             int nodesCount = Integer.parseInt(cl.getOptionValue("grid-nodes"));
                             int currentNode = Integer.parseInt(cl.getOptionValue("grid-current-node"));
@@ -520,6 +762,16 @@ public class BiBiS3 {
                             // No grid download.
                             down = new UrlDownloader(src, destination, numOfThreads, chunkSize);
                         }
+                        if (cl.hasOption("mirror")) {
+                            if (cl.hasOption("url-list")) {
+                                throw new ParseException("--mirror is not supported for URL lists.");
+                            }
+                            down.setMirrors(Arrays.asList(cl.getOptionValues("mirror")));
+                        }
+                        down.setHedgingPolicy(hedgingPolicy);
+                        down.setWriteBackend(writeBackend);
+                        down.setChecksumVerifier(checksumVerifier);
+                        down.setAdaptiveConcurrency(cl.hasOption("adaptive-concurrency"));
                         // Start download.
                         down.download();
                         log.info("Download successful.");
@@ -529,6 +781,7 @@ public class BiBiS3 {
                         Cleaner cleaner = new Cleaner(s3, s3uri.getBucket());
                         cleaner.cleanUpParts();
                     }
+                    ProgressReporter.succeeded();
                     System.exit(0);
                 } catch (IllegalArgumentException e) {
                     log.error("Invalid argument: {}", e.getMessage());
@@ -564,6 +817,117 @@ public class BiBiS3 {
         System.exit(1);
     }
 
+    private static HedgingPolicy createHedgingPolicy(CommandLine cl) throws ParseException {
+        if (!cl.hasOption("hedge-delay")) {
+            return null;
+        }
+        try {
+            long delay = Long.parseLong(cl.getOptionValue("hedge-delay"));
+            double percentile = Double.parseDouble(cl.getOptionValue("hedge-percentile", "" + DEFAULT_HEDGE_PERCENTILE));
+            double budget = Double.parseDouble(cl.getOptionValue("hedge-budget", "" + DEFAULT_HEDGE_BUDGET));
+            log.info("== Hedging chunk requests after {} ms (percentile: {}, budget: {})", delay, percentile, budget);
+            return new HedgingPolicy(delay, percentile, budget);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid value for --hedge-delay, --hedge-percentile or --hedge-budget");
+        }
+    }
+
+    private static void configureBandwidthLimits(CommandLine cl) throws ParseException {
+        try {
+            if (cl.hasOption("max-download-rate")) {
+                BandwidthLimiter.DOWNLOADS.setRate(cl.getOptionValue("max-download-rate"));
+            }
+            if (cl.hasOption("max-upload-rate")) {
+                BandwidthLimiter.UPLOADS.setRate(cl.getOptionValue("max-upload-rate"));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("Invalid value for --max-download-rate or --max-upload-rate: " + e.getMessage());
+        }
+        if (cl.hasOption("rate-control")) {
+            BandwidthLimiter.watch(Paths.get(cl.getOptionValue("rate-control")));
+        }
+    }
+
+    private static void startMetricsEndpoint(CommandLine cl) throws ParseException {
+        if (!cl.hasOption("metrics")) {
+            return;
+        }
+        try {
+            MetricsEndpoint.start(cl.getOptionValue("metrics"));
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("Invalid value for --metrics: " + e.getMessage());
+        } catch (IOException e) {
+            log.error("Failed to start the metrics endpoint: {}", e.toString());
+            System.exit(1);
+        }
+    }
+
+    private static void startProgressReporter(CommandLine cl, String src, String dest) {
+        if (!cl.hasOption("progress-json")) {
+            return;
+        }
+        try {
+            ProgressReporter.start(cl.getOptionValue("progress-json"), src, dest);
+        } catch (IOException e) {
+            log.error("Failed to open the progress output: {}", e.toString());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return The last segment of the path of a URL.
+     */
+    private static String getUrlFileName(String url) throws IOException {
+        String path = new URL(url).getPath();
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        if (name.isEmpty()) {
+            throw new IOException("No file name in URL: " + url);
+        }
+        return URLDecoder.decode(name, "UTF-8");
+    }
+
+    private static DownloadCache createDownloadCache(CommandLine cl) throws ParseException, IOException {
+        if (!cl.hasOption("cache-dir")) {
+            return null;
+        }
+        long maxSize;
+        try {
+            maxSize = Long.parseLong(cl.getOptionValue("cache-size", "" + DEFAULT_CACHE_SIZE_MB)) * 1024 * 1024;
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid value for --cache-size");
+        }
+        return new DownloadCache(Paths.get(cl.getOptionValue("cache-dir")), maxSize);
+    }
+
+    private static ChecksumVerifier createChecksumVerifier(CommandLine cl, long chunkSize) throws ParseException {
+        boolean crc32c = false;
+        boolean sha256 = false;
+        if (cl.hasOption("checksums")) {
+            for (String name : cl.getOptionValue("checksums").split(",")) {
+                switch (name.trim().toLowerCase(Locale.ROOT)) {
+                    case "crc32c":
+                        crc32c = true;
+                        break;
+                    case "sha256":
+                        sha256 = true;
+                        break;
+                    default:
+                        throw new ParseException("Invalid value for --checksums: " + name);
+                }
+            }
+            if (!cl.hasOption("checksum-manifest")) {
+                throw new ParseException("--checksums requires --checksum-manifest");
+            }
+        }
+        ChecksumManifest manifest = cl.hasOption("checksum-manifest") ? new ChecksumManifest(Paths.get(cl.getOptionValue("checksum-manifest"))) : null;
+        if (!cl.hasOption("verify") && manifest == null) {
+            return null;
+        }
+        ChecksumVerifier verifier = new ChecksumVerifier(cl.hasOption("verify"), manifest, crc32c, sha256);
+        verifier.setPreferredPartSize(chunkSize);
+        return verifier;
+    }
+
     private static void printHelp(Options opts) {
         HelpFormatter help = new HelpFormatter();
         // Determine jar filename.
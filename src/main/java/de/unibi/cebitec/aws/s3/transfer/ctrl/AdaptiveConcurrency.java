@@ -0,0 +1,252 @@
+package de.unibi.cebitec.aws.s3.transfer.ctrl;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.unibi.cebitec.aws.s3.transfer.util.MetricsEndpoint;
+import de.unibi.cebitec.aws.s3.transfer.util.Throttling;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of requests in flight and adjusts the limit while the transfer runs (AIMD). The limit starts low
+ * and doubles while the aggregate throughput keeps rising, then grows by a few requests at a time. It is cut in half
+ * when the server throttles us (503 SlowDown) and reduced by a quarter when the latency of the requests rises without
+ * more throughput, the additional requests only wait in some queue then. The number of threads is the upper bound.
+ */
+public class AdaptiveConcurrency {
+    public static final Logger log = LoggerFactory.getLogger(AdaptiveConcurrency.class);
+    private static final int INITIAL_LIMIT = 8;
+    private static final int STEP = 2;
+    private static final long TICK = 1000;
+    // throughput is compared over windows of at least this length and at least two request durations, as the
+    // bytes of a request are only counted when it finishes
+    private static final long MIN_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(3);
+    // throughput has to rise by this fraction to count as rising
+    private static final double MIN_GAIN = 0.05;
+    // latency may rise by this fraction before the limit is reduced
+    private static final double MAX_LATENCY_RISE = 0.25;
+    private static final double THROTTLE_DECREASE = 0.5;
+    private static final double LATENCY_DECREASE = 0.75;
+    private final int maxLimit;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = this.lock.newCondition();
+    private Timer timer;
+    // the following fields are guarded by lock
+    private int limit;
+    private int inFlight;
+    private boolean saturated;
+    private long windowBytes;
+    private long windowNanos;
+    private int windowRequests;
+    // the following fields are only used by the timer
+    private boolean slowStart = true;
+    private long windowStart;
+    // throttling is not counted again until the requests sent before a reduction are done
+    private long holdUntil;
+    private long lastDuration;
+    private long startThrottles;
+    private long lastThrottles;
+    private double lastThroughput;
+    private double lastLatency;
+    private int lowest;
+    private int highest;
+    private int reductions;
+
+    /**
+     * @param maxLimit Upper bound of the requests in flight.
+     */
+    public AdaptiveConcurrency(int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.min(INITIAL_LIMIT, this.maxLimit);
+        this.lowest = this.limit;
+        this.highest = this.limit;
+    }
+
+    public void start() {
+        this.windowStart = System.nanoTime();
+        this.startThrottles = Throttling.getCount();
+        this.lastThrottles = this.startThrottles;
+        this.timer = new Timer("adaptive-concurrency", true);
+        this.timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                adjust();
+            }
+        }, TICK, TICK);
+        MetricsEndpoint.gauge("bibis3_concurrency_limit", "Requests the adaptive concurrency allows in flight.", this::getLimit);
+        log.info("== Adaptive concurrency: starting with {} requests, at most {}.", this.limit, this.maxLimit);
+    }
+
+    public void stop() {
+        if (this.timer != null) {
+            this.timer.cancel();
+        }
+        log.info("== Adaptive concurrency: {} requests at the end, between {} and {} during the transfer, {} reductions, {} throttled requests.",
+                getLimit(), this.lowest, this.highest, this.reductions, Throttling.getCount() - this.startThrottles);
+    }
+
+    /**
+     * Wait until another request may be sent.
+     *
+     * @return Start time of the request, to be passed to {@link #release(long, long)}.
+     */
+    public long acquire() {
+        this.lock.lock();
+        try {
+            while (this.inFlight >= this.limit) {
+                this.saturated = true;
+                this.available.awaitUninterruptibly();
+            }
+            this.inFlight++;
+            if (this.inFlight == this.limit) {
+                this.saturated = true;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Finish a request.
+     *
+     * @param start Value returned by {@link #acquire()}.
+     * @param bytes Bytes transferred by the request.
+     */
+    public void release(long start, long bytes) {
+        long nanos = System.nanoTime() - start;
+        this.lock.lock();
+        try {
+            this.inFlight--;
+            this.windowBytes += bytes;
+            this.windowNanos += nanos;
+            this.windowRequests++;
+            this.available.signal();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        this.lock.lock();
+        try {
+            return this.limit;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    int getLowestLimit() {
+        this.lock.lock();
+        try {
+            return this.lowest;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void adjust() {
+        long now = System.nanoTime();
+        long throttles = Throttling.getCount();
+        long newThrottles = throttles - this.lastThrottles;
+        this.lastThrottles = throttles;
+        if (now < this.holdUntil) {
+            return;
+        }
+        if (newThrottles > 0) {
+            this.slowStart = false;
+            log.info("{} requests throttled by the server, reducing the concurrency.", newThrottles);
+            reduce(THROTTLE_DECREASE, "throttled", now);
+            return;
+        }
+        long bytes;
+        long nanos;
+        int requests;
+        boolean wasSaturated;
+        int current;
+        this.lock.lock();
+        try {
+            if (this.windowRequests == 0
+                    || now - this.windowStart < Math.max(MIN_WINDOW_NANOS, 2 * this.windowNanos / this.windowRequests)) {
+                return;
+            }
+            bytes = this.windowBytes;
+            nanos = this.windowNanos;
+            requests = this.windowRequests;
+            wasSaturated = this.saturated;
+            current = this.limit;
+            resetWindow();
+        } finally {
+            this.lock.unlock();
+        }
+        double throughput = bytes * 1e9 / (now - this.windowStart);
+        this.windowStart = now;
+        this.lastDuration = nanos / requests;
+        // time a request needs per byte, weighted by the size of the requests
+        double latency = bytes > 0 ? (double) nanos / bytes : 0;
+
+        if (throughput > this.lastThroughput * (1 + MIN_GAIN)) {
+            // more requests only help if the limit has actually been reached
+            if (wasSaturated) {
+                setLimit(this.slowStart ? current * 2 : current + STEP, "throughput rising");
+            }
+        } else if (this.lastLatency > 0 && latency > this.lastLatency * (1 + MAX_LATENCY_RISE)) {
+            this.slowStart = false;
+            reduce(LATENCY_DECREASE, "latency rising", now);
+            return;
+        } else {
+            this.slowStart = false;
+        }
+        this.lastThroughput = throughput;
+        this.lastLatency = latency;
+    }
+
+    /**
+     * Reduce the limit multiplicatively and start a new measurement, the next window is the baseline from which the
+     * limit is probed upwards again.
+     */
+    private void reduce(double factor, String reason, long now) {
+        this.lock.lock();
+        try {
+            setLimit((int) (this.limit * factor), reason);
+            resetWindow();
+        } finally {
+            this.lock.unlock();
+        }
+        this.windowStart = now;
+        this.holdUntil = now + this.lastDuration;
+        this.lastThroughput = 0;
+        this.lastLatency = 0;
+    }
+
+    private void resetWindow() {
+        this.windowBytes = 0;
+        this.windowNanos = 0;
+        this.windowRequests = 0;
+        this.saturated = this.inFlight >= this.limit;
+    }
+
+    private void setLimit(int newLimit, String reason) {
+        newLimit = Math.max(1, Math.min(this.maxLimit, newLimit));
+        this.lock.lock();
+        try {
+            if (newLimit == this.limit) {
+                return;
+            }
+            if (newLimit < this.limit) {
+                this.reductions++;
+            }
+            log.debug("Concurrency {} -> {} ({}).", this.limit, newLimit, reason);
+            this.limit = newLimit;
+            this.available.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        this.lowest = Math.min(this.lowest, newLimit);
+        this.highest = Math.max(this.highest, newLimit);
+    }
+}
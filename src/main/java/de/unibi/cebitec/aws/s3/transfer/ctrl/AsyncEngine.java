@@ -0,0 +1,976 @@
+package de.unibi.cebitec.aws.s3.transfer.ctrl;
+
+import com.amazonaws.HttpMethod;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import de.unibi.cebitec.aws.s3.transfer.BiBiS3;
+import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+import de.unibi.cebitec.aws.s3.transfer.model.down.AbstractDownloadPart;
+import de.unibi.cebitec.aws.s3.transfer.model.down.DownloadChecksum;
+import de.unibi.cebitec.aws.s3.transfer.model.down.FileSink;
+import de.unibi.cebitec.aws.s3.transfer.model.down.IDownloadChunkS3;
+import de.unibi.cebitec.aws.s3.transfer.model.down.MultipartDownloadFile;
+import de.unibi.cebitec.aws.s3.transfer.model.down.PartSink;
+import de.unibi.cebitec.aws.s3.transfer.model.down.SingleDownloadFile;
+import de.unibi.cebitec.aws.s3.transfer.model.up.IUploadChunk;
+import de.unibi.cebitec.aws.s3.transfer.model.up.TransferUploadThread;
+import de.unibi.cebitec.aws.s3.transfer.model.up.UploadPart;
+import de.unibi.cebitec.aws.s3.transfer.util.BandwidthLimiter;
+import de.unibi.cebitec.aws.s3.transfer.util.ETag;
+import de.unibi.cebitec.aws.s3.transfer.util.FileRangeInputStream;
+import de.unibi.cebitec.aws.s3.transfer.util.HttpTransport;
+import de.unibi.cebitec.aws.s3.transfer.util.ProgressReporter;
+import de.unibi.cebitec.aws.s3.transfer.util.Throttling;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import org.apache.http.nio.protocol.BasicAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transfers the chunks of S3 downloads and uploads with a non-blocking HTTP client. A few I/O reactor threads drive
+ * all requests, the number of concurrent requests is only limited by a semaphore, so thousands of range GETs and
+ * UploadParts don't need thousands of threads. Requests are signed as presigned URLs by the S3 client and go to the
+ * endpoint it is configured for.
+ * <p>
+ * Received bytes are collected in blocks and written to disk by a separate stage of writer threads. All blocks of a
+ * chunk go to the same writer, so every chunk is written sequentially, while the chunks of a file are spread over the
+ * writers and written at their offsets in parallel. A connection stops reading as long as too many blocks are waiting
+ * for the writers or the bandwidth limiter holds it back.
+ */
+public class AsyncEngine implements Closeable {
+    public static final Logger log = LoggerFactory.getLogger(AsyncEngine.class);
+    private static final int TIMEOUT = 1000 * 30; // 30 sec
+    private static final long URL_VALIDITY = 1000 * 60 * 15; // 15 min
+    private static final int BLOCK_SIZE = 262144; // 256KB
+    private static final long MAX_PENDING_BYTES = 268435456; // 256MB
+    private static final int MAX_IO_THREADS = 8;
+    private static final int WRITER_THREADS = 4;
+    // uploads of small files go through the blocking client
+    private static final int BLOCKING_THREADS = 16;
+    // throttled requests don't count as failed attempts, the blocking client retries them within every attempt
+    private static final int THROTTLED_RETRIES = BiBiS3.RETRIES * BiBiS3.RETRIES;
+    private final AmazonS3 s3;
+    private final String bucketName;
+    private final int maxRequests;
+    private final Semaphore requests;
+    private final CloseableHttpAsyncClient client;
+    private final ExecutorService[] writers = new ExecutorService[WRITER_THREADS];
+    private final AtomicInteger nextWriter = new AtomicInteger();
+    private final ExecutorService blocking;
+    private final Queue<byte[]> blocks = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final Queue<IOControl> suspended = new ConcurrentLinkedQueue<>();
+    // chunks that hold a request permit
+    private final Set<Transfer> active = ConcurrentHashMap.newKeySet();
+    // the first failure a chunk did not recover from, set once under the lock of the engine
+    private volatile IOException failure;
+    // resumes connections that wait for the bandwidth limiter and delays throttled retries
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "async-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    private AdaptiveConcurrency concurrency;
+
+    /**
+     * @param maxRequests Maximum number of chunks transferred at the same time.
+     */
+    public AsyncEngine(AmazonS3 s3, String bucketName, int maxRequests) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.maxRequests = maxRequests;
+        this.requests = new Semaphore(maxRequests);
+        int ioThreads = Math.min(MAX_IO_THREADS, Runtime.getRuntime().availableProcessors());
+        this.client = HttpAsyncClients.custom()
+                .setMaxConnTotal(maxRequests)
+                .setMaxConnPerRoute(maxRequests)
+                .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                        .setIoThreadCount(ioThreads)
+                        .setConnectTimeout(TIMEOUT)
+                        .setSoTimeout(TIMEOUT)
+                        .build())
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(TIMEOUT)
+                        .setSocketTimeout(TIMEOUT)
+                        .build())
+                .build();
+        this.client.start();
+        for (int i = 0; i < WRITER_THREADS; i++) {
+            String name = "async-writer-" + i;
+            this.writers[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        this.blocking = Executors.newFixedThreadPool(Math.min(BLOCKING_THREADS, maxRequests));
+        log.info("== Asynchronous engine: {} I/O threads, {} writer threads, up to {} concurrent requests.", ioThreads, WRITER_THREADS, maxRequests);
+    }
+
+    /**
+     * Start the download of a chunk. Blocks while the maximum number of chunks is running.
+     *
+     * @param done Called by a writer thread once the chunk has been written completely.
+     * @throws IOException if a chunk has failed for good, once all running chunks have ended.
+     */
+    public void download(IDownloadChunkS3 chunk, Runnable done) throws IOException, InterruptedException {
+        if (!(chunk instanceof AbstractDownloadPart) && !(chunk instanceof SingleDownloadFile)) {
+            throw new IllegalArgumentException("Unsupported chunk: " + chunk.getClass().getName());
+        }
+        checkFailure();
+        long start = acquire();
+        ProgressReporter.fileStarted(chunk.getKey());
+        if (chunk instanceof AbstractDownloadPart) {
+            new PartDownload((AbstractDownloadPart) chunk, done, start).start();
+        } else {
+            new FileDownload((SingleDownloadFile) chunk, done, start).start();
+        }
+    }
+
+    /**
+     * Start the upload of a chunk. Blocks while the maximum number of chunks is running. Only the parts of multipart
+     * uploads are sent asynchronously, single files are smaller than the minimum part size and are uploaded with the
+     * blocking client.
+     *
+     * @param done Called by a writer thread once the chunk has been uploaded.
+     * @throws IOException if a chunk has failed for good, once all running chunks have ended.
+     */
+    public void upload(IUploadChunk chunk, Runnable done) throws IOException, InterruptedException {
+        checkFailure();
+        long start = acquire();
+        ProgressReporter.fileStarted(chunk.getKey());
+        if (chunk instanceof UploadPart) {
+            new PartUpload((UploadPart) chunk, done, start).start();
+        } else {
+            Transfer transfer = new Transfer(done, chunk.getSize(), start);
+            this.blocking.execute(() -> {
+                if (this.failure != null) {
+                    transfer.abandon();
+                    return;
+                }
+                try {
+                    new TransferUploadThread(this.s3, this.bucketName, chunk, BiBiS3.RETRIES).call();
+                } catch (Exception e) {
+                    abort(new IOException("Chunk upload of " + chunk.getKey() + " failed: " + e, e));
+                    transfer.abandon();
+                    return;
+                }
+                transfer.done();
+            });
+        }
+    }
+
+    /**
+     * Keep the number of requests within the limit of an adaptive concurrency control in addition to the maximum.
+     */
+    public void setConcurrency(AdaptiveConcurrency concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Wait for the adaptive concurrency control and a free request.
+     *
+     * @return Start time for the concurrency control.
+     */
+    private long acquire() throws InterruptedException {
+        long start = this.concurrency != null ? this.concurrency.acquire() : 0;
+        this.requests.acquire();
+        Measurements.transferStarted();
+        return start;
+    }
+
+    /**
+     * Wait until all started chunks are done.
+     *
+     * @throws IOException if a chunk has failed for good.
+     */
+    public void await() throws IOException, InterruptedException {
+        this.requests.acquire(this.maxRequests);
+        this.requests.release(this.maxRequests);
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+
+    /**
+     * Throw the failure the transfer has been given up for, once the cancelled chunks have ended.
+     */
+    private void checkFailure() throws IOException, InterruptedException {
+        if (this.failure != null) {
+            await();
+        }
+    }
+
+    /**
+     * Give up the transfer after a chunk has failed for good: The failure is thrown to the caller, the requests of
+     * the other chunks are cancelled.
+     */
+    private void abort(IOException e) {
+        synchronized (this) {
+            if (this.failure != null) {
+                log.debug("Transfer already given up, ignoring: {}", e.getMessage());
+                return;
+            }
+            this.failure = e;
+        }
+        log.debug("Giving up the transfer: {}", e.getMessage());
+        for (Transfer transfer : this.active) {
+            transfer.cancel();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.client.close();
+        for (ExecutorService writer : this.writers) {
+            writer.shutdown();
+        }
+        this.blocking.shutdown();
+        this.timer.shutdown();
+    }
+
+    private ExecutorService nextWriter() {
+        return this.writers[Math.floorMod(this.nextWriter.getAndIncrement(), WRITER_THREADS)];
+    }
+
+    private String presign(String key, HttpMethod method, UploadPart part) throws IOException {
+        GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(this.bucketName, key, method)
+                .withExpiration(new Date(System.currentTimeMillis() + URL_VALIDITY));
+        if (part != null) {
+            request.addRequestParameter("uploadId", part.getMultipartUploadFile().getUploadId());
+            request.addRequestParameter("partNumber", String.valueOf(part.getPartNumber()));
+        }
+        try {
+            return this.s3.generatePresignedUrl(request).toURI().toString();
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid URL for " + key, e);
+        }
+    }
+
+    private byte[] takeBlock() {
+        byte[] block = this.blocks.poll();
+        return block == null ? new byte[BLOCK_SIZE] : block;
+    }
+
+    /**
+     * Hand back a block that has been written and resume the connections that wait for the writers.
+     */
+    private void releaseBlock(byte[] block, int length) {
+        this.blocks.offer(block);
+        if (this.pendingBytes.addAndGet(-length) <= MAX_PENDING_BYTES / 2) {
+            IOControl ioControl;
+            while ((ioControl = this.suspended.poll()) != null) {
+                ioControl.requestInput();
+            }
+        }
+    }
+
+    private void suspend(IOControl ioControl) {
+        ioControl.suspendInput();
+        this.suspended.offer(ioControl);
+        // the writers may have caught up in the meantime
+        if (this.pendingBytes.get() <= MAX_PENDING_BYTES / 2 && this.suspended.remove(ioControl)) {
+            ioControl.requestInput();
+        }
+    }
+
+    /**
+     * A chunk from its first request until it is done or given up. Holds a request permit and, with adaptive
+     * concurrency, a slot of the concurrency control.
+     */
+    private class Transfer {
+        private final Runnable done;
+        private final long bytes;
+        private final long start;
+        private final AtomicBoolean released = new AtomicBoolean();
+        // request that is currently running
+        private volatile Future<?> request;
+
+        Transfer(Runnable done, long bytes, long start) {
+            this.done = done;
+            this.bytes = bytes;
+            this.start = start;
+            AsyncEngine.this.active.add(this);
+        }
+
+        /**
+         * Remember the running request, to be cancelled if the transfer is given up.
+         */
+        void sent(Future<?> request) {
+            this.request = request;
+            if (AsyncEngine.this.failure != null) {
+                request.cancel(true);
+            }
+        }
+
+        void cancel() {
+            Future<?> r = this.request;
+            if (r != null) {
+                r.cancel(true);
+            }
+        }
+
+        /**
+         * The chunk has been transferred completely.
+         */
+        void done() {
+            try {
+                this.done.run();
+            } catch (RuntimeException e) {
+                abort(new IOException("Failed to complete a chunk: " + e, e));
+            } finally {
+                release(this.bytes);
+            }
+        }
+
+        /**
+         * The chunk is not transferred any further.
+         */
+        void abandon() {
+            release(0);
+        }
+
+        private void release(long transferred) {
+            if (this.released.compareAndSet(false, true)) {
+                AsyncEngine.this.active.remove(this);
+                Measurements.transferEnded();
+                if (AsyncEngine.this.concurrency != null) {
+                    AsyncEngine.this.concurrency.release(this.start, transferred);
+                }
+                AsyncEngine.this.requests.release();
+            }
+        }
+    }
+
+    /**
+     * A chunk that is downloaded with ranged requests. A request that ends early is continued with a request for the
+     * remaining bytes, every failed request counts as an attempt.
+     */
+    private abstract class Download extends Transfer implements FutureCallback<Void> {
+        private final ExecutorService writer = nextWriter();
+        private int attempts;
+        private int throttled;
+        private volatile long started;
+        private volatile long requestStart;
+
+        Download(Runnable done, long bytes, long start) {
+            super(done, bytes, start);
+        }
+
+        abstract String getKey();
+
+        /**
+         * @return Offset in the object of the first byte that has not been written yet.
+         */
+        abstract long getNext();
+
+        /**
+         * @return Offset in the object behind the last byte of the chunk.
+         */
+        abstract long getEnd();
+
+        abstract long getOutputPosition(long objectOffset);
+
+        abstract PartSink getSink();
+
+        abstract DownloadChecksum getChecksum();
+
+        /**
+         * Called by the writer after a block has been written.
+         */
+        abstract void written(int length);
+
+        /**
+         * Called by the writer once all bytes of the chunk have been written.
+         */
+        abstract void finish() throws IOException;
+
+        void start() {
+            if (AsyncEngine.this.failure != null) {
+                abandon();
+                return;
+            }
+            long first = getNext();
+            long last = getEnd() - 1;
+            this.requestStart = System.nanoTime();
+            if (this.started == 0) {
+                this.started = this.requestStart;
+            }
+            Measurements.countRequest();
+            try {
+                HttpGet get = new HttpGet(presign(getKey(), HttpMethod.GET, null));
+                get.addHeader("Range", "bytes=" + first + "-" + last);
+                sent(AsyncEngine.this.client.execute(HttpAsyncMethods.create(get), new BlockConsumer(this, first, last), this));
+            } catch (IOException | RuntimeException e) {
+                failed(e);
+            }
+        }
+
+        void write(byte[] block, int length, long objectOffset, BlockConsumer request) {
+            this.writer.execute(() -> {
+                try {
+                    if (request.writeFailure == null) {
+                        long position = getOutputPosition(objectOffset);
+                        ByteBuffer src = ByteBuffer.wrap(block, 0, length);
+                        PartSink out = getSink();
+                        long p = position;
+                        while (src.hasRemaining()) {
+                            p += out.write(src, p);
+                        }
+                        DownloadChecksum checksum = getChecksum();
+                        if (checksum != null) {
+                            checksum.update(position, block, 0, length);
+                        }
+                        written(length);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    request.writeFailure = e;
+                } finally {
+                    releaseBlock(block, length);
+                }
+            });
+        }
+
+        @Override
+        public void completed(Void result) {
+            this.writer.execute(() -> ended(null));
+        }
+
+        @Override
+        public void failed(Exception e) {
+            this.writer.execute(() -> ended(e));
+        }
+
+        @Override
+        public void cancelled() {
+            failed(new IOException("Request cancelled"));
+        }
+
+        /**
+         * Runs on the writer after all blocks of the request have been written.
+         */
+        private void ended(Exception e) {
+            if (e == null && getNext() >= getEnd()) {
+                if (this.started != 0) {
+                    Measurements.CHUNK_DURATION.record(System.nanoTime() - this.started);
+                }
+                try {
+                    finish();
+                } catch (IOException | RuntimeException ex) {
+                    abort(new IOException("Failed to finish download of " + getKey() + ": " + ex, ex));
+                    abandon();
+                    return;
+                }
+                done();
+                return;
+            }
+            if (AsyncEngine.this.failure != null) {
+                // the transfer has been given up and the request cancelled
+                abandon();
+                return;
+            }
+            Measurements.countError();
+            Measurements.countRetry();
+            if (Throttling.isThrottling(e)) {
+                Throttling.record(getKey());
+                this.throttled++;
+                boolean retrying = this.throttled < THROTTLED_RETRIES;
+                ProgressReporter.attemptFailed(getKey(), this.attempts + this.throttled, retrying, e);
+                if (!retrying) {
+                    abort(new IOException("Chunk download of " + getKey() + " has been throttled " + this.throttled + " times.", e));
+                    abandon();
+                    return;
+                }
+                log.debug("Chunk download of {} throttled, retrying later. ({})", getKey(), e.toString());
+                AsyncEngine.this.timer.schedule(this::start, Throttling.getBackOffDelay(this.throttled - 1), TimeUnit.MILLISECONDS);
+                return;
+            }
+            this.attempts++;
+            ProgressReporter.attemptFailed(getKey(), this.attempts + this.throttled, this.attempts < BiBiS3.RETRIES, e);
+            if (this.attempts >= BiBiS3.RETRIES) {
+                abort(new IOException("Chunk download of " + getKey() + " failed after " + this.attempts + " attempts: "
+                        + (e == null ? "incomplete transfer" : e.toString()), e));
+                abandon();
+                return;
+            }
+            if (e != null) {
+                log.warn("Chunk download of {} failed! Retrying.... ({})", getKey(), e.toString());
+            } else {
+                log.warn("Chunk transfer of {} has been interrupted! Retrying transfer of the remaining {} bytes....", getKey(), getEnd() - getNext());
+            }
+            start();
+        }
+    }
+
+    private class PartDownload extends Download {
+        private final AbstractDownloadPart part;
+        private final MultipartDownloadFile file;
+
+        PartDownload(AbstractDownloadPart part, Runnable done, long start) {
+            super(done, part.getSize(), start);
+            this.part = part;
+            this.file = part.getMultipartDownloadFile();
+        }
+
+        @Override
+        String getKey() {
+            return this.file.getKey();
+        }
+
+        @Override
+        long getNext() {
+            return this.part.getInputOffset() + this.part.getBytesDone();
+        }
+
+        @Override
+        long getEnd() {
+            return this.part.getInputOffset() + this.part.getPartSize();
+        }
+
+        @Override
+        long getOutputPosition(long objectOffset) {
+            return this.part.getOutputOffset() + objectOffset - this.part.getInputOffset();
+        }
+
+        @Override
+        PartSink getSink() {
+            return this.file.getOutputSink();
+        }
+
+        @Override
+        DownloadChecksum getChecksum() {
+            return this.file.getChecksum();
+        }
+
+        @Override
+        void written(int length) {
+            this.part.written(length);
+        }
+
+        @Override
+        void finish() {
+            // the part has finished itself with its last block
+        }
+    }
+
+    private class FileDownload extends Download {
+        private final SingleDownloadFile file;
+        private FileSink sink;
+        private long bytesDone;
+
+        FileDownload(SingleDownloadFile file, Runnable done, long start) {
+            super(done, file.getSize(), start);
+            this.file = file;
+        }
+
+        @Override
+        void start() {
+            if (this.sink == null) {
+                Path target = this.file.getTargetFile();
+                try {
+                    Path parentDir = target.toAbsolutePath().getParent();
+                    if (parentDir != null) {
+                        Files.createDirectories(parentDir);
+                    }
+                    if (this.file.getKey().endsWith("/") && this.file.getSize() == 0) {
+                        Files.createDirectories(target);
+                        log.debug("Empty folder file detected. Creating empty folder on the receiving end ....");
+                        completed(null);
+                        return;
+                    }
+                    this.sink = new FileSink(FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+                } catch (IOException e) {
+                    abort(new IOException("Failed to create file " + target + ": " + e, e));
+                    abandon();
+                    return;
+                }
+                if (this.file.getSize() == 0) {
+                    // nothing to request
+                    completed(null);
+                    return;
+                }
+            }
+            super.start();
+        }
+
+        @Override
+        String getKey() {
+            return this.file.getKey();
+        }
+
+        @Override
+        long getNext() {
+            return this.bytesDone;
+        }
+
+        @Override
+        long getEnd() {
+            return this.file.getSize();
+        }
+
+        @Override
+        long getOutputPosition(long objectOffset) {
+            return objectOffset;
+        }
+
+        @Override
+        PartSink getSink() {
+            return this.sink;
+        }
+
+        @Override
+        DownloadChecksum getChecksum() {
+            return this.file.getChecksum();
+        }
+
+        @Override
+        void written(int length) {
+            this.bytesDone += length;
+            Measurements.addTransferredBytes(length);
+        }
+
+        @Override
+        void finish() throws IOException {
+            if (this.sink != null) {
+                this.sink.close();
+            }
+            Measurements.countChunkAsFinished();
+            log.debug("Download done: Single file: {}", getKey());
+        }
+    }
+
+    /**
+     * Collects the body of a ranged response in blocks for the writers.
+     */
+    private class BlockConsumer extends AsyncByteConsumer<Void> {
+        private final Download download;
+        private final long first;
+        private final long last;
+        private long offset;
+        private byte[] block;
+        private int length;
+        private volatile Exception writeFailure;
+
+        BlockConsumer(Download download, long first, long last) {
+            super(65536);
+            this.download = download;
+            this.first = first;
+            this.last = last;
+            this.offset = first;
+        }
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) throws IOException {
+            Measurements.FIRST_BYTE.record(System.nanoTime() - this.download.requestStart);
+            HttpTransport.checkResponse(response, this.first, this.last);
+        }
+
+        @Override
+        protected void onByteReceived(ByteBuffer buf, IOControl ioControl) throws IOException {
+            if (this.writeFailure != null) {
+                throw new IOException("Failed to write " + this.download.getKey() + ": " + this.writeFailure, this.writeFailure);
+            }
+            long received = buf.remaining();
+            while (buf.hasRemaining()) {
+                if (this.block == null) {
+                    this.block = takeBlock();
+                }
+                int n = Math.min(buf.remaining(), BLOCK_SIZE - this.length);
+                buf.get(this.block, this.length, n);
+                this.length += n;
+                if (this.length == BLOCK_SIZE) {
+                    flush();
+                }
+            }
+            if (AsyncEngine.this.pendingBytes.get() > MAX_PENDING_BYTES) {
+                suspend(ioControl);
+            }
+            long wait = BandwidthLimiter.DOWNLOADS.reserve(received);
+            if (wait > 0) {
+                ioControl.suspendInput();
+                AsyncEngine.this.timer.schedule(ioControl::requestInput, wait, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void flush() {
+            // never write beyond the requested range
+            int n = (int) Math.min(this.length, this.last + 1 - this.offset);
+            if (n > 0) {
+                AsyncEngine.this.pendingBytes.addAndGet(n);
+                this.download.write(this.block, n, this.offset, this);
+                this.offset += n;
+            } else {
+                AsyncEngine.this.blocks.offer(this.block);
+            }
+            this.block = null;
+            this.length = 0;
+        }
+
+        @Override
+        protected Void buildResult(HttpContext context) {
+            if (this.block != null) {
+                flush();
+            }
+            return null;
+        }
+
+        @Override
+        protected void releaseResources() {
+            // a block of a failed request is dropped, the retry requests its bytes again
+            if (this.block != null) {
+                AsyncEngine.this.blocks.offer(this.block);
+                this.block = null;
+            }
+        }
+    }
+
+    /**
+     * A part of a multipart upload, streamed from the file while the request is sent.
+     */
+    private class PartUpload extends Transfer implements FutureCallback<HttpResponse> {
+        private final UploadPart part;
+        private final ExecutorService writer = nextWriter();
+        private int attempts;
+        private int throttled;
+        private long started;
+        private PartEntity entity;
+
+        PartUpload(UploadPart part, Runnable done, long start) {
+            super(done, part.getSize(), start);
+            this.part = part;
+        }
+
+        void start() {
+            if (AsyncEngine.this.failure != null) {
+                abandon();
+                return;
+            }
+            try {
+                HttpPut put = new HttpPut(presign(this.part.getMultipartUploadFile().getKey(), HttpMethod.PUT, this.part));
+                this.entity = new PartEntity(this.part);
+                put.setEntity(this.entity);
+                if (this.started == 0) {
+                    this.started = System.nanoTime();
+                }
+                Measurements.countRequest();
+                log.debug("Starting upload of part {} of file: {}", this.part.getPartNumber(), this.part.getMultipartUploadFile().getKey());
+                sent(AsyncEngine.this.client.execute(HttpAsyncMethods.create(put), new BasicAsyncResponseConsumer(), this));
+            } catch (IOException | RuntimeException e) {
+                failed(e);
+            }
+        }
+
+        @Override
+        public void completed(HttpResponse response) {
+            if (this.entity.sentAt != 0) {
+                Measurements.FIRST_BYTE.record(System.nanoTime() - this.entity.sentAt);
+            }
+            Header etag = response.getFirstHeader("ETag");
+            if (Throttling.isThrottlingStatus(response.getStatusLine().getStatusCode())) {
+                Throttling.record(this.part.getMultipartUploadFile().getKey());
+                failed(new Throttling.ThrottledException("Upload throttled: " + response.getStatusLine()));
+                return;
+            }
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || etag == null) {
+                failed(new IOException("Upload failed: " + response.getStatusLine()));
+                return;
+            }
+            // finish on a writer, completing the upload blocks
+            Measurements.CHUNK_DURATION.record(System.nanoTime() - this.started);
+            this.writer.execute(() -> {
+                try {
+                    this.part.uploaded(new PartETag(this.part.getPartNumber(), ETag.strip(etag.getValue())));
+                } catch (RuntimeException e) {
+                    abort(new IOException("Failed to complete upload of part " + this.part.getPartNumber() + " of " + this.part.getKey() + ": " + e, e));
+                    abandon();
+                    return;
+                }
+                done();
+            });
+        }
+
+        @Override
+        public void failed(Exception e) {
+            this.writer.execute(() -> {
+                // the next attempt sends the whole part again
+                if (this.entity != null) {
+                    Measurements.addTransferredBytes(-this.entity.sent);
+                }
+                if (AsyncEngine.this.failure != null) {
+                    // the transfer has been given up and the request cancelled
+                    abandon();
+                    return;
+                }
+                Measurements.countError();
+                Measurements.countRetry();
+                if (Throttling.isThrottling(e)) {
+                    this.throttled++;
+                    boolean retrying = this.throttled < THROTTLED_RETRIES;
+                    ProgressReporter.attemptFailed(this.part.getKey(), this.attempts + this.throttled, retrying, e);
+                    if (!retrying) {
+                        abort(new IOException("Chunk upload of " + this.part.getKey() + " has been throttled " + this.throttled + " times.", e));
+                        abandon();
+                        return;
+                    }
+                    log.debug("Chunk upload throttled, retrying later. ({})", e.toString());
+                    AsyncEngine.this.timer.schedule(this::start, Throttling.getBackOffDelay(this.throttled - 1), TimeUnit.MILLISECONDS);
+                    return;
+                }
+                this.attempts++;
+                ProgressReporter.attemptFailed(this.part.getKey(), this.attempts + this.throttled, this.attempts < BiBiS3.RETRIES, e);
+                if (this.attempts >= BiBiS3.RETRIES) {
+                    abort(new IOException("Chunk upload of " + this.part.getKey() + " failed after " + this.attempts + " attempts: " + e, e));
+                    abandon();
+                    return;
+                }
+                log.warn("Chunk upload failed! Retrying... ({})", e.toString());
+                start();
+            });
+        }
+
+        @Override
+        public void cancelled() {
+            failed(new IOException("Request cancelled"));
+        }
+    }
+
+    /**
+     * Body of an UploadPart request, read from the part while the connection can take more data.
+     */
+    private class PartEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+        private final UploadPart part;
+        private final byte[] buffer = new byte[65536];
+        private final ByteBuffer pending = ByteBuffer.wrap(this.buffer);
+        private InputStream in;
+        private long produced;
+        private volatile long sent;
+        // when the last byte has been sent
+        private volatile long sentAt;
+
+        PartEntity(UploadPart part) {
+            this.part = part;
+            // Buffer methods are called through Buffer to stay compatible with Java 8 runtimes
+            ((Buffer) this.pending).limit(0);
+        }
+
+        @Override
+        public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+            if (this.in == null) {
+                this.in = this.part.openContent();
+            }
+            if (!this.pending.hasRemaining()) {
+                int n = this.in.read(this.buffer, 0, (int) Math.min(this.buffer.length, this.part.getPartSize() - this.produced));
+                if (n < 0) {
+                    throw new IOException("Unexpected end of part " + this.part.getPartNumber() + " of " + this.part.getMultipartUploadFile().getFile());
+                }
+                ((Buffer) this.pending).clear();
+                ((Buffer) this.pending).limit(n);
+                this.produced += n;
+            }
+            int written = encoder.write(this.pending);
+            this.sent += written;
+            Measurements.addTransferredBytes(written);
+            long wait = BandwidthLimiter.UPLOADS.reserve(written);
+            if (wait > 0) {
+                ioControl.suspendOutput();
+                AsyncEngine.this.timer.schedule(ioControl::requestOutput, wait, TimeUnit.NANOSECONDS);
+            }
+            if (!this.pending.hasRemaining() && this.produced >= this.part.getPartSize()) {
+                this.sentAt = System.nanoTime();
+                encoder.complete();
+            }
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        @Override
+        public long getContentLength() {
+            return this.part.getPartSize();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+
+        /**
+         * A separate stream over the bytes of the part, e.g. for interceptors. It neither moves the content that is
+         * being produced nor the checksums of the part.
+         */
+        @Override
+        public InputStream getContent() throws IOException {
+            Path file = this.part.getMultipartUploadFile().getFile();
+            return new FileRangeInputStream(file, this.part.getFileOffset(), this.part.getPartSize());
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (InputStream content = getContent()) {
+                byte[] b = new byte[65536];
+                long remaining = this.part.getPartSize();
+                while (remaining > 0) {
+                    int n = content.read(b, 0, (int) Math.min(b.length, remaining));
+                    if (n < 0) {
+                        throw new IOException("Unexpected end of part " + this.part.getPartNumber() + " of " + this.part.getMultipartUploadFile().getFile());
+                    }
+                    out.write(b, 0, n);
+                    remaining -= n;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.in != null) {
+                this.in.close();
+            }
+        }
+    }
+}
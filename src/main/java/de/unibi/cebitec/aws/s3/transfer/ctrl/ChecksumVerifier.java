@@ -0,0 +1,184 @@
+package de.unibi.cebitec.aws.s3.transfer.ctrl;
+
+import de.unibi.cebitec.aws.s3.transfer.model.ChecksumManifest;
+import de.unibi.cebitec.aws.s3.transfer.model.down.DownloadChecksum;
+import de.unibi.cebitec.aws.s3.transfer.model.down.DownloadFile;
+import de.unibi.cebitec.aws.s3.transfer.util.ETag;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the checksums computed while files are transferred with the ETags reported by S3 and collects them in a
+ * manifest.
+ */
+public class ChecksumVerifier {
+    public static final Logger log = LoggerFactory.getLogger(ChecksumVerifier.class);
+    private final boolean verify;
+    private final ChecksumManifest manifest;
+    private final boolean crc32c;
+    private final boolean sha256;
+    private long preferredPartSize;
+    private final AtomicLong verified = new AtomicLong();
+    private final AtomicLong unverifiable = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong withoutSha256 = new AtomicLong();
+    private final AtomicLong rereadBytes = new AtomicLong();
+
+    /**
+     * @param verify   Compare the MD5 digests with the ETags.
+     * @param manifest Manifest to add the checksums of all files to or null.
+     * @param crc32c   Compute the CRC-32C of whole files.
+     * @param sha256   Compute the SHA-256 digest of files that are transferred with a single request.
+     */
+    public ChecksumVerifier(boolean verify, ChecksumManifest manifest, boolean crc32c, boolean sha256) {
+        this.verify = verify;
+        this.manifest = manifest;
+        this.crc32c = crc32c;
+        this.sha256 = sha256;
+    }
+
+    /**
+     * Part size to assume first if an ETag of a multipart upload allows several part sizes.
+     */
+    public void setPreferredPartSize(long preferredPartSize) {
+        this.preferredPartSize = preferredPartSize;
+    }
+
+    public boolean isCrc32c() {
+        return crc32c;
+    }
+
+    public boolean isSha256() {
+        return sha256;
+    }
+
+    /**
+     * Prepare the checksums of a file that is about to be downloaded.
+     *
+     * @param etag       ETag of the object or null if unknown.
+     * @param sequential true if the file is written with a single request.
+     */
+    public DownloadChecksum create(long size, String etag, boolean sequential) {
+        int parts = ETag.getPartCount(etag);
+        long md5PartSize = Math.max(1, size);
+        if (parts > 1) {
+            md5PartSize = Math.max(0, ETag.guessPartSize(size, parts, this.preferredPartSize));
+        }
+        if (this.sha256 && !sequential) {
+            this.withoutSha256.incrementAndGet();
+        }
+        return new DownloadChecksum(size, md5PartSize, ETag.isMultipart(etag), this.crc32c, this.sha256 && sequential);
+    }
+
+    /**
+     * Complete the checksums of a downloaded file, verify them and add them to the manifest.
+     *
+     * @param encryption Tells whether the object is encrypted on the server side if the ETag does not match, may be
+     *                   null.
+     * @return false if the checksums could not be computed or do not match.
+     */
+    public boolean check(DownloadFile f, long size, EncryptionCheck encryption) {
+        DownloadChecksum c = f.getChecksum();
+        if (c == null) {
+            return true;
+        }
+        try {
+            c.finish(f.getTargetFile());
+        } catch (IOException e) {
+            log.error("Failed to compute the checksums of file: {} - Reason: {}", f.getTargetFile(), e.toString());
+            this.failed.incrementAndGet();
+            return false;
+        }
+        this.rereadBytes.addAndGet(c.getRereadBytes());
+        boolean ok = !this.verify || compare(f.getKey(), size, f.getETag(), c.getETag(), encryption);
+        if (this.manifest != null) {
+            this.manifest.add(f.getKey(), f.getTargetFile(), size, c.getETag(), c.getCrc32c(), c.getSha256());
+        }
+        return ok;
+    }
+
+    /**
+     * Verify the checksums of an uploaded file and add them to the manifest.
+     *
+     * @param etag         ETag reported by S3.
+     * @param computedETag ETag computed from the data that has been sent.
+     * @param encrypted    true if the object is encrypted on the server side, so its ETag is no MD5 digest.
+     * @return false if the checksums do not match.
+     */
+    public boolean checkUpload(String key, Path file, long size, String etag, String computedETag, Long crc32c,
+                               String sha256, boolean encrypted) {
+        boolean ok = !this.verify || compare(key, size, etag, computedETag, encrypted ? () -> true : null);
+        if (this.manifest != null) {
+            this.manifest.add(key, file, size, computedETag, crc32c, sha256);
+        }
+        return ok;
+    }
+
+    /**
+     * @return false if the checksums do not match.
+     */
+    private boolean compare(String key, long size, String expected, String actual, EncryptionCheck encryption) {
+        int parts = ETag.getPartCount(expected);
+        if (actual == null || parts < 0) {
+            this.unverifiable.incrementAndGet();
+            log.warn("Checksum of {} can't be verified with the ETag {}.", key, expected);
+        } else if (ETag.matches(expected, actual)) {
+            this.verified.incrementAndGet();
+            log.debug("Verified checksum of {}: {}", key, actual);
+        } else if (encryption != null && encryption.isEncrypted()) {
+            this.unverifiable.incrementAndGet();
+            log.warn("Checksum of {} can't be verified, the ETag of an object with server side encryption is no MD5 digest.", key);
+        } else if (parts > 1 && ETag.countPartSizes(size, parts) > 1) {
+            this.unverifiable.incrementAndGet();
+            log.warn("Checksum of {} can't be verified: The ETag {} allows several part sizes and does not match {} computed for the assumed one.", key, expected, actual);
+        } else {
+            this.failed.incrementAndGet();
+            log.error("Checksum mismatch for {}: The ETag is {} but the transferred data has {}.", key, expected, actual);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write the manifest and report the results.
+     *
+     * @return false if a checksum did not match.
+     */
+    public boolean finish() {
+        if (this.verify) {
+            log.info("Checksums: {} verified, {} not verifiable, {} failed.", this.verified.get(), this.unverifiable.get(), this.failed.get());
+        }
+        if (this.withoutSha256.get() > 0) {
+            log.info("SHA-256 has only been computed for files transferred with a single request ({} files without).", this.withoutSha256.get());
+        }
+        if (this.rereadBytes.get() > 0) {
+            log.info("Bytes read back from disk for checksums: {}", this.rereadBytes.get());
+        }
+        if (this.manifest != null) {
+            try {
+                this.manifest.write();
+                log.info("Checksum manifest with {} files written to: {}", this.manifest.size(), this.manifest.getFile());
+            } catch (IOException e) {
+                log.error("Failed to write checksum manifest: {} - Reason: {}", this.manifest.getFile(), e.toString());
+                return false;
+            }
+        }
+        return this.failed.get() == 0;
+    }
+
+    /**
+     * Counts a file whose SHA-256 digest can't be computed because it is not transferred sequentially.
+     */
+    public void skippedSha256() {
+        this.withoutSha256.incrementAndGet();
+    }
+
+    public interface EncryptionCheck {
+        boolean isEncrypted();
+    }
+}
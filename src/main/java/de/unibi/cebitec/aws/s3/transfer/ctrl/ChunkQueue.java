@@ -0,0 +1,64 @@
+package de.unibi.cebitec.aws.s3.transfer.ctrl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded hand-over of chunks from the stage that prepares files and cuts them into chunks to the transfer threads.
+ * The preparing stage blocks as soon as a few chunks per thread are waiting, so chunks are only cut shortly before
+ * they are transferred.
+ *
+ * @param <C> Chunk type.
+ */
+public class ChunkQueue<C> {
+    private static final Object END = new Object();
+    private final BlockingQueue<Object> chunks;
+
+    public ChunkQueue(int capacity) {
+        this.chunks = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * For queues that keep the chunks themselves and override all methods.
+     */
+    protected ChunkQueue() {
+        this.chunks = null;
+    }
+
+    public void put(C chunk) throws InterruptedException {
+        this.chunks.put(chunk);
+    }
+
+    /**
+     * Mark the end of the chunk stream.
+     */
+    public void close() {
+        try {
+            this.chunks.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return Number of chunks waiting.
+     */
+    public int size() {
+        int size = this.chunks.size();
+        return this.chunks.contains(END) ? size - 1 : size;
+    }
+
+    /**
+     * @return The next chunk or null if the queue has been closed and all chunks have been taken.
+     */
+    @SuppressWarnings("unchecked")
+    public C take() throws InterruptedException {
+        Object chunk = this.chunks.take();
+        if (chunk == END) {
+            // let the other threads see the end as well
+            this.chunks.put(END);
+            return null;
+        }
+        return (C) chunk;
+    }
+}
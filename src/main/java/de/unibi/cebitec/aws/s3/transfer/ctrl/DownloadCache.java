@@ -0,0 +1,237 @@
+package de.unibi.cebitec.aws.s3.transfer.ctrl;
+
+import de.unibi.cebitec.aws.s3.transfer.util.ETag;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Node-local cache of downloaded objects, shared by all processes on a host. Objects are stored by bucket, key and
+ * ETag, so a changed object is never served from the cache. A hit is handed out as a hard link to the cached file (or
+ * a copy if the target is on another file system), a downloaded object is added by linking the target file into the
+ * cache. Cached files are read-only, as are the hard links handed out.
+ * <p>
+ * The least recently used objects are evicted as soon as the cache grows beyond its size limit. The last access of an
+ * object is kept as the modification time of a marker file, the cached file shares its inode with the targets it has
+ * been linked to, so its own times are left alone. Adding and evicting objects is serialized between processes with a
+ * lock file, objects become visible atomically by renaming them.
+ */
+public class DownloadCache {
+    public static final Logger log = LoggerFactory.getLogger(DownloadCache.class);
+    private static final String LOCK_FILE = ".lock";
+    private static final String TMP_SUFFIX = ".tmp";
+    // marker files of the last access of the objects
+    private static final String ACCESS_DIR = ".access";
+    private final Path directory;
+    private final Path accessDirectory;
+    private final long maxSize;
+    private final AtomicLong hitFiles = new AtomicLong();
+    private final AtomicLong hitBytes = new AtomicLong();
+    private final AtomicLong missFiles = new AtomicLong();
+    private final AtomicLong missBytes = new AtomicLong();
+    // estimated size of the cache, guarded by this
+    private long size;
+
+    /**
+     * @param maxSize Size limit of the cache in bytes.
+     */
+    public DownloadCache(Path directory, long maxSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.accessDirectory = directory.resolve(ACCESS_DIR);
+        Files.createDirectories(this.accessDirectory);
+        this.size = scan(new ArrayList<>());
+    }
+
+    /**
+     * Hand out a cached object.
+     *
+     * @return true on a hit, the target file has been created then.
+     */
+    public boolean fetch(String bucketName, String key, String etag, long objectSize, Path target) {
+        Path entry = entry(bucketName, key, etag);
+        if (entry == null) {
+            return false;
+        }
+        try {
+            if (!Files.isRegularFile(entry) || Files.size(entry) != objectSize) {
+                return false;
+            }
+            Path parentDir = target.toAbsolutePath().getParent();
+            if (parentDir != null) {
+                Files.createDirectories(parentDir);
+            }
+            Files.deleteIfExists(target);
+            try {
+                Files.createLink(target, entry);
+            } catch (IOException | UnsupportedOperationException e) {
+                // different file system
+                Files.copy(entry, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            accessed(entry);
+        } catch (IOException e) {
+            // evicted by another process in the meantime
+            log.debug("Failed to take {} from the cache: {}", key, e.toString());
+            return false;
+        }
+        log.debug("Cache hit: {}", key);
+        this.hitFiles.incrementAndGet();
+        this.hitBytes.addAndGet(objectSize);
+        return true;
+    }
+
+    /**
+     * Add a downloaded object and evict the least recently used objects if the cache has grown too large.
+     */
+    public void store(String bucketName, String key, String etag, Path file) {
+        this.missFiles.incrementAndGet();
+        Path entry = entry(bucketName, key, etag);
+        if (entry == null) {
+            return;
+        }
+        try {
+            long fileSize = Files.size(file);
+            this.missBytes.addAndGet(fileSize);
+            if (fileSize > this.maxSize) {
+                return;
+            }
+            synchronized (this) {
+                try (FileChannel lockChannel = FileChannel.open(this.directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    FileLock lock = lockChannel.lock();
+                    try {
+                        if (Files.exists(entry)) {
+                            return;
+                        }
+                        file.toFile().setReadOnly();
+                        Path tmp = entry.resolveSibling(entry.getFileName() + TMP_SUFFIX);
+                        Files.deleteIfExists(tmp);
+                        try {
+                            Files.createLink(tmp, file);
+                        } catch (IOException | UnsupportedOperationException e) {
+                            Files.copy(file, tmp);
+                            tmp.toFile().setReadOnly();
+                        }
+                        Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE);
+                        accessed(entry);
+                        this.size += fileSize;
+                        if (this.size > this.maxSize) {
+                            evict();
+                        }
+                    } finally {
+                        lock.release();
+                    }
+                }
+            }
+        } catch (FileAlreadyExistsException e) {
+            log.debug("Object {} has been added to the cache by another process.", key);
+        } catch (IOException e) {
+            log.warn("Failed to add {} to the cache. Reason: {}", key, e.toString());
+        }
+    }
+
+    /**
+     * Record the access of an object in its marker file.
+     */
+    private void accessed(Path entry) throws IOException {
+        Path marker = this.accessDirectory.resolve(entry.getFileName());
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        try {
+            Files.setLastModifiedTime(marker, now);
+        } catch (NoSuchFileException e) {
+            try {
+                Files.createFile(marker);
+            } catch (FileAlreadyExistsException ignored) {
+                // created by another process
+            }
+            Files.setLastModifiedTime(marker, now);
+        }
+    }
+
+    /**
+     * Delete the least recently used objects until the cache is below its size limit. Has to be called with the lock
+     * file held.
+     */
+    private void evict() throws IOException {
+        List<Object[]> entries = new ArrayList<>();
+        this.size = scan(entries);
+        entries.sort((e1, e2) -> ((FileTime) e1[1]).compareTo((FileTime) e2[1]));
+        for (Object[] e : entries) {
+            if (this.size <= this.maxSize) {
+                break;
+            }
+            Path p = (Path) e[0];
+            Files.deleteIfExists(p);
+            Files.deleteIfExists(this.accessDirectory.resolve(p.getFileName()));
+            this.size -= (Long) e[2];
+            log.debug("Evicted from cache: {}", p);
+        }
+    }
+
+    /**
+     * @param entries Filled with path, last access and size of all objects.
+     * @return Size of all objects.
+     */
+    private long scan(List<Object[]> entries) throws IOException {
+        long total = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory)) {
+            for (Path p : files) {
+                String name = p.getFileName().toString();
+                if (name.startsWith(".") || name.endsWith(TMP_SUFFIX)) {
+                    continue;
+                }
+                BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                if (attrs.isRegularFile()) {
+                    total += attrs.size();
+                    entries.add(new Object[]{p, lastAccess(p, attrs), attrs.size()});
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return Time of the last access of an object, the time it has been stored if it has no marker file.
+     */
+    private FileTime lastAccess(Path entry, BasicFileAttributes attrs) throws IOException {
+        try {
+            return Files.getLastModifiedTime(this.accessDirectory.resolve(entry.getFileName()));
+        } catch (NoSuchFileException e) {
+            return attrs.lastModifiedTime();
+        }
+    }
+
+    /**
+     * @return The file of an object in the cache or null if the object can't be cached.
+     */
+    private Path entry(String bucketName, String key, String etag) {
+        if (etag == null || etag.isEmpty()) {
+            return null;
+        }
+        MessageDigest sha1 = ETag.newDigest("SHA-1");
+        sha1.update((bucketName + "/" + key + "/" + ETag.strip(etag)).getBytes(StandardCharsets.UTF_8));
+        return this.directory.resolve(ETag.toHex(sha1.digest()));
+    }
+
+    public void report() {
+        log.info("Download cache: {} hits ({} Bytes), {} misses ({} Bytes).", this.hitFiles.get(), this.hitBytes.get(),
+                this.missFiles.get(), this.missBytes.get());
+    }
+}
@@ -1,180 +1,634 @@
 package de.unibi.cebitec.aws.s3.transfer.ctrl;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import de.unibi.cebitec.aws.s3.transfer.model.GridDownloadOrganizer;
 import de.unibi.cebitec.aws.s3.transfer.model.InputFileList;
 import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
 import de.unibi.cebitec.aws.s3.transfer.model.OutputFileList;
+import de.unibi.cebitec.aws.s3.transfer.model.TransferQueue;
+import de.unibi.cebitec.aws.s3.transfer.model.down.DownloadChecksum;
 import de.unibi.cebitec.aws.s3.transfer.model.down.DownloadFile;
+import de.unibi.cebitec.aws.s3.transfer.model.down.DownloadPart;
 import de.unibi.cebitec.aws.s3.transfer.model.down.DownloadPartS3;
+import de.unibi.cebitec.aws.s3.transfer.model.down.HedgingPolicy;
 import de.unibi.cebitec.aws.s3.transfer.model.down.IDownloadChunk;
 import de.unibi.cebitec.aws.s3.transfer.model.down.IDownloadChunkS3;
 import de.unibi.cebitec.aws.s3.transfer.model.down.MultipartDownloadFile;
+import de.unibi.cebitec.aws.s3.transfer.model.down.PartJournal;
+import de.unibi.cebitec.aws.s3.transfer.model.down.PartSizePlanner;
 import de.unibi.cebitec.aws.s3.transfer.model.down.SingleDownloadFile;
+import de.unibi.cebitec.aws.s3.transfer.model.down.SyncState;
 import de.unibi.cebitec.aws.s3.transfer.model.down.TransferDownloadThread;
+import de.unibi.cebitec.aws.s3.transfer.model.down.WriteBackend;
 import de.unibi.cebitec.aws.s3.transfer.model.features.Fastq;
+import de.unibi.cebitec.aws.s3.transfer.util.MetricsEndpoint;
+import de.unibi.cebitec.aws.s3.transfer.util.ProgressReporter;
+import de.unibi.cebitec.aws.s3.transfer.util.TransferExecutors;
 import de.unibi.cebitec.aws.s3.transfer.util.UnrecoverableErrorException;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class Downloader {
     public static final Logger log = LoggerFactory.getLogger(Downloader.class);
+    private static final long JOURNAL_SYNC_INTERVAL = 5000;
+    // chunks per thread that are cut in advance
+    private static final int QUEUED_CHUNKS_PER_THREAD = 2;
+    // multipart files that may be open at the same time, the prefix queue reads far ahead
+    private static final int MAX_OPEN_FILES = 256;
     private String bucketName;
-    private InputFileList<String> inputFiles;
-    private OutputFileList<String, Path> outputFiles;
+    private TransferQueue<String, Path> inputFiles;
     private int numberOfThreads;
     private AmazonS3 s3;
-    private List<DownloadFile> files;
-    private List<IDownloadChunk> chunks;
     private long chunkSize;
     private boolean gridDownload;
     private GridDownloadOrganizer gridDownloadOrganizer;
+    private boolean resume;
+    private boolean adaptivePartSize;
+    private PartSizePlanner partSizePlanner;
+    private ChunkQueue<IDownloadChunkS3> chunks;
+    // multipart files that have been opened and are not complete yet
+    private final Set<MultipartDownloadFile> openFiles = ConcurrentHashMap.newKeySet();
+    // limits the files opened by the producer, a permit is returned when a file is complete
+    private Semaphore openFileSlots;
+    private PartStealer partStealer = new PartStealer();
+    private HedgingPolicy hedgingPolicy;
+    private WriteBackend writeBackend = WriteBackend.CHANNEL;
+    private ChecksumVerifier checksumVerifier;
+    private SyncState syncState;
+    private DownloadCache downloadCache;
+    private boolean asyncEngine;
+    private AdaptiveConcurrency concurrency;
+    private boolean prefixScheduling;
 
     public Downloader(AmazonS3 s3, String bucketName, InputFileList<String> inputFiles,
                       OutputFileList<String, Path> fileDownloadDestinations, int numberOfThreads, long chunkSize,
                       GridDownloadOrganizer gridDownloadOrganizer) {
-        this(s3, bucketName, inputFiles, fileDownloadDestinations, numberOfThreads, chunkSize);
+        this(s3, bucketName, TransferQueue.of(inputFiles, fileDownloadDestinations), numberOfThreads, chunkSize, gridDownloadOrganizer);
+    }
+
+    /**
+     * Grid downloads need all chunks to select their subset, so the input queue is read completely before the
+     * download starts.
+     */
+    public Downloader(AmazonS3 s3, String bucketName, TransferQueue<String, Path> inputFiles, int numberOfThreads,
+                      long chunkSize, GridDownloadOrganizer gridDownloadOrganizer) {
+        this(s3, bucketName, inputFiles, numberOfThreads, chunkSize);
         this.gridDownload = true;
         this.gridDownloadOrganizer = gridDownloadOrganizer;
     }
 
     public Downloader(AmazonS3 s3, String bucketName, InputFileList<String> inputFiles,
                       OutputFileList<String, Path> fileDownloadDestinations, int numberOfThreads, long chunkSize) {
+        this(s3, bucketName, TransferQueue.of(inputFiles, fileDownloadDestinations), numberOfThreads, chunkSize);
+    }
+
+    /**
+     * @param inputFiles Keys to download together with their destinations. The queue may still be filled while the
+     *                   download is running.
+     */
+    public Downloader(AmazonS3 s3, String bucketName, TransferQueue<String, Path> inputFiles, int numberOfThreads,
+                      long chunkSize) {
         this.gridDownload = false;
         this.bucketName = bucketName;
         this.inputFiles = inputFiles;
-        this.outputFiles = fileDownloadDestinations;
         this.numberOfThreads = numberOfThreads;
         this.chunkSize = chunkSize;
-
-        this.files = new ArrayList<>();
-        this.chunks = new ArrayList<>();
         this.s3 = s3;
     }
 
     public void download() throws Exception {
-        for (Map.Entry<String, Long> item : this.inputFiles.entrySet()) {
-            if (item.getValue() <= this.chunkSize) {
-                this.files.add(new SingleDownloadFile(item.getKey(), this.outputFiles.get(item.getKey()), item.getValue()));
+        this.chunks = this.prefixScheduling
+                ? new PrefixChunkQueue<>(this.numberOfThreads * QUEUED_CHUNKS_PER_THREAD, PrefixChunkQueue.GET_REQUESTS_PER_SECOND, IDownloadChunkS3::getKey)
+                : new ChunkQueue<>(this.numberOfThreads * QUEUED_CHUNKS_PER_THREAD);
+        MetricsEndpoint.gauge("bibis3_queued_chunks", "Chunks waiting for a transfer thread.", this.chunks::size);
+        this.openFileSlots = new Semaphore(Math.max(MAX_OPEN_FILES, this.numberOfThreads * (QUEUED_CHUNKS_PER_THREAD + 1)));
+        if (this.gridDownload) {
+            if (this.resume) {
+                log.warn("Resuming is not supported for grid downloads. Downloading all chunks.");
+                this.resume = false;
+            }
+            if (this.adaptivePartSize) {
+                log.warn("Adaptive chunk sizes are not supported for grid downloads. Using fixed chunk size.");
+                this.adaptivePartSize = false;
+            }
+            if (this.checksumVerifier != null) {
+                log.warn("Checksums can't be computed for grid downloads.");
+                this.checksumVerifier = null;
+            }
+            if (this.syncState != null) {
+                log.error("Sync is not supported for grid downloads.");
+                System.exit(1);
+            }
+            if (this.downloadCache != null) {
+                log.warn("The download cache can't be used for grid downloads, they only write a subset of each file.");
+                this.downloadCache = null;
+            }
+            if (this.asyncEngine) {
+                log.warn("The asynchronous engine is not supported for grid downloads. Using transfer threads.");
+                this.asyncEngine = false;
+            }
+            List<IDownloadChunk> gridChunks = gatherGridChunks();
+            startProducer(() -> {
+                for (IDownloadChunk chunk : gridChunks) {
+                    this.chunks.put((IDownloadChunkS3) chunk);
+                }
+            });
+        } else {
+            if (this.asyncEngine) {
+                disableForAsyncEngine();
+            }
+            if (this.adaptivePartSize) {
+                this.partSizePlanner = new PartSizePlanner(this.numberOfThreads);
+                log.info("== Downloading with adaptive chunk sizes...");
             } else {
-                log.debug("of from hashmap: {}", this.outputFiles.get(item.getKey()));
-                this.files.add(new MultipartDownloadFile(item.getKey(), this.outputFiles.get(item.getKey()), item.getValue(), true, this.chunkSize));
+                log.info("== Downloading with a chunk size of {} Bytes...", this.chunkSize);
             }
-            Measurements.addToOverallBytes(item.getValue());
+            startProducer(this::produceChunks);
         }
+        transfer();
+    }
 
-        //fill chunk list
-        for (DownloadFile f : this.files) {
-            log.debug("DL File: {}", f.getKey());
-            if (f instanceof SingleDownloadFile) {
-                this.chunks.add((IDownloadChunkS3) f);
-            } else if (f instanceof MultipartDownloadFile) {
-                while (((MultipartDownloadFile) f).hasMoreParts()) {
-                    this.chunks.add(((MultipartDownloadFile) f).next());
+    /**
+     * The asynchronous engine runs every chunk with a single request stream and writes with its own writers.
+     */
+    private void disableForAsyncEngine() {
+        if (this.adaptivePartSize) {
+            log.warn("Adaptive chunk sizes are not supported by the asynchronous engine. Using fixed chunk size.");
+            this.adaptivePartSize = false;
+        }
+        if (this.hedgingPolicy != null) {
+            log.warn("Hedged downloads are not supported by the asynchronous engine.");
+            this.hedgingPolicy = null;
+        }
+        if (this.writeBackend != WriteBackend.CHANNEL) {
+            log.warn("The asynchronous engine writes with positional channel writes, ignoring the write backend.");
+        }
+        this.partStealer = null;
+    }
+
+    /**
+     * Cut all files into chunks in advance and select the subset of chunks for this grid node.
+     */
+    private List<IDownloadChunk> gatherGridChunks() throws Exception {
+        List<IDownloadChunk> gridChunks = new ArrayList<>();
+        TransferQueue.Entry<String, Path> item;
+        while ((item = this.inputFiles.take()) != null) {
+            if (item.getSize() <= this.chunkSize) {
+                gridChunks.add(new SingleDownloadFile(item.getSource(), item.getTarget(), item.getSize()));
+            } else {
+                log.debug("of from hashmap: {}", item.getTarget());
+                MultipartDownloadFile f = new MultipartDownloadFile(item.getSource(), item.getTarget(), item.getSize(), true, this.chunkSize);
+                while (f.hasMoreParts()) {
+                    gridChunks.add(f.next());
                 }
             }
+            Measurements.addToOverallBytes(item.getSize());
         }
 
+        //if in grid mode then create subset of chunks
+        gridChunks = this.gridDownloadOrganizer.getChunkSubset(gridChunks);
+        Measurements.setOverallBytes(Measurements.getOverallBytes() / this.gridDownloadOrganizer.getNodesCount());
         String approx = "";
-        if (this.gridDownload) {
-            //if in grid mode then create subset of chunks
-            this.chunks = this.gridDownloadOrganizer.getChunkSubset(this.chunks);
-            Measurements.setOverallBytes(Measurements.getOverallBytes() / this.gridDownloadOrganizer.getNodesCount());
-            switch (this.gridDownloadOrganizer.getFeature()) {
-                case "fastq":
-                    Fastq q = new Fastq(this.s3, this.bucketName);
-                    DownloadPartS3 firstPart = (DownloadPartS3) this.chunks.get(0);
-                    DownloadPartS3 lastPart = (DownloadPartS3) this.chunks.get(this.chunks.size() - 1);
-                    q.optimizeSplitStart(firstPart);
-                    q.optimizeSplitEnd(lastPart);
-                case "split":
-                    approx = "approx.";
-                    long size = 0;
-                    for (IDownloadChunk chunk : this.chunks) {
-                        size += chunk.getSize();
-                    }
-                    DownloadPartS3 firstChunk = (DownloadPartS3) this.chunks.get(0);
-                    long subsetInputOffset = firstChunk.getInputOffset();
-                    for (IDownloadChunk chunk : this.chunks) {
-                        if (chunk instanceof DownloadPartS3) {
-                            DownloadPartS3 part = (DownloadPartS3) chunk;
-                            part.getMultipartDownloadFile().setFileSize(size);
-                            part.setOutputOffset(part.getInputOffset() - subsetInputOffset);
-                        }
+        switch (this.gridDownloadOrganizer.getFeature()) {
+            case "fastq":
+                Fastq q = new Fastq(this.s3, this.bucketName);
+                DownloadPartS3 firstPart = (DownloadPartS3) gridChunks.get(0);
+                DownloadPartS3 lastPart = (DownloadPartS3) gridChunks.get(gridChunks.size() - 1);
+                q.optimizeSplitStart(firstPart);
+                q.optimizeSplitEnd(lastPart);
+            case "split":
+                approx = "approx.";
+                long size = 0;
+                for (IDownloadChunk chunk : gridChunks) {
+                    size += chunk.getSize();
+                }
+                DownloadPartS3 firstChunk = (DownloadPartS3) gridChunks.get(0);
+                long subsetInputOffset = firstChunk.getInputOffset();
+                for (IDownloadChunk chunk : gridChunks) {
+                    if (chunk instanceof DownloadPartS3) {
+                        DownloadPartS3 part = (DownloadPartS3) chunk;
+                        part.getMultipartDownloadFile().setFileSize(size);
+                        part.setOutputOffset(part.getInputOffset() - subsetInputOffset);
                     }
-                    break;
-                case "":
-                default:
-                    approx = "approx.";
-                    break;
-            }
+                }
+                break;
+            case "":
+            default:
+                approx = "approx.";
+                break;
+        }
 
+        // open all multipart files of the subset
+        for (IDownloadChunk chunk : gridChunks) {
+            if (chunk instanceof DownloadPart) {
+                MultipartDownloadFile f = ((DownloadPart) chunk).getMultipartDownloadFile();
+                if (this.openFiles.add(f)) {
+                    f.setHedgingPolicy(this.hedgingPolicy);
+                    f.setWriteBackend(this.writeBackend);
+                    openFile(f);
+                }
+            }
         }
 
-        Measurements.setOverallChunks(this.chunks.size());
-        log.info("== Downloading {} {} of data split into {} chunks...", approx, Measurements.getOverallBytesFormatted(), this.chunks.size());
+        Measurements.setOverallChunks(gridChunks.size());
+        log.info("== Downloading {} {} of data split into {} chunks...", approx, Measurements.getOverallBytesFormatted(), gridChunks.size());
+        return gridChunks;
+    }
 
-        // open all multipart files
-        for (DownloadFile f : this.files) {
-            if (f instanceof MultipartDownloadFile) {
-                try {
-                    ((MultipartDownloadFile) f).openFile();
-                } catch (UnrecoverableErrorException e) {
-                    System.exit(1);
+    /**
+     * Take the files to download from the input queue as they arrive, prepare them and cut them into chunks. Blocks
+     * as long as enough chunks are waiting for the transfer threads, or as long as too many multipart files are open.
+     */
+    private void produceChunks() throws Exception {
+        TransferQueue.Entry<String, Path> item;
+        while ((item = this.inputFiles.take()) != null) {
+            if (fetchFromCache(item)) {
+                continue;
+            }
+            Measurements.addToOverallBytes(item.getSize());
+            if (item.getSize() <= this.chunkSize) {
+                Measurements.addToOverallChunks(1);
+                SingleDownloadFile single = new SingleDownloadFile(item.getSource(), item.getTarget(), item.getSize());
+                if (!isFolder(item.getSource(), item.getSize())) {
+                    prepareChecksum(single, item.getSize(), item.getETag(), true);
                 }
+                this.chunks.put(single);
+                continue;
+            }
+            MultipartDownloadFile f = new MultipartDownloadFile(item.getSource(), item.getTarget(), item.getSize(), true, this.chunkSize);
+            prepareChecksum(f, item.getSize(), item.getETag(), false);
+            if (this.resume) {
+                resumeFile(f, item.getETag());
+            }
+            if (this.partSizePlanner != null) {
+                f.setPartSizePlanner(this.partSizePlanner);
+            }
+            f.setHedgingPolicy(this.hedgingPolicy);
+            f.setWriteBackend(this.writeBackend);
+            this.openFileSlots.acquire();
+            openFile(f);
+            this.openFiles.add(f);
+            while (f.hasMoreParts()) {
+                Measurements.addToOverallChunks(1);
+                this.chunks.put((IDownloadChunkS3) f.next());
+            }
+            // nothing to do for a file that has been downloaded completely by a previous run
+            closeIfComplete(f);
+        }
+    }
+
+    /**
+     * Run a chunk producer in its own thread. The chunk queue is closed as soon as the producer has finished.
+     */
+    private void startProducer(ChunkProducer producer) {
+        Thread thread = new Thread(() -> {
+            try {
+                producer.produce();
+                this.chunks.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("Failed to prepare files for download: {}", e.toString());
+                System.exit(1);
             }
+        }, "chunk-producer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void openFile(MultipartDownloadFile f) {
+        try {
+            f.openFile();
+        } catch (UnrecoverableErrorException e) {
+            System.exit(1);
         }
+    }
 
+    private void transfer() throws Exception {
         Measurements.start();
+        ProgressReporter.runStarted("download", this.numberOfThreads);
 
         TimerTask measurementsUpdates = new TimerTask() {
             @Override
             public void run() {
-                log.info("Chunk downloads complete: {}", Measurements.getChunksFinishedCount());
+                log.info("Chunk downloads complete: {}", Measurements.getProgress());
             }
         };
         Timer timer = new Timer();
         timer.schedule(measurementsUpdates, 3000, 15000);
+        Thread journalShutdownHook = null;
+        if (this.resume) {
+            TimerTask journalUpdates = new TimerTask() {
+                @Override
+                public void run() {
+                    syncJournals();
+                }
+            };
+            timer.schedule(journalUpdates, JOURNAL_SYNC_INTERVAL, JOURNAL_SYNC_INTERVAL);
+            // keep the journals up to date if we are terminated or a chunk fails for good
+            journalShutdownHook = new Thread(this::syncJournals);
+            Runtime.getRuntime().addShutdownHook(journalShutdownHook);
+        }
 
         //download all chunks/single files
-        ExecutorService threading = Executors.newFixedThreadPool(this.numberOfThreads);
-        List<Future<?>> futures = new ArrayList<>();
-        for (IDownloadChunk chunk : this.chunks) {
-            futures.add(threading.submit(new TransferDownloadThread(this.s3, this.bucketName, (IDownloadChunkS3) chunk, 6)));
+        if (this.concurrency != null) {
+            this.concurrency.start();
         }
+        if (this.asyncEngine) {
+            try (AsyncEngine engine = new AsyncEngine(this.s3, this.bucketName, this.numberOfThreads)) {
+                engine.setConcurrency(this.concurrency);
+                IDownloadChunkS3 chunk;
+                while ((chunk = this.chunks.take()) != null) {
+                    IDownloadChunkS3 c = chunk;
+                    engine.download(chunk, () -> chunkDone(c));
+                }
+                engine.await();
+            }
+        } else {
+            ExecutorService threading = TransferExecutors.newExecutor(this.numberOfThreads);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < this.numberOfThreads; i++) {
+                futures.add(threading.submit(() -> {
+                    IDownloadChunkS3 chunk;
+                    while ((chunk = this.chunks.take()) != null) {
+                        downloadChunk(chunk);
+                    }
+                    // all chunks are handed out, help with the slow ones that are still running
+                    while (this.partStealer != null && (chunk = (IDownloadChunkS3) this.partStealer.steal()) != null) {
+                        downloadChunk(chunk);
+                    }
+                    return null;
+                }));
+            }
 
-        //wait for threads to finish
-        for (Future<?> future : futures) {
-            try {
-                future.get();
-            } catch (ExecutionException | InterruptedException e) {
-                log.error("Error while waiting for running thread. ({})", e.getMessage());
+            //wait for threads to finish
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException | InterruptedException e) {
+                    log.error("Error while waiting for running thread. ({})", e.getMessage());
+                }
             }
+            threading.shutdown();
+        }
+        if (this.concurrency != null) {
+            this.concurrency.stop();
+        }
+        if (this.chunks instanceof PrefixChunkQueue) {
+            ((PrefixChunkQueue<?>) this.chunks).finish();
+        }
+        if (journalShutdownHook != null) {
+            Runtime.getRuntime().removeShutdownHook(journalShutdownHook);
         }
-        threading.shutdown();
 
-        // close all multipart files
-        for (DownloadFile f : this.files) {
-            if (f instanceof MultipartDownloadFile) {
-                ((MultipartDownloadFile) f).closeFile();
-            }
+        // close the multipart files that are left (grid downloads only write a subset of their parts)
+        for (MultipartDownloadFile f : this.openFiles) {
+            f.closeFile();
         }
+        this.openFiles.clear();
 
         timer.cancel();
         Measurements.stop();
+        if (!this.gridDownload) {
+            log.info("== Downloaded {} of data in {} files split into {} chunks.", Measurements.getOverallBytesFormatted(),
+                    this.inputFiles.getCount(), Measurements.getChunksFinishedCount());
+        }
+        if (this.partStealer != null && this.partStealer.getSplitCount() > 0) {
+            log.info("Slow chunks split among idle threads: {}", this.partStealer.getSplitCount());
+        }
+        if (this.hedgingPolicy != null) {
+            this.hedgingPolicy.shutdown();
+            log.info("Hedged requests: {} fired, {} won ({} requests overall)", this.hedgingPolicy.getFiredCount(),
+                    this.hedgingPolicy.getWonCount(), this.hedgingPolicy.getRequestCount());
+        }
         log.info("Overall average download speed: {}", Measurements.getEndResult());
+        Measurements.logSummary();
+        if (this.downloadCache != null) {
+            this.downloadCache.report();
+        }
+        if (this.checksumVerifier != null && !this.checksumVerifier.finish()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Hand out a file from the download cache.
+     *
+     * @return true if the file has been taken from the cache and does not have to be downloaded.
+     */
+    private boolean fetchFromCache(TransferQueue.Entry<String, Path> item) throws IOException {
+        if (this.downloadCache == null || isFolder(item.getSource(), item.getSize())) {
+            return false;
+        }
+        Path target = item.getTarget();
+        if (!this.downloadCache.fetch(this.bucketName, item.getSource(), item.getETag(), item.getSize(), target)) {
+            // hard links handed out from the cache are read-only
+            if (Files.isRegularFile(target) && !Files.isWritable(target)) {
+                Files.delete(target);
+            }
+            return false;
+        }
+        if (this.resume) {
+            Files.deleteIfExists(target.resolveSibling(target.getFileName().toString() + PartJournal.SUFFIX));
+        }
+        if (this.syncState != null) {
+            this.syncState.completed(item.getSource(), target);
+        }
+        return true;
+    }
+
+    /**
+     * Empty keys ending with a slash are folders.
+     */
+    private static boolean isFolder(String key, long size) {
+        return key.endsWith("/") && size == 0;
+    }
+
+    private void prepareChecksum(DownloadFile f, long size, String etag, boolean sequential) {
+        f.setETag(etag);
+        if (this.checksumVerifier != null) {
+            f.setChecksum(this.checksumVerifier.create(size, etag, sequential));
+        }
+    }
+
+    /**
+     * Verify the checksums of a file that has been written completely, record it in the sync state, add it to the
+     * download cache and report it.
+     */
+    private void fileDone(DownloadFile f, long size) {
+        boolean ok = true;
+        if (this.checksumVerifier != null && f.getChecksum() != null) {
+            ok = this.checksumVerifier.check(f, size, () -> isEncrypted(f.getKey()));
+        }
+        if (ok && this.syncState != null) {
+            this.syncState.completed(f.getKey(), f.getTargetFile());
+        }
+        if (ok && this.downloadCache != null && !isFolder(f.getKey(), size)) {
+            this.downloadCache.store(this.bucketName, f.getKey(), f.getETag(), f.getTargetFile());
+        }
+        DownloadChecksum c = f.getChecksum();
+        ProgressReporter.fileCompleted(f.getKey(), f.getTargetFile(), size, f.getETag(), c == null ? null : c.getCrc32c(),
+                c == null ? null : c.getSha256(), ok);
+    }
+
+    /**
+     * @return true if the object is encrypted with a customer or KMS managed key, its ETag is no MD5 digest then.
+     */
+    private boolean isEncrypted(String key) {
+        try {
+            ObjectMetadata meta = this.s3.getObjectMetadata(this.bucketName, key);
+            return meta.getSSECustomerAlgorithm() != null || "aws:kms".equals(meta.getSSEAlgorithm());
+        } catch (AmazonClientException e) {
+            log.debug("Failed to request metadata of {}: {}", key, e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Open the part journal of a multipart file and skip the parts that have been downloaded by a previous run.
+     *
+     * @param etag ETag of the object from the listing, requested with a HEAD request if null.
+     */
+    private void resumeFile(MultipartDownloadFile f, String etag) throws IOException {
+        if (etag == null) {
+            etag = this.s3.getObjectMetadata(this.bucketName, f.getKey()).getETag();
+        }
+        PartJournal journal = PartJournal.open(f.getTargetFile(), f.getFileSize(), etag);
+        long completedBytes = f.resume(journal, this.chunkSize);
+        Measurements.addToOverallBytes(-completedBytes);
+    }
+
+    private void downloadChunk(IDownloadChunkS3 chunk) {
+        long start = this.concurrency != null ? this.concurrency.acquire() : 0;
+        if (this.partStealer != null) {
+            this.partStealer.started(chunk);
+        }
+        try {
+            new TransferDownloadThread(this.s3, this.bucketName, chunk, 6).call();
+        } finally {
+            if (this.partStealer != null) {
+                this.partStealer.finished(chunk);
+            }
+            if (this.concurrency != null) {
+                this.concurrency.release(start, chunk.getSize());
+            }
+        }
+        chunkDone(chunk);
+    }
+
+    private void chunkDone(IDownloadChunkS3 chunk) {
+        if (!this.gridDownload && chunk instanceof DownloadPart) {
+            closeIfComplete(((DownloadPart) chunk).getMultipartDownloadFile());
+        } else if (chunk instanceof SingleDownloadFile) {
+            fileDone((SingleDownloadFile) chunk, chunk.getSize());
+        }
+    }
+
+    /**
+     * Close a multipart file as soon as its last part has been written, so only the files in progress stay open.
+     */
+    private void closeIfComplete(MultipartDownloadFile f) {
+        if (f.isComplete() && this.openFiles.remove(f)) {
+            f.closeFile();
+            this.openFileSlots.release();
+            fileDone(f, f.getFileSize());
+        }
+    }
+
+    private void syncJournals() {
+        for (MultipartDownloadFile f : this.openFiles) {
+            f.syncJournal();
+        }
+    }
+
+    /**
+     * Compute checksums while downloading, verify them with the ETags and write the manifest.
+     */
+    public void setChecksumVerifier(ChecksumVerifier checksumVerifier) {
+        this.checksumVerifier = checksumVerifier;
+    }
+
+    /**
+     * Record every downloaded file in the state of a sync.
+     */
+    public void setSyncState(SyncState syncState) {
+        this.syncState = syncState;
+    }
+
+    /**
+     * Take files from a node-local cache and add the downloaded ones to it.
+     */
+    public void setDownloadCache(DownloadCache downloadCache) {
+        this.downloadCache = downloadCache;
+    }
+
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Enable or disable splitting the remainder of slow chunks among idle threads at the end of the download.
+     */
+    public void setSplitSlowChunks(boolean splitSlowChunks) {
+        this.partStealer = splitSlowChunks ? new PartStealer() : null;
+    }
+
+    public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+    }
+
+    /**
+     * Select how the parts of multipart files are written to disk.
+     */
+    public void setWriteBackend(WriteBackend writeBackend) {
+        this.writeBackend = writeBackend;
+    }
+
+    /**
+     * Transfer the chunks with the non-blocking {@link AsyncEngine} instead of transfer threads.
+     */
+    public void setAsyncEngine(boolean asyncEngine) {
+        this.asyncEngine = asyncEngine;
+    }
+
+    /**
+     * Adjust the number of concurrent requests to the throughput and throttling of the server, with the number of
+     * threads as the upper bound.
+     */
+    public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+        this.concurrency = adaptiveConcurrency ? new AdaptiveConcurrency(this.numberOfThreads) : null;
+    }
+
+    /**
+     * Hand out the chunks interleaved across key prefixes, every prefix within a request budget that is learned from
+     * throttled requests.
+     */
+    public void setPrefixScheduling(boolean prefixScheduling) {
+        this.prefixScheduling = prefixScheduling;
+    }
+
+    public void setAdaptivePartSize(boolean adaptivePartSize) {
+        this.adaptivePartSize = adaptivePartSize;
+    }
 
+    private interface ChunkProducer {
+        void produce() throws Exception;
     }
 }
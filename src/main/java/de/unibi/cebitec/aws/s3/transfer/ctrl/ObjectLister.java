@@ -0,0 +1,112 @@
+package de.unibi.cebitec.aws.s3.transfer.ctrl;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lists all objects below a key prefix. Every "directory" (common prefix for the delimiter "/") is listed as a task of
+ * its own, so the listing of a deep key hierarchy runs in parallel. Each task pages through its prefix with
+ * ListObjectsV2 continuation tokens and hands the objects to a visitor as soon as a page has arrived.
+ */
+public class ObjectLister {
+    public static final Logger log = LoggerFactory.getLogger(ObjectLister.class);
+    private static final String DELIMITER = "/";
+    private final AmazonS3 s3;
+    private final String bucketName;
+    private final int numberOfThreads;
+    private final AtomicInteger pendingPrefixes = new AtomicInteger();
+    private final AtomicLong listedObjects = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+    private ExecutorService threading;
+    private ObjectVisitor visitor;
+
+    public ObjectLister(AmazonS3 s3, String bucketName, int numberOfThreads) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+    }
+
+    /**
+     * List all objects below the prefix. Returns once all objects have been visited.
+     *
+     * @param visitor Called concurrently by the listing threads, may block to slow down the listing.
+     */
+    public void list(String prefix, ObjectVisitor visitor) throws Exception {
+        this.visitor = visitor;
+        this.threading = Executors.newFixedThreadPool(this.numberOfThreads, r -> {
+            Thread t = new Thread(r, "object-listing");
+            t.setDaemon(true);
+            return t;
+        });
+        long start = System.currentTimeMillis();
+        submit(prefix);
+        try {
+            this.done.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } finally {
+            this.threading.shutdownNow();
+        }
+        log.info("Listed {} objects with {} requests in {} ms.", this.listedObjects.get(), this.requests.get(),
+                System.currentTimeMillis() - start);
+    }
+
+    private void submit(String prefix) {
+        this.pendingPrefixes.incrementAndGet();
+        this.threading.submit(() -> {
+            try {
+                listPrefix(prefix);
+                if (this.pendingPrefixes.decrementAndGet() == 0) {
+                    this.done.complete(null);
+                }
+            } catch (Exception e) {
+                this.done.completeExceptionally(e);
+            }
+        });
+    }
+
+    private void listPrefix(String prefix) throws Exception {
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(this.bucketName)
+                .withPrefix(prefix)
+                .withDelimiter(DELIMITER);
+        ListObjectsV2Result result;
+        do {
+            if (this.done.isDone()) {
+                return;
+            }
+            result = this.s3.listObjectsV2(request);
+            this.requests.incrementAndGet();
+            // descend into the sub directories first to get more listing threads busy
+            for (String commonPrefix : result.getCommonPrefixes()) {
+                submit(commonPrefix);
+            }
+            for (S3ObjectSummary summary : result.getObjectSummaries()) {
+                this.visitor.visit(summary);
+                this.listedObjects.incrementAndGet();
+            }
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+        log.trace("Listed prefix: {}", prefix);
+    }
+
+    public interface ObjectVisitor {
+        void visit(S3ObjectSummary summary) throws Exception;
+    }
+}
@@ -0,0 +1,79 @@
+package de.unibi.cebitec.aws.s3.transfer.ctrl;
+
+import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+import de.unibi.cebitec.aws.s3.transfer.model.down.AbstractDownloadPart;
+import de.unibi.cebitec.aws.s3.transfer.model.down.IDownloadChunk;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the parts that are currently being downloaded. Once all chunks have been handed out, idle threads
+ * use it to take over the second half of the slowest running part instead of waiting for it to finish.
+ */
+public class PartStealer {
+    public static final Logger log = LoggerFactory.getLogger(PartStealer.class);
+    private static final long MIN_SPLIT_SIZE = 1048576; // 1MB
+    // parts that are expected to finish sooner are left alone
+    private static final long MIN_NANOS_LEFT = 2000000000L;
+    private static final long POLL_INTERVAL = 200;
+    private final Set<AbstractDownloadPart> activeParts;
+    private final AtomicLong splitCount;
+
+    public PartStealer() {
+        this.activeParts = ConcurrentHashMap.newKeySet();
+        this.splitCount = new AtomicLong();
+    }
+
+    public void started(IDownloadChunk chunk) {
+        if (chunk instanceof AbstractDownloadPart) {
+            this.activeParts.add((AbstractDownloadPart) chunk);
+        }
+    }
+
+    public void finished(IDownloadChunk chunk) {
+        if (chunk instanceof AbstractDownloadPart) {
+            this.activeParts.remove(chunk);
+        }
+    }
+
+    /**
+     * Wait until a slow part can be split.
+     *
+     * @return The split off remainder of a slow part or null if no parts are running anymore.
+     */
+    public AbstractDownloadPart steal() throws InterruptedException {
+        while (!this.activeParts.isEmpty()) {
+            AbstractDownloadPart slowest = null;
+            long slowestNanosLeft = MIN_NANOS_LEFT;
+            for (AbstractDownloadPart part : this.activeParts) {
+                if (part.getRemainingBytes() < 3 * MIN_SPLIT_SIZE) {
+                    continue;
+                }
+                long nanosLeft = part.getEstimatedNanosLeft();
+                if (nanosLeft > slowestNanosLeft) {
+                    slowest = part;
+                    slowestNanosLeft = nanosLeft;
+                }
+            }
+            if (slowest != null) {
+                AbstractDownloadPart tail = slowest.split(MIN_SPLIT_SIZE);
+                if (tail != null) {
+                    Measurements.addToOverallChunks(1);
+                    this.splitCount.incrementAndGet();
+                    return tail;
+                }
+            }
+            Thread.sleep(POLL_INTERVAL);
+        }
+        return null;
+    }
+
+    public long getSplitCount() {
+        return splitCount.get();
+    }
+}
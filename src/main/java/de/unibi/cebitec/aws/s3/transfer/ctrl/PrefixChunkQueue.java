@@ -0,0 +1,272 @@
+package de.unibi.cebitec.aws.s3.transfer.ctrl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import de.unibi.cebitec.aws.s3.transfer.util.Throttling;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chunk queue that schedules the requests by key prefix. S3 limits the request rate per prefix (about 5,500 GET and
+ * 3,500 PUT requests per second), so the chunks are grouped by the prefix of their key (everything up to the last
+ * '/') and handed out round robin across the prefixes, every prefix within a budget of requests per second. A prefix
+ * that gets throttled halves its budget, a prefix that uses up its budget without being throttled raises it slowly.
+ * <p>
+ * The queue reads much further ahead than the plain queue, so chunks of other prefixes are at hand while one prefix
+ * waits for its budget. Chunks of multipart files hold their file open while they wait, so the producer limits the
+ * number of open files on its own.
+ *
+ * @param <C> Chunk type.
+ */
+public class PrefixChunkQueue<C> extends ChunkQueue<C> {
+    public static final Logger log = LoggerFactory.getLogger(PrefixChunkQueue.class);
+    public static final double GET_REQUESTS_PER_SECOND = 5500;
+    public static final double PUT_REQUESTS_PER_SECOND = 3500;
+    private static final int LOOKAHEAD = 10000;
+    private static final double MIN_BUDGET = 1;
+    private static final double DECREASE = 0.5;
+    private static final double INCREASE = 0.05;
+    // a prefix has to use this fraction of its budget to raise it
+    private static final double BUSY = 0.8;
+    // the budget of a prefix changes at most once per period
+    private static final long ADJUST_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // prefixes listed in the summary
+    private static final int REPORTED_PREFIXES = 10;
+    private final int capacity;
+    private final double initialBudget;
+    private final Function<C, String> keyOf;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = this.lock.newCondition();
+    private final Condition available = this.lock.newCondition();
+    // the following fields are guarded by lock
+    private final Map<String, Prefix<C>> prefixes = new HashMap<>();
+    // prefixes with waiting chunks in round robin order
+    private final ArrayDeque<Prefix<C>> ready = new ArrayDeque<>();
+    private int size;
+    private boolean closed;
+
+    /**
+     * @param capacity          Chunks waiting at least, the queue reads further ahead though.
+     * @param requestsPerSecond Initial budget of every prefix.
+     * @param keyOf             Returns the key of the object a chunk belongs to.
+     */
+    public PrefixChunkQueue(int capacity, double requestsPerSecond, Function<C, String> keyOf) {
+        this.capacity = Math.max(capacity, LOOKAHEAD);
+        this.initialBudget = requestsPerSecond;
+        this.keyOf = keyOf;
+        Throttling.setListener(this::throttled);
+    }
+
+    /**
+     * @return The prefix of a key that S3 limits the request rate of.
+     */
+    public static String getPrefix(String key) {
+        return key.substring(0, key.lastIndexOf('/') + 1);
+    }
+
+    @Override
+    public void put(C chunk) throws InterruptedException {
+        String prefix = getPrefix(this.keyOf.apply(chunk));
+        this.lock.lockInterruptibly();
+        try {
+            while (this.size >= this.capacity) {
+                this.notFull.await();
+            }
+            Prefix<C> p = this.prefixes.get(prefix);
+            if (p == null) {
+                p = new Prefix<>(prefix, this.initialBudget, System.nanoTime());
+                this.prefixes.put(prefix, p);
+            }
+            if (p.chunks.isEmpty()) {
+                this.ready.add(p);
+            }
+            p.chunks.add(chunk);
+            this.size++;
+            this.available.signal();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        this.lock.lock();
+        try {
+            this.closed = true;
+            this.available.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public C take() throws InterruptedException {
+        this.lock.lockInterruptibly();
+        try {
+            while (true) {
+                if (this.size == 0) {
+                    if (this.closed) {
+                        return null;
+                    }
+                    this.available.await();
+                    continue;
+                }
+                long now = System.nanoTime();
+                long wait = Long.MAX_VALUE;
+                for (int i = this.ready.size(); i > 0; i--) {
+                    Prefix<C> p = this.ready.poll();
+                    long w = p.reserve(now);
+                    if (w == 0) {
+                        C chunk = p.chunks.poll();
+                        this.size--;
+                        if (!p.chunks.isEmpty()) {
+                            this.ready.add(p);
+                        }
+                        this.notFull.signal();
+                        if (this.size > 0) {
+                            // another prefix may have budget for a waiting thread
+                            this.available.signal();
+                        }
+                        return chunk;
+                    }
+                    this.ready.add(p);
+                    wait = Math.min(wait, w);
+                }
+                this.available.awaitNanos(wait);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        this.lock.lock();
+        try {
+            return this.size;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void throttled(String key) {
+        this.lock.lock();
+        try {
+            Prefix<C> p = this.prefixes.get(getPrefix(key));
+            if (p != null) {
+                p.throttled(System.nanoTime());
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Stop listening for throttled requests and log the prefixes that have been throttled.
+     */
+    public void finish() {
+        Throttling.setListener(null);
+        List<Prefix<C>> throttled = new ArrayList<>();
+        this.lock.lock();
+        try {
+            for (Prefix<C> p : this.prefixes.values()) {
+                if (p.throttles > 0) {
+                    throttled.add(p);
+                }
+            }
+            throttled.sort((a, b) -> Long.compare(b.throttles, a.throttles));
+            log.info("== Prefix scheduling: {} prefixes, {} of them throttled.", this.prefixes.size(), throttled.size());
+            for (Prefix<C> p : throttled.subList(0, Math.min(REPORTED_PREFIXES, throttled.size()))) {
+                log.info("Prefix '{}': {} requests, {} throttled, budget {} requests/s", p.name, p.requests, p.throttles,
+                        String.format(Locale.ROOT, "%.0f", p.budget));
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Waiting chunks and the request budget of a prefix, a token bucket refilled at the budget.
+     */
+    private static class Prefix<C> {
+        private final String name;
+        private final ArrayDeque<C> chunks = new ArrayDeque<>();
+        private double budget;
+        private double tokens;
+        private long refilledAt;
+        private long adjustedAt;
+        private long decreasedAt;
+        // requests since the last adjustment
+        private long used;
+        // requests per second in the last period
+        private double rate;
+        private long requests;
+        private long throttles;
+
+        Prefix(String name, double budget, long now) {
+            this.name = name;
+            this.budget = budget;
+            this.tokens = getBurst();
+            this.refilledAt = now;
+            this.adjustedAt = now;
+            this.decreasedAt = now - ADJUST_NANOS;
+        }
+
+        // tokens saved up while the prefix is idle, a tenth of a second worth
+        private double getBurst() {
+            return Math.max(1, this.budget / 10);
+        }
+
+        /**
+         * Take a token for a request.
+         *
+         * @return 0 if the request may be sent, otherwise nanoseconds until the next token.
+         */
+        long reserve(long now) {
+            if (now - this.adjustedAt >= ADJUST_NANOS) {
+                double seconds = (now - this.adjustedAt) / 1e9;
+                this.rate = this.used / seconds;
+                if (this.used >= this.budget * seconds * BUSY) {
+                    this.budget += this.budget * INCREASE;
+                }
+                this.used = 0;
+                this.adjustedAt = now;
+            }
+            this.tokens = Math.min(getBurst(), this.tokens + (now - this.refilledAt) * this.budget / 1e9);
+            this.refilledAt = now;
+            if (this.tokens >= 1) {
+                this.tokens--;
+                this.used++;
+                this.requests++;
+                return 0;
+            }
+            return (long) ((1 - this.tokens) * 1e9 / this.budget) + 1;
+        }
+
+        void throttled(long now) {
+            this.throttles++;
+            // the requests sent before the last reduction are still coming back
+            if (now - this.decreasedAt < ADJUST_NANOS) {
+                return;
+            }
+            // the initial budget may be far above the rate the prefix has actually been requested with
+            double recent = this.used * 1e9 / Math.max(ADJUST_NANOS, now - this.adjustedAt);
+            double base = Math.min(this.budget, Math.max(this.rate, recent));
+            this.budget = Math.max(MIN_BUDGET, base * DECREASE);
+            this.tokens = Math.min(this.tokens, getBurst());
+            this.decreasedAt = now;
+            this.used = 0;
+            this.adjustedAt = now;
+            log.debug("Prefix '{}' throttled, budget reduced to {} requests/s.", this.name, String.format(Locale.ROOT, "%.0f", this.budget));
+        }
+    }
+}
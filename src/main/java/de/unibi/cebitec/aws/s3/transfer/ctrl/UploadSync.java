@@ -0,0 +1,101 @@
+package de.unibi.cebitec.aws.s3.transfer.ctrl;
+
+import com.amazonaws.services.s3.AmazonS3;
+import de.unibi.cebitec.aws.s3.transfer.util.ETag;
+import de.unibi.cebitec.aws.s3.transfer.util.LocalETagCache;
+import de.unibi.cebitec.aws.s3.transfer.util.UploadFilesCrawler;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Skips the files of a recursive upload that are present with the same content below the destination prefix. The
+ * prefix is listed once before the upload starts, a file is unchanged if size and ETag of the object match the file.
+ * The ETags of local files are computed with the part size of the object and cached, see {@link LocalETagCache}.
+ */
+public class UploadSync implements UploadFilesCrawler.Filter {
+    public static final Logger log = LoggerFactory.getLogger(UploadSync.class);
+    private final AmazonS3 s3;
+    private final String bucketName;
+    private final LocalETagCache cache;
+    private final long chunkSize;
+    private final Map<String, RemoteObject> objects = new ConcurrentHashMap<>();
+    private final AtomicLong unchangedFiles = new AtomicLong();
+    private final AtomicLong unchangedBytes = new AtomicLong();
+
+    /**
+     * @param chunkSize Part size to assume first if the ETag of an object allows several part sizes.
+     */
+    public UploadSync(AmazonS3 s3, String bucketName, LocalETagCache cache, long chunkSize) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.cache = cache;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * List the objects below the destination prefix.
+     */
+    public void list(String prefix, int numberOfThreads) throws Exception {
+        ObjectLister lister = new ObjectLister(this.s3, this.bucketName, numberOfThreads);
+        lister.list(prefix, summary -> this.objects.put(summary.getKey(), new RemoteObject(summary.getSize(), summary.getETag())));
+        log.info("== Sync: {} objects present below the destination.", this.objects.size());
+    }
+
+    @Override
+    public boolean skip(Path file, String key, BasicFileAttributes attrs) throws IOException {
+        RemoteObject remote = this.objects.get(key);
+        if (remote == null || remote.size != attrs.size()) {
+            return false;
+        }
+        int parts = ETag.getPartCount(remote.etag);
+        if (parts < 0) {
+            // encrypted objects have no MD5 ETags
+            return false;
+        }
+        boolean multipart = ETag.isMultipart(remote.etag);
+        long partSize = ETag.guessPartSize(attrs.size(), parts, this.chunkSize);
+        if (multipart && partSize <= 0) {
+            return false;
+        }
+        String etag = this.cache.get(file, partSize, multipart);
+        if (!ETag.matches(remote.etag, etag)) {
+            log.debug("File {} differs from its object.", file);
+            return false;
+        }
+        log.debug("Skipping unchanged file: {}", file);
+        this.unchangedFiles.incrementAndGet();
+        this.unchangedBytes.addAndGet(attrs.size());
+        return true;
+    }
+
+    /**
+     * Persist the ETag cache and report the skipped files.
+     */
+    public void finish() {
+        try {
+            this.cache.close();
+        } catch (IOException e) {
+            log.warn("Failed to write ETag cache. Reason: {}", e.getClass().getSimpleName());
+        }
+        log.info("== Sync: {} files unchanged ({} Bytes). ETags of local files: {} cached, {} Bytes read.",
+                this.unchangedFiles.get(), this.unchangedBytes.get(), this.cache.getHits(), this.cache.getComputedBytes());
+    }
+
+    private static class RemoteObject {
+        final long size;
+        final String etag;
+
+        RemoteObject(long size, String etag) {
+            this.size = size;
+            this.etag = etag;
+        }
+    }
+}
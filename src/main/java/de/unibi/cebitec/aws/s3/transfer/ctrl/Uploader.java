@@ -1,5 +1,6 @@
 package de.unibi.cebitec.aws.s3.transfer.ctrl;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
@@ -9,21 +10,26 @@ import de.unibi.cebitec.aws.s3.transfer.BiBiS3;
 import de.unibi.cebitec.aws.s3.transfer.model.InputFileList;
 import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
 import de.unibi.cebitec.aws.s3.transfer.model.OutputFileList;
+import de.unibi.cebitec.aws.s3.transfer.model.TransferQueue;
 import de.unibi.cebitec.aws.s3.transfer.model.up.IUploadChunk;
 import de.unibi.cebitec.aws.s3.transfer.model.up.MultipartUploadFile;
 import de.unibi.cebitec.aws.s3.transfer.model.up.SingleUploadFile;
 import de.unibi.cebitec.aws.s3.transfer.model.up.TransferUploadThread;
 import de.unibi.cebitec.aws.s3.transfer.model.up.UploadFile;
+import de.unibi.cebitec.aws.s3.transfer.model.up.UploadPart;
+import de.unibi.cebitec.aws.s3.transfer.util.MetricsEndpoint;
+import de.unibi.cebitec.aws.s3.transfer.util.ProgressReporter;
+import de.unibi.cebitec.aws.s3.transfer.util.TransferExecutors;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
@@ -31,101 +37,242 @@ import org.slf4j.LoggerFactory;
 
 public class Uploader {
     public static final Logger log = LoggerFactory.getLogger(Uploader.class);
-    private final InputFileList<Path> inputFiles;
-    private final OutputFileList<Path, String> outputFiles;
+    // chunks per thread that are cut in advance
+    private static final int QUEUED_CHUNKS_PER_THREAD = 2;
+    private final TransferQueue<Path, String> inputFiles;
     private final String bucketName;
-    private final List<UploadFile> files;
-    private final List<IUploadChunk> chunks;
     private final AmazonS3 s3;
     private final int numberOfThreads;
     private final long chunkSize;
     private final ObjectMetadata metadata;
     private final boolean reducedRedundancy;
+    private ChunkQueue<IUploadChunk> chunks;
+    private ChecksumVerifier checksumVerifier;
+    private boolean asyncEngine;
+    private AdaptiveConcurrency concurrency;
+    private boolean prefixScheduling;
 
     public Uploader(AmazonS3 s3, InputFileList<Path> inputFiles, String bucketName,
                     OutputFileList<Path, String> uploadTargetKeys, int numberOfThreads, long chunkSize,
                     ObjectMetadata metadata, boolean reducedRedundancy) {
+        this(s3, TransferQueue.of(inputFiles, uploadTargetKeys), bucketName, numberOfThreads, chunkSize, metadata, reducedRedundancy);
+    }
+
+    /**
+     * @param inputFiles Files to upload together with their target keys. The queue may still be filled while the
+     *                   upload is running.
+     */
+    public Uploader(AmazonS3 s3, TransferQueue<Path, String> inputFiles, String bucketName, int numberOfThreads,
+                    long chunkSize, ObjectMetadata metadata, boolean reducedRedundancy) {
         this.inputFiles = inputFiles;
-        this.outputFiles = uploadTargetKeys;
         this.bucketName = bucketName;
         this.numberOfThreads = numberOfThreads;
         this.chunkSize = chunkSize;
         this.metadata = metadata;
         this.reducedRedundancy = reducedRedundancy;
-
-        this.files = new ArrayList<>();
-        this.chunks = new ArrayList<>();
         this.s3 = s3;
     }
 
     public void upload() throws Exception {
-        for (Map.Entry<Path, Long> item : inputFiles.entrySet()) {
-            Measurements.addToOverallBytes(item.getValue());
-            if (item.getValue() < BiBiS3.MIN_CHUNK_SIZE) {
-                addSingleFile(item.getKey(), outputFiles.get(item.getKey()), metadata, reducedRedundancy);
-            } else {
-                addMultipartFile(item.getKey(), outputFiles.get(item.getKey()), metadata, reducedRedundancy);
-            }
-        }
-
-        log.debug("file list size: {}", files.size());
+        this.chunks = prefixScheduling
+                ? new PrefixChunkQueue<>(numberOfThreads * QUEUED_CHUNKS_PER_THREAD, PrefixChunkQueue.PUT_REQUESTS_PER_SECOND, IUploadChunk::getKey)
+                : new ChunkQueue<>(numberOfThreads * QUEUED_CHUNKS_PER_THREAD);
+        MetricsEndpoint.gauge("bibis3_queued_chunks", "Chunks waiting for a transfer thread.", chunks::size);
+        log.info("== Uploading with a chunk size of {} Bytes...", chunkSize);
 
-        //fill chunk list
-        for (UploadFile f : files) {
-            if (f instanceof SingleUploadFile) {
-                chunks.add((IUploadChunk) f);
-            } else if (f instanceof MultipartUploadFile) {
-                while (((MultipartUploadFile) f).hasMoreParts()) {
-                    chunks.add(((MultipartUploadFile) f).next());
-                }
+        Thread producer = new Thread(() -> {
+            try {
+                produceChunks();
+                chunks.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("Failed to prepare files for upload: {}", e.toString());
+                System.exit(1);
             }
-        }
-
-        Measurements.setOverallChunks(chunks.size());
-        log.info("== Uploading {} of data split into {} chunks...", Measurements.getOverallBytesFormatted(), chunks.size());
+        }, "chunk-producer");
+        producer.setDaemon(true);
+        producer.start();
 
         Measurements.start();
+        ProgressReporter.runStarted("upload", numberOfThreads);
 
         TimerTask measurementsUpdates = new TimerTask() {
             @Override
             public void run() {
-                log.info("Chunk uploads complete: {}", Measurements.getChunksFinishedCount());
+                log.info("Chunk uploads complete: {}", Measurements.getProgress());
             }
         };
         Timer timer = new Timer();
         timer.schedule(measurementsUpdates, 3000, 15000);
 
         //upload all chunks/single files
-        ExecutorService threading = Executors.newFixedThreadPool(numberOfThreads);
-        List<Future<?>> futures = new ArrayList<>();
-        for (IUploadChunk chunk : chunks) {
-            futures.add(threading.submit(new TransferUploadThread(s3, bucketName, chunk, 6)));
+        if (concurrency != null) {
+            concurrency.start();
         }
-
-        //wait for threads to finish
-        for (Future<?> future : futures) {
-            try {
-                future.get();
-            } catch (ExecutionException | InterruptedException e) {
-                log.error("Error while waiting for running thread. ({})", e.getMessage());
+        if (asyncEngine) {
+            try (AsyncEngine engine = new AsyncEngine(s3, bucketName, numberOfThreads)) {
+                engine.setConcurrency(concurrency);
+                IUploadChunk chunk;
+                while ((chunk = chunks.take()) != null) {
+                    IUploadChunk c = chunk;
+                    engine.upload(chunk, () -> chunkDone(c));
+                }
+                engine.await();
+            }
+        } else {
+            ExecutorService threading = TransferExecutors.newExecutor(numberOfThreads);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < numberOfThreads; i++) {
+                futures.add(threading.submit(() -> {
+                    IUploadChunk chunk;
+                    while ((chunk = chunks.take()) != null) {
+                        long start = concurrency != null ? concurrency.acquire() : 0;
+                        try {
+                            new TransferUploadThread(s3, bucketName, chunk, 6).call();
+                        } finally {
+                            if (concurrency != null) {
+                                concurrency.release(start, chunk.getSize());
+                            }
+                        }
+                        chunkDone(chunk);
+                    }
+                    return null;
+                }));
             }
-        }
-        threading.shutdown();
 
-        //complete multipart uploads
-        for (UploadFile f : files) {
-            if (f instanceof MultipartUploadFile) {
-                ((MultipartUploadFile) f).complete(s3, bucketName);
+            //wait for threads to finish
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException | InterruptedException e) {
+                    log.error("Error while waiting for running thread. ({})", e.getMessage());
+                }
             }
+            threading.shutdown();
+        }
+        if (concurrency != null) {
+            concurrency.stop();
+        }
+        if (chunks instanceof PrefixChunkQueue) {
+            ((PrefixChunkQueue<?>) chunks).finish();
         }
 
+        timer.cancel();
         Measurements.stop();
+        log.info("== Uploaded {} of data in {} files split into {} chunks.", Measurements.getOverallBytesFormatted(),
+                inputFiles.getCount(), Measurements.getChunksFinishedCount());
         log.info("Overall average upload speed: {}", Measurements.getEndResult());
+        Measurements.logSummary();
+        if (checksumVerifier != null && !checksumVerifier.finish()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Complete a multipart upload after its last part and verify the checksums of finished files.
+     */
+    private void chunkDone(IUploadChunk chunk) {
+        if (chunk instanceof UploadPart) {
+            MultipartUploadFile f = ((UploadPart) chunk).getMultipartUploadFile();
+            if (f.partUploaded()) {
+                complete(f);
+                checkFile(f);
+            }
+        } else if (chunk instanceof SingleUploadFile) {
+            checkFile((SingleUploadFile) chunk);
+        }
     }
 
-    private void addMultipartFile(Path file, String key, ObjectMetadata metadata, boolean reducedRedundancy) {
+    private void checkFile(UploadFile f) {
+        if (checksumVerifier == null && !ProgressReporter.isEnabled()) {
+            return;
+        }
+        long size;
+        try {
+            size = Files.size(f.getFile());
+        } catch (IOException e) {
+            size = -1;
+        }
+        boolean ok = true;
+        if (checksumVerifier != null) {
+            ok = checksumVerifier.checkUpload(f.getKey(), f.getFile(), size, f.getETag(), f.getComputedETag(), f.getCrc32c(),
+                    f.getSha256(), f.isEncrypted());
+        }
+        ProgressReporter.fileCompleted(f.getKey(), f.getFile(), size, f.getETag(), f.getCrc32c(), f.getSha256(), ok);
+    }
+
+    /**
+     * Compute checksums while uploading, verify them with the returned ETags and write the manifest.
+     */
+    public void setChecksumVerifier(ChecksumVerifier checksumVerifier) {
+        this.checksumVerifier = checksumVerifier;
+    }
+
+    /**
+     * Send the parts of multipart uploads with the non-blocking {@link AsyncEngine} instead of transfer threads.
+     */
+    public void setAsyncEngine(boolean asyncEngine) {
+        this.asyncEngine = asyncEngine;
+    }
+
+    /**
+     * Adjust the number of concurrent requests to the throughput and throttling of the server, with the number of
+     * threads as the upper bound.
+     */
+    public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+        concurrency = adaptiveConcurrency ? new AdaptiveConcurrency(numberOfThreads) : null;
+    }
+
+    /**
+     * Hand out the chunks interleaved across key prefixes, every prefix within a request budget that is learned from
+     * throttled requests.
+     */
+    public void setPrefixScheduling(boolean prefixScheduling) {
+        this.prefixScheduling = prefixScheduling;
+    }
+
+    /**
+     * Take the files to upload from the input queue as they arrive and cut them into chunks. Blocks as long as enough
+     * chunks are waiting for the transfer threads.
+     */
+    private void produceChunks() throws InterruptedException {
+        TransferQueue.Entry<Path, String> item;
+        while ((item = inputFiles.take()) != null) {
+            Measurements.addToOverallBytes(item.getSize());
+            if (item.getSize() < BiBiS3.MIN_CHUNK_SIZE) {
+                Measurements.addToOverallChunks(1);
+                chunks.put(createSingleFile(item.getSource(), item.getTarget(), item.getSize(), metadata, reducedRedundancy));
+            } else {
+                MultipartUploadFile f = createMultipartFile(item.getSource(), item.getTarget(), metadata, reducedRedundancy);
+                while (f.hasMoreParts()) {
+                    Measurements.addToOverallChunks(1);
+                    chunks.put(f.next());
+                }
+            }
+        }
+    }
+
+    /**
+     * Complete a multipart upload as soon as its last part has been uploaded.
+     */
+    private void complete(MultipartUploadFile f) {
+        try {
+            f.complete(s3, bucketName);
+        } catch (AmazonClientException e) {
+            log.error("Failed to complete multipart upload of file: {} - Reason: {}", f.getKey(), e.toString());
+            System.exit(1);
+        }
+    }
+
+    private MultipartUploadFile createMultipartFile(Path file, String key, ObjectMetadata metadata, boolean reducedRedundancy) {
         MultipartUploadFile mFile = new MultipartUploadFile(file, key, chunkSize);
-        files.add(mFile);
+        if (checksumVerifier != null) {
+            mFile.setChecksums(true, checksumVerifier.isCrc32c());
+            if (checksumVerifier.isSha256()) {
+                checksumVerifier.skippedSha256();
+            }
+        }
         InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(bucketName, mFile.getKey(), metadata);
         if (reducedRedundancy) {
             request.setStorageClass(StorageClass.ReducedRedundancy);
@@ -133,10 +280,16 @@ public class Uploader {
         InitiateMultipartUploadResult result = s3.initiateMultipartUpload(request);
         mFile.setUploadId(result.getUploadId());
         log.debug("Add multipart file {} with upload id {}", key, result.getUploadId());
+        return mFile;
     }
 
-    private void addSingleFile(Path file, String key, ObjectMetadata metadata, boolean reducedRedundancy) {
-        files.add(new SingleUploadFile(file, key, metadata, reducedRedundancy));
+    private SingleUploadFile createSingleFile(Path file, String key, long size, ObjectMetadata metadata, boolean reducedRedundancy) {
         log.debug("Add single file {}", key);
+        SingleUploadFile sFile = new SingleUploadFile(file, key, size, metadata, reducedRedundancy);
+        if (checksumVerifier != null) {
+            sFile.setChecksums(true, checksumVerifier.isCrc32c());
+            sFile.setSha256(checksumVerifier.isSha256());
+        }
+        return sFile;
     }
 }
@@ -2,34 +2,44 @@ package de.unibi.cebitec.aws.s3.transfer.ctrl;
 
 import de.unibi.cebitec.aws.s3.transfer.model.GridDownloadOrganizer;
 import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+import de.unibi.cebitec.aws.s3.transfer.model.TransferQueue;
+import de.unibi.cebitec.aws.s3.transfer.model.down.DownloadChecksum;
 import de.unibi.cebitec.aws.s3.transfer.model.down.DownloadFile;
 import de.unibi.cebitec.aws.s3.transfer.model.down.DownloadPart;
+import de.unibi.cebitec.aws.s3.transfer.model.down.HedgingPolicy;
 import de.unibi.cebitec.aws.s3.transfer.model.down.IDownloadChunk;
 import de.unibi.cebitec.aws.s3.transfer.model.down.MultipartDownloadFile;
 import de.unibi.cebitec.aws.s3.transfer.model.down.url.IDownloadChunkUrl;
+import de.unibi.cebitec.aws.s3.transfer.model.down.url.MirrorSet;
 import de.unibi.cebitec.aws.s3.transfer.model.down.url.SingleUrlDownloadFile;
 import de.unibi.cebitec.aws.s3.transfer.model.down.url.TransferUrlDownloadThread;
+import de.unibi.cebitec.aws.s3.transfer.model.down.WriteBackend;
 import de.unibi.cebitec.aws.s3.transfer.model.features.Fastq;
+import de.unibi.cebitec.aws.s3.transfer.util.HttpTransport;
+import de.unibi.cebitec.aws.s3.transfer.util.ProgressReporter;
+import de.unibi.cebitec.aws.s3.transfer.util.TransferExecutors;
 import de.unibi.cebitec.aws.s3.transfer.util.UnrecoverableErrorException;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class UrlDownloader {
     public static final Logger log = LoggerFactory.getLogger(UrlDownloader.class);
+    // concurrent size requests of a URL list
+    private static final int PROBE_THREADS = 8;
+    // chunks per thread that are cut in advance
+    private static final int QUEUED_CHUNKS_PER_THREAD = 2;
     private String url;
     private Path outputFile;
     private int numberOfThreads;
@@ -39,6 +49,16 @@ public class UrlDownloader {
     private long chunkSize;
     private boolean gridDownload;
     private GridDownloadOrganizer gridDownloadOrganizer;
+    private HedgingPolicy hedgingPolicy;
+    private WriteBackend writeBackend = WriteBackend.CHANNEL;
+    private ChecksumVerifier checksumVerifier;
+    private List<String> mirrorUrls = new ArrayList<>();
+    private MirrorSet mirrors;
+    private TransferQueue<String, Path> urls;
+    private ChunkQueue<IDownloadChunkUrl> chunkQueue;
+    private AdaptiveConcurrency concurrency;
+    // multipart files of a URL list that have been opened and are not complete yet
+    private final Set<MultipartDownloadFile> openFiles = ConcurrentHashMap.newKeySet();
 
     public UrlDownloader(String url, Path fileDownloadDestination, int numberOfThreads, long chunkSize, GridDownloadOrganizer gridDownloadOrganizer) {
         this(url, fileDownloadDestination, numberOfThreads, chunkSize);
@@ -58,17 +78,35 @@ public class UrlDownloader {
           
     }
 
+    /**
+     * Download a list of URLs. The parts of all files share one thread pool and the pooled connections.
+     *
+     * @param urls URLs to download together with their destinations. The queue may still be filled while the
+     *             download is running.
+     */
+    public UrlDownloader(TransferQueue<String, Path> urls, int numberOfThreads, long chunkSize) {
+        this.gridDownload = false;
+        this.numberOfThreads = numberOfThreads;
+        this.chunkSize = chunkSize;
+        this.urls = urls;
+    }
+
     public void download() throws Exception {
+        if (this.urls != null) {
+            downloadList();
+            return;
+        }
         //find out length of requested download
-        HttpClient httpClient = HttpClientBuilder.create().build();
-        HttpGet httpGet = new HttpGet(url);
-        HttpResponse httpResponse = httpClient.execute(httpGet);
-        HttpEntity httpEntity = httpResponse.getEntity();
-        Long fileSize = httpEntity.getContentLength();
-        // close stuff again
-        httpGet.abort();
-        httpClient.getConnectionManager().shutdown();
-        
+        HttpTransport.Probe probe = HttpTransport.get().probe(this.url);
+        long fileSize = probe.getSize();
+        if (fileSize < 0) {
+            log.error("The size of {} is unknown, use --streaming-download for downloads without a length.", this.url);
+            System.exit(1);
+        }
+        if (!this.mirrorUrls.isEmpty()) {
+            this.mirrors = createMirrorSet(fileSize);
+        }
+
         if (fileSize <= this.chunkSize) {
             this.file = new SingleUrlDownloadFile(url, outputFile, fileSize);
             this.chunks.add((IDownloadChunkUrl) this.file);
@@ -78,6 +116,15 @@ public class UrlDownloader {
                     this.chunks.add(((MultipartDownloadFile) this.file).next());
             }
         }
+        if (this.checksumVerifier != null) {
+            if (this.gridDownload) {
+                log.warn("Checksums can't be computed for grid downloads.");
+                this.checksumVerifier = null;
+            } else {
+                this.file.setETag(probe.getETag());
+                this.file.setChecksum(this.checksumVerifier.create(fileSize, this.file.getETag(), this.file instanceof SingleUrlDownloadFile));
+            }
+        }
         Measurements.addToOverallBytes(fileSize);
 
 
@@ -123,6 +170,8 @@ public class UrlDownloader {
 
         // open all multipart files
         if (file instanceof MultipartDownloadFile) {
+            ((MultipartDownloadFile) file).setHedgingPolicy(this.hedgingPolicy);
+            ((MultipartDownloadFile) file).setWriteBackend(this.writeBackend);
             try {
                 ((MultipartDownloadFile) file).openFile();
             } catch (UnrecoverableErrorException e) {
@@ -131,21 +180,36 @@ public class UrlDownloader {
         }
 
         Measurements.start();
+        ProgressReporter.runStarted("url-download", this.numberOfThreads);
 
         TimerTask measurementsUpdates = new TimerTask() {
             @Override
             public void run() {
-                log.info("Chunk downloads complete: {}", Measurements.getChunksFinishedCount());
+                log.info("Chunk downloads complete: {}", Measurements.getProgress());
             }
         };
         Timer timer = new Timer();
         timer.schedule(measurementsUpdates, 3000, 15000);
 
         //download all chunks/single files
-        ExecutorService threading = Executors.newFixedThreadPool(this.numberOfThreads);
+        if (this.concurrency != null) {
+            this.concurrency.start();
+        }
+        ExecutorService threading = TransferExecutors.newExecutor(this.numberOfThreads);
         List<Future<?>> futures = new ArrayList<>();
         for (IDownloadChunk chunk : this.chunks) {
-            futures.add(threading.submit(new TransferUrlDownloadThread(this.url, (IDownloadChunkUrl) chunk, 6)));
+            TransferUrlDownloadThread thread = this.mirrors != null ? new TransferUrlDownloadThread(this.mirrors, (IDownloadChunkUrl) chunk, 6)
+                    : new TransferUrlDownloadThread(this.url, (IDownloadChunkUrl) chunk, 6);
+            futures.add(threading.submit(() -> {
+                long start = this.concurrency != null ? this.concurrency.acquire() : 0;
+                try {
+                    return thread.call();
+                } finally {
+                    if (this.concurrency != null) {
+                        this.concurrency.release(start, chunk.getSize());
+                    }
+                }
+            }));
         }
 
         //wait for threads to finish
@@ -157,15 +221,260 @@ public class UrlDownloader {
             }
         }
         threading.shutdown();
+        if (this.concurrency != null) {
+            this.concurrency.stop();
+        }
 
         // close all multipart files
         if (file instanceof MultipartDownloadFile) {
             ((MultipartDownloadFile) file).closeFile();
         }
+        // a grid download only writes a subset of the file
+        if (!this.gridDownload) {
+            checkFile(this.file, fileSize);
+        }
+
+        timer.cancel();
+        Measurements.stop();
+        if (this.hedgingPolicy != null) {
+            this.hedgingPolicy.shutdown();
+            log.info("Hedged requests: {} fired, {} won ({} requests overall)", this.hedgingPolicy.getFiredCount(),
+                    this.hedgingPolicy.getWonCount(), this.hedgingPolicy.getRequestCount());
+        }
+        log.info("Overall average download speed: {}", Measurements.getEndResult());
+        Measurements.logSummary();
+        if (this.mirrors != null) {
+            this.mirrors.report();
+        }
+        if (this.checksumVerifier != null && !this.checksumVerifier.finish()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Use the mirrors that report the same length as the URL.
+     */
+    private MirrorSet createMirrorSet(long fileSize) {
+        List<String> sources = new ArrayList<>();
+        sources.add(this.url);
+        for (String mirror : this.mirrorUrls) {
+            try {
+                long size = HttpTransport.get().probe(mirror).getSize();
+                if (size == fileSize) {
+                    sources.add(mirror);
+                } else {
+                    log.warn("Ignoring mirror {}: Its length {} differs from {}.", mirror, size, fileSize);
+                }
+            } catch (IOException e) {
+                log.warn("Ignoring mirror {}: {}", mirror, e.toString());
+            }
+        }
+        log.info("== Downloading from {} sources.", sources.size());
+        return new MirrorSet(sources);
+    }
+
+    private void downloadList() throws Exception {
+        this.chunkQueue = new ChunkQueue<>(this.numberOfThreads * QUEUED_CHUNKS_PER_THREAD);
+        log.info("== Downloading URL list with a chunk size of {} Bytes...", this.chunkSize);
+        Thread producer = new Thread(() -> {
+            try {
+                produceChunks();
+                this.chunkQueue.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("Failed to prepare URLs for download: {}", e.toString());
+                System.exit(1);
+            }
+        }, "chunk-producer");
+        producer.setDaemon(true);
+        producer.start();
+
+        Measurements.start();
+        ProgressReporter.runStarted("url-download", this.numberOfThreads);
+        TimerTask measurementsUpdates = new TimerTask() {
+            @Override
+            public void run() {
+                log.info("Chunk downloads complete: {}", Measurements.getProgress());
+            }
+        };
+        Timer timer = new Timer();
+        timer.schedule(measurementsUpdates, 3000, 15000);
+
+        if (this.concurrency != null) {
+            this.concurrency.start();
+        }
+        ExecutorService threading = TransferExecutors.newExecutor(this.numberOfThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < this.numberOfThreads; i++) {
+            futures.add(threading.submit(() -> {
+                IDownloadChunkUrl chunk;
+                while ((chunk = this.chunkQueue.take()) != null) {
+                    downloadChunk(chunk);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException | InterruptedException e) {
+                log.error("Error while waiting for running thread. ({})", e.getMessage());
+            }
+        }
+        threading.shutdown();
+        if (this.concurrency != null) {
+            this.concurrency.stop();
+        }
 
         timer.cancel();
         Measurements.stop();
+        log.info("== Downloaded {} of data in {} files split into {} chunks.", Measurements.getOverallBytesFormatted(),
+                this.urls.getCount(), Measurements.getChunksFinishedCount());
+        if (this.hedgingPolicy != null) {
+            this.hedgingPolicy.shutdown();
+            log.info("Hedged requests: {} fired, {} won ({} requests overall)", this.hedgingPolicy.getFiredCount(),
+                    this.hedgingPolicy.getWonCount(), this.hedgingPolicy.getRequestCount());
+        }
         log.info("Overall average download speed: {}", Measurements.getEndResult());
+        Measurements.logSummary();
+        if (this.checksumVerifier != null && !this.checksumVerifier.finish()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Take the URLs from the input queue, request their sizes concurrently and cut the files into chunks.
+     */
+    private void produceChunks() throws Exception {
+        ExecutorService probes = Executors.newFixedThreadPool(Math.min(PROBE_THREADS, this.numberOfThreads));
+        List<Future<?>> futures = new ArrayList<>();
+        TransferQueue.Entry<String, Path> item;
+        while ((item = this.urls.take()) != null) {
+            TransferQueue.Entry<String, Path> entry = item;
+            futures.add(probes.submit(() -> {
+                prepareFile(entry.getSource(), entry.getTarget());
+                return null;
+            }));
+        }
+        probes.shutdown();
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause().toString(), e.getCause());
+            }
+        }
+    }
+
+    private void prepareFile(String url, Path target) throws Exception {
+        HttpTransport.Probe probe = HttpTransport.get().probe(url);
+        long fileSize = probe.getSize();
+        if (fileSize < 0) {
+            throw new IOException("The size of " + url + " is unknown.");
+        }
+        Measurements.addToOverallBytes(fileSize);
+        if (fileSize <= this.chunkSize) {
+            SingleUrlDownloadFile single = new SingleUrlDownloadFile(url, target, fileSize);
+            prepareChecksum(single, fileSize, probe.getETag());
+            Measurements.addToOverallChunks(1);
+            this.chunkQueue.put(single);
+            return;
+        }
+        MultipartDownloadFile f = new MultipartDownloadFile(url, target, fileSize, false, this.chunkSize);
+        prepareChecksum(f, fileSize, probe.getETag());
+        f.setHedgingPolicy(this.hedgingPolicy);
+        f.setWriteBackend(this.writeBackend);
+        try {
+            f.openFile();
+        } catch (UnrecoverableErrorException e) {
+            System.exit(1);
+        }
+        this.openFiles.add(f);
+        while (f.hasMoreParts()) {
+            Measurements.addToOverallChunks(1);
+            this.chunkQueue.put((IDownloadChunkUrl) f.next());
+        }
+    }
+
+    private void prepareChecksum(DownloadFile f, long size, String etag) {
+        if (this.checksumVerifier != null) {
+            f.setETag(etag);
+            f.setChecksum(this.checksumVerifier.create(size, etag, f instanceof SingleUrlDownloadFile));
+        }
+    }
+
+    private void downloadChunk(IDownloadChunkUrl chunk) {
+        // the key of a file downloaded from a URL is the URL
+        String url = chunk instanceof DownloadPart ? ((DownloadPart) chunk).getMultipartDownloadFile().getKey()
+                : ((SingleUrlDownloadFile) chunk).getKey();
+        long start = this.concurrency != null ? this.concurrency.acquire() : 0;
+        try {
+            new TransferUrlDownloadThread(url, chunk, 6).call();
+        } finally {
+            if (this.concurrency != null) {
+                this.concurrency.release(start, chunk.getSize());
+            }
+        }
+        if (chunk instanceof DownloadPart) {
+            MultipartDownloadFile f = ((DownloadPart) chunk).getMultipartDownloadFile();
+            if (f.isComplete() && this.openFiles.remove(f)) {
+                f.closeFile();
+                checkFile(f, f.getFileSize());
+            }
+        } else {
+            SingleUrlDownloadFile f = (SingleUrlDownloadFile) chunk;
+            checkFile(f, f.getSize());
+        }
+    }
+
+    /**
+     * Verify the checksums of a file that has been written completely and report it.
+     */
+    private void checkFile(DownloadFile f, long size) {
+        boolean ok = true;
+        if (this.checksumVerifier != null) {
+            ok = this.checksumVerifier.check(f, size, null);
+        }
+        DownloadChecksum c = f.getChecksum();
+        ProgressReporter.fileCompleted(f.getKey(), f.getTargetFile(), size, f.getETag(), c == null ? null : c.getCrc32c(),
+                c == null ? null : c.getSha256(), ok);
+    }
+
+    /**
+     * Compute checksums while downloading, verify them with the ETag of the response and write the manifest.
+     */
+    public void setChecksumVerifier(ChecksumVerifier checksumVerifier) {
+        this.checksumVerifier = checksumVerifier;
+    }
+
+    /**
+     * Additional URLs of the same file. The parts are spread across all of them according to their throughput.
+     */
+    public void setMirrors(List<String> mirrorUrls) {
+        this.mirrorUrls = mirrorUrls;
+    }
+
+    /**
+     * Adjust the number of concurrent requests to the throughput and throttling of the server, with the number of
+     * threads as the upper bound.
+     */
+    public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+        this.concurrency = adaptiveConcurrency ? new AdaptiveConcurrency(this.numberOfThreads) : null;
+    }
+
+    AdaptiveConcurrency getAdaptiveConcurrency() {
+        return concurrency;
+    }
+
+    public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+    }
 
+    /**
+     * Select how the parts of multipart files are written to disk.
+     */
+    public void setWriteBackend(WriteBackend writeBackend) {
+        this.writeBackend = writeBackend;
     }
 }
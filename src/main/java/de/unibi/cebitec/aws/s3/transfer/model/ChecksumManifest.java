@@ -0,0 +1,61 @@
+package de.unibi.cebitec.aws.s3.transfer.model;
+
+import de.unibi.cebitec.aws.s3.transfer.util.Crc32c;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checksums of all transferred files, written as a tab separated file with the columns etag, crc32c, sha256, size,
+ * key and path. Checksums that have not been computed are written as "-".
+ */
+public class ChecksumManifest {
+    private final Path file;
+    private final List<String[]> entries = new ArrayList<>();
+
+    public ChecksumManifest(Path file) {
+        this.file = file;
+    }
+
+    public synchronized void add(String key, Path path, long size, String etag, Long crc32c, String sha256) {
+        this.entries.add(new String[]{
+                etag == null ? "-" : etag,
+                crc32c == null ? "-" : Crc32c.toHex(crc32c),
+                sha256 == null ? "-" : sha256,
+                String.valueOf(size),
+                key,
+                path == null ? "-" : path.toString()});
+    }
+
+    /**
+     * Write all entries sorted by key.
+     */
+    public synchronized void write() throws IOException {
+        this.entries.sort((e1, e2) -> e1[4].compareTo(e2[4]));
+        Path parent = this.file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (BufferedWriter w = Files.newBufferedWriter(this.file, StandardCharsets.UTF_8)) {
+            w.write("#etag\tcrc32c\tsha256\tsize\tkey\tpath");
+            w.newLine();
+            for (String[] entry : this.entries) {
+                w.write(String.join("\t", entry));
+                w.newLine();
+            }
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+}
@@ -0,0 +1,136 @@
+package de.unibi.cebitec.aws.s3.transfer.model;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations that many threads record into without locking. The buckets are log-linear: every power of
+ * two (in microseconds) is split into eight buckets, so a percentile is off by at most an eighth of its value.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values below this are counted exactly
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    // up to 2^40 microseconds, about twelve days
+    private static final int MAX_EXPONENT = 40;
+    private final String name;
+    private final LongAdder[] buckets = new LongAdder[LINEAR + (MAX_EXPONENT - SUB_BUCKET_BITS - 1) * SUB_BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+        for (int i = 0; i < this.buckets.length; i++) {
+            this.buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        this.buckets[getBucket(micros)].increment();
+        this.count.increment();
+        this.sum.add(micros);
+        this.max.accumulate(micros);
+    }
+
+    private int getBucket(long micros) {
+        if (micros < LINEAR) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT) {
+            return this.buckets.length - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return The middle of the values a bucket counts.
+     */
+    private static long getValue(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        int sub = (bucket - LINEAR) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + sub * width + width / 2;
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return Microseconds that the given percentage of the recorded durations does not exceed, 0 if nothing has
+     * been recorded.
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = new long[this.buckets.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = this.buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(getValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @return Largest recorded duration in microseconds.
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * @return Sum of the recorded durations in microseconds.
+     */
+    public long getSum() {
+        return this.sum.sum();
+    }
+
+    /**
+     * @return Mean of the recorded durations in microseconds.
+     */
+    public long getMean() {
+        long n = this.count.sum();
+        return n == 0 ? 0 : this.sum.sum() / n;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s: %d samples, mean %s, p50 %s, p90 %s, p99 %s, max %s", this.name, getCount(),
+                format(getMean()), format(getPercentile(50)), format(getPercentile(90)), format(getPercentile(99)), format(getMax()));
+    }
+
+    private static String format(long micros) {
+        if (micros >= 1000000) {
+            return String.format(Locale.ROOT, "%.2fs", micros / 1e6);
+        }
+        if (micros >= 1000) {
+            return String.format(Locale.ROOT, "%.1fms", micros / 1e3);
+        }
+        return micros + "us";
+    }
+}
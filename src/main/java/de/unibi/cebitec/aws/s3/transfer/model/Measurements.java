@@ -1,40 +1,120 @@
 package de.unibi.cebitec.aws.s3.transfer.model;
 
 import java.text.DecimalFormat;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+import de.unibi.cebitec.aws.s3.transfer.util.Throttling;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters of the running transfer. The counters that the transfer threads update are striped (LongAdder), so the
+ * threads don't contend for them.
+ */
 public final class Measurements {
-    private static long overallBytes;
-    private static long overallChunks;
-    private static long finishedChunks;
-    private static long start;
-    private static long end;
-    private static boolean started = false;
+    public static final Logger log = LoggerFactory.getLogger(Measurements.class);
+    /**
+     * Time from sending a request until the first byte of the response arrives. For uploads the time starts when the
+     * request body has been sent.
+     */
+    public static final LatencyHistogram FIRST_BYTE = new LatencyHistogram("Time to first byte");
+    /**
+     * Time a chunk takes from its first request until it is done, including retries.
+     */
+    public static final LatencyHistogram CHUNK_DURATION = new LatencyHistogram("Chunk duration");
+    // time constant of the current rate
+    private static final double RATE_TAU_NANOS = 10e9;
+    private static final AtomicLong overallBytes = new AtomicLong();
+    private static final AtomicLong overallChunks = new AtomicLong();
+    private static final LongAdder finishedChunks = new LongAdder();
+    private static final LongAdder transferredBytes = new LongAdder();
+    private static final LongAdder requests = new LongAdder();
+    private static final LongAdder retries = new LongAdder();
+    private static final LongAdder errors = new LongAdder();
+    private static final LongAdder inFlight = new LongAdder();
+    private static final LongAdder backingOff = new LongAdder();
+    private static volatile long start;
+    private static volatile long end;
+    private static volatile boolean started = false;
+    // the following fields are guarded by the class, the progress is only reported by one timer
+    private static long rateBytes;
+    private static long rateTime;
+    private static double rate;
 
     private Measurements() {
     }
 
     public static void addToOverallBytes(long byteCount) {
-        overallBytes += byteCount;
+        overallBytes.addAndGet(byteCount);
     }
 
     public static void setOverallChunks(long overallChunks) {
-        Measurements.overallChunks = overallChunks;
+        Measurements.overallChunks.set(overallChunks);
+    }
+
+    public static void addToOverallChunks(long chunkCount) {
+        overallChunks.addAndGet(chunkCount);
     }
 
     public static void countChunkAsFinished() {
-        finishedChunks += 1;
+        finishedChunks.increment();
+    }
+
+    /**
+     * Count bytes as transferred, negative to take back the bytes of a failed attempt that is started over.
+     */
+    public static void addTransferredBytes(long byteCount) {
+        transferredBytes.add(byteCount);
+    }
+
+    public static void countRequest() {
+        requests.increment();
+    }
+
+    public static void countRetry() {
+        retries.increment();
+    }
+
+    /**
+     * Count a failed attempt to transfer a chunk.
+     */
+    public static void countError() {
+        errors.increment();
+    }
+
+    /**
+     * A chunk transfer has started, to be paired with {@link #transferEnded()}.
+     */
+    public static void transferStarted() {
+        inFlight.increment();
+    }
+
+    public static void transferEnded() {
+        inFlight.decrement();
+    }
+
+    /**
+     * A thread waits before retrying a throttled request, to be paired with {@link #backOffEnded()}.
+     */
+    public static void backOffStarted() {
+        backingOff.increment();
+    }
+
+    public static void backOffEnded() {
+        backingOff.decrement();
     }
 
     public static void start() {
         if (!started) {
-            start = System.currentTimeMillis();
+            start = System.nanoTime();
             started = true;
         }
     }
 
     public static void stop() {
         if (started) {
-            end = System.currentTimeMillis();
+            end = System.nanoTime();
         }
     }
 
@@ -52,28 +132,126 @@ public final class Measurements {
         return String.valueOf(bytes) + "B" + suffix;
     }
 
+    private static String formatDuration(long seconds) {
+        if (seconds >= 3600) {
+            return String.format("%dh%02dm", seconds / 3600, seconds / 60 % 60);
+        }
+        if (seconds >= 60) {
+            return String.format("%dm%02ds", seconds / 60, seconds % 60);
+        }
+        return seconds + "s";
+    }
+
     public static String getChunksFinishedCount() {
-        return finishedChunks + " / " + overallChunks;
+        return finishedChunks.sum() + " / " + overallChunks.get();
+    }
+
+    /**
+     * Update the current rate and describe the progress. Meant to be called periodically.
+     *
+     * @return Finished chunks, transferred bytes, current rate and estimated time left.
+     */
+    public static synchronized String getProgress() {
+        double bps = updateRate();
+        long bytes = transferredBytes.sum();
+        long total = overallBytes.get();
+        String eta = bps >= 1 && total > bytes ? formatDuration((long) ((total - bytes) / bps)) : "unknown";
+        return getChunksFinishedCount() + ", " + formatResult(bytes, "") + " of " + formatResult(total, "")
+                + ", current rate " + formatResult((long) bps, "/s") + ", ETA " + eta;
+    }
+
+    /**
+     * Update the current rate, an exponentially weighted moving average over about the last ten seconds.
+     *
+     * @return Current rate in bytes per second.
+     */
+    public static synchronized double updateRate() {
+        long now = System.nanoTime();
+        long bytes = transferredBytes.sum();
+        if (rateTime == 0) {
+            rateTime = start;
+        }
+        long elapsed = now - rateTime;
+        if (elapsed > 0) {
+            double current = (bytes - rateBytes) * 1e9 / elapsed;
+            double alpha = rateBytes == 0 && rate == 0 ? 1 : 1 - Math.exp(-elapsed / RATE_TAU_NANOS);
+            rate += alpha * (current - rate);
+            rateBytes = bytes;
+            rateTime = now;
+        }
+        return rate;
     }
 
     public static String getEndResult() {
-        long seconds = (end - start) / 1000;
-        if (seconds == 0) {
+        long nanos = end - start;
+        if (nanos <= 0) {
             return "unknown";
         }
-        long bps = overallBytes / seconds;
+        long bps = (long) (overallBytes.get() * 1e9 / nanos);
         return formatResult(bps, "/s");
     }
 
+    /**
+     * Log the request counters and the percentiles of the latencies.
+     */
+    public static void logSummary() {
+        log.info("== Requests: {}, retries: {}, failed attempts: {}, throttled: {}", requests.sum(), retries.sum(),
+                errors.sum(), Throttling.getCount());
+        for (LatencyHistogram histogram : new LatencyHistogram[]{FIRST_BYTE, CHUNK_DURATION}) {
+            if (histogram.getCount() > 0) {
+                log.info("{}", histogram);
+            }
+        }
+    }
+
     public static String getOverallBytesFormatted() {
-        return formatResult(overallBytes, "");
+        return formatResult(overallBytes.get(), "");
     }
 
     public static long getOverallBytes() {
-        return overallBytes;
+        return overallBytes.get();
     }
 
     public static void setOverallBytes(long overallBytes) {
-        Measurements.overallBytes = overallBytes;
+        Measurements.overallBytes.set(overallBytes);
+    }
+
+    public static long getOverallChunks() {
+        return overallChunks.get();
+    }
+
+    public static long getFinishedChunks() {
+        return finishedChunks.sum();
+    }
+
+    /**
+     * @return Current rate in bytes per second as of the last progress report.
+     */
+    public static synchronized double getRate() {
+        return rate;
+    }
+
+    public static long getTransfersInFlight() {
+        return inFlight.sum();
+    }
+
+    public static long getThreadsBackingOff() {
+        return backingOff.sum();
+    }
+
+    public static long getTransferredBytes() {
+        return transferredBytes.sum();
+    }
+
+    public static long getRequests() {
+        return requests.sum();
+    }
+
+    public static long getRetries() {
+        return retries.sum();
+    }
+
+    public static long getErrors() {
+        return errors.sum();
     }
 }
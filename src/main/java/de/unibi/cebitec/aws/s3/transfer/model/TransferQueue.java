@@ -0,0 +1,160 @@
+package de.unibi.cebitec.aws.s3.transfer.model;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue of files to be transferred. A producer (object listing, directory crawler, ...) adds files while the
+ * transfer is already running and blocks as soon as the transfer falls behind, so the number of files held in memory
+ * does not depend on the number of files to transfer.
+ *
+ * @param <E> Source of a file (key or path).
+ * @param <F> Target of a file (path or key).
+ */
+public class TransferQueue<E, F> {
+    public static final Logger log = LoggerFactory.getLogger(TransferQueue.class);
+    public static final int DEFAULT_CAPACITY = 1000;
+    private final BlockingQueue<Entry<E, F>> entries;
+    private final Entry<E, F> end = new Entry<>(null, null, -1, null);
+    private Iterator<Map.Entry<E, Long>> listIterator;
+    private OutputFileList<E, F> listTargets;
+    private long count;
+
+    public TransferQueue(int capacity) {
+        this.entries = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public TransferQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Queue of the files in prepared lists. The queue is closed already.
+     */
+    public static <E, F> TransferQueue<E, F> of(InputFileList<E> inputFiles, OutputFileList<E, F> outputFiles) {
+        TransferQueue<E, F> queue = new TransferQueue<>(1);
+        queue.listIterator = inputFiles.entrySet().iterator();
+        queue.listTargets = outputFiles;
+        queue.close();
+        return queue;
+    }
+
+    /**
+     * Add a file. Blocks while the queue is full.
+     */
+    public void put(E source, F target, long size) throws InterruptedException {
+        put(source, target, size, null);
+    }
+
+    /**
+     * Add a file together with its ETag. Blocks while the queue is full.
+     */
+    public void put(E source, F target, long size, String etag) throws InterruptedException {
+        this.entries.put(new Entry<>(source, target, size, etag));
+        synchronized (this) {
+            this.count++;
+        }
+    }
+
+    /**
+     * Mark the end of the input. Files that are still queued will be taken nonetheless.
+     */
+    public void close() {
+        try {
+            this.entries.put(this.end);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Take the next file. Blocks until a file is available.
+     *
+     * @return The next file or null if the queue has been closed and all files have been taken.
+     */
+    public Entry<E, F> take() throws InterruptedException {
+        synchronized (this) {
+            if (this.listIterator != null && this.listIterator.hasNext()) {
+                Map.Entry<E, Long> item = this.listIterator.next();
+                this.count++;
+                return new Entry<>(item.getKey(), this.listTargets.get(item.getKey()), item.getValue(), null);
+            }
+        }
+        Entry<E, F> entry = this.entries.take();
+        if (entry == this.end) {
+            // let other consumers see the end as well
+            this.entries.put(this.end);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Fill this queue from a new thread. The queue is closed when the producer returns, the program is terminated if
+     * the producer fails.
+     */
+    public void fill(String name, Producer<E, F> producer) {
+        Thread thread = new Thread(() -> {
+            try {
+                producer.produce(this);
+                close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("Failed to gather files for transfer: {}", e.toString());
+                System.exit(1);
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return Number of files added so far.
+     */
+    public synchronized long getCount() {
+        return this.count;
+    }
+
+    public interface Producer<E, F> {
+        void produce(TransferQueue<E, F> queue) throws Exception;
+    }
+
+    public static class Entry<E, F> {
+        private final E source;
+        private final F target;
+        private final long size;
+        private final String etag;
+
+        public Entry(E source, F target, long size, String etag) {
+            this.source = source;
+            this.target = target;
+            this.size = size;
+            this.etag = etag;
+        }
+
+        public E getSource() {
+            return source;
+        }
+
+        public F getTarget() {
+            return target;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return ETag of the source object or null if unknown.
+         */
+        public String getETag() {
+            return etag;
+        }
+    }
+}
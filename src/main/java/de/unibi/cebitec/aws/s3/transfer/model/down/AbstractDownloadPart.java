@@ -0,0 +1,477 @@
+package de.unibi.cebitec.aws.s3.transfer.model.down;
+
+import de.unibi.cebitec.aws.s3.transfer.BiBiS3;
+import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+import de.unibi.cebitec.aws.s3.transfer.util.BandwidthLimiter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Part of a multipart download that is copied from a ranged request into the output file. The end of the part may
+ * shrink while it is running (see {@link #split(long)}) and a second, hedged request may race the original one for
+ * the remaining bytes (see {@link #hedge()}). Both requests write the same bytes to the same positions, the part is
+ * done as soon as one of them reaches the end.
+ */
+public abstract class AbstractDownloadPart implements DownloadPart {
+    public static final Logger log = LoggerFactory.getLogger(AbstractDownloadPart.class);
+    protected static final int COPY_BUFFER_SIZE = 65536;
+    private static final long MIN_ESTIMATE_NANOS = 1000000000L;
+    protected final MultipartDownloadFile multipartDownloadFile;
+    private int partNumber;
+    private long inputOffset;
+    private long outputOffset;
+    private long partSize;
+    // the following fields are guarded by this
+    // bytes of this part that have been written to the output file by the original request
+    private long bytesDone;
+    private long attemptStart;
+    private long attemptStartBytes;
+    private boolean completed;
+    private boolean finished;
+    private boolean hedged;
+    private RangeResponse primaryResponse;
+    private RangeResponse hedgeResponse;
+    // aborts a request that is still waiting for its response
+    private Runnable primaryPending;
+    private Runnable hedgePending;
+    private RangeSource source;
+
+    protected AbstractDownloadPart(MultipartDownloadFile multipartDownloadFile) {
+        this.multipartDownloadFile = multipartDownloadFile;
+    }
+
+    /**
+     * @return A new, empty part of the same kind for the same file.
+     */
+    protected abstract AbstractDownloadPart newPart();
+
+    /**
+     * Download all bytes of this part that have not been written yet.
+     */
+    protected void transfer(RangeSource source) throws Exception {
+        synchronized (this) {
+            this.source = source;
+        }
+        HedgingPolicy hedgingPolicy = this.multipartDownloadFile.getHedgingPolicy();
+        for (int i = 0; i < BiBiS3.INCOMPLETE_HTTP_RESPONSE_RETRIES; i++) {
+            long done;
+            long end;
+            synchronized (this) {
+                if (this.completed) {
+                    break;
+                }
+                done = this.bytesDone;
+                end = this.partSize;
+                this.attemptStart = System.nanoTime();
+                this.attemptStartBytes = done;
+            }
+            // a request that is stalled before the response headers arrive may be hedged as well
+            if (hedgingPolicy != null) {
+                hedgingPolicy.started(this);
+            }
+            long requestStart = System.nanoTime();
+            RangeResponse response = null;
+            try {
+                response = source.open(this.inputOffset + done, this.inputOffset + end - 1, abort -> pending(abort, false));
+                long firstByte = System.nanoTime();
+                synchronized (this) {
+                    this.primaryPending = null;
+                    if (this.completed) {
+                        // a hedged request has finished the part while this one was waiting for the response
+                        response.abort();
+                        break;
+                    }
+                    this.primaryResponse = response;
+                }
+                PartSink out = this.multipartDownloadFile.getOutputSink();
+
+                log.trace("Starting download of part {} of file: {}", this.partNumber, this.multipartDownloadFile.key);
+                long bytesRead = copy(BandwidthLimiter.DOWNLOADS.wrap(response.getContent()), out);
+                if (isCompleted()) {
+                    if (bytesRead < end - done) {
+                        // the rest of the requested range is not needed anymore
+                        response.abort();
+                    }
+                    if (hedgingPolicy != null) {
+                        hedgingPolicy.finished(this, bytesRead, System.nanoTime() - requestStart);
+                    }
+                    PartSizePlanner planner = this.multipartDownloadFile.getPartSizePlanner();
+                    if (planner != null && i == 0) {
+                        planner.partFinished(bytesRead, firstByte - requestStart, System.nanoTime() - requestStart);
+                    }
+                    break;
+                } else {
+                    log.warn("Chunk transfer of part {} of file '{}' has been interrupted! {} out of {} bytes have already been transferred. Retrying transfer of the remaining {} bytes....", this.partNumber, this.multipartDownloadFile.targetFile, getBytesDone(), getPartSize(), getRemainingBytes());
+                    Measurements.countError();
+                    Measurements.countRetry();
+                }
+                if (i == BiBiS3.INCOMPLETE_HTTP_RESPONSE_RETRIES - 1) {
+                    throw new IOException("Chunk transfer failed after " + BiBiS3.INCOMPLETE_HTTP_RESPONSE_RETRIES + " attempts to recover from interrupted HTTP transfers!");
+                }
+            } catch (IOException | RuntimeException e) {
+                if (isCompleted()) {
+                    // a hedged request has finished first and cancelled or abandoned this one
+                    break;
+                }
+                log.debug("Failed to write part to file. Reason: {}  ; Part Number: {}  ; Filename: {}", e.getClass().getSimpleName(), this.partNumber, this.multipartDownloadFile.targetFile);
+                if (response != null) {
+                    response.abort();
+                }
+                throw e;
+            } finally {
+                if (hedgingPolicy != null) {
+                    hedgingPolicy.stopped(this);
+                }
+                synchronized (this) {
+                    this.primaryPending = null;
+                    this.primaryResponse = null;
+                    this.attemptStart = 0;
+                }
+                if (response != null) {
+                    closeQuietly(response);
+                }
+            }
+        }
+        finish();
+    }
+
+    /**
+     * Remember how to abort a request that is waiting for its response, or abort it right away if the part has been
+     * completed by the other request in the meantime.
+     */
+    private void pending(Runnable abort, boolean hedge) {
+        synchronized (this) {
+            if (!this.completed) {
+                if (hedge) {
+                    this.hedgePending = abort;
+                } else {
+                    this.primaryPending = abort;
+                }
+                return;
+            }
+        }
+        abort.run();
+    }
+
+    private void finish() {
+        synchronized (this) {
+            if (!this.completed || this.finished) {
+                return;
+            }
+            this.finished = true;
+        }
+        this.multipartDownloadFile.partFinished(this);
+        Measurements.countChunkAsFinished();
+        log.trace("Download done: Part {} of file: {}", this.partNumber, this.multipartDownloadFile.key);
+    }
+
+    /**
+     * Count bytes as written to the output file by a caller that writes them itself, like the asynchronous engine.
+     * Finishes the part as soon as all of its bytes have been written.
+     */
+    public void written(long bytes) {
+        Measurements.addTransferredBytes(bytes);
+        synchronized (this) {
+            this.bytesDone += bytes;
+            if (this.bytesDone >= this.partSize) {
+                this.completed = true;
+            }
+        }
+        finish();
+    }
+
+    /**
+     * Copy from the response into the output file until the (possibly shrinking) end of this part has been reached.
+     *
+     * @return Number of bytes written.
+     */
+    private long copy(InputStream in, PartSink out) throws IOException {
+        WriteBackend backend = this.multipartDownloadFile.getWriteBackend();
+        long copied = 0;
+        try (PartWriter writer = backend.newWriter(out, this.multipartDownloadFile.getJournal() != null)) {
+            writer.setChecksum(this.multipartDownloadFile.getChecksum());
+            while (true) {
+                long allowed = getRemainingBytes();
+                if (allowed <= 0) {
+                    break;
+                }
+                int bytesRead = writer.read(in, (int) Math.min(writer.getBlockSize(), allowed));
+                if (bytesRead < 0) {
+                    break;
+                }
+                long position;
+                synchronized (this) {
+                    if (this.completed) {
+                        break;
+                    }
+                    // this part may have been split while we were reading
+                    bytesRead = (int) Math.min(bytesRead, this.partSize - this.bytesDone);
+                    position = this.outputOffset + this.bytesDone;
+                }
+                writer.write(bytesRead, position);
+                synchronized (this) {
+                    this.bytesDone += bytesRead;
+                    if (this.bytesDone >= this.partSize) {
+                        this.completed = true;
+                        if (this.hedgeResponse != null) {
+                            this.hedgeResponse.abort();
+                        } else if (this.hedgePending != null) {
+                            this.hedgePending.run();
+                        }
+                    }
+                }
+                copied += bytesRead;
+                Measurements.addTransferredBytes(bytesRead);
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * Race the running request with a second request for the bytes it has not written yet. Runs in the calling
+     * thread until one of both requests has finished.
+     *
+     * @return true if the hedged request finished first.
+     */
+    public boolean hedge() {
+        long start;
+        RangeSource rangeSource;
+        synchronized (this) {
+            if (this.completed) {
+                return false;
+            }
+            start = this.bytesDone;
+            rangeSource = this.source;
+        }
+        RangeResponse response = null;
+        try {
+            response = rangeSource.open(this.inputOffset + start, this.inputOffset + getPartSize() - 1, abort -> pending(abort, true));
+            synchronized (this) {
+                this.hedgePending = null;
+                if (this.completed) {
+                    response.abort();
+                    return false;
+                }
+                this.hedgeResponse = response;
+            }
+            PartSink out = this.multipartDownloadFile.getOutputSink();
+            WriteBackend backend = this.multipartDownloadFile.getWriteBackend();
+            InputStream in = BandwidthLimiter.DOWNLOADS.wrap(response.getContent());
+            try (PartWriter writer = backend.newWriter(out, this.multipartDownloadFile.getJournal() != null)) {
+                writer.setChecksum(this.multipartDownloadFile.getChecksum());
+                long pos = start;
+                while (true) {
+                    long allowed;
+                    boolean primaryWaiting = false;
+                    synchronized (this) {
+                        if (this.completed) {
+                            response.abort();
+                            return false;
+                        }
+                        allowed = this.partSize - pos;
+                        if (allowed <= 0) {
+                            this.completed = true;
+                            // the original request has stopped here
+                            Measurements.addTransferredBytes(this.partSize - this.bytesDone);
+                            if (this.primaryResponse != null) {
+                                this.primaryResponse.abort();
+                            } else {
+                                // still waiting for its response: cancel it if possible, it won't write anything
+                                primaryWaiting = true;
+                                if (this.primaryPending != null) {
+                                    this.primaryPending.run();
+                                }
+                            }
+                        }
+                    }
+                    if (allowed <= 0) {
+                        if (primaryWaiting) {
+                            finish();
+                        }
+                        log.debug("Hedged request for part {} of file {} finished first.", this.partNumber, this.multipartDownloadFile.key);
+                        return true;
+                    }
+                    int bytesRead = writer.read(in, (int) Math.min(writer.getBlockSize(), allowed));
+                    if (bytesRead < 0) {
+                        return false;
+                    }
+                    synchronized (this) {
+                        if (this.completed) {
+                            response.abort();
+                            return false;
+                        }
+                        // this part may have been split while we were reading
+                        bytesRead = (int) Math.max(0, Math.min(bytesRead, this.partSize - pos));
+                    }
+                    writer.write(bytesRead, this.outputOffset + pos);
+                    pos += bytesRead;
+                }
+            }
+        } catch (Exception e) {
+            log.debug("Hedged request for part {} of file {} failed: {}", this.partNumber, this.multipartDownloadFile.key, e.toString());
+            if (response != null) {
+                response.abort();
+            }
+            return false;
+        } finally {
+            synchronized (this) {
+                this.hedgePending = null;
+                this.hedgeResponse = null;
+            }
+            if (response != null) {
+                closeQuietly(response);
+            }
+        }
+    }
+
+    private void closeQuietly(RangeResponse response) {
+        try {
+            response.close();
+        } catch (IOException e) {
+            log.trace("Failed to close response of part {}: {}", this.partNumber, e.toString());
+        }
+    }
+
+    /**
+     * Split off the second half of the bytes this part has not written yet. The returned part covers the split off
+     * range, this part stops as soon as it reaches the new end.
+     *
+     * @param minSplitSize Minimum size of both halves.
+     * @return The new part or null if the remainder is too small to be split.
+     */
+    public synchronized AbstractDownloadPart split(long minSplitSize) {
+        // leave room for the block that might currently be in flight
+        int inFlight = this.multipartDownloadFile.getWriteBackend().getBlockSize();
+        long remaining = this.partSize - this.bytesDone - inFlight;
+        if (this.completed || remaining < 2 * minSplitSize) {
+            return null;
+        }
+        long keep = this.bytesDone + inFlight + remaining / 2;
+        AbstractDownloadPart tail = newPart();
+        tail.setPartNumber(this.partNumber);
+        tail.setInputOffset(this.inputOffset + keep);
+        tail.setOutputOffset(this.outputOffset + keep);
+        tail.setPartSize(this.partSize - keep);
+        log.debug("Splitting part {} of file {}: {} bytes are left to the original request, {} bytes are split off.", this.partNumber, this.multipartDownloadFile.key, keep - this.bytesDone, tail.getPartSize());
+        this.partSize = keep;
+        return tail;
+    }
+
+    /**
+     * Mark this part as hedged. Every part is hedged at most once.
+     *
+     * @return false if the part has already been hedged or is complete.
+     */
+    public synchronized boolean markHedged() {
+        if (this.hedged || this.completed) {
+            return false;
+        }
+        this.hedged = true;
+        return true;
+    }
+
+    public synchronized boolean isCompleted() {
+        return this.completed;
+    }
+
+    public synchronized long getBytesDone() {
+        return this.bytesDone;
+    }
+
+    public synchronized long getRemainingBytes() {
+        return this.partSize - this.bytesDone;
+    }
+
+    /**
+     * @return Nanoseconds since the current request has been started or 0 if no request is running.
+     */
+    public synchronized long getAttemptNanos() {
+        return this.attemptStart == 0 ? 0 : System.nanoTime() - this.attemptStart;
+    }
+
+    /**
+     * @return Bytes written by the current request.
+     */
+    public synchronized long getAttemptBytes() {
+        return this.bytesDone - this.attemptStartBytes;
+    }
+
+    /**
+     * Estimate the time this part needs to finish based on the throughput of the current request.
+     *
+     * @return Estimated nanoseconds left or 0 if the request has not been running long enough to tell.
+     */
+    public synchronized long getEstimatedNanosLeft() {
+        if (this.attemptStart == 0 || this.completed) {
+            return 0;
+        }
+        long elapsed = System.nanoTime() - this.attemptStart;
+        if (elapsed < MIN_ESTIMATE_NANOS) {
+            return 0;
+        }
+        long bytes = this.bytesDone - this.attemptStartBytes;
+        if (bytes <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return (long) ((double) elapsed / bytes * (this.partSize - this.bytesDone));
+    }
+
+    @Override
+    public MultipartDownloadFile getMultipartDownloadFile() {
+        return this.multipartDownloadFile;
+    }
+
+    @Override
+    public String getKey() {
+        return this.multipartDownloadFile.getKey();
+    }
+
+    @Override
+    public int getPartNumber() {
+        return partNumber;
+    }
+
+    @Override
+    public void setPartNumber(int partNumber) {
+        this.partNumber = partNumber;
+    }
+
+    @Override
+    public long getInputOffset() {
+        return inputOffset;
+    }
+
+    @Override
+    public void setInputOffset(long inputOffset) {
+        this.inputOffset = inputOffset;
+    }
+
+    @Override
+    public long getOutputOffset() {
+        return outputOffset;
+    }
+
+    @Override
+    public void setOutputOffset(long outputOffset) {
+        this.outputOffset = outputOffset;
+    }
+
+    @Override
+    public synchronized long getPartSize() {
+        return partSize;
+    }
+
+    @Override
+    public synchronized void setPartSize(long partSize) {
+        this.partSize = partSize;
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return this.partSize;
+    }
+}
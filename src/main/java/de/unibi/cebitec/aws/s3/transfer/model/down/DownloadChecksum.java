@@ -0,0 +1,366 @@
+package de.unibi.cebitec.aws.s3.transfer.model.down;
+
+import de.unibi.cebitec.aws.s3.transfer.util.Crc32c;
+import de.unibi.cebitec.aws.s3.transfer.util.ETag;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checksums of a file that are computed from the bytes while they are written, in any order and possibly more than
+ * once (split and hedged parts, retries).
+ * <p>
+ * MD5 digests are computed per segment, where the segments are the parts the object has been uploaded with, so the
+ * ETag can be reproduced. A digest can only be fed in order: Bytes that are written ahead of the current position of
+ * a segment are read back from the file as soon as the gap before them has been closed, while they are still in the
+ * page cache. The CRC-32C is computed for every written range and the ranges are combined. SHA-256 is a single digest
+ * over the whole file and is therefore only computed for files that are written sequentially.
+ * <p>
+ * Bytes that have not been written at all (e.g. present from an interrupted download) are read back by
+ * {@link #finish(Path)}.
+ */
+public class DownloadChecksum {
+    private static final int READ_BUFFER_SIZE = 65536;
+    private final long size;
+    private final boolean multipart;
+    private final long md5PartSize;
+    private final Segment[] md5Segments;
+    private final Segment sha256;
+    private final boolean crc32c;
+    // written ranges by start, disjoint and never adjacent, guarded by itself
+    private final TreeMap<Long, Range> written = new TreeMap<>();
+    private final AtomicLong rereadBytes = new AtomicLong();
+    private FileChannel source;
+    private String etag;
+    private Long crc;
+    private String sha256Digest;
+
+    /**
+     * @param md5PartSize Part size of the upload the ETag stems from (the file size for a single part), 0 to skip the
+     *                    MD5 digests.
+     * @param multipart   true if the ETag is the one of a multipart upload.
+     * @param sha256      Compute the SHA-256 digest (sequential writes only).
+     */
+    public DownloadChecksum(long size, long md5PartSize, boolean multipart, boolean crc32c, boolean sha256) {
+        this.size = size;
+        this.multipart = multipart;
+        this.crc32c = crc32c;
+        this.md5PartSize = md5PartSize;
+        if (md5PartSize > 0) {
+            int count = (int) Math.max(1, (size + md5PartSize - 1) / md5PartSize);
+            this.md5Segments = new Segment[count];
+            for (int i = 0; i < count; i++) {
+                this.md5Segments[i] = new Segment(i * md5PartSize, Math.min(size, (i + 1) * md5PartSize), ETag.newMd5());
+            }
+        } else {
+            this.md5Segments = null;
+        }
+        this.sha256 = sha256 ? new Segment(0, size, ETag.newDigest("SHA-256")) : null;
+    }
+
+    /**
+     * Channel to read bytes back from that have been written ahead of a segment (multipart files only).
+     */
+    public void setSource(FileChannel source) {
+        this.source = source;
+    }
+
+    /**
+     * Record bytes that have been written to the file.
+     */
+    public void update(long position, byte[] b, int off, int len) throws IOException {
+        if (len <= 0) {
+            return;
+        }
+        long crcValue = this.crc32c ? Crc32c.of(b, off, len) : 0;
+        synchronized (this.written) {
+            record(position, position + len, b, off, crcValue);
+        }
+        if (this.md5Segments != null) {
+            int first = (int) Math.min(this.md5Segments.length - 1, position / this.md5PartSize);
+            for (int i = first; i < this.md5Segments.length && this.md5Segments[i].start < position + len; i++) {
+                feed(this.md5Segments[i], position, b, off, len);
+            }
+        }
+        if (this.sha256 != null) {
+            feed(this.sha256, position, b, off, len);
+        }
+    }
+
+    /**
+     * Record bytes that have been written to the file from the remaining bytes of a buffer. The buffer is not
+     * modified.
+     */
+    public void update(long position, ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            update(position, buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            byte[] b = new byte[buffer.remaining()];
+            buffer.duplicate().get(b);
+            update(position, b, 0, b.length);
+        }
+    }
+
+    /**
+     * Record the bytes of a stream that is written sequentially to the file, starting at position 0.
+     */
+    public InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            private long position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    update(this.position, b, off, n);
+                    this.position += n;
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Add the bytes of [start, end) that are not covered by a written range yet.
+     */
+    private void record(long start, long end, byte[] b, int off, long crcValue) {
+        Map.Entry<Long, Range> before = this.written.floorEntry(start);
+        Map.Entry<Long, Range> after = this.written.ceilingEntry(start);
+        if ((before == null || before.getValue().end <= start) && (after == null || after.getKey() >= end)) {
+            insert(start, end, crcValue);
+            return;
+        }
+        // overlaps bytes that have been written before (hedged requests, retries)
+        long pos = start;
+        while (pos < end) {
+            Map.Entry<Long, Range> covering = this.written.floorEntry(pos);
+            if (covering != null && covering.getValue().end > pos) {
+                pos = covering.getValue().end;
+                continue;
+            }
+            Long next = this.written.higherKey(pos);
+            long gapEnd = next == null ? end : Math.min(end, next);
+            int from = off + (int) (pos - start);
+            insert(pos, gapEnd, this.crc32c ? Crc32c.of(b, from, (int) (gapEnd - pos)) : 0);
+            pos = gapEnd;
+        }
+    }
+
+    private void insert(long start, long end, long crcValue) {
+        Map.Entry<Long, Range> before = this.written.lowerEntry(start);
+        Range range;
+        if (before != null && before.getValue().end == start) {
+            range = before.getValue();
+            range.crc = combine(range.crc, crcValue, end - start);
+            range.end = end;
+        } else {
+            range = new Range(start, end, crcValue);
+            this.written.put(start, range);
+        }
+        Range next = this.written.get(end);
+        if (next != null) {
+            range.crc = combine(range.crc, next.crc, next.end - next.start);
+            range.end = next.end;
+            this.written.remove(end);
+        }
+    }
+
+    private long combine(long crc1, long crc2, long len2) {
+        return this.crc32c ? Crc32c.combine(crc1, crc2, len2) : 0;
+    }
+
+    /**
+     * @return End of the written range that contains the position or the position itself.
+     */
+    private long writtenUntil(long position) {
+        synchronized (this.written) {
+            Map.Entry<Long, Range> e = this.written.floorEntry(position);
+            return e != null && e.getValue().end > position ? e.getValue().end : position;
+        }
+    }
+
+    private void feed(Segment segment, long position, byte[] b, int off, int len) throws IOException {
+        synchronized (segment) {
+            long end = position + len;
+            if (segment.next < position || segment.next >= end || segment.next >= segment.end) {
+                return;
+            }
+            long to = Math.min(end, segment.end);
+            segment.digest.update(b, off + (int) (segment.next - position), (int) (to - segment.next));
+            segment.next = to;
+            // bytes written ahead of this segment by other parts
+            if (this.source != null) {
+                while (segment.next < segment.end) {
+                    long until = Math.min(writtenUntil(segment.next), segment.end);
+                    if (until <= segment.next) {
+                        break;
+                    }
+                    read(this.source, segment, until);
+                }
+            }
+        }
+    }
+
+    private void read(FileChannel in, Segment segment, long until) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_BUFFER_SIZE, until - segment.next));
+        while (segment.next < until) {
+            ((Buffer) buffer).clear();
+            ((Buffer) buffer).limit((int) Math.min(buffer.capacity(), until - segment.next));
+            int n = in.read(buffer, segment.next);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file while computing checksums.");
+            }
+            segment.digest.update(buffer.array(), 0, n);
+            segment.next += n;
+            this.rereadBytes.addAndGet(n);
+        }
+    }
+
+    /**
+     * Complete the checksums once the whole file has been written. Bytes that have not been seen are read from the
+     * file.
+     */
+    public void finish(Path file) throws IOException {
+        FileChannel in = null;
+        try {
+            List<Segment> segments = new ArrayList<>();
+            if (this.md5Segments != null) {
+                for (Segment s : this.md5Segments) {
+                    segments.add(s);
+                }
+            }
+            if (this.sha256 != null) {
+                segments.add(this.sha256);
+            }
+            for (Segment s : segments) {
+                synchronized (s) {
+                    if (s.next < s.end) {
+                        if (in == null) {
+                            in = FileChannel.open(file, StandardOpenOption.READ);
+                        }
+                        read(in, s, s.end);
+                    }
+                }
+            }
+            if (this.crc32c) {
+                synchronized (this.written) {
+                    long pos = 0;
+                    while (pos < this.size) {
+                        Map.Entry<Long, Range> covering = this.written.floorEntry(pos);
+                        if (covering != null && covering.getValue().end > pos) {
+                            pos = covering.getValue().end;
+                            continue;
+                        }
+                        Long next = this.written.higherKey(pos);
+                        long gapEnd = next == null ? this.size : Math.min(this.size, next);
+                        if (in == null) {
+                            in = FileChannel.open(file, StandardOpenOption.READ);
+                        }
+                        insert(pos, gapEnd, readCrc(in, pos, gapEnd));
+                        pos = gapEnd;
+                    }
+                    Range whole = this.written.get(0L);
+                    this.crc = whole == null ? 0 : whole.crc;
+                }
+            }
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+        if (this.md5Segments != null) {
+            List<byte[]> digests = new ArrayList<>();
+            for (Segment s : this.md5Segments) {
+                digests.add(s.digest.digest());
+            }
+            this.etag = ETag.of(digests, this.multipart);
+        }
+        if (this.sha256 != null) {
+            this.sha256Digest = ETag.toHex(this.sha256.digest.digest());
+        }
+    }
+
+    private long readCrc(FileChannel in, long start, long end) throws IOException {
+        Crc32c c = new Crc32c();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long pos = start;
+        while (pos < end) {
+            ((Buffer) buffer).clear();
+            ((Buffer) buffer).limit((int) Math.min(buffer.capacity(), end - pos));
+            int n = in.read(buffer, pos);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file while computing checksums.");
+            }
+            c.update(buffer.array(), 0, n);
+            pos += n;
+        }
+        this.rereadBytes.addAndGet(end - start);
+        return c.getValue();
+    }
+
+    /**
+     * @return The ETag computed from the data or null if MD5 digests have not been computed.
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    public Long getCrc32c() {
+        return crc;
+    }
+
+    public String getSha256() {
+        return sha256Digest;
+    }
+
+    /**
+     * @return Number of bytes that had to be read back from the file.
+     */
+    public long getRereadBytes() {
+        return rereadBytes.get();
+    }
+
+    private static class Segment {
+        final long start;
+        final long end;
+        final MessageDigest digest;
+        long next;
+
+        Segment(long start, long end, MessageDigest digest) {
+            this.start = start;
+            this.end = end;
+            this.digest = digest;
+            this.next = start;
+        }
+    }
+
+    private static class Range {
+        final long start;
+        long end;
+        long crc;
+
+        Range(long start, long end, long crc) {
+            this.start = start;
+            this.end = end;
+            this.crc = crc;
+        }
+    }
+}
@@ -6,6 +6,8 @@ public class DownloadFile {
 
     protected String key;
     protected Path targetFile;
+    protected String etag;
+    protected DownloadChecksum checksum;
 
     protected DownloadFile(String key, Path targetFile) {
         this.key = key;
@@ -19,4 +21,26 @@ public class DownloadFile {
     public Path getTargetFile() {
         return targetFile;
     }
+
+    /**
+     * @return ETag of the object or null if unknown.
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    public void setETag(String etag) {
+        this.etag = etag;
+    }
+
+    /**
+     * @return Checksums computed while the file is written or null if disabled.
+     */
+    public DownloadChecksum getChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(DownloadChecksum checksum) {
+        this.checksum = checksum;
+    }
 }
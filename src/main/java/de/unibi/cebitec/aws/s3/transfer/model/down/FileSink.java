@@ -0,0 +1,33 @@
+package de.unibi.cebitec.aws.s3.transfer.model.down;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the parts of a multipart download to the output file.
+ */
+public class FileSink implements PartSink {
+    private final FileChannel channel;
+
+    public FileSink(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        return this.channel.write(src, position);
+    }
+
+    /**
+     * @return The channel of the output file, e.g. to map it.
+     */
+    public FileChannel getChannel() {
+        return this.channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
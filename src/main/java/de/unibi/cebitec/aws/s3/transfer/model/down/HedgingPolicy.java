@@ -0,0 +1,146 @@
+package de.unibi.cebitec.aws.s3.transfer.model.down;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides when a running part request gets a hedged duplicate. A part is hedged once its request has been running for
+ * the configured delay and has either not delivered a single byte yet or is slower than the given percentile of the
+ * throughput observed for finished parts. The number of hedged requests is limited to a fraction of all requests.
+ */
+public class HedgingPolicy {
+    public static final Logger log = LoggerFactory.getLogger(HedgingPolicy.class);
+    private static final int RATE_SAMPLES = 256;
+    // finished parts needed before slow parts are hedged (parts without a first byte are always hedged)
+    private static final int MIN_RATE_SAMPLES = 10;
+    private final long delayNanos;
+    private final double percentile;
+    private final double budget;
+    private final Set<AbstractDownloadPart> activeParts;
+    private final AtomicLong requests;
+    private final AtomicLong fired;
+    private final AtomicLong won;
+    // ring buffer of the throughput (bytes/s) of finished requests, guarded by itself
+    private final double[] rates;
+    private int rateCount;
+    private final ScheduledExecutorService monitor;
+    private final ExecutorService hedges;
+
+    /**
+     * @param delayMillis Time a request may run before it is considered for hedging.
+     * @param percentile  Requests slower than this percentile (0-100) of finished requests are hedged.
+     * @param budget      Maximum number of hedged requests as a fraction of all requests.
+     */
+    public HedgingPolicy(long delayMillis, double percentile, double budget) {
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        this.percentile = Math.max(0, Math.min(100, percentile));
+        this.budget = budget;
+        this.activeParts = ConcurrentHashMap.newKeySet();
+        this.requests = new AtomicLong();
+        this.fired = new AtomicLong();
+        this.won = new AtomicLong();
+        this.rates = new double[RATE_SAMPLES];
+        this.monitor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hedging-monitor");
+            t.setDaemon(true);
+            return t;
+        });
+        this.hedges = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "hedged-request");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = Math.max(10, Math.min(100, delayMillis / 4));
+        this.monitor.scheduleWithFixedDelay(this::check, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    void started(AbstractDownloadPart part) {
+        this.requests.incrementAndGet();
+        this.activeParts.add(part);
+    }
+
+    void stopped(AbstractDownloadPart part) {
+        this.activeParts.remove(part);
+    }
+
+    /**
+     * Record the throughput of a request that finished the part it was responsible for.
+     */
+    void finished(AbstractDownloadPart part, long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0) {
+            return;
+        }
+        synchronized (this.rates) {
+            this.rates[this.rateCount % RATE_SAMPLES] = bytes / (nanos / 1e9);
+            this.rateCount++;
+        }
+    }
+
+    private double getRateThreshold() {
+        double[] sorted;
+        synchronized (this.rates) {
+            if (this.rateCount < MIN_RATE_SAMPLES) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(this.rates, Math.min(this.rateCount, RATE_SAMPLES));
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.floor(this.percentile / 100.0 * (sorted.length - 1));
+        return sorted[index];
+    }
+
+    private void check() {
+        try {
+            double threshold = getRateThreshold();
+            for (AbstractDownloadPart part : this.activeParts) {
+                long elapsed = part.getAttemptNanos();
+                if (elapsed < this.delayNanos) {
+                    continue;
+                }
+                long bytes = part.getAttemptBytes();
+                boolean slow = bytes == 0 || (threshold > 0 && bytes / (elapsed / 1e9) < threshold);
+                if (!slow || this.fired.get() + 1 > this.budget * this.requests.get()) {
+                    continue;
+                }
+                if (part.markHedged()) {
+                    this.fired.incrementAndGet();
+                    log.debug("Hedging part {} of file {} after {} ms with {} bytes received.", part.getPartNumber(),
+                            part.getMultipartDownloadFile().getKey(), TimeUnit.NANOSECONDS.toMillis(elapsed), bytes);
+                    this.hedges.submit(() -> {
+                        if (part.hedge()) {
+                            this.won.incrementAndGet();
+                        }
+                    });
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("Hedging check failed: {}", e.toString());
+        }
+    }
+
+    public void shutdown() {
+        this.monitor.shutdownNow();
+        this.hedges.shutdownNow();
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getFiredCount() {
+        return fired.get();
+    }
+
+    public long getWonCount() {
+        return won.get();
+    }
+}
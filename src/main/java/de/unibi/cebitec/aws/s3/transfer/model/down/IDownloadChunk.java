@@ -2,4 +2,9 @@ package de.unibi.cebitec.aws.s3.transfer.model.down;
 
 public interface IDownloadChunk {
     long getSize();
+
+    /**
+     * @return Key (or URL) of the file the chunk belongs to.
+     */
+    String getKey();
 }
@@ -10,8 +10,10 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Queue;
@@ -24,7 +26,19 @@ public class MultipartDownloadFile extends DownloadFile {
     private Queue<DownloadPart> remainingParts;
     private List<DownloadPart> registeredParts;
     private FileChannel outputFileChannel;
+    private FileSink outputSink;
     private long fileSize;
+    private boolean s3;
+    private PartJournal journal;
+    private PartSizePlanner partSizePlanner;
+    private HedgingPolicy hedgingPolicy;
+    private WriteBackend writeBackend = WriteBackend.CHANNEL;
+    // ranges [start, end) that have not been cut into parts yet (adaptive part sizes only)
+    private Deque<long[]> unplannedRanges;
+    private int nextPartNumber;
+    // bytes present from a previous run and bytes written by finished parts, guarded by this
+    private long resumedBytes;
+    private long finishedBytes;
 
     public MultipartDownloadFile(String key, Path targetFile, long fileSize, boolean s3, final long initialPartSize, long offset) {
         this(key, targetFile, fileSize, s3, initialPartSize);
@@ -42,6 +56,7 @@ public class MultipartDownloadFile extends DownloadFile {
             return p1.getPartNumber() < p2.getPartNumber() ? -1 : 1;
         });
         this.registeredParts = new ArrayList<>();
+        this.s3 = s3;
         gatherParts(initialPartSize, 0, s3);
     }
 
@@ -53,27 +68,135 @@ public class MultipartDownloadFile extends DownloadFile {
      * @param s3              true if s3 download, false if url download
      */
     private void gatherParts(long initialPartSize, long offset, boolean s3) {
+        gatherParts(initialPartSize, offset, 0, this.fileSize, 1, s3);
+    }
+
+    /**
+     * Create DownloadPart objects for the range [from, to) of this multipart file.
+     *
+     * @return Next free part number.
+     */
+    private int gatherParts(long initialPartSize, long offset, long from, long to, int firstPartNumber, boolean s3) {
         long partSize;
-        long pos = 0;
-        for (int i = 1; pos < this.fileSize; i++) {
-            partSize = Math.min(initialPartSize, (this.fileSize - pos));
-            DownloadPart p;
-            if (s3) {
-                p = new DownloadPartS3(this);
+        long pos = from;
+        int i;
+        for (i = firstPartNumber; pos < to; i++) {
+            partSize = Math.min(initialPartSize, (to - pos));
+            this.remainingParts.add(createPart(i, partSize, pos + offset));
+            pos += partSize;
+        }
+        return i;
+    }
+
+    private DownloadPart createPart(int partNumber, long partSize, long offset) {
+        DownloadPart p;
+        if (this.s3) {
+            p = new DownloadPartS3(this);
+        } else {
+            p = new DownloadPartUrl(this);
+        }
+        p.setPartNumber(partNumber);
+        p.setPartSize(partSize);
+        p.setInputOffset(offset);
+        p.setOutputOffset(offset);
+        return p;
+    }
+
+    /**
+     * Switch to adaptive part sizes: All parts that have not been handed out yet are merged back into ranges and cut
+     * again with the size proposed by the planner at the moment they are requested via {@link #next()}.
+     */
+    public void setPartSizePlanner(PartSizePlanner partSizePlanner) {
+        this.partSizePlanner = partSizePlanner;
+        this.unplannedRanges = new ArrayDeque<>();
+        List<DownloadPart> parts = new ArrayList<>(this.remainingParts);
+        parts.sort(Comparator.comparingLong(DownloadPart::getOutputOffset));
+        for (DownloadPart p : parts) {
+            partSizePlanner.addBytes(p.getPartSize());
+            long[] last = this.unplannedRanges.peekLast();
+            if (last != null && last[1] == p.getOutputOffset()) {
+                last[1] += p.getPartSize();
             } else {
-                p = new DownloadPartUrl(this);
+                this.unplannedRanges.addLast(new long[]{p.getOutputOffset(), p.getOutputOffset() + p.getPartSize()});
             }
-            p.setPartNumber(i);
-            p.setPartSize(partSize);
-            p.setInputOffset(pos + offset);
-            p.setOutputOffset(pos + offset);
-            this.remainingParts.add(p);
-            pos += partSize;
+        }
+        this.remainingParts.clear();
+        this.nextPartNumber = 1;
+    }
+
+    public PartSizePlanner getPartSizePlanner() {
+        return partSizePlanner;
+    }
+
+    public HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+    }
+
+    public WriteBackend getWriteBackend() {
+        return writeBackend;
+    }
+
+    public void setWriteBackend(WriteBackend writeBackend) {
+        this.writeBackend = writeBackend;
+    }
+
+    /**
+     * Continue an interrupted download: Only the ranges missing from the journal are downloaded again. The journal is
+     * kept up to date with every finished part.
+     *
+     * @return Number of bytes that are already present in the target file.
+     */
+    public long resume(PartJournal journal, long initialPartSize) {
+        this.journal = journal;
+        long completedBytes = journal.getCompletedBytes();
+        synchronized (this) {
+            this.resumedBytes = completedBytes;
+        }
+        if (completedBytes > 0) {
+            this.remainingParts.clear();
+            int partNumber = 1;
+            for (long[] range : journal.getMissingRanges()) {
+                partNumber = gatherParts(initialPartSize, 0, range[0], range[1], partNumber, this.s3);
+            }
+            log.info("Resuming download of {}: {} of {} bytes already present.", this.key, completedBytes, this.fileSize);
+        }
+        return completedBytes;
+    }
+
+    /**
+     * Called by a part once all of its bytes have been written to the output file.
+     */
+    public void partFinished(DownloadPart part) {
+        synchronized (this) {
+            this.finishedBytes += part.getPartSize();
+        }
+        if (this.journal != null) {
+            this.journal.markComplete(part.getOutputOffset(), part.getPartSize());
+        }
+    }
+
+    /**
+     * @return true once all bytes of this file are present in the target file.
+     */
+    public synchronized boolean isComplete() {
+        return this.resumedBytes + this.finishedBytes >= this.fileSize;
+    }
+
+    /**
+     * Persist all parts finished since the last call to the journal (resume mode only).
+     */
+    public void syncJournal() {
+        if (this.journal != null && this.outputFileChannel != null) {
+            this.journal.sync(this.outputFileChannel);
         }
     }
 
     public boolean hasMoreParts() {
-        return !this.remainingParts.isEmpty();
+        return !this.remainingParts.isEmpty() || (this.unplannedRanges != null && !this.unplannedRanges.isEmpty());
     }
 
     public void addPart(DownloadPart part) {
@@ -81,7 +204,18 @@ public class MultipartDownloadFile extends DownloadFile {
     }
 
     public DownloadPart next() {
-        DownloadPart currentPart = this.remainingParts.remove();
+        DownloadPart currentPart;
+        if (this.remainingParts.isEmpty() && this.unplannedRanges != null) {
+            long[] range = this.unplannedRanges.element();
+            long partSize = this.partSizePlanner.nextPartSize(range[1] - range[0]);
+            currentPart = createPart(this.nextPartNumber++, partSize, range[0]);
+            range[0] += partSize;
+            if (range[0] >= range[1]) {
+                this.unplannedRanges.remove();
+            }
+        } else {
+            currentPart = this.remainingParts.remove();
+        }
         this.registeredParts.add(currentPart);
         return currentPart;
     }
@@ -94,12 +228,16 @@ public class MultipartDownloadFile extends DownloadFile {
                 File parentDirFile = parentDir.toFile();
                 parentDirFile.mkdirs();
             }
-            // allocate space
+            // allocate space (a resumed download keeps its data as the length does not change)
             try (RandomAccessFile f = new RandomAccessFile(this.targetFile.toFile(), "rw")) {
                 f.setLength(this.fileSize);
             }
-            // open real filehandle for writing
-            this.outputFileChannel = (FileChannel) Files.newByteChannel(this.targetFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            // open real filehandle for writing (reading is needed to map the file)
+            this.outputFileChannel = (FileChannel) Files.newByteChannel(this.targetFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.outputSink = new FileSink(this.outputFileChannel);
+            if (this.checksum != null) {
+                this.checksum.setSource(this.outputFileChannel);
+            }
         } catch (IOException e) {
             log.error("Failed to open multipart file for writing. Reason: {}  ; Filename: {}", e.getClass().getSimpleName(), this.targetFile);
             throw new UnrecoverableErrorException();
@@ -108,16 +246,35 @@ public class MultipartDownloadFile extends DownloadFile {
 
     public void closeFile() {
         try {
+            if (this.journal != null) {
+                this.journal.sync(this.outputFileChannel);
+                if (this.journal.getMissingRanges().isEmpty()) {
+                    this.journal.delete();
+                } else {
+                    this.journal.close();
+                }
+            }
             this.outputFileChannel.close();
         } catch (IOException e) {
             log.error("Failed to close multipart file. Reason: {}  ; Filename: {}", e.getClass().getSimpleName(), this.targetFile);
         }
     }
 
+    public PartJournal getJournal() {
+        return journal;
+    }
+
     public FileChannel getOutputFileChannel() {
         return outputFileChannel;
     }
 
+    /**
+     * @return Where the parts write their bytes to.
+     */
+    public PartSink getOutputSink() {
+        return outputSink;
+    }
+
     public long getFileSize() {
         return fileSize;
     }
@@ -0,0 +1,219 @@
+package de.unibi.cebitec.aws.s3.transfer.model.down;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sidecar journal of a multipart download. It records the byte ranges of the target file that have been completely
+ * written and synced to disk, together with size and ETag of the source object. A later run with the same source
+ * object only has to fetch the ranges that are missing from the journal.
+ * <p>
+ * Format: a header line "bibis3-journal 1 &lt;size&gt; &lt;etag&gt;" followed by one "&lt;offset&gt; &lt;length&gt;" line per
+ * completed range.
+ */
+public class PartJournal {
+    public static final Logger log = LoggerFactory.getLogger(PartJournal.class);
+    public static final String SUFFIX = ".bibis3-journal";
+    private static final String MAGIC = "bibis3-journal 1";
+    private final Path journalFile;
+    private final long size;
+    private final String etag;
+    // offset -> end (exclusive), merged and non-overlapping
+    private final TreeMap<Long, Long> completedRanges;
+    private final List<long[]> pendingRanges;
+    private FileChannel out;
+    private boolean closed;
+
+    private PartJournal(Path journalFile, long size, String etag) {
+        this.journalFile = journalFile;
+        this.size = size;
+        this.etag = etag == null || etag.isEmpty() ? "-" : etag;
+        this.completedRanges = new TreeMap<>();
+        this.pendingRanges = new ArrayList<>();
+    }
+
+    /**
+     * Open the journal for the given target file. An existing journal is only taken over if it was written for a source
+     * object of the same size and ETag and the target file still has the expected length. Otherwise a fresh journal is
+     * started.
+     */
+    public static PartJournal open(Path targetFile, long size, String etag) throws IOException {
+        Path journalFile = targetFile.resolveSibling(targetFile.getFileName().toString() + SUFFIX);
+        PartJournal journal = new PartJournal(journalFile, size, etag);
+        if (Files.isRegularFile(journalFile)) {
+            if (Files.isRegularFile(targetFile) && Files.size(targetFile) == size) {
+                journal.load();
+            } else {
+                log.info("Discarding journal {} as the target file is missing or has the wrong size.", journalFile);
+            }
+        }
+        journal.rewrite();
+        return journal;
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(this.journalFile, StandardCharsets.UTF_8)) {
+            String header = in.readLine();
+            if (header == null || !header.equals(MAGIC + " " + this.size + " " + this.etag)) {
+                log.info("Discarding journal {} as the source object has changed.", this.journalFile);
+                return;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split(" ");
+                try {
+                    long offset = Long.parseLong(fields[0]);
+                    long length = Long.parseLong(fields[1]);
+                    if (offset < 0 || length <= 0 || offset + length > this.size) {
+                        break;
+                    }
+                    addRange(offset, offset + length);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    // torn write at the end of the journal
+                    break;
+                }
+            }
+        }
+        log.debug("Journal {}: {} of {} bytes already complete.", this.journalFile, getCompletedBytes(), this.size);
+    }
+
+    /**
+     * Write a compacted copy of the journal and keep it open for appending.
+     */
+    private void rewrite() throws IOException {
+        Path tmp = this.journalFile.resolveSibling(this.journalFile.getFileName().toString() + ".tmp");
+        if (this.journalFile.getParent() != null) {
+            Files.createDirectories(this.journalFile.getParent());
+        }
+        try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            w.write(MAGIC + " " + this.size + " " + this.etag);
+            w.newLine();
+            for (Map.Entry<Long, Long> range : this.completedRanges.entrySet()) {
+                w.write(range.getKey() + " " + (range.getValue() - range.getKey()));
+                w.newLine();
+            }
+        }
+        Files.move(tmp, this.journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.out = FileChannel.open(this.journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void addRange(long start, long end) {
+        Map.Entry<Long, Long> before = this.completedRanges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Iterator<Map.Entry<Long, Long>> it = this.completedRanges.tailMap(start, true).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Long> next = it.next();
+            if (next.getKey() > end) {
+                break;
+            }
+            end = Math.max(end, next.getValue());
+            it.remove();
+        }
+        this.completedRanges.put(start, end);
+    }
+
+    /**
+     * @return Ranges [start, end) of the target file that still have to be downloaded.
+     */
+    public synchronized List<long[]> getMissingRanges() {
+        List<long[]> missing = new ArrayList<>();
+        long pos = 0;
+        for (Map.Entry<Long, Long> range : this.completedRanges.entrySet()) {
+            if (range.getKey() > pos) {
+                missing.add(new long[]{pos, range.getKey()});
+            }
+            pos = Math.max(pos, range.getValue());
+        }
+        if (pos < this.size) {
+            missing.add(new long[]{pos, this.size});
+        }
+        return missing;
+    }
+
+    public synchronized long getCompletedBytes() {
+        long bytes = 0;
+        for (Map.Entry<Long, Long> range : this.completedRanges.entrySet()) {
+            bytes += range.getValue() - range.getKey();
+        }
+        return bytes;
+    }
+
+    /**
+     * Remember a range as written. It is persisted with the next call to {@link #sync(FileChannel)}.
+     */
+    public synchronized void markComplete(long offset, long length) {
+        this.pendingRanges.add(new long[]{offset, length});
+    }
+
+    /**
+     * Flush the data of the target file to disk and afterwards persist all ranges marked complete since the last sync.
+     */
+    public synchronized void sync(FileChannel data) {
+        if (this.closed || this.pendingRanges.isEmpty()) {
+            return;
+        }
+        try {
+            data.force(false);
+            StringBuilder lines = new StringBuilder();
+            for (long[] range : this.pendingRanges) {
+                lines.append(range[0]).append(' ').append(range[1]).append('\n');
+                addRange(range[0], range[0] + range[1]);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                this.out.write(buffer);
+            }
+            this.out.force(false);
+            this.pendingRanges.clear();
+        } catch (IOException e) {
+            log.warn("Failed to update journal {}. Reason: {}", this.journalFile, e.getClass().getSimpleName());
+        }
+    }
+
+    public synchronized void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.out.close();
+        } catch (IOException e) {
+            log.warn("Failed to close journal {}. Reason: {}", this.journalFile, e.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Remove the journal once the download has been completed.
+     */
+    public synchronized void delete() {
+        close();
+        try {
+            Files.deleteIfExists(this.journalFile);
+        } catch (IOException e) {
+            log.warn("Failed to delete journal {}. Reason: {}", this.journalFile, e.getClass().getSimpleName());
+        }
+    }
+
+    public Path getJournalFile() {
+        return journalFile;
+    }
+}
@@ -0,0 +1,19 @@
+package de.unibi.cebitec.aws.s3.transfer.model.down;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Destination of the parts of a multipart download. The parts write their blocks to absolute positions, in any
+ * order and from several threads.
+ */
+public interface PartSink extends Closeable {
+
+    /**
+     * Write bytes from the buffer starting at the given position.
+     *
+     * @return Number of bytes written, possibly less than remaining in the buffer.
+     */
+    int write(ByteBuffer src, long position) throws IOException;
+}
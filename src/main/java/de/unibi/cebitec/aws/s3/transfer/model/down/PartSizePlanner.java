@@ -0,0 +1,112 @@
+package de.unibi.cebitec.aws.s3.transfer.model.down;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Picks the size of download parts at the moment they are cut from a file instead of slicing every object with one
+ * fixed chunk size in advance.
+ * <p>
+ * The initial part size gives every thread a few parts of the overall transfer. Once the first parts have finished,
+ * the measured time to first byte and per-request throughput raise the part size far enough that the request latency
+ * only costs a small fraction of each part. Towards the end of the transfer the parts shrink again so that all threads
+ * stay busy until the last byte has arrived.
+ */
+public class PartSizePlanner {
+    public static final Logger log = LoggerFactory.getLogger(PartSizePlanner.class);
+    public static final long MIN_PART_SIZE = 5242880; // 5MB
+    public static final long MAX_PART_SIZE = 1073741824; // 1GB
+    // parts per thread for the initial plan
+    private static final int PARTS_PER_THREAD = 4;
+    // parts that have to finish before the measurements are trusted
+    private static final int MIN_SAMPLES = 8;
+    // request latency may cost at most 1/LATENCY_FACTOR of the transfer time of a part
+    private static final int LATENCY_FACTOR = 20;
+    private static final double EWMA_WEIGHT = 0.2;
+    private final int numberOfThreads;
+    private long initialPartSize;
+    private long knownBytes;
+    private long unplannedBytes;
+    private int samples;
+    private double timeToFirstByte;
+    private double bytesPerSecond;
+    private long currentPartSize;
+
+    /**
+     * The bytes to be planned are added with {@link #addBytes(long)} while the files are prepared for the transfer.
+     */
+    public PartSizePlanner(int numberOfThreads) {
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+        this.initialPartSize = MIN_PART_SIZE;
+        this.currentPartSize = this.initialPartSize;
+    }
+
+    private static long clamp(long partSize) {
+        return Math.max(MIN_PART_SIZE, Math.min(MAX_PART_SIZE, partSize));
+    }
+
+    /**
+     * Add bytes that will be cut into parts. The initial part size follows the known transfer size until enough
+     * parts have finished to plan with measurements.
+     */
+    public synchronized void addBytes(long bytes) {
+        this.knownBytes += bytes;
+        this.unplannedBytes += bytes;
+        if (this.samples < MIN_SAMPLES) {
+            this.initialPartSize = clamp(this.knownBytes / ((long) this.numberOfThreads * PARTS_PER_THREAD));
+            this.currentPartSize = this.initialPartSize;
+        }
+    }
+
+    /**
+     * Size of the next part to be cut from a range that has {@code available} bytes left.
+     */
+    public synchronized long nextPartSize(long available) {
+        // keep at least two parts in flight per thread for the rest of the transfer
+        long tailPartSize = clamp(this.unplannedBytes / ((long) this.numberOfThreads * 2));
+        long partSize = Math.min(this.currentPartSize, tailPartSize);
+        if (available - partSize < Math.max(partSize / 2, MIN_PART_SIZE)) {
+            // do not leave a tiny remainder behind
+            partSize = available;
+        }
+        this.unplannedBytes -= partSize;
+        return partSize;
+    }
+
+    /**
+     * Feed the measurements of a finished part back into the plan.
+     *
+     * @param bytes           Size of the part.
+     * @param firstByteNanos  Time until the response headers had arrived.
+     * @param durationNanos   Time for the whole part.
+     */
+    public synchronized void partFinished(long bytes, long firstByteNanos, long durationNanos) {
+        long transferNanos = durationNanos - firstByteNanos;
+        if (bytes <= 0 || transferNanos <= 0) {
+            return;
+        }
+        double ttfb = firstByteNanos / 1e9;
+        double rate = bytes / (transferNanos / 1e9);
+        if (this.samples == 0) {
+            this.timeToFirstByte = ttfb;
+            this.bytesPerSecond = rate;
+        } else {
+            this.timeToFirstByte += EWMA_WEIGHT * (ttfb - this.timeToFirstByte);
+            this.bytesPerSecond += EWMA_WEIGHT * (rate - this.bytesPerSecond);
+        }
+        this.samples++;
+        if (this.samples >= MIN_SAMPLES) {
+            long efficientPartSize = (long) (LATENCY_FACTOR * this.timeToFirstByte * this.bytesPerSecond);
+            long partSize = clamp(Math.max(this.initialPartSize, efficientPartSize));
+            if (partSize != this.currentPartSize) {
+                log.debug("Re-planning part size: {} Bytes (time to first byte: {} ms, throughput per request: {} Bytes/s)",
+                        partSize, Math.round(this.timeToFirstByte * 1000), Math.round(this.bytesPerSecond));
+                this.currentPartSize = partSize;
+            }
+        }
+    }
+
+    public synchronized long getCurrentPartSize() {
+        return currentPartSize;
+    }
+}
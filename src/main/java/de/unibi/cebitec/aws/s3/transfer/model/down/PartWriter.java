@@ -0,0 +1,212 @@
+package de.unibi.cebitec.aws.s3.transfer.model.down;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Moves the bytes of a part from the response into the output file. A part is copied block by block: a block is read
+ * into the buffer of the writer and afterwards written to its position in the file, possibly shortened if the part
+ * has been split in the meantime.
+ */
+public abstract class PartWriter implements Closeable {
+    protected final PartSink out;
+    protected DownloadChecksum checksum;
+
+    protected PartWriter(PartSink out) {
+        this.out = out;
+    }
+
+    /**
+     * Checksums to update with every written block.
+     */
+    public void setChecksum(DownloadChecksum checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * Read the next block from the response.
+     *
+     * @param max Maximum number of bytes to read.
+     * @return Number of bytes read or -1 at the end of the response.
+     */
+    public abstract int read(InputStream in, int max) throws IOException;
+
+    /**
+     * Write the first bytes of the block that has been read last.
+     *
+     * @param length   Number of bytes to write.
+     * @param position Position in the output file.
+     */
+    public abstract void write(int length, long position) throws IOException;
+
+    /**
+     * @return Maximum number of bytes read as one block.
+     */
+    public abstract int getBlockSize();
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * Positional writes from a small heap buffer.
+     */
+    static class Channel extends PartWriter {
+        private final byte[] buffer = new byte[AbstractDownloadPart.COPY_BUFFER_SIZE];
+
+        Channel(PartSink out) {
+            super(out);
+        }
+
+        @Override
+        public int read(InputStream in, int max) throws IOException {
+            return in.read(this.buffer, 0, Math.min(max, this.buffer.length));
+        }
+
+        @Override
+        public void write(int length, long position) throws IOException {
+            ByteBuffer src = ByteBuffer.wrap(this.buffer, 0, length);
+            long start = position;
+            while (src.hasRemaining()) {
+                position += this.out.write(src, position);
+            }
+            if (this.checksum != null) {
+                this.checksum.update(start, this.buffer, 0, length);
+            }
+        }
+
+        @Override
+        public int getBlockSize() {
+            return this.buffer.length;
+        }
+    }
+
+    /**
+     * Large positional writes from pooled direct buffers. A block is collected from several reads of the response,
+     * the channel writes it without copying it into a temporary direct buffer first.
+     */
+    static class Direct extends PartWriter {
+        static final int BLOCK_SIZE = 1048576; // 1MB
+        private static final Queue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+        private final byte[] staging = new byte[AbstractDownloadPart.COPY_BUFFER_SIZE];
+        private ByteBuffer buffer;
+
+        Direct(PartSink out) {
+            super(out);
+            this.buffer = POOL.poll();
+            if (this.buffer == null) {
+                this.buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+            }
+        }
+
+        @Override
+        public int read(InputStream in, int max) throws IOException {
+            // Buffer methods are called through Buffer to stay compatible with Java 8 runtimes
+            ((Buffer) this.buffer).clear();
+            int limit = Math.min(max, BLOCK_SIZE);
+            while (this.buffer.position() < limit) {
+                int bytesRead = in.read(this.staging, 0, Math.min(this.staging.length, limit - this.buffer.position()));
+                if (bytesRead < 0) {
+                    break;
+                }
+                this.buffer.put(this.staging, 0, bytesRead);
+            }
+            return this.buffer.position() == 0 ? -1 : this.buffer.position();
+        }
+
+        @Override
+        public void write(int length, long position) throws IOException {
+            ((Buffer) this.buffer).flip();
+            ((Buffer) this.buffer).limit(length);
+            ByteBuffer written = this.checksum != null ? this.buffer.duplicate() : null;
+            long start = position;
+            while (this.buffer.hasRemaining()) {
+                position += this.out.write(this.buffer, position);
+            }
+            if (written != null) {
+                this.checksum.update(start, written);
+            }
+        }
+
+        @Override
+        public int getBlockSize() {
+            return BLOCK_SIZE;
+        }
+
+        @Override
+        public void close() {
+            if (this.buffer != null) {
+                POOL.offer(this.buffer);
+                this.buffer = null;
+            }
+        }
+    }
+
+    /**
+     * Writes into a mapping of the preallocated output file. The file is mapped window by window as the part
+     * proceeds.
+     */
+    static class Mapped extends PartWriter {
+        static final long WINDOW_SIZE = 67108864; // 64MB
+        private final byte[] buffer = new byte[AbstractDownloadPart.COPY_BUFFER_SIZE];
+        private final FileChannel channel;
+        private final boolean durable;
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        /**
+         * @param durable Flush every window to disk before the next one is mapped (needed if finished parts are
+         *                recorded in a journal).
+         */
+        Mapped(FileSink out, boolean durable) {
+            super(out);
+            this.channel = out.getChannel();
+            this.durable = durable;
+        }
+
+        @Override
+        public int read(InputStream in, int max) throws IOException {
+            return in.read(this.buffer, 0, Math.min(max, this.buffer.length));
+        }
+
+        @Override
+        public void write(int length, long position) throws IOException {
+            if (this.window == null || position < this.windowStart
+                    || position + length > this.windowStart + this.window.capacity()) {
+                release();
+                long size = Math.min(WINDOW_SIZE, this.channel.size() - position);
+                this.window = this.channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+                this.windowStart = position;
+            }
+            ((Buffer) this.window).position((int) (position - this.windowStart));
+            this.window.put(this.buffer, 0, length);
+            if (this.checksum != null) {
+                this.checksum.update(position, this.buffer, 0, length);
+            }
+        }
+
+        private void release() {
+            if (this.window != null && this.durable) {
+                this.window.force();
+            }
+            this.window = null;
+        }
+
+        @Override
+        public int getBlockSize() {
+            return this.buffer.length;
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package de.unibi.cebitec.aws.s3.transfer.model.down;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Body of a ranged GET request together with the means to cancel it from another thread.
+ */
+public class RangeResponse implements Closeable {
+    private final InputStream content;
+    private final Runnable abort;
+    private final Runnable release;
+    private final long contentLength;
+
+    /**
+     * @param content Response body.
+     * @param abort   Drops the underlying connection, a blocked read on the content fails afterwards.
+     * @param release Frees the resources of the request after the content has been closed, may be null.
+     */
+    public RangeResponse(InputStream content, Runnable abort, Runnable release) {
+        this(content, abort, release, -1);
+    }
+
+    /**
+     * @param contentLength Length of the response body, -1 if unknown.
+     */
+    public RangeResponse(InputStream content, Runnable abort, Runnable release, long contentLength) {
+        this.content = content;
+        this.abort = abort;
+        this.release = release;
+        this.contentLength = contentLength;
+    }
+
+    public InputStream getContent() {
+        return content;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public void abort() {
+        this.abort.run();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.content.close();
+        } finally {
+            if (this.release != null) {
+                this.release.run();
+            }
+        }
+    }
+}
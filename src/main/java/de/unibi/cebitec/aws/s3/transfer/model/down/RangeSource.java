@@ -0,0 +1,17 @@
+package de.unibi.cebitec.aws.s3.transfer.model.down;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Opens ranged requests for the source object of a download part.
+ */
+public interface RangeSource {
+    /**
+     * @param first   Offset of the first byte.
+     * @param last    Offset of the last byte (inclusive).
+     * @param pending Receives an action that aborts the request while it is waiting for the response. Sources that
+     *                can't abort a pending request don't call it, the request is abandoned then.
+     */
+    RangeResponse open(long first, long last, Consumer<Runnable> pending) throws IOException;
+}
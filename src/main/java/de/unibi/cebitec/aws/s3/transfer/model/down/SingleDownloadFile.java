@@ -4,6 +4,9 @@ import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+import de.unibi.cebitec.aws.s3.transfer.util.BandwidthLimiter;
+import de.unibi.cebitec.aws.s3.transfer.util.CountingInputStream;
+import de.unibi.cebitec.aws.s3.transfer.util.RequestMetrics;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -26,9 +29,11 @@ public class SingleDownloadFile extends DownloadFile implements IDownloadChunkS3
     @Override
     public void download(AmazonS3 s3, String bucketName) throws Exception {
         GetObjectRequest getObjReq = new GetObjectRequest(bucketName, this.key);
+        getObjReq.setGeneralProgressListener(new RequestMetrics());
         S3Object obj = s3.getObject(getObjReq);
         log.debug("Starting download of single file: {}", this.key);
-        try (InputStream in = obj.getObjectContent()) {
+        CountingInputStream counter = new CountingInputStream(obj.getObjectContent());
+        try (InputStream in = BandwidthLimiter.DOWNLOADS.wrap(counter)) {
             Path parentDir = this.targetFile.getParent();
             if (parentDir != null) {
                 parentDir.toFile().mkdirs();
@@ -38,7 +43,7 @@ public class SingleDownloadFile extends DownloadFile implements IDownloadChunkS3
                 log.debug("Empty folder file detected. Creating empty folder on the receiving end ....");
             } else {
                 if (!this.targetFile.toFile().isDirectory()) {
-                    long bytesRead = Files.copy(in, this.targetFile, StandardCopyOption.REPLACE_EXISTING);
+                    long bytesRead = Files.copy(this.checksum != null ? this.checksum.wrap(in) : in, this.targetFile, StandardCopyOption.REPLACE_EXISTING);
                     if (bytesRead != this.size) {
                         throw new IOException("File transfer of file '" + this.targetFile + "' has been interrupted!");
                     }
@@ -48,6 +53,8 @@ public class SingleDownloadFile extends DownloadFile implements IDownloadChunkS3
             log.debug("Download done: Single file: {}", this.key);
         } catch (IOException e) {
             log.debug("Failed to save single file to disk. Reason: {}  ; Filename: {}", e.getClass().getSimpleName(), this.targetFile);
+            // the next attempt downloads the whole file again
+            counter.discard();
             throw e;
         }
     }
@@ -0,0 +1,222 @@
+package de.unibi.cebitec.aws.s3.transfer.model.down;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * State of a directory that is synchronized with an S3 prefix. For every downloaded key it records size, ETag and
+ * last modification of the object together with the modification time of the local file. An object is unchanged if
+ * all of them still match, so a repeated sync only downloads new and changed objects.
+ * <p>
+ * Format: a header line "bibis3-sync 1" followed by one "&lt;size&gt; &lt;etag&gt; &lt;last modified&gt; &lt;local mtime&gt;
+ * &lt;key&gt;" line per downloaded key. Downloads are appended as soon as they are complete, the file is compacted when
+ * the sync is closed. Later lines of a key replace earlier ones.
+ */
+public class SyncState {
+    public static final Logger log = LoggerFactory.getLogger(SyncState.class);
+    public static final String FILENAME = ".bibis3-sync";
+    private static final String MAGIC = "bibis3-sync 1";
+    private final Path stateFile;
+    // all fields are guarded by this
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, Entry> pending = new HashMap<>();
+    private final Set<String> listedKeys = new HashSet<>();
+    private final Set<Path> listedFiles = new HashSet<>();
+    private BufferedWriter out;
+    private long unchangedFiles;
+    private long unchangedBytes;
+    private long downloadedFiles;
+
+    private SyncState(Path stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    /**
+     * Open the state of a target directory. A missing or unreadable state file starts an empty state, every object is
+     * downloaded then.
+     */
+    public static SyncState open(Path directory) throws IOException {
+        SyncState state = new SyncState(directory.resolve(FILENAME));
+        if (Files.isRegularFile(state.stateFile)) {
+            state.load();
+        }
+        state.rewrite(false);
+        return state;
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(this.stateFile, StandardCharsets.UTF_8)) {
+            String header = in.readLine();
+            if (header == null || !header.equals(MAGIC)) {
+                log.info("Discarding sync state {} with unknown format.", this.stateFile);
+                return;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split(" ", 5);
+                try {
+                    this.entries.put(fields[4], new Entry(Long.parseLong(fields[0]), fields[1],
+                            Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    // torn write at the end of the state file
+                    break;
+                }
+            }
+        }
+        log.debug("Sync state {}: {} keys.", this.stateFile, this.entries.size());
+    }
+
+    /**
+     * Write a compacted copy of the state and keep it open for appending.
+     *
+     * @param listedOnly Drop the keys that have not been listed.
+     */
+    private void rewrite(boolean listedOnly) throws IOException {
+        Path tmp = this.stateFile.resolveSibling(FILENAME + ".tmp");
+        Files.createDirectories(this.stateFile.getParent());
+        try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            w.write(MAGIC);
+            w.newLine();
+            for (Map.Entry<String, Entry> e : this.entries.entrySet()) {
+                if (!listedOnly || this.listedKeys.contains(e.getKey())) {
+                    write(w, e.getKey(), e.getValue());
+                }
+            }
+        }
+        Files.move(tmp, this.stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.out = Files.newBufferedWriter(this.stateFile, StandardCharsets.UTF_8, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void write(BufferedWriter w, String key, Entry e) throws IOException {
+        w.write(e.size + " " + e.etag + " " + e.lastModified + " " + e.localModified + " " + key);
+        w.newLine();
+    }
+
+    /**
+     * Check a listed object against its local file. Objects that are not unchanged are expected to be downloaded and
+     * reported with {@link #completed(String, Path)} afterwards.
+     *
+     * @return true if the local file is up to date and the object can be skipped.
+     */
+    public synchronized boolean check(String key, long size, String etag, long lastModified, Path target) {
+        this.listedKeys.add(key);
+        this.listedFiles.add(target.toAbsolutePath().normalize());
+        Entry e = this.entries.get(key);
+        etag = etag == null || etag.isEmpty() ? "-" : etag;
+        if (e != null && e.size == size && e.etag.equals(etag) && e.lastModified == lastModified && isIntact(target, e)) {
+            this.unchangedFiles++;
+            this.unchangedBytes += size;
+            return true;
+        }
+        this.pending.put(key, new Entry(size, etag, lastModified, 0));
+        return false;
+    }
+
+    private static boolean isIntact(Path target, Entry e) {
+        try {
+            Path journal = target.resolveSibling(target.getFileName().toString() + PartJournal.SUFFIX);
+            return Files.isRegularFile(target) && !Files.exists(journal) && Files.size(target) == e.size
+                    && Files.getLastModifiedTime(target).toMillis() == e.localModified;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Record a key whose file has been downloaded completely.
+     */
+    public synchronized void completed(String key, Path target) {
+        Entry e = this.pending.remove(key);
+        if (e == null || key.indexOf('\n') >= 0 || key.indexOf('\r') >= 0 || !Files.isRegularFile(target)) {
+            return;
+        }
+        this.downloadedFiles++;
+        try {
+            e.localModified = Files.getLastModifiedTime(target).toMillis();
+            this.entries.put(key, e);
+            write(this.out, key, e);
+            this.out.flush();
+        } catch (IOException ex) {
+            log.warn("Failed to update sync state {}. Reason: {}", this.stateFile, ex.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Delete all files below the directory that do not belong to a listed key.
+     *
+     * @return Number of deleted files.
+     */
+    public synchronized long deleteExtraneous(Path directory) throws IOException {
+        long[] deleted = new long[1];
+        Path stateTmp = this.stateFile.resolveSibling(FILENAME + ".tmp");
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path normalized = file.toAbsolutePath().normalize();
+                if (attrs.isRegularFile() && !file.equals(SyncState.this.stateFile) && !file.equals(stateTmp)
+                        && !SyncState.this.listedFiles.contains(normalized)) {
+                    log.debug("Deleting extraneous file: {}", file);
+                    Files.delete(file);
+                    deleted[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return deleted[0];
+    }
+
+    /**
+     * Compact the state file, keys that have not been listed are dropped.
+     */
+    public synchronized void close() throws IOException {
+        this.out.close();
+        rewrite(true);
+        this.out.close();
+    }
+
+    public synchronized long getListedCount() {
+        return this.listedKeys.size();
+    }
+
+    public synchronized long getUnchangedFiles() {
+        return this.unchangedFiles;
+    }
+
+    public synchronized long getUnchangedBytes() {
+        return this.unchangedBytes;
+    }
+
+    public synchronized long getDownloadedFiles() {
+        return this.downloadedFiles;
+    }
+
+    private static class Entry {
+        final long size;
+        final String etag;
+        final long lastModified;
+        long localModified;
+
+        Entry(long size, String etag, long lastModified, long localModified) {
+            this.size = size;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.localModified = localModified;
+        }
+    }
+}
@@ -4,6 +4,9 @@ import com.amazonaws.services.s3.AmazonS3;
 
 import java.util.concurrent.Callable;
 
+import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+import de.unibi.cebitec.aws.s3.transfer.util.ProgressReporter;
+import de.unibi.cebitec.aws.s3.transfer.util.Throttling;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,18 +26,32 @@ public class TransferDownloadThread implements Callable<Void> {
 
     @Override
     public Void call() {
+        long start = System.nanoTime();
+        Measurements.transferStarted();
+        ProgressReporter.fileStarted(this.chunk.getKey());
         for (int i = 0; i < this.retryCount; i++) {
             try {
                 this.chunk.download(this.s3, this.bucketName);
+                Measurements.CHUNK_DURATION.record(System.nanoTime() - start);
                 break;
             } catch (Exception e) {
                 log.warn("Chunk download failed! Retrying.... ({})", e.toString());
+                Measurements.countError();
+                ProgressReporter.attemptFailed(this.chunk.getKey(), i + 1, i < this.retryCount - 1, e);
+                if (i < this.retryCount - 1) {
+                    Measurements.countRetry();
+                    // retrying a throttled request right away only makes the throttling worse
+                    if (Throttling.isThrottling(e)) {
+                        Throttling.backOff(i);
+                    }
+                }
             }
             if (i == this.retryCount - 1) {
                 log.error("Chunk download failed after {} retries. Exiting...", i);
                 System.exit(1);
             }
         }
+        Measurements.transferEnded();
         return null;
     }
 }
@@ -0,0 +1,61 @@
+package de.unibi.cebitec.aws.s3.transfer.model.down;
+
+import java.util.Locale;
+
+/**
+ * Ways of writing the parts of a multipart download to the output file (see {@link PartWriter}).
+ */
+public enum WriteBackend {
+    /**
+     * Positional writes from a 64KB heap buffer.
+     */
+    CHANNEL,
+    /**
+     * Positional writes of 1MB blocks from pooled direct buffers.
+     */
+    DIRECT,
+    /**
+     * Copies into memory mapped windows of the output file.
+     */
+    MMAP;
+
+    /**
+     * @param durable true if written parts have to be flushed to disk together with the channel (resume journal).
+     */
+    public PartWriter newWriter(PartSink out, boolean durable) {
+        switch (this) {
+            case DIRECT:
+                return new PartWriter.Direct(out);
+            case MMAP:
+                if (!(out instanceof FileSink)) {
+                    throw new IllegalArgumentException("Only output files can be memory mapped.");
+                }
+                return new PartWriter.Mapped((FileSink) out, durable);
+            case CHANNEL:
+            default:
+                return new PartWriter.Channel(out);
+        }
+    }
+
+    /**
+     * @return Maximum number of bytes the writers of this backend read as one block.
+     */
+    public int getBlockSize() {
+        switch (this) {
+            case DIRECT:
+                return PartWriter.Direct.BLOCK_SIZE;
+            case MMAP:
+            case CHANNEL:
+            default:
+                return AbstractDownloadPart.COPY_BUFFER_SIZE;
+        }
+    }
+
+    /**
+     * @param name Case insensitive name of a backend.
+     * @throws IllegalArgumentException if there is no such backend.
+     */
+    public static WriteBackend fromName(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -6,4 +6,17 @@ public interface IDownloadChunkUrl extends IDownloadChunk{
 
     public void download(String url) throws Exception;
 
+    /**
+     * Download from one of several equivalent URLs.
+     */
+    public default void download(MirrorSet mirrors) throws Exception {
+        MirrorSet.Source source = mirrors.pick();
+        try {
+            download(source.getUrl());
+        } catch (Exception e) {
+            mirrors.failed(source, e);
+            throw e;
+        }
+    }
+
 }
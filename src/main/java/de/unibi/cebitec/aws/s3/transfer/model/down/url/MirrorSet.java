@@ -0,0 +1,207 @@
+package de.unibi.cebitec.aws.s3.transfer.model.down.url;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Equivalent URLs of the same file. Every request goes to a source chosen at random, weighted by the throughput the
+ * source has delivered recently, so faster mirrors serve more ranges. Sources that keep failing or are much slower
+ * than the best one are dropped, the last source is always kept.
+ */
+public class MirrorSet {
+    public static final Logger log = LoggerFactory.getLogger(MirrorSet.class);
+    // weight of the latest measurement in the moving average
+    private static final double ALPHA = 0.3;
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    // requests of every source before slow ones are dropped
+    private static final int MIN_SAMPLES = 3;
+    // sources below this fraction of the best throughput are dropped
+    private static final double SLOW_FRACTION = 0.2;
+    // all fields of the sources are guarded by this
+    private final List<Source> sources = new ArrayList<>();
+
+    public MirrorSet(List<String> urls) {
+        for (String url : urls) {
+            this.sources.add(new Source(url));
+        }
+    }
+
+    /**
+     * @return The source for the next request.
+     */
+    public synchronized Source pick() {
+        List<Source> active = getActive();
+        double best = 0;
+        for (Source s : active) {
+            best = Math.max(best, s.throughput);
+        }
+        // sources without measurements get the best weight, so they are tried
+        double[] weights = new double[active.size()];
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            Source s = active.get(i);
+            weights[i] = s.samples == 0 || best == 0 ? Math.max(1, best) : s.throughput;
+            total += weights[i];
+        }
+        double r = ThreadLocalRandom.current().nextDouble() * total;
+        for (int i = 0; i < weights.length; i++) {
+            r -= weights[i];
+            if (r < 0) {
+                return active.get(i);
+            }
+        }
+        return active.get(active.size() - 1);
+    }
+
+    private List<Source> getActive() {
+        List<Source> active = new ArrayList<>();
+        for (Source s : this.sources) {
+            if (!s.dropped) {
+                active.add(s);
+            }
+        }
+        return active;
+    }
+
+    /**
+     * Wrap the body of a response to measure the throughput of its source. The measurement is taken when the stream
+     * is closed, a failed read counts as a failure of the source unless the request has been cancelled.
+     */
+    public MeasuredStream measure(Source source, InputStream content) {
+        return new MeasuredStream(source, content);
+    }
+
+    private synchronized void finished(Source source, long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0) {
+            return;
+        }
+        double throughput = bytes * 1e9 / nanos;
+        source.throughput = source.samples == 0 ? throughput : ALPHA * throughput + (1 - ALPHA) * source.throughput;
+        source.samples++;
+        source.failures = 0;
+        dropSlow();
+    }
+
+    /**
+     * Count a failed request. A source is dropped after several failures in a row.
+     */
+    public synchronized void failed(Source source, Exception e) {
+        source.failures++;
+        log.debug("Request to {} failed: {}", source.url, e.toString());
+        if (source.failures >= MAX_CONSECUTIVE_FAILURES) {
+            drop(source, "failed " + source.failures + " times in a row");
+        }
+    }
+
+    private void dropSlow() {
+        List<Source> active = getActive();
+        double best = 0;
+        for (Source s : active) {
+            if (s.samples < MIN_SAMPLES) {
+                return;
+            }
+            best = Math.max(best, s.throughput);
+        }
+        for (Source s : active) {
+            if (s.throughput < best * SLOW_FRACTION) {
+                drop(s, String.format("delivers %.0f B/s, the best one %.0f B/s", s.throughput, best));
+            }
+        }
+    }
+
+    private void drop(Source source, String reason) {
+        if (source.dropped || getActive().size() <= 1) {
+            return;
+        }
+        source.dropped = true;
+        log.warn("Dropping mirror {}: It {}.", source.url, reason);
+    }
+
+    /**
+     * Log the throughput of all sources.
+     */
+    public synchronized void report() {
+        for (Source s : this.sources) {
+            log.info("Mirror {}: {} requests, {} MB/s{}", s.url, s.samples, String.format("%.2f", s.throughput / 1048576),
+                    s.dropped ? " (dropped)" : "");
+        }
+    }
+
+    public class MeasuredStream extends FilterInputStream {
+        private final Source source;
+        private final long start = System.nanoTime();
+        private long bytes;
+        private volatile boolean cancelled;
+        private boolean failed;
+
+        MeasuredStream(Source source, InputStream content) {
+            super(content);
+            this.source = source;
+        }
+
+        /**
+         * Mark the request as cancelled by the caller, so the following read errors are not held against the source.
+         */
+        public void cancel() {
+            this.cancelled = true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    this.bytes += n;
+                }
+                return n;
+            } catch (IOException e) {
+                if (!this.cancelled && !this.failed) {
+                    this.failed = true;
+                    failed(this.source, e);
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                // a cancelled request has not delivered its full range
+                if (!this.failed && !this.cancelled) {
+                    finished(this.source, this.bytes, System.nanoTime() - this.start);
+                }
+            }
+        }
+    }
+
+    public static class Source {
+        private final String url;
+        private double throughput;
+        private int samples;
+        private int failures;
+        private boolean dropped;
+
+        Source(String url) {
+            this.url = url;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+    }
+}
@@ -2,6 +2,10 @@ package de.unibi.cebitec.aws.s3.transfer.model.down.url;
 
 import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
 import de.unibi.cebitec.aws.s3.transfer.model.down.DownloadFile;
+import de.unibi.cebitec.aws.s3.transfer.model.down.RangeResponse;
+import de.unibi.cebitec.aws.s3.transfer.util.BandwidthLimiter;
+import de.unibi.cebitec.aws.s3.transfer.util.CountingInputStream;
+import de.unibi.cebitec.aws.s3.transfer.util.HttpTransport;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -9,11 +13,6 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,20 +28,18 @@ public class SingleUrlDownloadFile extends DownloadFile implements IDownloadChun
 
     @Override
     public void download(String url) throws Exception {
-        HttpClient httpClient = HttpClientBuilder.create().build();
-        HttpGet httpGet = new HttpGet(url);
-        HttpResponse httpResponse = httpClient.execute(httpGet);
-        HttpEntity httpEntity = httpResponse.getEntity();
-
+        RangeResponse response = HttpTransport.get().get(url);
 
         log.debug("Starting download of single file: {}", url);
-        try (InputStream in = httpEntity.getContent()) {
+        CountingInputStream counter = new CountingInputStream(response.getContent());
+        try {
+            InputStream in = BandwidthLimiter.DOWNLOADS.wrap(counter);
             Path parentDir = this.targetFile.getParent();
             if (parentDir != null) {
                 parentDir.toFile().mkdirs();
             }
             if (!this.targetFile.toFile().isDirectory()) {
-                long bytesRead = Files.copy(in, this.targetFile, StandardCopyOption.REPLACE_EXISTING);
+                long bytesRead = Files.copy(this.checksum != null ? this.checksum.wrap(in) : in, this.targetFile, StandardCopyOption.REPLACE_EXISTING);
                 if (bytesRead != this.size) {
                     throw new IOException("File transfer of file '" + this.targetFile + "' has been interrupted!");
                 }
@@ -51,10 +48,12 @@ public class SingleUrlDownloadFile extends DownloadFile implements IDownloadChun
             log.debug("Download done: Single file: {}", url);
         } catch (IOException e) {
             log.debug("Failed to save single file to disk. Reason: {}  ; Filename: {}", e.getClass().getSimpleName(), this.targetFile);
+            response.abort();
+            // the next attempt downloads the whole file again
+            counter.discard();
             throw e;
         } finally {
-            httpGet.abort();
-            httpClient.getConnectionManager().shutdown();
+            response.close();
         }
     }
 
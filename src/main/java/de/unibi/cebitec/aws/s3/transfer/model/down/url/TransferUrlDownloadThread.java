@@ -1,6 +1,9 @@
 package de.unibi.cebitec.aws.s3.transfer.model.down.url;
 
 import de.unibi.cebitec.aws.s3.transfer.model.down.*;
+import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+import de.unibi.cebitec.aws.s3.transfer.util.ProgressReporter;
+import de.unibi.cebitec.aws.s3.transfer.util.Throttling;
 import com.amazonaws.services.s3.AmazonS3;
 import java.util.concurrent.Callable;
 import org.slf4j.Logger;
@@ -10,6 +13,7 @@ public class TransferUrlDownloadThread implements Callable<Void> {
 
     public static final Logger log = LoggerFactory.getLogger(TransferDownloadThread.class);
     private String url;
+    private MirrorSet mirrors;
     private IDownloadChunkUrl chunk;
     private int retryCount;
 
@@ -19,20 +23,47 @@ public class TransferUrlDownloadThread implements Callable<Void> {
         this.retryCount = retryCount;
     }
 
+    /**
+     * Download from several equivalent URLs.
+     */
+    public TransferUrlDownloadThread(MirrorSet mirrors, IDownloadChunkUrl chunk, int retryCount) {
+        this.mirrors = mirrors;
+        this.chunk = chunk;
+        this.retryCount = retryCount;
+    }
+
     @Override
     public Void call() {
+        long start = System.nanoTime();
+        Measurements.transferStarted();
+        ProgressReporter.fileStarted(this.chunk.getKey());
         for (int i = 0; i < this.retryCount; i++) {
             try {
-                this.chunk.download(this.url);
+                if (this.mirrors != null) {
+                    this.chunk.download(this.mirrors);
+                } else {
+                    this.chunk.download(this.url);
+                }
+                Measurements.CHUNK_DURATION.record(System.nanoTime() - start);
                 break;
             } catch (Exception e) {
                 log.warn("Chunk download failed! Retrying.... ({})", e.toString());
+                Measurements.countError();
+                ProgressReporter.attemptFailed(this.chunk.getKey(), i + 1, i < this.retryCount - 1, e);
+                if (i < this.retryCount - 1) {
+                    Measurements.countRetry();
+                    // retrying a throttled request right away only makes the throttling worse
+                    if (Throttling.isThrottling(e)) {
+                        Throttling.backOff(i);
+                    }
+                }
             }
             if (i == this.retryCount - 1) {
                 log.error("Chunk download failed after {} retries. Exiting...", i);
                 System.exit(1);
             }
         }
+        Measurements.transferEnded();
         return null;
     }
 }
@@ -6,17 +6,14 @@ import com.amazonaws.services.s3.model.S3Object;
 import de.unibi.cebitec.aws.s3.transfer.BiBiS3;
 import de.unibi.cebitec.aws.s3.transfer.model.down.DownloadPart;
 import de.unibi.cebitec.aws.s3.transfer.model.down.MultipartDownloadFile;
+import de.unibi.cebitec.aws.s3.transfer.model.down.RangeResponse;
+import de.unibi.cebitec.aws.s3.transfer.util.HttpTransport;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -145,24 +142,13 @@ public class Fastq {
 
                 log.debug("Requesting data sample in range [{},{}]", start, end);
 
-                HttpClient httpClient = HttpClientBuilder.create().build();
-                HttpGet httpGet = new HttpGet(url);
-                httpGet.addHeader("Range", "bytes=" + start + "-" + end);
-
-                try {
-                    HttpResponse httpResponse = httpClient.execute(httpGet);
-                    HttpEntity httpEntity = httpResponse.getEntity();
-
-                    try (ReadableByteChannel in = Channels.newChannel(httpEntity.getContent())) {
-                        ByteBuffer buffer = ByteBuffer.allocate(sampleSize);
-                        int read = in.read(buffer);
-                        log.debug("number of bytes read: {}", read);
-                        log.debug("byte array of sample data has {} bytes.", buffer.array().length);
-                        return buffer.array();
-                    } catch (Exception e) {
-                        log.warn("Unable to determine optimal fastq splits! Could not sample split areas. Exception: {}", e);
-                        log.warn("Retrying...");
-                    }
+                try (RangeResponse response = HttpTransport.get().getRange(url, start, end);
+                     ReadableByteChannel in = Channels.newChannel(response.getContent())) {
+                    ByteBuffer buffer = ByteBuffer.allocate(sampleSize);
+                    int read = in.read(buffer);
+                    log.debug("number of bytes read: {}", read);
+                    log.debug("byte array of sample data has {} bytes.", buffer.array().length);
+                    return buffer.array();
                 } catch (Exception e) {
                     log.warn("Unable to determine optimal fastq splits! Could not sample split areas. Exception: {}", e);
                     log.warn("Retrying...");
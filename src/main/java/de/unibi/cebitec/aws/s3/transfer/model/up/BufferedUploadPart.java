@@ -0,0 +1,82 @@
+package de.unibi.cebitec.aws.s3.transfer.model.up;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+import de.unibi.cebitec.aws.s3.transfer.util.BandwidthLimiter;
+import de.unibi.cebitec.aws.s3.transfer.util.RequestMetrics;
+
+import java.io.ByteArrayInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Part of a multipart upload whose data is held in memory, e.g. because it has been read from a stream.
+ */
+public class BufferedUploadPart implements IUploadChunk {
+    public static final Logger log = LoggerFactory.getLogger(BufferedUploadPart.class);
+    private final String key;
+    private final String uploadId;
+    private final int partNumber;
+    private final byte[] buffer;
+    private final int length;
+    private PartETag tag;
+
+    public BufferedUploadPart(String key, String uploadId, int partNumber, byte[] buffer, int length) {
+        this.key = key;
+        this.uploadId = uploadId;
+        this.partNumber = partNumber;
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    @Override
+    public long getSize() {
+        return length;
+    }
+
+    @Override
+    public void upload(AmazonS3 s3, String bucketName) {
+        UploadPartRequest uploadRequest = new UploadPartRequest()
+                .withBucketName(bucketName)
+                .withKey(key)
+                .withUploadId(uploadId)
+                .withPartNumber(partNumber)
+                .withInputStream(BandwidthLimiter.UPLOADS.wrap(new ByteArrayInputStream(buffer, 0, length)))
+                .withPartSize(length);
+        uploadRequest.setGeneralProgressListener(new RequestMetrics());
+        try {
+            log.debug("Starting upload of part {} of stream: {}", partNumber, key);
+            tag = s3.uploadPart(uploadRequest).getPartETag();
+            Measurements.countChunkAsFinished();
+            log.debug("Upload done: Part {} of stream: {}", partNumber, key);
+        } catch (AmazonClientException e) {
+            log.debug("Failed to upload part {} of stream: {} - Reason: {}", partNumber, key, e.toString());
+            throw e;
+        }
+    }
+
+    @Override
+    public String getKey() {
+        return key;
+    }
+
+    public int getPartNumber() {
+        return partNumber;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public PartETag getTag() {
+        return tag;
+    }
+}
@@ -6,4 +6,11 @@ import java.io.IOException;
 
 public interface IUploadChunk {
     void upload(AmazonS3 s3, String bucketName) throws IOException;
+
+    long getSize();
+
+    /**
+     * @return Key of the file the chunk belongs to.
+     */
+    String getKey();
 }
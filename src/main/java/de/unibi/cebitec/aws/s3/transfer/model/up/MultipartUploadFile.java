@@ -2,7 +2,10 @@ package de.unibi.cebitec.aws.s3.transfer.model.up;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
 import com.amazonaws.services.s3.model.PartETag;
+import de.unibi.cebitec.aws.s3.transfer.util.Crc32c;
+import de.unibi.cebitec.aws.s3.transfer.util.ETag;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -17,6 +20,7 @@ public class MultipartUploadFile extends UploadFile {
     protected String uploadId;
     private Queue<UploadPart> remainingParts;
     private List<UploadPart> registeredParts;
+    private int uploadedParts;
 
     public MultipartUploadFile(Path file, String key, final long initialPartSize) {
         super(file, key);
@@ -42,11 +46,36 @@ public class MultipartUploadFile extends UploadFile {
             tags.add(p.getTag());
         }
         CompleteMultipartUploadRequest compRequest = new CompleteMultipartUploadRequest(bucketName, key, uploadId, tags);
-        s3.completeMultipartUpload(compRequest);
+        CompleteMultipartUploadResult result = s3.completeMultipartUpload(compRequest);
         log.debug("Completed multipart upload of file: {}", key);
+        if (this.checksums) {
+            List<byte[]> digests = new ArrayList<>();
+            Long crc = this.computeCrc32c ? 0L : null;
+            for (UploadPart p : registeredParts) {
+                digests.add(p.getMd5());
+                if (crc != null) {
+                    crc = Crc32c.combine(crc, p.getCrc32c(), p.getPartSize());
+                }
+            }
+            synchronized (this) {
+                this.computedETag = ETag.of(digests, true);
+                this.crc32c = crc;
+            }
+        }
+        setResult(result.getETag(), result.getSSEAlgorithm(), result.getSSECustomerAlgorithm());
+    }
+
+    /**
+     * Count a part as uploaded.
+     *
+     * @return true if this was the last part of the file and the upload can be completed.
+     */
+    public synchronized boolean partUploaded() {
+        this.uploadedParts++;
+        return this.remainingParts.isEmpty() && this.uploadedParts == this.registeredParts.size();
     }
 
-    public boolean hasMoreParts() {
+    public synchronized boolean hasMoreParts() {
         return !remainingParts.isEmpty();
     }
 
@@ -54,7 +83,7 @@ public class MultipartUploadFile extends UploadFile {
         remainingParts.offer(part);
     }
 
-    public UploadPart next() {
+    public synchronized UploadPart next() {
         UploadPart currentPart = remainingParts.remove();
         registeredParts.add(currentPart);
         return currentPart;
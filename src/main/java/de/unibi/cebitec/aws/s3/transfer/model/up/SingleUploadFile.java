@@ -4,41 +4,93 @@ import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
 import com.amazonaws.services.s3.model.StorageClass;
 import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+import de.unibi.cebitec.aws.s3.transfer.util.BandwidthLimiter;
+import de.unibi.cebitec.aws.s3.transfer.util.ChecksumInputStream;
+import de.unibi.cebitec.aws.s3.transfer.util.ETag;
+import de.unibi.cebitec.aws.s3.transfer.util.FileRangeInputStream;
+import de.unibi.cebitec.aws.s3.transfer.util.RequestMetrics;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collections;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class SingleUploadFile extends UploadFile implements IUploadChunk {
     public static final Logger log = LoggerFactory.getLogger(SingleUploadFile.class);
+    private final long size;
     private final ObjectMetadata metadata;
     private final boolean reducedRedundancy;
+    private boolean computeSha256;
 
-    public SingleUploadFile(Path file, String key, ObjectMetadata metadata, boolean reducedRedundancy) {
+    public SingleUploadFile(Path file, String key, long size, ObjectMetadata metadata, boolean reducedRedundancy) {
         super(file, key);
+        this.size = size;
         this.metadata = metadata;
         this.reducedRedundancy = reducedRedundancy;
     }
 
+    /**
+     * Compute the SHA-256 digest of the file while uploading (checksums have to be enabled).
+     */
+    public void setSha256(boolean sha256) {
+        this.computeSha256 = sha256;
+    }
+
+    @Override
+    public long getSize() {
+        return this.size;
+    }
+
     @Override
     public void upload(AmazonS3 s3, String bucketName) throws IOException {
+        InputStream in = null;
         try {
-            PutObjectRequest request = new PutObjectRequest(bucketName, key, Files.newInputStream(file), metadata);
+            PutObjectRequest request;
+            ChecksumInputStream checksumIn = null;
+            if (this.checksums) {
+                long size = Files.size(file);
+                checksumIn = new ChecksumInputStream(new FileRangeInputStream(file, 0, size), true, this.computeCrc32c, this.computeSha256);
+                in = BandwidthLimiter.UPLOADS.wrap(checksumIn);
+                ObjectMetadata objectMetadata = metadata.clone();
+                objectMetadata.setContentLength(size);
+                request = new PutObjectRequest(bucketName, key, in, objectMetadata);
+            } else {
+                in = BandwidthLimiter.UPLOADS.wrap(Files.newInputStream(file));
+                // without the length the client buffers the stream and fails to reset it
+                ObjectMetadata objectMetadata = metadata.clone();
+                objectMetadata.setContentLength(Files.size(file));
+                request = new PutObjectRequest(bucketName, key, in, objectMetadata);
+            }
             if (reducedRedundancy) {
                 request.setStorageClass(StorageClass.ReducedRedundancy);
             }
+            request.setGeneralProgressListener(new RequestMetrics());
             log.debug("Starting upload of single file: {}", key);
-            s3.putObject(request);
+            PutObjectResult result = s3.putObject(request);
+            if (checksumIn != null) {
+                synchronized (this) {
+                    this.computedETag = ETag.of(Collections.singletonList(checksumIn.getMd5()), false);
+                    this.crc32c = checksumIn.getCrc32c();
+                    this.sha256 = checksumIn.getSha256();
+                }
+            }
+            setResult(result.getETag(), result.getSSEAlgorithm(), result.getSSECustomerAlgorithm());
             Measurements.countChunkAsFinished();
             log.debug("Upload done: Single file: {}", key);
         } catch (IOException | AmazonClientException e) {
             log.debug("Failed to upload single file: {} - Reason: {}", key, e.toString());
             throw e;
+        } finally {
+            if (in != null) {
+                in.close();
+            }
         }
     }
 }
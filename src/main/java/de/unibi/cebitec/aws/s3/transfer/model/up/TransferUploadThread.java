@@ -4,6 +4,9 @@ import com.amazonaws.services.s3.AmazonS3;
 
 import java.util.concurrent.Callable;
 
+import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+import de.unibi.cebitec.aws.s3.transfer.util.ProgressReporter;
+import de.unibi.cebitec.aws.s3.transfer.util.Throttling;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,18 +26,32 @@ public class TransferUploadThread implements Callable<Void> {
 
     @Override
     public Void call() throws Exception {
+        long start = System.nanoTime();
+        Measurements.transferStarted();
+        ProgressReporter.fileStarted(chunk.getKey());
         for (int i = 0; i < retryCount; i++) {
             try {
                 chunk.upload(s3, bucketName);
+                Measurements.CHUNK_DURATION.record(System.nanoTime() - start);
                 break;
             } catch (Exception e) {
                 log.warn("Chunk upload failed! Retrying... ({})", e.toString());
+                Measurements.countError();
+                ProgressReporter.attemptFailed(chunk.getKey(), i + 1, i < retryCount - 1, e);
+                if (i < retryCount - 1) {
+                    Measurements.countRetry();
+                    // retrying a throttled request right away only makes the throttling worse
+                    if (Throttling.isThrottling(e)) {
+                        Throttling.backOff(i);
+                    }
+                }
             }
             if (i == retryCount - 1) {
                 log.error("Chunk upload failed after {} retries. Exiting...", i);
                 System.exit(1);
             }
         }
+        Measurements.transferEnded();
         return null;
     }
 }
@@ -5,6 +5,14 @@ import java.nio.file.Path;
 public class UploadFile {
     protected Path file;
     protected String key;
+    // checksums computed while uploading, guarded by this
+    protected boolean checksums;
+    protected boolean computeCrc32c;
+    protected String etag;
+    protected String computedETag;
+    protected Long crc32c;
+    protected String sha256;
+    protected boolean encrypted;
 
     protected UploadFile(Path file, String key) {
         this.file = file;
@@ -18,4 +26,50 @@ public class UploadFile {
     public Path getFile() {
         return file;
     }
+
+    /**
+     * Compute the ETag of the data while uploading, optionally together with its CRC-32C.
+     */
+    public void setChecksums(boolean checksums, boolean crc32c) {
+        this.checksums = checksums;
+        this.computeCrc32c = crc32c;
+    }
+
+    public boolean isChecksums() {
+        return checksums;
+    }
+
+    /**
+     * @return ETag reported by S3.
+     */
+    public synchronized String getETag() {
+        return etag;
+    }
+
+    /**
+     * @return ETag computed from the uploaded data or null if checksums are disabled.
+     */
+    public synchronized String getComputedETag() {
+        return computedETag;
+    }
+
+    public synchronized Long getCrc32c() {
+        return crc32c;
+    }
+
+    public synchronized String getSha256() {
+        return sha256;
+    }
+
+    /**
+     * @return true if the object is encrypted with a customer or KMS managed key, its ETag is no MD5 digest then.
+     */
+    public synchronized boolean isEncrypted() {
+        return encrypted;
+    }
+
+    protected synchronized void setResult(String etag, String sseAlgorithm, String sseCustomerAlgorithm) {
+        this.etag = etag;
+        this.encrypted = "aws:kms".equals(sseAlgorithm) || sseCustomerAlgorithm != null;
+    }
 }
@@ -5,6 +5,14 @@ import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.UploadPartRequest;
 import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+import de.unibi.cebitec.aws.s3.transfer.util.BandwidthLimiter;
+import de.unibi.cebitec.aws.s3.transfer.util.ChecksumInputStream;
+import de.unibi.cebitec.aws.s3.transfer.util.FileRangeInputStream;
+import de.unibi.cebitec.aws.s3.transfer.util.RequestMetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,6 +23,10 @@ public class UploadPart implements IUploadChunk {
     private final long fileOffset;
     private final long partSize;
     private PartETag tag;
+    private byte[] md5;
+    private Long crc32c;
+    private InputStream content;
+    private ChecksumInputStream checksumIn;
 
     public UploadPart(MultipartUploadFile multipartUploadFile, int partNumber, long partSize, long fileOffset) {
         this.multipartUploadFile = multipartUploadFile;
@@ -24,24 +36,65 @@ public class UploadPart implements IUploadChunk {
     }
 
     @Override
-    public void upload(AmazonS3 s3, String bucketName) {
+    public void upload(AmazonS3 s3, String bucketName) throws IOException {
         UploadPartRequest uploadRequest = new UploadPartRequest()
                 .withBucketName(bucketName)
                 .withKey(multipartUploadFile.getKey())
                 .withUploadId(multipartUploadFile.getUploadId())
                 .withPartNumber(partNumber)
-                .withFileOffset(fileOffset)
-                .withFile(multipartUploadFile.file.toFile())
                 .withPartSize(partSize);
+        uploadRequest.setGeneralProgressListener(new RequestMetrics());
+        if (multipartUploadFile.isChecksums() || BandwidthLimiter.UPLOADS.isActive()) {
+            // read the part through a stream to compute its checksums or limit the rate on the way
+            uploadRequest.setInputStream(BandwidthLimiter.UPLOADS.wrap(openContent()));
+        } else {
+            uploadRequest.withFileOffset(fileOffset).setFile(multipartUploadFile.file.toFile());
+        }
         try {
             log.debug("Starting upload of part {} of file: {}", partNumber, multipartUploadFile.getKey());
-            tag = s3.uploadPart(uploadRequest).getPartETag();
-            Measurements.countChunkAsFinished();
-            log.debug("Upload done: Part {} of file: {}", partNumber, multipartUploadFile.getKey());
+            uploaded(s3.uploadPart(uploadRequest).getPartETag());
         } catch (AmazonClientException e) {
             log.debug("Failed to upload part {} of file: {} - Reason: {}", partNumber, multipartUploadFile.getKey(), e.toString());
             throw e;
+        } finally {
+            closeContent();
+        }
+    }
+
+    /**
+     * Open the bytes of this part for an upload attempt. They are read through a checksum stream if checksums are
+     * enabled, a previously opened stream is closed.
+     */
+    public synchronized InputStream openContent() throws IOException {
+        closeContent();
+        content = new FileRangeInputStream(multipartUploadFile.file, fileOffset, partSize);
+        if (multipartUploadFile.isChecksums()) {
+            checksumIn = new ChecksumInputStream(content, true, multipartUploadFile.computeCrc32c, false);
+            content = checksumIn;
+        }
+        return content;
+    }
+
+    public synchronized void closeContent() throws IOException {
+        if (content != null) {
+            content.close();
+            content = null;
+        }
+    }
+
+    /**
+     * Record the successful upload of this part. Takes the checksums from the stream of the last attempt.
+     */
+    public void uploaded(PartETag tag) {
+        synchronized (this) {
+            this.tag = tag;
+            if (checksumIn != null) {
+                md5 = checksumIn.getMd5();
+                crc32c = checksumIn.getCrc32c();
+            }
         }
+        Measurements.countChunkAsFinished();
+        log.debug("Upload done: Part {} of file: {}", partNumber, multipartUploadFile.getKey());
     }
 
     public int getPartNumber() {
@@ -56,10 +109,26 @@ public class UploadPart implements IUploadChunk {
         return partSize;
     }
 
-    public PartETag getTag() {
+    @Override
+    public long getSize() {
+        return partSize;
+    }
+
+    public synchronized PartETag getTag() {
         return tag;
     }
 
+    /**
+     * @return MD5 digest of the uploaded part or null if checksums are disabled.
+     */
+    public synchronized byte[] getMd5() {
+        return md5;
+    }
+
+    public synchronized Long getCrc32c() {
+        return crc32c;
+    }
+
     public void setTag(PartETag tag) {
         this.tag = tag;
     }
@@ -67,4 +136,9 @@ public class UploadPart implements IUploadChunk {
     public MultipartUploadFile getMultipartUploadFile() {
         return multipartUploadFile;
     }
+
+    @Override
+    public String getKey() {
+        return multipartUploadFile.getKey();
+    }
 }
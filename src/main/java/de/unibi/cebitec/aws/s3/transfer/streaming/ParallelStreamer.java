@@ -0,0 +1,239 @@
+package de.unibi.cebitec.aws.s3.transfer.streaming;
+
+import com.amazonaws.services.s3.AmazonS3;
+import de.unibi.cebitec.aws.s3.transfer.ctrl.PartStealer;
+import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+import de.unibi.cebitec.aws.s3.transfer.model.down.DownloadPart;
+import de.unibi.cebitec.aws.s3.transfer.model.down.HedgingPolicy;
+import de.unibi.cebitec.aws.s3.transfer.model.down.IDownloadChunk;
+import de.unibi.cebitec.aws.s3.transfer.model.down.IDownloadChunkS3;
+import de.unibi.cebitec.aws.s3.transfer.model.down.RangeResponse;
+import de.unibi.cebitec.aws.s3.transfer.model.down.TransferDownloadThread;
+import de.unibi.cebitec.aws.s3.transfer.model.down.WriteBackend;
+import de.unibi.cebitec.aws.s3.transfer.model.down.url.IDownloadChunkUrl;
+import de.unibi.cebitec.aws.s3.transfer.model.down.url.TransferUrlDownloadThread;
+import de.unibi.cebitec.aws.s3.transfer.util.BandwidthLimiter;
+import de.unibi.cebitec.aws.s3.transfer.util.HttpTransport;
+import de.unibi.cebitec.aws.s3.transfer.util.ProgressReporter;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streaming download with several threads. The parts of the file are downloaded concurrently into a bounded
+ * {@link ReorderWindow} and written to the target in order, so the target may be a pipe or STDOUT. A part is only
+ * started once it fits into the window, which caps the memory used no matter how far the parts run ahead of the
+ * output.
+ * <p>
+ * Progress info is printed like {@link Streamer} does: "overall written" bytes every 5 seconds.
+ */
+public class ParallelStreamer {
+    public static final Logger log = LoggerFactory.getLogger(ParallelStreamer.class);
+    /**
+     * Target name that stands for STDOUT.
+     */
+    public static final String STDOUT = "-";
+    public static final int DEFAULT_WINDOW_SIZE = 268435456; // 256MB
+    private static final long MIN_PART_SIZE = 1048576; // 1MB
+    private static final int RETRIES = 6;
+    private final String key;
+    private final Path targetFile;
+    private final int numberOfThreads;
+    private final long chunkSize;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private HedgingPolicy hedgingPolicy;
+    private WriteBackend writeBackend = WriteBackend.CHANNEL;
+    private PartStealer partStealer = new PartStealer();
+
+    /**
+     * @param targetFile File or named pipe to write to, {@link #STDOUT} for STDOUT.
+     * @param chunkSize  Maximum part size. Parts are made smaller if the window would not hold two parts per thread.
+     */
+    public ParallelStreamer(String key, Path targetFile, int numberOfThreads, long chunkSize) {
+        this.key = key;
+        this.targetFile = targetFile;
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+        this.chunkSize = chunkSize;
+    }
+
+    public void download(AmazonS3 s3, String bucketName) throws Exception {
+        long size = s3.getObjectMetadata(bucketName, this.key).getContentLength();
+        stream(size, true, chunk -> new TransferDownloadThread(s3, bucketName, (IDownloadChunkS3) chunk, RETRIES).call());
+    }
+
+    public void download(String url) throws Exception {
+        long size = HttpTransport.get().probe(url).getSize();
+        if (size < 0) {
+            // without a length the file can't be split into ranges
+            log.warn("Size of {} is unknown, streaming it with a single request.", this.key);
+            Measurements.setOverallChunks(1);
+            Measurements.start();
+            ProgressReporter.runStarted("parallel-stream-download", 1);
+            try (RangeResponse response = HttpTransport.get().get(url); OutputStream out = openOutput()) {
+                copy(BandwidthLimiter.DOWNLOADS.wrap(response.getContent()), out);
+            }
+            Measurements.countChunkAsFinished();
+            Measurements.stop();
+            ProgressReporter.fileCompleted(this.key, getReportedPath(), Measurements.getTransferredBytes(), null, null, null, true);
+            return;
+        }
+        stream(size, false, chunk -> new TransferUrlDownloadThread(url, (IDownloadChunkUrl) chunk, RETRIES).call());
+    }
+
+    private void stream(long size, boolean s3, ChunkTransfer transfer) throws Exception {
+        ReorderWindow window = new ReorderWindow(size, this.windowSize);
+        long partSize = Math.min(this.chunkSize, Math.max(MIN_PART_SIZE, window.getCapacity() / (2L * this.numberOfThreads)));
+        partSize = Math.max(1, Math.min(partSize, window.getCapacity()));
+        StreamingDownloadFile file = new StreamingDownloadFile(this.key, this.targetFile, size, s3, partSize, window);
+        file.setHedgingPolicy(this.hedgingPolicy);
+        file.setWriteBackend(this.writeBackend);
+        log.debug("Starting parallel streaming of {} ({} bytes) with a window of {} bytes and parts of {} bytes.",
+                this.key, size, window.getCapacity(), partSize);
+        Measurements.setOverallBytes(size);
+        Measurements.setOverallChunks((size + partSize - 1) / partSize);
+        Measurements.start();
+        ProgressReporter.runStarted("parallel-stream-download", this.numberOfThreads);
+
+        ExecutorService threading = Executors.newFixedThreadPool(this.numberOfThreads, r -> {
+            Thread t = new Thread(r, "streaming-download");
+            t.setDaemon(true);
+            return t;
+        });
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < this.numberOfThreads; i++) {
+            futures.add(threading.submit(() -> {
+                DownloadPart part;
+                while ((part = nextPart(file)) != null) {
+                    // parts are handed out in order, so the part the output waits for is always running
+                    window.awaitSpace(part.getOutputOffset() + part.getPartSize());
+                    downloadChunk(part, transfer);
+                }
+                IDownloadChunk chunk;
+                while (this.partStealer != null && (chunk = this.partStealer.steal()) != null) {
+                    downloadChunk(chunk, transfer);
+                }
+                return null;
+            }));
+        }
+
+        Timer timer = new Timer(true);
+        if (!ProgressReporter.isEnabled()) {
+            timer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    System.out.println(new StringBuilder().append(size).append(" ").append(window.getEmittedBytes()));
+                }
+            }, 5000, 5000);
+        }
+        try (OutputStream out = openOutput()) {
+            window.emitTo(out);
+        } catch (IOException e) {
+            log.error("Failed to stream file: {}", e.getMessage());
+            System.exit(100);
+        } finally {
+            timer.cancel();
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException | InterruptedException e) {
+                log.error("Error while waiting for running thread. ({})", e.getMessage());
+            }
+        }
+        threading.shutdown();
+        if (this.hedgingPolicy != null) {
+            this.hedgingPolicy.shutdown();
+        }
+        Measurements.stop();
+        ProgressReporter.fileCompleted(this.key, getReportedPath(), window.getEmittedBytes(), null, null, null, true);
+        log.debug("Download done: Streamed file: {}", this.key);
+    }
+
+    private static DownloadPart nextPart(StreamingDownloadFile file) {
+        synchronized (file) {
+            return file.hasMoreParts() ? file.next() : null;
+        }
+    }
+
+    private void downloadChunk(IDownloadChunk chunk, ChunkTransfer transfer) throws Exception {
+        if (this.partStealer != null) {
+            this.partStealer.started(chunk);
+        }
+        try {
+            transfer.download(chunk);
+        } finally {
+            if (this.partStealer != null) {
+                this.partStealer.finished(chunk);
+            }
+        }
+    }
+
+    private OutputStream openOutput() throws IOException {
+        if (this.targetFile.toString().equals(STDOUT)) {
+            return new FileOutputStream(FileDescriptor.out);
+        }
+        return Files.newOutputStream(this.targetFile);
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[65536];
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) != -1) {
+            out.write(buffer, 0, bytesRead);
+            Measurements.addTransferredBytes(bytesRead);
+        }
+    }
+
+    /**
+     * @return The target file, null for STDOUT.
+     */
+    private Path getReportedPath() {
+        return this.targetFile.toString().equals(STDOUT) ? null : this.targetFile;
+    }
+
+    /**
+     * @param windowSize Maximum number of bytes held in memory that have been downloaded but not written yet.
+     */
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+    }
+
+    /**
+     * Select how the parts are copied into the window. Memory mapping is not possible, 'direct' is used instead.
+     */
+    public void setWriteBackend(WriteBackend writeBackend) {
+        if (writeBackend == WriteBackend.MMAP) {
+            log.warn("The mmap write backend can't be used for streaming downloads. Using direct instead.");
+            writeBackend = WriteBackend.DIRECT;
+        }
+        this.writeBackend = writeBackend;
+    }
+
+    public void setSplitSlowChunks(boolean splitSlowChunks) {
+        this.partStealer = splitSlowChunks ? new PartStealer() : null;
+    }
+
+    private interface ChunkTransfer {
+        void download(IDownloadChunk chunk) throws Exception;
+    }
+}
@@ -0,0 +1,134 @@
+package de.unibi.cebitec.aws.s3.transfer.streaming;
+
+import de.unibi.cebitec.aws.s3.transfer.model.down.PartSink;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Bounded in-memory window over a file that is downloaded in parallel and emitted in order. Parts write to their
+ * absolute positions through {@link #write(ByteBuffer, long)} like they do into an output file, so the regular download
+ * parts can be used. Only the range [emitted, emitted + capacity) can be written, a part may start once its range
+ * fits into the window (see {@link #awaitSpace(long)}). Finished ranges are emitted in order as soon as they are
+ * contiguous with the bytes emitted before, which frees the space for the following parts.
+ */
+public class ReorderWindow implements PartSink {
+    private static final int MAX_EMIT_SIZE = 8388608; // 8MB
+    private final byte[] ring;
+    private final long size;
+    // the following fields are guarded by this
+    private long emitted;
+    // finished ranges (start -> end) that have not been emitted yet
+    private final TreeMap<Long, Long> finished = new TreeMap<>();
+
+    /**
+     * @param size     Size of the file.
+     * @param capacity Maximum number of bytes held in memory.
+     */
+    public ReorderWindow(long size, int capacity) {
+        this.size = size;
+        this.ring = new byte[(int) Math.min(capacity, Math.max(size, 1))];
+    }
+
+    public int getCapacity() {
+        return this.ring.length;
+    }
+
+    /**
+     * Wait until all bytes before {@code end} fit into the window.
+     */
+    public synchronized void awaitSpace(long end) throws InterruptedException {
+        while (end > this.emitted + this.ring.length) {
+            wait();
+        }
+    }
+
+    /**
+     * Mark a range as completely written.
+     */
+    public synchronized void finished(long offset, long length) {
+        if (length <= 0) {
+            return;
+        }
+        long start = offset;
+        long end = offset + length;
+        Map.Entry<Long, Long> before = this.finished.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> next;
+        while ((next = this.finished.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            this.finished.remove(next.getKey());
+        }
+        this.finished.put(start, end);
+        notifyAll();
+    }
+
+    /**
+     * Write all bytes of the file to the output stream in order. Returns once the whole file has been emitted.
+     */
+    public void emitTo(OutputStream out) throws IOException, InterruptedException {
+        long pos = 0;
+        while (pos < this.size) {
+            long end;
+            synchronized (this) {
+                Map.Entry<Long, Long> first;
+                while ((first = this.finished.firstEntry()) == null || first.getKey() > this.emitted) {
+                    wait();
+                }
+                end = Math.min(first.getValue(), this.emitted + MAX_EMIT_SIZE);
+            }
+            // the range [pos, end) is finished and is not written anymore until it has been emitted
+            while (pos < end) {
+                int index = (int) (pos % this.ring.length);
+                int length = (int) Math.min(end - pos, this.ring.length - index);
+                out.write(this.ring, index, length);
+                pos += length;
+            }
+            synchronized (this) {
+                this.emitted = pos;
+                Map.Entry<Long, Long> first = this.finished.pollFirstEntry();
+                if (first.getValue() > pos) {
+                    this.finished.put(pos, first.getValue());
+                }
+                notifyAll();
+            }
+        }
+        out.flush();
+    }
+
+    public synchronized long getEmittedBytes() {
+        return this.emitted;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src, long position) throws IOException {
+        int length = src.remaining();
+        if (position < this.emitted) {
+            // late write of a request that lost a race (hedged or split part), the bytes have been emitted already
+            ((Buffer) src).position(src.limit());
+            return length;
+        }
+        if (position + length > this.emitted + this.ring.length) {
+            throw new IOException("Write beyond the reorder window at position " + position + ".");
+        }
+        long pos = position;
+        while (src.hasRemaining()) {
+            int index = (int) (pos % this.ring.length);
+            int n = Math.min(src.remaining(), this.ring.length - index);
+            src.get(this.ring, index, n);
+            pos += n;
+        }
+        return length;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,289 @@
+package de.unibi.cebitec.aws.s3.transfer.streaming;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.StorageClass;
+import de.unibi.cebitec.aws.s3.transfer.ctrl.ChecksumVerifier;
+import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+import de.unibi.cebitec.aws.s3.transfer.model.up.BufferedUploadPart;
+import de.unibi.cebitec.aws.s3.transfer.model.up.IUploadChunk;
+import de.unibi.cebitec.aws.s3.transfer.model.up.TransferUploadThread;
+import de.unibi.cebitec.aws.s3.transfer.util.BandwidthLimiter;
+import de.unibi.cebitec.aws.s3.transfer.util.Crc32c;
+import de.unibi.cebitec.aws.s3.transfer.util.ETag;
+import de.unibi.cebitec.aws.s3.transfer.util.ProgressReporter;
+import de.unibi.cebitec.aws.s3.transfer.util.RequestMetrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Upload of a stream of unknown length (STDIN or a named pipe). The stream is cut into part sized buffers which are
+ * uploaded in parallel as soon as they are full. Buffers are taken from a bounded pool, so reading pauses while all
+ * buffers are waiting for their upload. The multipart upload is completed at the end of the stream. A stream that
+ * ends within the first part is uploaded with a single request.
+ */
+public class StreamUploader {
+    public static final Logger log = LoggerFactory.getLogger(StreamUploader.class);
+    /**
+     * Source name that stands for STDIN.
+     */
+    public static final String STDIN = "-";
+    // memory used for buffers that are read ahead of the running uploads
+    private static final long MAX_BUFFER_MEMORY = 536870912; // 512MB
+    private static final int MAX_PARTS = 10000; // dictated by s3
+    private static final int RETRIES = 6;
+    private final AmazonS3 s3;
+    private final InputStream in;
+    private final String bucketName;
+    private final String key;
+    private final int numberOfThreads;
+    private final int partSize;
+    private final ObjectMetadata metadata;
+    private final boolean reducedRedundancy;
+    private final BlockingQueue<byte[]> freeBuffers;
+    private final int maxBuffers;
+    private int allocatedBuffers;
+    // checksums of the stream, computed by the reading thread
+    private ChecksumVerifier checksumVerifier;
+    private final List<byte[]> partDigests = new ArrayList<>();
+    private Crc32c crc32c;
+    private MessageDigest sha256;
+    private long streamSize;
+
+    public StreamUploader(AmazonS3 s3, InputStream in, String bucketName, String key, int numberOfThreads,
+                          long chunkSize, ObjectMetadata metadata, boolean reducedRedundancy) {
+        this.s3 = s3;
+        this.in = in;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+        this.partSize = (int) Math.min(chunkSize, Integer.MAX_VALUE - 8);
+        this.metadata = metadata;
+        this.reducedRedundancy = reducedRedundancy;
+        // one buffer per thread and one that is being filled, as far as the memory limit allows
+        this.maxBuffers = (int) Math.max(2, Math.min(this.numberOfThreads + 1, MAX_BUFFER_MEMORY / this.partSize));
+        this.freeBuffers = new ArrayBlockingQueue<>(this.maxBuffers);
+    }
+
+    public void upload() throws Exception {
+        log.info("== Uploading stream to {} with a chunk size of {} Bytes and up to {} buffers...", this.key, this.partSize, this.maxBuffers);
+        if (this.checksumVerifier != null) {
+            this.crc32c = this.checksumVerifier.isCrc32c() ? new Crc32c() : null;
+            this.sha256 = this.checksumVerifier.isSha256() ? ETag.newDigest("SHA-256") : null;
+        }
+        Measurements.start();
+        ProgressReporter.runStarted("stream-upload", this.numberOfThreads);
+        byte[] buffer = takeBuffer();
+        int length = readFully(buffer);
+        digest(buffer, length);
+        if (length < buffer.length) {
+            putSingle(buffer, length);
+        } else {
+            uploadParts(buffer);
+        }
+        Measurements.stop();
+        log.info("== Uploaded {} of data in 1 stream split into {} chunks.", Measurements.getOverallBytesFormatted(),
+                Measurements.getChunksFinishedCount());
+        log.info("Overall average upload speed: {}", Measurements.getEndResult());
+        Measurements.logSummary();
+        if (this.checksumVerifier != null && !this.checksumVerifier.finish()) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Update the checksums with the next part of the stream.
+     */
+    private void digest(byte[] buffer, int length) {
+        if (this.checksumVerifier == null) {
+            return;
+        }
+        MessageDigest md5 = ETag.newMd5();
+        md5.update(buffer, 0, length);
+        this.partDigests.add(md5.digest());
+        if (this.crc32c != null) {
+            this.crc32c.update(buffer, 0, length);
+        }
+        if (this.sha256 != null) {
+            this.sha256.update(buffer, 0, length);
+        }
+        this.streamSize += length;
+    }
+
+    /**
+     * Verify the checksums of the uploaded stream and report it.
+     */
+    private void check(String etag, boolean multipart, String sseAlgorithm, String sseCustomerAlgorithm) {
+        Long crc = this.crc32c == null ? null : this.crc32c.getValue();
+        String sha = this.sha256 == null ? null : ETag.toHex(this.sha256.digest());
+        boolean ok = true;
+        if (this.checksumVerifier != null) {
+            ok = this.checksumVerifier.checkUpload(this.key, null, this.streamSize, etag, ETag.of(this.partDigests, multipart),
+                    crc, sha, "aws:kms".equals(sseAlgorithm) || sseCustomerAlgorithm != null);
+        }
+        ProgressReporter.fileCompleted(this.key, null, Measurements.getOverallBytes(), etag, crc, sha, ok);
+    }
+
+    private void putSingle(byte[] buffer, int length) throws Exception {
+        Measurements.addToOverallBytes(length);
+        Measurements.addToOverallChunks(1);
+        ObjectMetadata objectMetadata = this.metadata.clone();
+        objectMetadata.setContentLength(length);
+        List<PutObjectResult> results = new ArrayList<>(1);
+        new TransferUploadThread(this.s3, this.bucketName, new IUploadChunk() {
+            @Override
+            public void upload(AmazonS3 s3, String bucketName) {
+                PutObjectRequest request = new PutObjectRequest(bucketName, key, BandwidthLimiter.UPLOADS.wrap(new ByteArrayInputStream(buffer, 0, length)), objectMetadata);
+                if (reducedRedundancy) {
+                    request.setStorageClass(StorageClass.ReducedRedundancy);
+                }
+                request.setGeneralProgressListener(new RequestMetrics());
+                log.debug("Starting upload of single stream: {}", key);
+                PutObjectResult result = s3.putObject(request);
+                results.add(result);
+                Measurements.countChunkAsFinished();
+                log.debug("Upload done: Single stream: {}", key);
+            }
+
+            @Override
+            public long getSize() {
+                return length;
+            }
+
+            @Override
+            public String getKey() {
+                return key;
+            }
+        }, RETRIES).call();
+        PutObjectResult result = results.get(0);
+        check(result.getETag(), false, result.getSSEAlgorithm(), result.getSSECustomerAlgorithm());
+    }
+
+    private void uploadParts(byte[] firstBuffer) throws Exception {
+        InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(this.bucketName, this.key, this.metadata);
+        if (this.reducedRedundancy) {
+            request.setStorageClass(StorageClass.ReducedRedundancy);
+        }
+        String uploadId = this.s3.initiateMultipartUpload(request).getUploadId();
+        log.debug("Started multipart upload of stream {} with upload id {}", this.key, uploadId);
+
+        ExecutorService threading = Executors.newFixedThreadPool(this.numberOfThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        List<BufferedUploadPart> parts = new ArrayList<>();
+        byte[] buffer = firstBuffer;
+        int length = buffer.length;
+        for (int partNumber = 1; length > 0; partNumber++) {
+            if (partNumber > MAX_PARTS) {
+                log.error("The stream needs more than {} parts. Use a larger chunk size.", MAX_PARTS);
+                System.exit(1);
+            }
+            BufferedUploadPart part = new BufferedUploadPart(this.key, uploadId, partNumber, buffer, length);
+            parts.add(part);
+            Measurements.addToOverallBytes(length);
+            Measurements.addToOverallChunks(1);
+            futures.add(threading.submit(() -> {
+                try {
+                    return new TransferUploadThread(this.s3, this.bucketName, part, RETRIES).call();
+                } finally {
+                    this.freeBuffers.offer(part.getBuffer());
+                }
+            }));
+            if (length < buffer.length) {
+                break;
+            }
+            buffer = takeBuffer();
+            length = readFully(buffer);
+            if (length > 0) {
+                digest(buffer, length);
+            }
+        }
+        if (length == 0) {
+            this.freeBuffers.offer(buffer);
+        }
+
+        //wait for threads to finish
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException | InterruptedException e) {
+                log.error("Error while waiting for running thread. ({})", e.getMessage());
+            }
+        }
+        threading.shutdown();
+
+        List<PartETag> tags = new ArrayList<>();
+        parts.sort(Comparator.comparingInt(BufferedUploadPart::getPartNumber));
+        for (BufferedUploadPart p : parts) {
+            tags.add(p.getTag());
+        }
+        try {
+            CompleteMultipartUploadResult result = this.s3.completeMultipartUpload(new CompleteMultipartUploadRequest(this.bucketName, this.key, uploadId, tags));
+            log.debug("Completed multipart upload of stream: {}", this.key);
+            check(result.getETag(), true, result.getSSEAlgorithm(), result.getSSECustomerAlgorithm());
+        } catch (AmazonClientException e) {
+            log.error("Failed to complete multipart upload of stream: {} - Reason: {}", this.key, e.toString());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Compute checksums of the stream, verify them with the returned ETag and write the manifest.
+     */
+    public void setChecksumVerifier(ChecksumVerifier checksumVerifier) {
+        this.checksumVerifier = checksumVerifier;
+    }
+
+    /**
+     * Take a free buffer. Blocks while all buffers are waiting for their upload.
+     */
+    private byte[] takeBuffer() throws InterruptedException {
+        byte[] buffer = this.freeBuffers.poll();
+        if (buffer == null) {
+            if (this.allocatedBuffers < this.maxBuffers) {
+                this.allocatedBuffers++;
+                return new byte[this.partSize];
+            }
+            buffer = this.freeBuffers.take();
+        }
+        return buffer;
+    }
+
+    /**
+     * Fill the buffer from the stream.
+     *
+     * @return Number of bytes read, less than the buffer size only at the end of the stream.
+     */
+    private int readFully(byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int bytesRead = this.in.read(buffer, length, buffer.length - length);
+            if (bytesRead < 0) {
+                break;
+            }
+            length += bytesRead;
+        }
+        return length;
+    }
+}
@@ -3,6 +3,9 @@ package de.unibi.cebitec.aws.s3.transfer.streaming;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
+import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+import de.unibi.cebitec.aws.s3.transfer.util.BandwidthLimiter;
+import de.unibi.cebitec.aws.s3.transfer.util.ProgressReporter;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -18,10 +21,9 @@ import org.slf4j.LoggerFactory;
 
 public class Streamer {
     public static final Logger log = LoggerFactory.getLogger(Streamer.class);
+    public static final int COPY_BUFFER_SIZE = 16384;
     private String key;
     private Path targetFile;
-    private static long overallBytes = 0;
-    private static long bytesWritten = 0;
 
     public Streamer(String key, Path targetFile) {
         this.key = key;
@@ -33,23 +35,21 @@ public class Streamer {
         S3Object obj = s3.getObject(getObjReq);
         log.debug("Starting download of single file: {}", this.key);
         //TODO: get size
-        try (InputStream in = obj.getObjectContent()) {
+        try (InputStream in = BandwidthLimiter.DOWNLOADS.wrap(obj.getObjectContent())) {
             try (OutputStream out = Files.newOutputStream(this.targetFile, StandardOpenOption.CREATE)) {
-                overallBytes = obj.getObjectMetadata().getContentLength();
-                TimerTask progressInfo = new TimerTask() {
-                    @Override
-                    public void run() {
-                        System.out.println(new StringBuilder().append(overallBytes).append(" ").append(bytesWritten));
-                    }
-                };
-                Timer timer = new Timer();
-                timer.scheduleAtFixedRate(progressInfo, 5000, 5000);
-                byte[] buffer = new byte[16384];
-                int bytesRead;
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
-                    bytesWritten += bytesRead;
+                Measurements.setOverallBytes(obj.getObjectMetadata().getContentLength());
+                Measurements.setOverallChunks(1);
+                Measurements.start();
+                ProgressReporter.runStarted("stream-download", 1);
+                Timer timer = startProgressInfo();
+                try {
+                    copy(in, out, COPY_BUFFER_SIZE);
+                } finally {
+                    timer.cancel();
                 }
+                Measurements.countChunkAsFinished();
+                Measurements.stop();
+                ProgressReporter.fileCompleted(this.key, this.targetFile, Measurements.getTransferredBytes(), obj.getObjectMetadata().getETag(), null, null, true);
                 log.debug("Download done: Single file: {}", this.key);
             } catch (IOException e) {
                 log.error("Failed to stream file: {}", e.getMessage());
@@ -57,4 +57,34 @@ public class Streamer {
             }
         }
     }
+
+    /**
+     * Copy the stream to the end and count the bytes as transferred.
+     */
+    public static void copy(InputStream in, OutputStream out, int bufferSize) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) != -1) {
+            out.write(buffer, 0, bytesRead);
+            Measurements.addTransferredBytes(bytesRead);
+        }
+    }
+
+    /**
+     * Print the size of the file and the bytes written so far to STDOUT every five seconds, unless the progress is
+     * reported as JSON.
+     */
+    static Timer startProgressInfo() {
+        Timer timer = new Timer("progress-info", true);
+        if (!ProgressReporter.isEnabled()) {
+            timer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    System.out.println(new StringBuilder().append(Measurements.getOverallBytes()).append(" ")
+                            .append(Measurements.getTransferredBytes()));
+                }
+            }, 5000, 5000);
+        }
+        return timer;
+    }
 }
@@ -0,0 +1,35 @@
+package de.unibi.cebitec.aws.s3.transfer.streaming;
+
+import de.unibi.cebitec.aws.s3.transfer.model.down.DownloadPart;
+import de.unibi.cebitec.aws.s3.transfer.model.down.MultipartDownloadFile;
+import de.unibi.cebitec.aws.s3.transfer.model.down.PartSink;
+
+import java.nio.file.Path;
+
+/**
+ * Multipart download whose parts are written into a {@link ReorderWindow} instead of the target file. Finished parts
+ * are handed to the window, which emits them in order.
+ */
+public class StreamingDownloadFile extends MultipartDownloadFile {
+    private final ReorderWindow window;
+
+    public StreamingDownloadFile(String key, Path targetFile, long fileSize, boolean s3, long partSize, ReorderWindow window) {
+        super(key, targetFile, fileSize, s3, partSize);
+        this.window = window;
+    }
+
+    @Override
+    public void partFinished(DownloadPart part) {
+        super.partFinished(part);
+        this.window.finished(part.getOutputOffset(), part.getPartSize());
+    }
+
+    @Override
+    public PartSink getOutputSink() {
+        return this.window;
+    }
+
+    public ReorderWindow getWindow() {
+        return window;
+    }
+}
@@ -0,0 +1,255 @@
+package de.unibi.cebitec.aws.s3.transfer.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Token bucket shared by all transfers in one direction. Every transfer reserves the bytes it has read and waits until
+ * the bucket has paid them off at the configured rate, so the aggregate throughput stays flat at the limit. Only a
+ * short burst is allowed after idle periods.
+ * <p>
+ * The rate may follow a schedule by time of day and can be overridden at runtime with a control file.
+ */
+public class BandwidthLimiter {
+    public static final Logger log = LoggerFactory.getLogger(BandwidthLimiter.class);
+    public static final BandwidthLimiter DOWNLOADS = new BandwidthLimiter("download");
+    public static final BandwidthLimiter UPLOADS = new BandwidthLimiter("upload");
+    // bytes worth this time may pass without waiting
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long RATE_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long CONTROL_FILE_INTERVAL = 2000;
+    // largest read that is paid at once
+    private static final int MAX_READ = 65536;
+    private final String name;
+    private volatile boolean active;
+    private volatile TreeMap<LocalTime, Double> schedule = new TreeMap<>();
+    // bytes per second set by the control file, null if not overridden
+    private volatile Double override;
+    // the following fields are guarded by this
+    private double rate;
+    private long rateCheckedAt;
+    private boolean rateChecked;
+    private long nextFree;
+
+    private BandwidthLimiter(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Limit the rate. Accepts a rate in MB/s, or a schedule of comma separated entries 'HH:MM=rate' that each set
+     * the rate from that time of day until the next entry. A rate of 0 is unlimited.
+     */
+    public void setRate(String rate) {
+        this.schedule = parseSchedule(rate);
+        this.active = true;
+        synchronized (this) {
+            this.rateChecked = false;
+        }
+    }
+
+    private static TreeMap<LocalTime, Double> parseSchedule(String value) {
+        TreeMap<LocalTime, Double> schedule = new TreeMap<>();
+        for (String entry : value.split(",")) {
+            String[] fields = entry.trim().split("=", 2);
+            try {
+                if (fields.length == 1) {
+                    schedule.put(LocalTime.MIDNIGHT, parseRate(fields[0]));
+                } else {
+                    schedule.put(LocalTime.parse(fields[0].trim()), parseRate(fields[1]));
+                }
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid time of day: " + fields[0]);
+            }
+        }
+        return schedule;
+    }
+
+    private static double parseRate(String value) {
+        double mb = Double.parseDouble(value.trim());
+        if (mb < 0) {
+            throw new IllegalArgumentException("Negative rate: " + value);
+        }
+        return mb * 1048576;
+    }
+
+    /**
+     * @return true if a limit has been configured, the transfers have to pass their bytes through the limiter then.
+     */
+    public boolean isActive() {
+        return this.active;
+    }
+
+    /**
+     * Reserve bytes that are about to be transferred or have just been transferred.
+     *
+     * @return Nanoseconds to wait before the transfer may continue.
+     */
+    public long reserve(long bytes) {
+        if (!this.active || bytes <= 0) {
+            return 0;
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            double r = getRate(now);
+            if (r <= 0) {
+                this.nextFree = now;
+                return 0;
+            }
+            // time not used in the past is not saved up beyond the burst
+            this.nextFree = Math.max(this.nextFree, now) + (long) (bytes * 1e9 / r);
+            return Math.max(0, this.nextFree - now - BURST_NANOS);
+        }
+    }
+
+    /**
+     * Wait until the bytes may be transferred.
+     */
+    public void acquire(long bytes) {
+        long wait = reserve(bytes);
+        long deadline = System.nanoTime() + wait;
+        while (wait > 0) {
+            LockSupport.parkNanos(wait);
+            wait = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * @return The stream itself if no limit has been configured, otherwise a stream that waits for the limiter after
+     * every read.
+     */
+    public InputStream wrap(InputStream in) {
+        if (!this.active) {
+            return in;
+        }
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    acquire(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, Math.min(len, MAX_READ));
+                if (n > 0) {
+                    acquire(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    private double getRate(long now) {
+        if (this.rateChecked && now - this.rateCheckedAt < RATE_CHECK_NANOS) {
+            return this.rate;
+        }
+        double r;
+        Double o = this.override;
+        if (o != null) {
+            r = o;
+        } else {
+            Map.Entry<LocalTime, Double> entry = this.schedule.floorEntry(LocalTime.now());
+            if (entry == null) {
+                // before the first entry of the day the last one of the previous day applies
+                entry = this.schedule.lastEntry();
+            }
+            r = entry == null ? 0 : entry.getValue();
+        }
+        if (!this.rateChecked || r != this.rate) {
+            log.info("== {} rate limit: {}", Character.toUpperCase(this.name.charAt(0)) + this.name.substring(1),
+                    r <= 0 ? "unlimited" : String.format(Locale.ROOT, "%.2f MB/s", r / 1048576));
+        }
+        this.rate = r;
+        this.rateChecked = true;
+        this.rateCheckedAt = now;
+        return r;
+    }
+
+    private void setOverride(Double rate) {
+        this.override = rate;
+        this.active = true;
+        synchronized (this) {
+            this.rateChecked = false;
+        }
+    }
+
+    /**
+     * Watch a control file that overrides the rates while the transfer is running. Lines 'download=rate' and
+     * 'upload=rate' set the rate of a direction in MB/s, directions missing in the file (or a missing file) follow the
+     * configured rates again.
+     */
+    public static void watch(Path controlFile) {
+        DOWNLOADS.active = true;
+        UPLOADS.active = true;
+        Thread thread = new Thread(() -> {
+            String last = null;
+            while (true) {
+                String content;
+                try {
+                    content = new String(Files.readAllBytes(controlFile), StandardCharsets.UTF_8);
+                } catch (NoSuchFileException e) {
+                    content = "";
+                } catch (IOException e) {
+                    log.debug("Failed to read rate control file: {}", e.toString());
+                    content = last;
+                }
+                if (content != null && !content.equals(last)) {
+                    applyControl(content);
+                    last = content;
+                }
+                try {
+                    Thread.sleep(CONTROL_FILE_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "rate-control");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void applyControl(String content) {
+        Double download = null;
+        Double upload = null;
+        for (String line : content.split("\n")) {
+            String[] fields = line.trim().split("=", 2);
+            if (fields.length < 2) {
+                continue;
+            }
+            try {
+                switch (fields[0].trim().toLowerCase(Locale.ROOT)) {
+                    case "download":
+                        download = parseRate(fields[1]);
+                        break;
+                    case "upload":
+                        upload = parseRate(fields[1]);
+                        break;
+                    default:
+                        log.warn("Unknown entry in rate control file: {}", line.trim());
+                }
+            } catch (IllegalArgumentException e) {
+                log.warn("Invalid rate in rate control file: {}", line.trim());
+            }
+        }
+        DOWNLOADS.setOverride(download);
+        UPLOADS.setOverride(upload);
+    }
+}
@@ -0,0 +1,141 @@
+package de.unibi.cebitec.aws.s3.transfer.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * Computes checksums of the bytes read through it. If the stream is reset to a mark (retried requests), the checksums
+ * are reset to their state at the mark as well.
+ */
+public class ChecksumInputStream extends FilterInputStream {
+    private MessageDigest md5;
+    private Crc32c crc32c;
+    private MessageDigest sha256;
+    private long count;
+    private MessageDigest markedMd5;
+    private Crc32c markedCrc32c;
+    private MessageDigest markedSha256;
+    private long markedCount;
+
+    public ChecksumInputStream(InputStream in, boolean md5, boolean crc32c, boolean sha256) {
+        super(in);
+        this.md5 = md5 ? ETag.newMd5() : null;
+        this.crc32c = crc32c ? new Crc32c() : null;
+        this.sha256 = sha256 ? ETag.newDigest("SHA-256") : null;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            update(new byte[]{(byte) b}, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            update(b, off, n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(n, 65536)];
+        long skipped = 0;
+        while (skipped < n) {
+            int bytesRead = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (bytesRead < 0) {
+                break;
+            }
+            skipped += bytesRead;
+        }
+        return skipped;
+    }
+
+    private void update(byte[] b, int off, int len) {
+        if (this.md5 != null) {
+            this.md5.update(b, off, len);
+        }
+        if (this.crc32c != null) {
+            this.crc32c.update(b, off, len);
+        }
+        if (this.sha256 != null) {
+            this.sha256.update(b, off, len);
+        }
+        this.count += len;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        super.mark(readlimit);
+        this.markedMd5 = copy(this.md5);
+        this.markedCrc32c = this.crc32c == null ? null : this.crc32c.copy();
+        this.markedSha256 = copy(this.sha256);
+        this.markedCount = this.count;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        super.reset();
+        this.md5 = copy(this.markedMd5 != null ? this.markedMd5 : reset(this.md5));
+        this.crc32c = this.markedCrc32c != null ? this.markedCrc32c.copy() : resetCrc(this.crc32c);
+        this.sha256 = copy(this.markedSha256 != null ? this.markedSha256 : reset(this.sha256));
+        this.count = this.markedCount;
+    }
+
+    private static MessageDigest copy(MessageDigest digest) {
+        if (digest == null) {
+            return null;
+        }
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MessageDigest reset(MessageDigest digest) {
+        if (digest != null) {
+            digest.reset();
+        }
+        return digest;
+    }
+
+    private static Crc32c resetCrc(Crc32c crc) {
+        if (crc != null) {
+            crc.reset();
+        }
+        return crc;
+    }
+
+    /**
+     * @return MD5 digest of the bytes read or null if it is not computed.
+     */
+    public byte[] getMd5() {
+        return this.md5 == null ? null : this.md5.digest();
+    }
+
+    public Long getCrc32c() {
+        return this.crc32c == null ? null : this.crc32c.getValue();
+    }
+
+    /**
+     * @return SHA-256 digest as hex string or null if it is not computed.
+     */
+    public String getSha256() {
+        return this.sha256 == null ? null : ETag.toHex(this.sha256.digest());
+    }
+
+    /**
+     * @return Number of bytes read.
+     */
+    public long getCount() {
+        return count;
+    }
+}
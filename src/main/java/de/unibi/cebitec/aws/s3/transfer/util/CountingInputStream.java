@@ -0,0 +1,56 @@
+package de.unibi.cebitec.aws.s3.transfer.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+
+/**
+ * Counts the bytes read as transferred in the measurements.
+ */
+public class CountingInputStream extends FilterInputStream {
+    private long count;
+
+    public CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            counted(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            counted(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        counted(skipped);
+        return skipped;
+    }
+
+    private void counted(long n) {
+        this.count += n;
+        Measurements.addTransferredBytes(n);
+    }
+
+    /**
+     * Take back the bytes read so far, e.g. because the transfer is started over.
+     */
+    public void discard() {
+        Measurements.addTransferredBytes(-this.count);
+        this.count = 0;
+    }
+}
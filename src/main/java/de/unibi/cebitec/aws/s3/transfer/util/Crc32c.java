@@ -0,0 +1,149 @@
+package de.unibi.cebitec.aws.s3.transfer.util;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) as used by S3, iSCSI and ext4. Java 8 has no implementation of its own. Checksums of adjacent
+ * ranges can be combined with {@link #combine(long, long, long)}, so the checksum of a file can be computed from
+ * parts that have been transferred in parallel.
+ */
+public final class Crc32c implements Checksum {
+    private static final int POLY = 0x82F63B78; // reversed Castagnoli polynomial
+    // tables for processing 8 bytes at once (slicing-by-8)
+    private static final int[][] TABLES = new int[8][256];
+    // x^(2^n) modulo the polynomial
+    private static final int[] X2N = new int[32];
+    private int crc = 0xffffffff;
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ POLY : c >>> 1;
+            }
+            TABLES[0][n] = c;
+        }
+        for (int n = 0; n < 256; n++) {
+            for (int k = 1; k < 8; k++) {
+                int c = TABLES[k - 1][n];
+                TABLES[k][n] = (c >>> 8) ^ TABLES[0][c & 0xff];
+            }
+        }
+        int p = 1 << 30; // x^1
+        X2N[0] = p;
+        for (int n = 1; n < 32; n++) {
+            X2N[n] = p = multModP(p, p);
+        }
+    }
+
+    @Override
+    public void update(int b) {
+        this.crc = (this.crc >>> 8) ^ TABLES[0][(this.crc ^ b) & 0xff];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int c = this.crc;
+        while (len >= 8) {
+            c ^= (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+            c = t7[c & 0xff] ^ t6[(c >>> 8) & 0xff] ^ t5[(c >>> 16) & 0xff] ^ t4[c >>> 24]
+                    ^ t3[b[off + 4] & 0xff] ^ t2[b[off + 5] & 0xff] ^ t1[b[off + 6] & 0xff] ^ t0[b[off + 7] & 0xff];
+            off += 8;
+            len -= 8;
+        }
+        while (len-- > 0) {
+            c = (c >>> 8) ^ t0[(c ^ b[off++]) & 0xff];
+        }
+        this.crc = c;
+    }
+
+    public void update(byte[] b) {
+        update(b, 0, b.length);
+    }
+
+    @Override
+    public long getValue() {
+        return ~this.crc & 0xffffffffL;
+    }
+
+    @Override
+    public void reset() {
+        this.crc = 0xffffffff;
+    }
+
+    /**
+     * @return A checksum with the same state that can be updated independently.
+     */
+    public Crc32c copy() {
+        Crc32c copy = new Crc32c();
+        copy.crc = this.crc;
+        return copy;
+    }
+
+    /**
+     * @return The checksum of the given range.
+     */
+    public static long of(byte[] b, int off, int len) {
+        Crc32c crc = new Crc32c();
+        crc.update(b, off, len);
+        return crc.getValue();
+    }
+
+    /**
+     * Combine the checksums of two adjacent ranges.
+     *
+     * @param crc1 Checksum of the first range.
+     * @param crc2 Checksum of the second range.
+     * @param len2 Length of the second range.
+     * @return Checksum of both ranges.
+     */
+    public static long combine(long crc1, long crc2, long len2) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+        return (multModP(x2nModP(len2, 3), (int) crc1) ^ (int) crc2) & 0xffffffffL;
+    }
+
+    /**
+     * Multiply a and b modulo the polynomial (bit reversed representation).
+     */
+    private static int multModP(int a, int b) {
+        int m = 1 << 31;
+        int p = 0;
+        while (true) {
+            if ((a & m) != 0) {
+                p ^= b;
+                if ((a & (m - 1)) == 0) {
+                    break;
+                }
+            }
+            m >>>= 1;
+            b = (b & 1) != 0 ? (b >>> 1) ^ POLY : b >>> 1;
+        }
+        return p;
+    }
+
+    /**
+     * @return x^(n * 2^k) modulo the polynomial.
+     */
+    private static int x2nModP(long n, int k) {
+        int p = 1 << 31; // x^0
+        while (n != 0) {
+            if ((n & 1) != 0) {
+                p = multModP(X2N[k & 31], p);
+            }
+            n >>>= 1;
+            k++;
+        }
+        return p;
+    }
+
+    /**
+     * @return The checksum as 8 hex digits.
+     */
+    public static String toHex(long crc) {
+        return String.format("%08x", crc);
+    }
+}
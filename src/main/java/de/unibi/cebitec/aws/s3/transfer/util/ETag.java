@@ -0,0 +1,145 @@
+package de.unibi.cebitec.aws.s3.transfer.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Helpers for S3 ETags. The ETag of an object uploaded with a single request is the MD5 digest of its data. The ETag
+ * of a multipart upload is the MD5 digest of the concatenated MD5 digests of its parts, followed by "-" and the number
+ * of parts. Objects encrypted with SSE-KMS or SSE-C have ETags that are no MD5 digests.
+ */
+public final class ETag {
+    private static final long MB = 1048576;
+    // part sizes of common upload tools, tried first if an ETag allows several part sizes
+    private static final long[] COMMON_PART_SIZES = {8 * MB, 16 * MB, 5 * MB, 15 * MB, 32 * MB, 64 * MB, 100 * MB, 128 * MB};
+
+    private ETag() {
+    }
+
+    /**
+     * @return The ETag without quotes or null.
+     */
+    public static String strip(String etag) {
+        if (etag == null) {
+            return null;
+        }
+        String e = etag.trim();
+        if (e.length() >= 2 && e.startsWith("\"") && e.endsWith("\"")) {
+            e = e.substring(1, e.length() - 1);
+        }
+        return e.toLowerCase();
+    }
+
+    /**
+     * @return Number of parts the object has been uploaded with, 1 for a single request or -1 if the ETag can't be
+     * parsed.
+     */
+    public static int getPartCount(String etag) {
+        String e = strip(etag);
+        if (e == null) {
+            return -1;
+        }
+        int dash = e.indexOf('-');
+        String digest = dash < 0 ? e : e.substring(0, dash);
+        if (!digest.matches("[0-9a-f]{32}")) {
+            return -1;
+        }
+        if (dash < 0) {
+            return 1;
+        }
+        try {
+            int parts = Integer.parseInt(e.substring(dash + 1));
+            return parts > 0 ? parts : -1;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return true if the ETag is the one of a multipart upload (even if it consists of a single part).
+     */
+    public static boolean isMultipart(String etag) {
+        return getPartCount(etag) > 0 && strip(etag).indexOf('-') >= 0;
+    }
+
+    /**
+     * Number of part sizes (in whole MB) an object of the given size may have been uploaded with.
+     */
+    public static long countPartSizes(long size, int parts) {
+        if (parts <= 1) {
+            return 1;
+        }
+        long min = (size + parts - 1) / parts;
+        // largest size that still needs the given number of parts
+        long max = (size - 1) / (parts - 1);
+        long first = (min + MB - 1) / MB;
+        long last = max / MB;
+        return Math.max(0, last - first + 1);
+    }
+
+    /**
+     * Guess the part size an object has been uploaded with.
+     *
+     * @param preferred Part size to try first (e.g. the chunk size of this program).
+     * @return A part size in whole MB that results in the given number of parts or -1 if there is none.
+     */
+    public static long guessPartSize(long size, int parts, long preferred) {
+        if (parts <= 1) {
+            return size;
+        }
+        if (fits(size, parts, preferred)) {
+            return preferred;
+        }
+        for (long partSize : COMMON_PART_SIZES) {
+            if (fits(size, parts, partSize)) {
+                return partSize;
+            }
+        }
+        long partSize = ((size + parts - 1) / parts + MB - 1) / MB * MB;
+        return fits(size, parts, partSize) ? partSize : -1;
+    }
+
+    private static boolean fits(long size, int parts, long partSize) {
+        return partSize > 0 && (size + partSize - 1) / partSize == parts && (parts == 1 || partSize < size);
+    }
+
+    /**
+     * @param partDigests MD5 digests of all parts in order.
+     * @return The ETag S3 reports for an object with these parts.
+     */
+    public static String of(List<byte[]> partDigests, boolean multipart) {
+        if (!multipart && partDigests.size() == 1) {
+            return toHex(partDigests.get(0));
+        }
+        MessageDigest md5 = newMd5();
+        for (byte[] digest : partDigests) {
+            md5.update(digest);
+        }
+        return toHex(md5.digest()) + "-" + partDigests.size();
+    }
+
+    public static boolean matches(String expected, String actual) {
+        return expected != null && actual != null && strip(expected).equals(strip(actual));
+    }
+
+    public static MessageDigest newMd5() {
+        return newDigest("MD5");
+    }
+
+    public static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " is not available.", e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
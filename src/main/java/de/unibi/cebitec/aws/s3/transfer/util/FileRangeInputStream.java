@@ -0,0 +1,75 @@
+package de.unibi.cebitec.aws.s3.transfer.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Stream of a range of a file. Supports mark and reset without a limit, so a request can be retried from the file.
+ */
+public class FileRangeInputStream extends InputStream {
+    private final FileChannel channel;
+    private final long end;
+    private long position;
+    private long mark;
+
+    public FileRangeInputStream(Path file, long offset, long length) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.position = offset;
+        this.mark = offset;
+        this.end = offset + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (this.position >= this.end) {
+            return -1;
+        }
+        int n = this.channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, this.end - this.position)), this.position);
+        if (n > 0) {
+            this.position += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, this.end - this.position));
+        this.position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, this.end - this.position);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        this.mark = this.position;
+    }
+
+    @Override
+    public synchronized void reset() {
+        this.position = this.mark;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
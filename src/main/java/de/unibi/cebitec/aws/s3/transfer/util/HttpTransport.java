@@ -0,0 +1,264 @@
+package de.unibi.cebitec.aws.s3.transfer.util;
+
+import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+import de.unibi.cebitec.aws.s3.transfer.model.down.RangeResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HTTP client shared by all requests of URL downloads. Connections are pooled and kept alive, so the parts of a file
+ * do not pay a new TCP and TLS handshake each.
+ */
+public class HttpTransport {
+    public static final Logger log = LoggerFactory.getLogger(HttpTransport.class);
+    private static final int TIMEOUT = 1000 * 30; // 30 sec
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+    private static HttpTransport instance;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+
+    private HttpTransport(int maxConnections) {
+        this.connectionManager = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+        this.connectionManager.setMaxTotal(maxConnections);
+        this.connectionManager.setDefaultMaxPerRoute(maxConnections);
+        this.connectionManager.setValidateAfterInactivity(2000);
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(TIMEOUT)
+                .setConnectionRequestTimeout(TIMEOUT)
+                .setSocketTimeout(TIMEOUT)
+                .build();
+        // compressed responses would break the byte ranges, failed requests are retried by the callers
+        this.client = HttpClients.custom()
+                .setConnectionManager(this.connectionManager)
+                .setDefaultRequestConfig(config)
+                .disableContentCompression()
+                .disableAutomaticRetries()
+                .build();
+    }
+
+    /**
+     * Create the shared transport.
+     *
+     * @param maxConnections Connections kept per host, should match the number of threads.
+     */
+    public static synchronized void configure(int maxConnections) {
+        if (instance != null) {
+            instance.shutdown();
+        }
+        instance = new HttpTransport(Math.max(2, maxConnections));
+    }
+
+    public static synchronized HttpTransport get() {
+        if (instance == null) {
+            instance = new HttpTransport(2);
+        }
+        return instance;
+    }
+
+    /**
+     * Find out size and ETag of a file. Asks with a HEAD request first and falls back to a request for the first byte,
+     * since presigned URLs are only valid for GET requests.
+     */
+    public Probe probe(String url) throws IOException {
+        HttpHead head = new HttpHead(url);
+        try (CloseableHttpResponse response = this.client.execute(head)) {
+            Header length = response.getFirstHeader("Content-Length");
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK && length != null) {
+                return new Probe(Long.parseLong(length.getValue()), getETag(response));
+            }
+            log.debug("HEAD request for {} failed with status {}, requesting the first byte.", url, response.getStatusLine().getStatusCode());
+        } catch (NumberFormatException e) {
+            log.debug("HEAD request for {} returned an invalid length.", url);
+        }
+
+        HttpGet get = new HttpGet(url);
+        get.addHeader("Range", "bytes=0-0");
+        try (CloseableHttpResponse response = this.client.execute(get)) {
+            int status = response.getStatusLine().getStatusCode();
+            switch (status) {
+                case HttpStatus.SC_PARTIAL_CONTENT:
+                    Header contentRange = response.getFirstHeader("Content-Range");
+                    Matcher m = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange.getValue());
+                    if (m == null || !m.matches() || m.group(3).equals("*")) {
+                        throw new IOException("Size of " + url + " is unknown: Invalid Content-Range " + contentRange);
+                    }
+                    consume(response);
+                    return new Probe(Long.parseLong(m.group(3)), getETag(response));
+                case HttpStatus.SC_OK:
+                    // the range has been ignored, don't read the whole body
+                    get.abort();
+                    return new Probe(response.getEntity().getContentLength(), getETag(response));
+                case HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE:
+                    // the first byte of an empty file does not exist
+                    consume(response);
+                    return new Probe(0, getETag(response));
+                default:
+                    get.abort();
+                    throw new IOException("Request for " + url + " failed: " + response.getStatusLine());
+            }
+        }
+    }
+
+    /**
+     * Request a whole file.
+     */
+    public RangeResponse get(String url) throws IOException {
+        return execute(new HttpGet(url), -1, -1);
+    }
+
+    /**
+     * Request a range of a file. The response is checked to contain exactly this range.
+     *
+     * @param first Offset of the first byte.
+     * @param last  Offset of the last byte (inclusive).
+     */
+    public RangeResponse getRange(String url, long first, long last) throws IOException {
+        return getRange(url, first, last, null);
+    }
+
+    /**
+     * Request a range of a file that may be aborted while waiting for the response.
+     *
+     * @param pending Receives the action that aborts the request before it is sent, may be null.
+     */
+    public RangeResponse getRange(String url, long first, long last, Consumer<Runnable> pending) throws IOException {
+        HttpGet get = new HttpGet(url);
+        get.addHeader("Range", "bytes=" + first + "-" + last);
+        if (pending != null) {
+            pending.accept(get::abort);
+        }
+        return execute(get, first, last);
+    }
+
+    private RangeResponse execute(HttpGet get, long first, long last) throws IOException {
+        CloseableHttpResponse response = null;
+        try {
+            Measurements.countRequest();
+            long start = System.nanoTime();
+            response = this.client.execute(get);
+            Measurements.FIRST_BYTE.record(System.nanoTime() - start);
+            checkResponse(response, first, last);
+            HttpEntity entity = response.getEntity();
+            InputStream content = entity == null ? new ByteArrayInputStream(new byte[0]) : entity.getContent();
+            CloseableHttpResponse r = response;
+            // closing the content reads the rest of the body, so the connection goes back to the pool
+            return new RangeResponse(content, get::abort, () -> {
+                try {
+                    r.close();
+                } catch (IOException e) {
+                    log.debug("Failed to release connection: {}", e.toString());
+                }
+            }, entity == null ? 0 : entity.getContentLength());
+        } catch (IOException | RuntimeException e) {
+            if (e instanceof Throttling.ThrottledException) {
+                Throttling.record(null);
+            }
+            get.abort();
+            if (response != null) {
+                response.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Check that a response contains the requested range, or the whole file if no range has been requested. A
+     * throttling status is reported as {@link Throttling.ThrottledException}.
+     *
+     * @param first Offset of the first byte or -1 for the whole file.
+     * @param last  Offset of the last byte (inclusive).
+     */
+    public static void checkResponse(HttpResponse response, long first, long last) throws IOException {
+        int status = response.getStatusLine().getStatusCode();
+        if (Throttling.isThrottlingStatus(status)) {
+            throw new Throttling.ThrottledException("Request throttled: " + response.getStatusLine());
+        }
+        if (first < 0) {
+            if (status != HttpStatus.SC_OK) {
+                throw new IOException("Request failed: " + response.getStatusLine());
+            }
+            return;
+        }
+        long length = last - first + 1;
+        if (status == HttpStatus.SC_OK && first == 0 && response.getEntity() != null
+                && response.getEntity().getContentLength() == length) {
+            // the whole file is the requested range
+            return;
+        }
+        if (status != HttpStatus.SC_PARTIAL_CONTENT) {
+            throw new IOException("Range request failed: " + response.getStatusLine());
+        }
+        Header contentRange = response.getFirstHeader("Content-Range");
+        Matcher m = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange.getValue());
+        if (m == null || !m.matches() || Long.parseLong(m.group(1)) != first || Long.parseLong(m.group(2)) != last) {
+            throw new IOException("Requested bytes " + first + "-" + last + " but got " + (contentRange == null ? "no Content-Range" : contentRange.getValue()));
+        }
+    }
+
+    private static String getETag(CloseableHttpResponse response) {
+        Header etag = response.getFirstHeader("ETag");
+        return etag == null ? null : etag.getValue();
+    }
+
+    private static void consume(CloseableHttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            entity.getContent().close();
+        }
+    }
+
+    private void shutdown() {
+        try {
+            this.client.close();
+        } catch (IOException e) {
+            log.debug("Failed to close HTTP client: {}", e.toString());
+        }
+    }
+
+    /**
+     * Size and ETag of a file.
+     */
+    public static class Probe {
+        private final long size;
+        private final String etag;
+
+        Probe(long size, String etag) {
+            this.size = size;
+            this.etag = etag;
+        }
+
+        /**
+         * @return Size in bytes, -1 if unknown.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return ETag or null if the server did not send one.
+         */
+        public String getETag() {
+            return etag;
+        }
+    }
+}
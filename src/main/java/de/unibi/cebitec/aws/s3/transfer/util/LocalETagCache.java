@@ -0,0 +1,222 @@
+package de.unibi.cebitec.aws.s3.transfer.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent cache of the ETags of local files, so unchanged files do not have to be read again to compare them with
+ * their objects. An ETag is valid as long as size and modification time of the file are the same.
+ * <p>
+ * Format: a header line "bibis3-etags 1" followed by one "&lt;size&gt; &lt;mtime&gt; &lt;part size&gt; &lt;etag&gt;
+ * &lt;path&gt;" line per computed ETag. Later lines replace earlier ones.
+ */
+public class LocalETagCache {
+    public static final Logger log = LoggerFactory.getLogger(LocalETagCache.class);
+    private static final String MAGIC = "bibis3-etags 1";
+    private static final int READ_BUFFER_SIZE = 1048576;
+    private final Path cacheFile;
+    // all fields are guarded by this
+    private final Map<String, Entry> entries = new HashMap<>();
+    private BufferedWriter out;
+    private long hits;
+    private long computedBytes;
+
+    private LocalETagCache(Path cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * @return The cache in the home directory of the user.
+     */
+    public static Path getDefaultFile() {
+        return Paths.get(System.getProperty("user.home"), ".bibis3", "etag-cache");
+    }
+
+    public static LocalETagCache open(Path cacheFile) throws IOException {
+        LocalETagCache cache = new LocalETagCache(cacheFile.toAbsolutePath());
+        if (Files.isRegularFile(cache.cacheFile)) {
+            cache.load();
+        }
+        cache.rewrite();
+        return cache;
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(this.cacheFile, StandardCharsets.UTF_8)) {
+            String header = in.readLine();
+            if (header == null || !header.equals(MAGIC)) {
+                log.info("Discarding ETag cache {} with unknown format.", this.cacheFile);
+                return;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split(" ", 5);
+                try {
+                    Entry e = new Entry(fields[4], Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), fields[3]);
+                    this.entries.put(e.id(), e);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    // torn write at the end of the cache
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a compacted copy of the cache without the entries of files that have been changed or removed and keep it
+     * open for appending.
+     */
+    private void rewrite() throws IOException {
+        Files.createDirectories(this.cacheFile.getParent());
+        Path tmp = Files.createTempFile(this.cacheFile.getParent(), this.cacheFile.getFileName().toString(), ".tmp");
+        List<Entry> valid = new ArrayList<>();
+        for (Entry e : this.entries.values()) {
+            if (e.isValid()) {
+                valid.add(e);
+            }
+        }
+        try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            w.write(MAGIC);
+            w.newLine();
+            for (Entry e : valid) {
+                write(w, e);
+            }
+        }
+        Files.move(tmp, this.cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.out = Files.newBufferedWriter(this.cacheFile, StandardCharsets.UTF_8, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void write(BufferedWriter w, Entry e) throws IOException {
+        w.write(e.size + " " + e.modified + " " + e.partSize + " " + e.etag + " " + e.path);
+        w.newLine();
+    }
+
+    /**
+     * Get the ETag of a file, computed from the file if it is not cached.
+     *
+     * @param partSize  Part size of the multipart upload to compute the ETag for.
+     * @param multipart true for the ETag of a multipart upload, false for the one of a single request.
+     */
+    public String get(Path file, long partSize, boolean multipart) throws IOException {
+        String path = file.toAbsolutePath().normalize().toString();
+        long size = Files.size(file);
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        if (!multipart) {
+            partSize = 0;
+        }
+        Entry key = new Entry(path, size, modified, partSize, multipart ? "-" : "");
+        synchronized (this) {
+            Entry e = this.entries.get(key.id());
+            if (e != null && e.size == size && e.modified == modified) {
+                this.hits++;
+                return e.etag;
+            }
+        }
+        String etag = compute(file, partSize, multipart);
+        if (Files.size(file) != size || Files.getLastModifiedTime(file).toMillis() != modified) {
+            // modified while reading
+            return etag;
+        }
+        Entry e = new Entry(path, size, modified, partSize, etag);
+        synchronized (this) {
+            this.computedBytes += size;
+            this.entries.put(e.id(), e);
+            if (path.indexOf('\n') < 0 && path.indexOf('\r') < 0) {
+                write(this.out, e);
+                this.out.flush();
+            }
+        }
+        return etag;
+    }
+
+    private static String compute(Path file, long partSize, boolean multipart) throws IOException {
+        List<byte[]> digests = new ArrayList<>();
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest md5 = ETag.newMd5();
+            long partBytes = 0;
+            int n;
+            while ((n = in.read(buffer, 0, multipart ? (int) Math.min(buffer.length, partSize - partBytes) : buffer.length)) >= 0) {
+                md5.update(buffer, 0, n);
+                partBytes += n;
+                if (multipart && partBytes == partSize) {
+                    digests.add(md5.digest());
+                    partBytes = 0;
+                }
+            }
+            if (partBytes > 0 || digests.isEmpty()) {
+                digests.add(md5.digest());
+            }
+        }
+        return ETag.of(digests, multipart);
+    }
+
+    public synchronized void close() throws IOException {
+        this.out.close();
+        rewrite();
+        this.out.close();
+    }
+
+    /**
+     * @return Number of ETags taken from the cache.
+     */
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * @return Number of bytes read to compute ETags.
+     */
+    public synchronized long getComputedBytes() {
+        return this.computedBytes;
+    }
+
+    private static class Entry {
+        final String path;
+        final long size;
+        final long modified;
+        final long partSize;
+        final String etag;
+
+        Entry(String path, long size, long modified, long partSize, String etag) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.partSize = partSize;
+            this.etag = etag;
+        }
+
+        /**
+         * Entries are identified by file, part size and kind of ETag.
+         */
+        String id() {
+            return this.partSize + (this.etag.indexOf('-') >= 0 ? "m " : "s ") + this.path;
+        }
+
+        boolean isValid() {
+            try {
+                Path file = Paths.get(this.path);
+                return Files.size(file) == this.size && Files.getLastModifiedTime(file).toMillis() == this.modified;
+            } catch (IOException | RuntimeException e) {
+                return false;
+            }
+        }
+    }
+}
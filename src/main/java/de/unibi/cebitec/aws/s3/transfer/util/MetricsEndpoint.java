@@ -0,0 +1,168 @@
+package de.unibi.cebitec.aws.s3.transfer.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.unibi.cebitec.aws.s3.transfer.model.LatencyHistogram;
+import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the live measurements in the Prometheus text format at /metrics. The values are only read when the endpoint
+ * is scraped, the transfer threads update the same striped counters whether the endpoint runs or not.
+ */
+public final class MetricsEndpoint {
+    public static final Logger log = LoggerFactory.getLogger(MetricsEndpoint.class);
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String DEFAULT_HOST = "127.0.0.1";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+    // gauges of the running transfer that are not kept in the measurements, e.g. the depth of the chunk queue
+    private static final Map<String, Gauge> gauges = new LinkedHashMap<>();
+    private static HttpServer server;
+
+    private MetricsEndpoint() {
+    }
+
+    /**
+     * Start serving the metrics.
+     *
+     * @param address Port, or host and port separated by a colon. Binds to localhost if no host is given.
+     */
+    public static synchronized void start(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        String host = colon < 0 ? DEFAULT_HOST : address.substring(0, colon);
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port: " + address);
+        }
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/metrics", MetricsEndpoint::handle);
+        server.start();
+        log.info("== Serving metrics at http://{}:{}/metrics", host, server.getAddress().getPort());
+    }
+
+    /**
+     * Export a gauge in addition to the measurements, replacing a previous gauge of the same name.
+     */
+    public static void gauge(String name, String help, LongSupplier value) {
+        synchronized (gauges) {
+            gauges.put(name, new Gauge(help, value));
+        }
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return All metrics in the Prometheus text format.
+     */
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder();
+        counter(sb, "bibis3_transferred_bytes_total", "Bytes transferred so far.", Measurements.getTransferredBytes());
+        counter(sb, "bibis3_chunks_finished_total", "Chunks transferred completely.", Measurements.getFinishedChunks());
+        counter(sb, "bibis3_requests_total", "HTTP requests sent, including retries.", Measurements.getRequests());
+        counter(sb, "bibis3_retries_total", "Requests and chunk transfers that have been retried.", Measurements.getRetries());
+        counter(sb, "bibis3_failed_attempts_total", "Failed attempts to transfer a chunk.", Measurements.getErrors());
+        counter(sb, "bibis3_throttled_requests_total", "Requests the server asked to slow down (503 SlowDown, 429).", Throttling.getCount());
+        gauge(sb, "bibis3_planned_bytes", "Bytes the transfer has planned so far.", Measurements.getOverallBytes());
+        gauge(sb, "bibis3_planned_chunks", "Chunks the transfer has planned so far.", Measurements.getOverallChunks());
+        gauge(sb, "bibis3_chunks_in_flight", "Chunks being transferred.", Measurements.getTransfersInFlight());
+        gauge(sb, "bibis3_threads_backing_off", "Transfer threads waiting before retrying a throttled request.", Measurements.getThreadsBackingOff());
+        header(sb, "bibis3_rate_bytes_per_second", "Current transfer rate as of the last progress report.", "gauge");
+        sb.append("bibis3_rate_bytes_per_second ").append(String.format(Locale.ROOT, "%.0f", Measurements.getRate())).append('\n');
+        synchronized (gauges) {
+            for (Map.Entry<String, Gauge> e : gauges.entrySet()) {
+                gauge(sb, e.getKey(), e.getValue().help, e.getValue().value.getAsLong());
+            }
+        }
+        summary(sb, "bibis3_first_byte_seconds", "Time from sending a request until the first byte of the response.", Measurements.FIRST_BYTE);
+        summary(sb, "bibis3_chunk_duration_seconds", "Time a chunk takes from its first request until it is done.", Measurements.CHUNK_DURATION);
+        threads(sb);
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, help, "counter");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, help, "gauge");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, String help, LatencyHistogram histogram) {
+        header(sb, name, help, "summary");
+        for (double q : QUANTILES) {
+            sb.append(name).append("{quantile=\"").append(q).append("\"} ").append(seconds(histogram.getPercentile(q * 100))).append('\n');
+        }
+        sb.append(name).append("_sum ").append(seconds(histogram.getSum())).append('\n');
+        sb.append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+    }
+
+    /**
+     * The states of the threads of the process, e.g. how many transfer threads are blocked on the network.
+     */
+    private static void threads(StringBuilder sb) {
+        Map<Thread.State, Integer> states = new EnumMap<>(Thread.State.class);
+        for (Thread.State state : Thread.State.values()) {
+            states.put(state, 0);
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        // without stack traces, the states are all we need
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds(), 0)) {
+            if (info != null) {
+                states.merge(info.getThreadState(), 1, Integer::sum);
+            }
+        }
+        header(sb, "bibis3_threads", "Threads of the process by state.", "gauge");
+        for (Map.Entry<Thread.State, Integer> e : states.entrySet()) {
+            sb.append("bibis3_threads{state=\"").append(e.getKey().name().toLowerCase(Locale.ROOT)).append("\"} ")
+                    .append(e.getValue()).append('\n');
+        }
+    }
+
+    private static class Gauge {
+        private final String help;
+        private final LongSupplier value;
+
+        Gauge(String help, LongSupplier value) {
+            this.help = help;
+            this.value = value;
+        }
+    }
+}
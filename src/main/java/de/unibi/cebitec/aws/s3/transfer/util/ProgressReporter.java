@@ -0,0 +1,333 @@
+package de.unibi.cebitec.aws.s3.transfer.util;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.unibi.cebitec.aws.s3.transfer.model.LatencyHistogram;
+import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reports the transfer as JSON lines for workflow engines: the start with the planned bytes, the aggregate progress
+ * every few seconds, every completed file, retried and failed chunk transfers and a summary when the process exits.
+ * The transfer threads only queue the events, a single reporter thread formats and writes them.
+ */
+public final class ProgressReporter {
+    public static final Logger log = LoggerFactory.getLogger(ProgressReporter.class);
+    /**
+     * Target that stands for STDOUT.
+     */
+    public static final String STDOUT = "-";
+    private static final long PROGRESS_INTERVAL = 5000;
+    private static final long SUMMARY_TIMEOUT = 5000;
+    private static final BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+    // start of the files that are being transferred, by key
+    private static final Map<String, Long> fileStarts = new ConcurrentHashMap<>();
+    private static final LongAdder completedFiles = new LongAdder();
+    private static final LongAdder failedFiles = new LongAdder();
+    private static volatile boolean enabled;
+    private static volatile boolean succeeded;
+    private static volatile long runStart;
+    private static String source;
+    private static String destination;
+    private static Writer out;
+    private static Thread reporter;
+
+    private ProgressReporter() {
+    }
+
+    /**
+     * Start reporting.
+     *
+     * @param target {@link #STDOUT}, the number of an open file descriptor or a file to write the events to.
+     */
+    public static synchronized void start(String target, String source, String destination) throws IOException {
+        OutputStream stream;
+        if (target.equals(STDOUT)) {
+            stream = System.out;
+        } else if (target.matches("\\d+")) {
+            stream = new FileOutputStream("/dev/fd/" + target);
+        } else {
+            stream = new FileOutputStream(target);
+        }
+        out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+        ProgressReporter.source = source;
+        ProgressReporter.destination = destination;
+        enabled = true;
+        reporter = new Thread(ProgressReporter::run, "progress-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+        // the summary is written however the process ends
+        Runtime.getRuntime().addShutdownHook(new Thread(ProgressReporter::finish, "progress-summary"));
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The transfer starts, report what has been planned so far. The progress is reported from now on.
+     *
+     * @param mode E.g. upload, download or stream-download.
+     */
+    public static void runStarted(String mode, int threads) {
+        if (!enabled) {
+            return;
+        }
+        runStart = System.nanoTime();
+        emit("start", "mode", mode, "source", source, "destination", destination, "threads", threads,
+                "planned_bytes", Measurements.getOverallBytes(), "planned_chunks", Measurements.getOverallChunks());
+    }
+
+    /**
+     * The first chunk of a file is being transferred. Later calls for the same file are ignored.
+     */
+    public static void fileStarted(String key) {
+        if (enabled) {
+            fileStarts.putIfAbsent(key, System.nanoTime());
+        }
+    }
+
+    /**
+     * A file has been transferred completely.
+     *
+     * @param path   Local file or null for streams.
+     * @param etag   ETag reported by the server or null if unknown.
+     * @param crc32c CRC-32C computed while transferring or null.
+     * @param sha256 SHA-256 digest computed while transferring or null.
+     * @param ok     false if the checksums did not match.
+     */
+    public static void fileCompleted(String key, Path path, long size, String etag, Long crc32c, String sha256, boolean ok) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        Long started = fileStarts.remove(key);
+        long duration = now - (started != null ? started : runStart != 0 ? runStart : now);
+        (ok ? completedFiles : failedFiles).increment();
+        emit("file", "key", key, "path", path == null ? null : path.toString(), "bytes", size,
+                "duration_s", duration / 1e9, "etag", etag, "crc32c", crc32c == null ? null : Crc32c.toHex(crc32c),
+                "sha256", sha256, "ok", ok);
+    }
+
+    /**
+     * An attempt to transfer a chunk has failed.
+     *
+     * @param attempt  Number of the failed attempt, starting at 1.
+     * @param retrying false if the transfer is given up.
+     * @param e        Reason or null if the transfer ended early.
+     */
+    public static void attemptFailed(String key, int attempt, boolean retrying, Exception e) {
+        if (enabled) {
+            emit(retrying ? "retry" : "failure", "key", key, "attempt", attempt,
+                    "error", e == null ? "incomplete transfer" : e.toString());
+        }
+    }
+
+    /**
+     * The transfer has succeeded, the summary reports a failure unless this has been called before the exit.
+     */
+    public static void succeeded() {
+        succeeded = true;
+    }
+
+    private static void emit(String type, Object... fields) {
+        events.add(new Event(type, false, fields));
+    }
+
+    private static void run() {
+        long nextProgress = 0;
+        StringBuilder sb = new StringBuilder();
+        try {
+            while (true) {
+                long wait = nextProgress == 0 ? PROGRESS_INTERVAL : nextProgress - System.currentTimeMillis();
+                Event event = events.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+                // write everything that has piled up at once
+                while (event != null) {
+                    event.appendTo(sb);
+                    if (event.last) {
+                        write(sb);
+                        return;
+                    }
+                    event = events.poll();
+                }
+                long now = System.currentTimeMillis();
+                if (runStart != 0 && nextProgress == 0) {
+                    nextProgress = now + PROGRESS_INTERVAL;
+                } else if (nextProgress != 0 && now >= nextProgress) {
+                    progress().appendTo(sb);
+                    nextProgress = now + PROGRESS_INTERVAL;
+                }
+                write(sb);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            enabled = false;
+            log.error("Failed to write the progress: {}", e.toString());
+        }
+    }
+
+    private static void write(StringBuilder sb) throws IOException {
+        if (sb.length() > 0) {
+            out.write(sb.toString());
+            out.flush();
+            sb.setLength(0);
+        }
+    }
+
+    private static Event progress() {
+        double rate = Measurements.updateRate();
+        long bytes = Measurements.getTransferredBytes();
+        long total = Measurements.getOverallBytes();
+        Long eta = rate >= 1 && total > bytes ? (long) ((total - bytes) / rate) : null;
+        return new Event("progress", false, "elapsed_s", getElapsed(), "bytes", bytes, "planned_bytes", total,
+                "chunks", Measurements.getFinishedChunks(), "planned_chunks", Measurements.getOverallChunks(),
+                "files", completedFiles.sum(), "rate_bps", (long) rate, "eta_s", eta,
+                "in_flight", Measurements.getTransfersInFlight(), "requests", Measurements.getRequests(),
+                "retries", Measurements.getRetries(), "failed_attempts", Measurements.getErrors(),
+                "throttled", Throttling.getCount());
+    }
+
+    /**
+     * Queue the summary and wait until the reporter has written it.
+     */
+    private static void finish() {
+        if (!enabled) {
+            return;
+        }
+        double elapsed = getElapsed();
+        long bytes = Measurements.getTransferredBytes();
+        events.add(new Event("summary", true, "status", succeeded ? "ok" : "failed", "elapsed_s", elapsed,
+                "bytes", bytes, "planned_bytes", Measurements.getOverallBytes(),
+                "chunks", Measurements.getFinishedChunks(), "planned_chunks", Measurements.getOverallChunks(),
+                "files", completedFiles.sum(), "failed_files", failedFiles.sum(),
+                "rate_bps", elapsed > 0 ? (long) (bytes / elapsed) : 0, "requests", Measurements.getRequests(),
+                "retries", Measurements.getRetries(), "failed_attempts", Measurements.getErrors(),
+                "throttled", Throttling.getCount(), "first_byte", latencies(Measurements.FIRST_BYTE),
+                "chunk_duration", latencies(Measurements.CHUNK_DURATION)));
+        try {
+            reporter.join(SUMMARY_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static double getElapsed() {
+        long start = runStart;
+        return start == 0 ? 0 : (System.nanoTime() - start) / 1e9;
+    }
+
+    private static Map<String, Object> latencies(LatencyHistogram histogram) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("count", histogram.getCount());
+        m.put("mean_s", histogram.getMean() / 1e6);
+        m.put("p50_s", histogram.getPercentile(50) / 1e6);
+        m.put("p90_s", histogram.getPercentile(90) / 1e6);
+        m.put("p99_s", histogram.getPercentile(99) / 1e6);
+        m.put("max_s", histogram.getMax() / 1e6);
+        return m;
+    }
+
+    private static final class Event {
+        private final String type;
+        private final long time = System.currentTimeMillis();
+        private final boolean last;
+        // names and values alternating
+        private final Object[] fields;
+
+        Event(String type, boolean last, Object... fields) {
+            this.type = type;
+            this.last = last;
+            this.fields = fields;
+        }
+
+        void appendTo(StringBuilder sb) {
+            sb.append("{\"event\":\"").append(this.type).append("\",\"time\":").append(this.time);
+            for (int i = 0; i < this.fields.length; i += 2) {
+                sb.append(',');
+                appendString(sb, (String) this.fields[i]);
+                sb.append(':');
+                appendValue(sb, this.fields[i + 1]);
+            }
+            sb.append("}\n");
+        }
+    }
+
+    private static void appendValue(StringBuilder sb, Object value) {
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof Double) {
+            double d = (Double) value;
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                sb.append("null");
+            } else {
+                sb.append(String.format(Locale.ROOT, "%.6f", d));
+            }
+        } else if (value instanceof Number || value instanceof Boolean) {
+            sb.append(value);
+        } else if (value instanceof Map) {
+            sb.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                appendString(sb, e.getKey().toString());
+                sb.append(':');
+                appendValue(sb, e.getValue());
+            }
+            sb.append('}');
+        } else {
+            appendString(sb, value.toString());
+        }
+    }
+
+    private static void appendString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        sb.append('"');
+    }
+}
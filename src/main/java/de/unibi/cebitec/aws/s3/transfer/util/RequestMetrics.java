@@ -0,0 +1,47 @@
+package de.unibi.cebitec.aws.s3.transfer.util;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.SyncProgressListener;
+import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+
+/**
+ * Progress listener for one request through the SDK that feeds the measurements: every HTTP attempt is counted as a
+ * request, the bytes of a request body as transferred, and the time from the request having been sent until the
+ * response arrives as time to first byte. Events are delivered synchronously in the thread that runs the request.
+ */
+public class RequestMetrics extends SyncProgressListener {
+    private long sentAt;
+    // body bytes counted for the current call
+    private long bytes;
+
+    @Override
+    public void progressChanged(ProgressEvent event) {
+        switch (event.getEventType()) {
+            case HTTP_REQUEST_STARTED_EVENT:
+                Measurements.countRequest();
+                this.sentAt = System.nanoTime();
+                break;
+            case REQUEST_BYTE_TRANSFER_EVENT:
+                Measurements.addTransferredBytes(event.getBytes());
+                this.bytes += event.getBytes();
+                this.sentAt = System.nanoTime();
+                break;
+            case HTTP_REQUEST_CONTENT_RESET_EVENT:
+                // the SDK sends the body again
+                Measurements.addTransferredBytes(-event.getBytes());
+                this.bytes -= event.getBytes();
+                break;
+            case HTTP_REQUEST_COMPLETED_EVENT:
+                // the response headers have arrived
+                Measurements.FIRST_BYTE.record(System.nanoTime() - this.sentAt);
+                break;
+            case CLIENT_REQUEST_FAILED_EVENT:
+                // the caller starts over with a new request
+                Measurements.addTransferredBytes(-this.bytes);
+                this.bytes = 0;
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package de.unibi.cebitec.aws.s3.transfer.util;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import de.unibi.cebitec.aws.s3.transfer.model.Measurements;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the responses that ask us to slow down (503 SlowDown, 429), including the ones the SDK retries internally.
+ * The adaptive concurrency control reduces the number of requests when the count rises, the prefix scheduling listens
+ * for the keys of the throttled requests.
+ */
+public final class Throttling {
+    public static final Logger log = LoggerFactory.getLogger(Throttling.class);
+    private static final long BASE_DELAY = 200;
+    private static final long MAX_DELAY = 20000;
+    private static final AtomicLong count = new AtomicLong();
+    private static volatile Consumer<String> listener;
+
+    private Throttling() {
+    }
+
+    /**
+     * Count a throttled request.
+     *
+     * @param key Key of the requested object, or null if unknown.
+     */
+    public static void record(String key) {
+        count.incrementAndGet();
+        Consumer<String> l = listener;
+        if (l != null && key != null) {
+            l.accept(key);
+        }
+    }
+
+    /**
+     * @param keyListener Called with the key of every throttled request whose key is known, null to remove it.
+     */
+    public static void setListener(Consumer<String> keyListener) {
+        listener = keyListener;
+    }
+
+    /**
+     * @return Number of throttled requests so far.
+     */
+    public static long getCount() {
+        return count.get();
+    }
+
+    public static boolean isThrottlingStatus(int status) {
+        return status == 503 || status == 429;
+    }
+
+    /**
+     * @return true if the exception is caused by a response that asks us to slow down.
+     */
+    public static boolean isThrottling(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof ThrottledException) {
+                return true;
+            }
+            if (t instanceof AmazonServiceException) {
+                AmazonServiceException ase = (AmazonServiceException) t;
+                return RetryUtils.isThrottlingException(ase) || isThrottlingStatus(ase.getStatusCode());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wait before the next attempt of a throttled request, exponentially longer with every attempt and with full
+     * jitter, so the retries of many requests don't arrive at the same time.
+     *
+     * @param attempt Number of failed attempts before, starting with 0.
+     */
+    public static void backOff(int attempt) {
+        long delay = getBackOffDelay(attempt);
+        log.debug("Throttled, waiting {} ms before the next attempt.", delay);
+        Measurements.backOffStarted();
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            Measurements.backOffEnded();
+        }
+    }
+
+    /**
+     * @param attempt Number of failed attempts before, starting with 0.
+     * @return Milliseconds to wait before the next attempt of a throttled request.
+     */
+    public static long getBackOffDelay(int attempt) {
+        return ThreadLocalRandom.current().nextLong(Math.min(MAX_DELAY, BASE_DELAY << Math.min(attempt, 16)) + 1);
+    }
+
+    /**
+     * @return The default retry policy of the SDK that also counts the throttled attempts and the retries it makes.
+     */
+    public static RetryPolicy createRetryPolicy() {
+        return new RetryPolicy((AmazonWebServiceRequest request, AmazonClientException e, int retries) -> {
+            if (isThrottling(e)) {
+                record(getKey(request));
+            }
+            boolean retry = PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(request, e, retries);
+            if (retry) {
+                Measurements.countRetry();
+            }
+            return retry;
+        }, PredefinedRetryPolicies.DEFAULT_BACKOFF_STRATEGY, PredefinedRetryPolicies.DEFAULT_MAX_ERROR_RETRY, true);
+    }
+
+    private static String getKey(AmazonWebServiceRequest request) {
+        if (request instanceof GetObjectRequest) {
+            return ((GetObjectRequest) request).getKey();
+        } else if (request instanceof PutObjectRequest) {
+            return ((PutObjectRequest) request).getKey();
+        } else if (request instanceof UploadPartRequest) {
+            return ((UploadPartRequest) request).getKey();
+        }
+        return null;
+    }
+
+    /**
+     * Failed HTTP request that has been answered with a throttling status.
+     */
+    public static class ThrottledException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ThrottledException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package de.unibi.cebitec.aws.s3.transfer.util;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executors for the transfer threads. On a JDK with virtual threads (21 and later) the transfers may run on virtual
+ * threads, one per task, with the number of concurrent tasks bounded by a semaphore. Thousands of concurrent requests
+ * then don't need thousands of platform threads. Older JDKs always use a fixed pool of platform threads.
+ */
+public final class TransferExecutors {
+    public static final Logger log = LoggerFactory.getLogger(TransferExecutors.class);
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutor();
+    private static volatile boolean virtualThreads;
+
+    private TransferExecutors() {
+    }
+
+    private static Method findVirtualThreadExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public static boolean isVirtualThreadsAvailable() {
+        return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    /**
+     * Run the transfers on virtual threads if the JDK supports them.
+     */
+    public static void setVirtualThreads(boolean enabled) {
+        if (enabled && !isVirtualThreadsAvailable()) {
+            log.warn("Virtual threads require Java 21 or later (running on {}). Using platform threads.", System.getProperty("java.version"));
+            enabled = false;
+        }
+        virtualThreads = enabled;
+    }
+
+    /**
+     * @param numberOfThreads Maximum number of tasks running at the same time.
+     */
+    public static ExecutorService newExecutor(int numberOfThreads) {
+        if (virtualThreads) {
+            try {
+                return new BoundedExecutor((ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null), numberOfThreads);
+            } catch (ReflectiveOperationException e) {
+                log.warn("Failed to create virtual thread executor: {}", e.toString());
+            }
+        }
+        return Executors.newFixedThreadPool(numberOfThreads);
+    }
+
+    /**
+     * Runs every task on its own thread of the underlying executor, but only a limited number of them at a time. The
+     * tasks wait for a permit on their threads, which is cheap for virtual threads.
+     */
+    private static class BoundedExecutor extends AbstractExecutorService {
+        private final ExecutorService executor;
+        private final Semaphore permits;
+
+        BoundedExecutor(ExecutorService executor, int permits) {
+            this.executor = executor;
+            this.permits = new Semaphore(permits);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            this.executor.execute(() -> {
+                this.permits.acquireUninterruptibly();
+                try {
+                    command.run();
+                } finally {
+                    this.permits.release();
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            this.executor.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return this.executor.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return this.executor.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return this.executor.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return this.executor.awaitTermination(timeout, unit);
+        }
+    }
+}
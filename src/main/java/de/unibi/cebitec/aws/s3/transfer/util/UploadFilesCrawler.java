@@ -1,9 +1,9 @@
 package de.unibi.cebitec.aws.s3.transfer.util;
 
-import de.unibi.cebitec.aws.s3.transfer.model.InputFileList;
-import de.unibi.cebitec.aws.s3.transfer.model.OutputFileList;
+import de.unibi.cebitec.aws.s3.transfer.model.TransferQueue;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
@@ -14,21 +14,37 @@ import org.slf4j.LoggerFactory;
 
 public class UploadFilesCrawler extends SimpleFileVisitor<Path> {
     public final Logger log = LoggerFactory.getLogger(UploadFilesCrawler.class);
-    private InputFileList<Path> files;
-    private OutputFileList<Path, String> targetKeys;
+    private TransferQueue<Path, String> files;
     private String keyPrefix;
+    private Filter filter;
 
-    public UploadFilesCrawler(String keyPrefix) {
+    /**
+     * @param files Queue the visited files are added to. Visiting blocks while the queue is full.
+     */
+    public UploadFilesCrawler(String keyPrefix, TransferQueue<Path, String> files) {
         this.keyPrefix = keyPrefix;
-        this.files = new InputFileList<>();
-        this.targetKeys = new OutputFileList<>();
+        this.files = files;
+    }
+
+    /**
+     * Skip the files the filter rejects, e.g. because they have been uploaded already.
+     */
+    public void setFilter(Filter filter) {
+        this.filter = filter;
     }
 
     @Override
     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-        this.files.put(file, attrs.size());
         String key = keyPrefix + file.toString();
-        this.targetKeys.put(file, key);
+        if (this.filter != null && this.filter.skip(file, key, attrs)) {
+            return FileVisitResult.CONTINUE;
+        }
+        try {
+            this.files.put(file, key, attrs.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
         return FileVisitResult.CONTINUE;
     }
 
@@ -38,11 +54,10 @@ public class UploadFilesCrawler extends SimpleFileVisitor<Path> {
         return FileVisitResult.CONTINUE;
     }
 
-    public InputFileList<Path> getFiles() {
-        return files;
-    }
-
-    public OutputFileList<Path, String> getTargetKeys() {
-        return targetKeys;
+    public interface Filter {
+        /**
+         * @return true if the file must not be uploaded.
+         */
+        boolean skip(Path file, String key, BasicFileAttributes attrs) throws IOException;
     }
 }
@@ -0,0 +1,222 @@
+package de.unibi.cebitec.aws.s3.transfer.ctrl;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.unibi.cebitec.aws.s3.transfer.model.down.DownloadPartS3;
+import de.unibi.cebitec.aws.s3.transfer.model.down.MultipartDownloadFile;
+import de.unibi.cebitec.aws.s3.transfer.model.up.MultipartUploadFile;
+import de.unibi.cebitec.aws.s3.transfer.model.up.UploadPart;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the engine against a local S3 stand-in that can cut responses short and answer with 503 SlowDown.
+ */
+public class AsyncEngineTest {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+    private static final String BUCKET = "bucket";
+    private static final String KEY = "data.bin";
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final byte[] data = new byte[3 * 1048576];
+    // faults for the next requests: truncate, slowdown or error
+    private final Deque<String> faults = new ConcurrentLinkedDeque<>();
+    // first byte of every range request
+    private final List<Long> rangeStarts = Collections.synchronizedList(new ArrayList<>());
+    private final List<byte[]> uploadedParts = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger requests = new AtomicInteger();
+    private HttpServer server;
+    private AmazonS3 s3;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(42).nextBytes(this.data);
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/", this::handle);
+        this.server.start();
+        String endpoint = "http://127.0.0.1:" + this.server.getAddress().getPort();
+        this.s3 = AmazonS3ClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, "us-east-1"))
+                .withPathStyleAccessEnabled(true)
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("x", "y")))
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        this.server.stop(0);
+        this.s3.shutdown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        this.requests.incrementAndGet();
+        try {
+            String fault = this.faults.poll();
+            if ("slowdown".equals(fault)) {
+                send(exchange, 503, "<Error><Code>SlowDown</Code><Message>Please reduce your request rate.</Message></Error>");
+                return;
+            }
+            if ("error".equals(fault)) {
+                send(exchange, 500, "<Error><Code>InternalError</Code><Message>We encountered an internal error.</Message></Error>");
+                return;
+            }
+            if (exchange.getRequestMethod().equals("PUT")) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                try (InputStream in = exchange.getRequestBody()) {
+                    byte[] b = new byte[65536];
+                    int n;
+                    while ((n = in.read(b)) > 0) {
+                        body.write(b, 0, n);
+                    }
+                }
+                this.uploadedParts.add(body.toByteArray());
+                exchange.getResponseHeaders().set("ETag", "\"etag-" + this.uploadedParts.size() + "\"");
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            Matcher m = RANGE.matcher(exchange.getRequestHeaders().getFirst("Range"));
+            if (!m.matches()) {
+                send(exchange, 400, "Range required");
+                return;
+            }
+            long first = Long.parseLong(m.group(1));
+            long last = Long.parseLong(m.group(2));
+            this.rangeStarts.add(first);
+            int length = (int) (last - first + 1);
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/" + this.data.length);
+            exchange.sendResponseHeaders(206, length);
+            OutputStream out = exchange.getResponseBody();
+            if ("truncate".equals(fault)) {
+                // close the connection after a third of the range: closing the body throws because of the missing
+                // bytes, and the server only drops the connection if the exception leaves the handler
+                out.write(this.data, (int) first, length / 3);
+                out.flush();
+                out.close();
+                return;
+            }
+            out.write(this.data, (int) first, length);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] b = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, b.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(b);
+        }
+    }
+
+    /**
+     * Download the object as a single part.
+     */
+    private Path downloadObject() throws Exception {
+        Path target = this.folder.getRoot().toPath().resolve("target.bin");
+        MultipartDownloadFile f = new MultipartDownloadFile(KEY, target, this.data.length, true, this.data.length);
+        f.openFile();
+        try (AsyncEngine engine = new AsyncEngine(this.s3, BUCKET, 4)) {
+            engine.download((DownloadPartS3) f.next(), () -> {
+            });
+            engine.await();
+        } finally {
+            f.closeFile();
+        }
+        return target;
+    }
+
+    @Test
+    public void download() throws Exception {
+        assertArrayEquals(this.data, Files.readAllBytes(downloadObject()));
+        assertEquals(Collections.singletonList(0L), this.rangeStarts);
+    }
+
+    @Test
+    public void truncatedResponseIsResumed() throws Exception {
+        this.faults.add("truncate");
+        assertArrayEquals(this.data, Files.readAllBytes(downloadObject()));
+        assertEquals(2, this.rangeStarts.size());
+        // the second request continues behind the bytes written from the first one
+        assertTrue("resumed at " + this.rangeStarts.get(1), this.rangeStarts.get(1) > 0);
+        assertTrue("resumed at " + this.rangeStarts.get(1), this.rangeStarts.get(1) <= this.data.length / 3);
+    }
+
+    @Test
+    public void slowDownIsRetried() throws Exception {
+        this.faults.addAll(Arrays.asList("slowdown", "slowdown"));
+        assertArrayEquals(this.data, Files.readAllBytes(downloadObject()));
+        assertEquals(3, this.requests.get());
+    }
+
+    @Test
+    public void failureIsThrownToTheCaller() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            this.faults.add("error");
+        }
+        try {
+            downloadObject();
+            fail("The download should have failed.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(KEY));
+        }
+    }
+
+    @Test
+    public void uploadPartIsStreamedAndRetried() throws Exception {
+        Path source = this.folder.newFile("source.bin").toPath();
+        Files.write(source, this.data);
+        long partSize = 1048576;
+        MultipartUploadFile f = new MultipartUploadFile(source, KEY, partSize);
+        f.setUploadId("upload-1");
+        this.faults.add("slowdown");
+        List<UploadPart> parts = new ArrayList<>();
+        try (AsyncEngine engine = new AsyncEngine(this.s3, BUCKET, 1)) {
+            while (f.hasMoreParts()) {
+                UploadPart part = f.next();
+                parts.add(part);
+                engine.upload(part, () -> {
+                });
+            }
+            engine.await();
+        }
+        assertEquals(3, this.uploadedParts.size());
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(Arrays.copyOfRange(this.data, (int) (i * partSize), (int) ((i + 1) * partSize)), this.uploadedParts.get(i));
+            assertEquals(i + 1, parts.get(i).getTag().getPartNumber());
+        }
+    }
+}
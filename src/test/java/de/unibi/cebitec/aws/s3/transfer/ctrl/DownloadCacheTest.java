@@ -0,0 +1,78 @@
+package de.unibi.cebitec.aws.s3.transfer.ctrl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadCacheTest {
+    private static final String BUCKET = "bucket";
+    private static final String ETAG = "\"e3bc5f891b51a71011bfcec5583ace3c\"";
+    private static final int SIZE = 100;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private Path targets;
+    private DownloadCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        this.targets = this.folder.newFolder("targets").toPath();
+        this.cache = new DownloadCache(this.folder.getRoot().toPath().resolve("cache"), 2 * SIZE + SIZE / 2);
+    }
+
+    /**
+     * Store a downloaded file of the given key.
+     */
+    private Path download(String key) throws IOException {
+        Path target = this.targets.resolve(key);
+        Files.write(target, data(key));
+        this.cache.store(BUCKET, key, ETAG, target);
+        return target;
+    }
+
+    private static byte[] data(String key) {
+        byte[] b = new byte[SIZE];
+        b[0] = (byte) key.charAt(0);
+        return b;
+    }
+
+    private boolean fetch(String key) {
+        return this.cache.fetch(BUCKET, key, ETAG, SIZE, this.targets.resolve(key + ".hit"));
+    }
+
+    @Test
+    public void hitLeavesTheModificationTimeAlone() throws Exception {
+        Path target = download("a");
+        FileTime stored = FileTime.fromMillis(1000000000000L);
+        Files.setLastModifiedTime(target, stored);
+        assertTrue(fetch("a"));
+        assertArrayEquals(data("a"), Files.readAllBytes(this.targets.resolve("a.hit")));
+        assertEquals(stored, Files.getLastModifiedTime(target));
+        assertEquals(stored, Files.getLastModifiedTime(this.targets.resolve("a.hit")));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws Exception {
+        download("a");
+        Thread.sleep(20);
+        download("b");
+        Thread.sleep(20);
+        // a has been used more recently than b now
+        assertTrue(fetch("a"));
+        Thread.sleep(20);
+        download("c");
+        assertFalse(fetch("b"));
+        assertTrue(fetch("c"));
+        assertTrue(fetch("a"));
+    }
+}
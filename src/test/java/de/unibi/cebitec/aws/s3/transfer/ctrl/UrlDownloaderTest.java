@@ -0,0 +1,118 @@
+package de.unibi.cebitec.aws.s3.transfer.ctrl;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.unibi.cebitec.aws.s3.transfer.model.TransferQueue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads a list of URLs from a local stand-in server that answers slowly and throttles the first requests.
+ */
+public class UrlDownloaderTest {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+    private static final byte[] SLOW_DOWN = "<Error><Code>SlowDown</Code></Error>".getBytes(StandardCharsets.UTF_8);
+    private static final int FILES = 40;
+    private static final long RESPONSE_MILLIS = 150;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final byte[] data = new byte[65536];
+    // GET requests that are answered with 503 SlowDown
+    private final AtomicInteger throttled = new AtomicInteger(8);
+    private ExecutorService handlers;
+    private HttpServer server;
+    private String endpoint;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(42).nextBytes(this.data);
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/", this::handle);
+        this.handlers = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.handlers);
+        this.server.start();
+        this.endpoint = "http://127.0.0.1:" + this.server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        this.server.stop(0);
+        this.handlers.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(this.data.length));
+                // the server drops the connection after a HEAD response with a length, don't let the client reuse it
+                exchange.getResponseHeaders().set("Connection", "close");
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            if (this.throttled.getAndDecrement() > 0) {
+                exchange.sendResponseHeaders(503, SLOW_DOWN.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(SLOW_DOWN);
+                }
+                return;
+            }
+            Thread.sleep(RESPONSE_MILLIS);
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            Matcher m = range == null ? null : RANGE.matcher(range);
+            int first = 0;
+            int last = this.data.length - 1;
+            if (m != null && m.matches()) {
+                first = Integer.parseInt(m.group(1));
+                last = Integer.parseInt(m.group(2));
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/" + this.data.length);
+            }
+            exchange.sendResponseHeaders(m != null ? 206 : 200, last - first + 1);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(this.data, first, last - first + 1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Test
+    public void adaptiveConcurrencyOfAList() throws Exception {
+        TransferQueue<String, Path> urls = new TransferQueue<>();
+        Path dir = this.folder.getRoot().toPath();
+        for (int i = 0; i < FILES; i++) {
+            urls.put(this.endpoint + "/file" + i, dir.resolve("file" + i), -1);
+        }
+        urls.close();
+        UrlDownloader down = new UrlDownloader(urls, 16, 1048576);
+        down.setAdaptiveConcurrency(true);
+        down.download();
+        for (int i = 0; i < FILES; i++) {
+            assertArrayEquals(this.data, Files.readAllBytes(dir.resolve("file" + i)));
+        }
+        // the throttled requests have cut the initial limit of 8
+        int lowest = down.getAdaptiveConcurrency().getLowestLimit();
+        assertTrue("lowest limit " + lowest, lowest < 8);
+    }
+}
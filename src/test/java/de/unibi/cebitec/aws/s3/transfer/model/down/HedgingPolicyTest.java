@@ -0,0 +1,181 @@
+package de.unibi.cebitec.aws.s3.transfer.model.down;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.unibi.cebitec.aws.s3.transfer.model.down.url.DownloadPartUrl;
+import de.unibi.cebitec.aws.s3.transfer.util.HttpTransport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hedges a part whose first request does not get its response headers, against a stand-in server that holds back
+ * the response of the first request after warming up until the end of the test.
+ */
+public class HedgingPolicyTest {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+    private static final long STALL_SECONDS = 20;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final byte[] data = new byte[1048576];
+    private final AtomicBoolean stallNext = new AtomicBoolean();
+    private final CountDownLatch stalled = new CountDownLatch(1);
+    private ExecutorService handlers;
+    private HttpServer server;
+    private String endpoint;
+    private HedgingPolicy policy;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(42).nextBytes(this.data);
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/", this::handle);
+        // the stalled request must not block the others
+        this.handlers = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.handlers);
+        this.server.start();
+        this.endpoint = "http://127.0.0.1:" + this.server.getAddress().getPort();
+        this.policy = new HedgingPolicy(200, 50, 1);
+    }
+
+    @After
+    public void tearDown() {
+        this.stalled.countDown();
+        this.policy.shutdown();
+        this.server.stop(0);
+        this.handlers.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (this.stallNext.compareAndSet(true, false)) {
+                try {
+                    this.stalled.await(STALL_SECONDS, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            Matcher m = RANGE.matcher(exchange.getRequestHeaders().getFirst("Range"));
+            if (!m.matches()) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            int first = Integer.parseInt(m.group(1));
+            int last = Integer.parseInt(m.group(2));
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/" + this.data.length);
+            exchange.sendResponseHeaders(206, last - first + 1);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(this.data, first, last - first + 1);
+            }
+        } catch (IOException e) {
+            // the client has aborted the request
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Stall the next request. The client has sent a request before, so the original request of the part arrives long
+     * before the hedge delay.
+     */
+    private MultipartDownloadFile newFile(boolean s3) throws Exception {
+        Path target = this.folder.getRoot().toPath().resolve("target.bin");
+        MultipartDownloadFile f = new MultipartDownloadFile("data.bin", target, this.data.length, s3, this.data.length);
+        f.setHedgingPolicy(this.policy);
+        f.openFile();
+        this.stallNext.set(true);
+        return f;
+    }
+
+    private void assertWon(MultipartDownloadFile f) throws Exception {
+        assertTrue(f.isComplete());
+        assertArrayEquals(this.data, Files.readAllBytes(f.getTargetFile()));
+        assertEquals(1, this.policy.getFiredCount());
+        for (int i = 0; i < 100 && this.policy.getWonCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, this.policy.getWonCount());
+    }
+
+    /**
+     * The pending request of the URL download is aborted as soon as the hedged request has finished the part.
+     */
+    @Test
+    public void stalledUrlRequestIsHedgedAndAborted() throws Exception {
+        String url = this.endpoint + "/data.bin";
+        HttpTransport.get().getRange(url, 0, 0).close();
+        MultipartDownloadFile f = newFile(false);
+        long start = System.nanoTime();
+        try {
+            ((DownloadPartUrl) f.next()).download(url);
+        } finally {
+            f.closeFile();
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(STALL_SECONDS / 2));
+        assertWon(f);
+    }
+
+    /**
+     * The S3 client can't abort the pending request, but the hedged request finishes the part without it.
+     */
+    @Test
+    public void stalledS3RequestIsHedgedAndAbandoned() throws Exception {
+        AmazonS3 s3 = AmazonS3ClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(this.endpoint, "us-east-1"))
+                .withPathStyleAccessEnabled(true)
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("x", "y")))
+                .build();
+        s3.getObject(new GetObjectRequest("bucket", "data.bin").withRange(0, 0)).close();
+        MultipartDownloadFile f = newFile(true);
+        DownloadPartS3 part = (DownloadPartS3) f.next();
+        Thread primary = new Thread(() -> {
+            try {
+                part.download(s3, "bucket");
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        primary.start();
+        try {
+            for (int i = 0; i < 500 && !f.isComplete(); i++) {
+                Thread.sleep(10);
+            }
+            // the original request is still waiting for its response
+            assertTrue(primary.isAlive());
+            assertWon(f);
+        } finally {
+            this.stalled.countDown();
+            primary.join(TimeUnit.SECONDS.toMillis(STALL_SECONDS));
+            f.closeFile();
+            s3.shutdown();
+        }
+        assertArrayEquals(this.data, Files.readAllBytes(f.getTargetFile()));
+    }
+}
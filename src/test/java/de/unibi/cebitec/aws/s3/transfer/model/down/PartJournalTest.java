@@ -0,0 +1,101 @@
+package de.unibi.cebitec.aws.s3.transfer.model.down;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class PartJournalTest {
+    private static final long SIZE = 1000;
+    private static final String ETAG = "e3bc5f891b51a71011bfcec5583ace3c-3";
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private Path target;
+
+    @Before
+    public void setUp() throws IOException {
+        this.target = this.folder.getRoot().toPath().resolve("target.bin");
+        try (RandomAccessFile raf = new RandomAccessFile(this.target.toFile(), "rw")) {
+            raf.setLength(SIZE);
+        }
+    }
+
+    /**
+     * Record ranges as a download does and close the journal without deleting it, like an interrupted run.
+     */
+    private PartJournal write(long[]... ranges) throws IOException {
+        PartJournal journal = PartJournal.open(this.target, SIZE, ETAG);
+        try (FileChannel data = FileChannel.open(this.target, StandardOpenOption.WRITE)) {
+            for (long[] range : ranges) {
+                journal.markComplete(range[0], range[1]);
+                journal.sync(data);
+            }
+        }
+        journal.close();
+        return journal;
+    }
+
+    private static void assertRanges(List<long[]> ranges, long[]... expected) {
+        assertEquals(expected.length, ranges.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], ranges.get(i));
+        }
+    }
+
+    @Test
+    public void replay() throws IOException {
+        write(new long[]{0, 100}, new long[]{300, 200}, new long[]{100, 50});
+        PartJournal journal = PartJournal.open(this.target, SIZE, ETAG);
+        assertEquals(350, journal.getCompletedBytes());
+        assertRanges(journal.getMissingRanges(), new long[]{150, 300}, new long[]{500, SIZE});
+        journal.close();
+    }
+
+    @Test
+    public void replayAfterTornLastRecord() throws IOException {
+        PartJournal written = write(new long[]{0, 100}, new long[]{300, 200});
+        // the last record has been cut off in the middle of the line
+        Files.write(written.getJournalFile(), "600".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        PartJournal journal = PartJournal.open(this.target, SIZE, ETAG);
+        assertEquals(300, journal.getCompletedBytes());
+        assertRanges(journal.getMissingRanges(), new long[]{100, 300}, new long[]{500, SIZE});
+        // the journal is compacted, so further records are appended behind complete lines
+        journal.markComplete(600, 100);
+        try (FileChannel data = FileChannel.open(this.target, StandardOpenOption.WRITE)) {
+            journal.sync(data);
+        }
+        journal.close();
+        journal = PartJournal.open(this.target, SIZE, ETAG);
+        assertEquals(400, journal.getCompletedBytes());
+        journal.close();
+    }
+
+    @Test
+    public void changedObjectIsNotResumed() throws IOException {
+        write(new long[]{0, 100});
+        PartJournal journal = PartJournal.open(this.target, SIZE, "041e2458cccc0bff6e10520d9e282eb1");
+        assertEquals(0, journal.getCompletedBytes());
+        assertRanges(journal.getMissingRanges(), new long[]{0, SIZE});
+        journal.close();
+    }
+
+    @Test
+    public void delete() throws IOException {
+        PartJournal journal = write(new long[]{0, SIZE});
+        journal.delete();
+        assertFalse(Files.exists(journal.getJournalFile()));
+    }
+}
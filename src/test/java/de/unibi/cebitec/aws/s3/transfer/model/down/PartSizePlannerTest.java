@@ -0,0 +1,132 @@
+package de.unibi.cebitec.aws.s3.transfer.model.down;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static de.unibi.cebitec.aws.s3.transfer.model.down.PartSizePlanner.MAX_PART_SIZE;
+import static de.unibi.cebitec.aws.s3.transfer.model.down.PartSizePlanner.MIN_PART_SIZE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PartSizePlannerTest {
+    private static final long MB = 1048576;
+    private static final long GB = 1024 * MB;
+    private static final long SECOND = 1000000000L;
+
+    /**
+     * Cut an object into parts like a download does.
+     */
+    private static List<Long> plan(PartSizePlanner planner, long size) {
+        List<Long> parts = new ArrayList<>();
+        long available = size;
+        while (available > 0) {
+            long partSize = planner.nextPartSize(available);
+            parts.add(partSize);
+            available -= partSize;
+        }
+        return parts;
+    }
+
+    /**
+     * Parts are clamped to the bounds of the planner, only the last part takes up the remainder behind it.
+     */
+    private static void assertWithinBounds(List<Long> parts, long size) {
+        long sum = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            long partSize = parts.get(i);
+            assertTrue("part of " + partSize + " bytes", partSize >= MIN_PART_SIZE);
+            if (i < parts.size() - 1) {
+                assertTrue("part of " + partSize + " bytes", partSize <= MAX_PART_SIZE);
+            } else {
+                assertTrue("last part of " + partSize + " bytes", partSize < MAX_PART_SIZE + Math.max(MAX_PART_SIZE / 2, MIN_PART_SIZE));
+            }
+            sum += partSize;
+        }
+        assertEquals(size, sum);
+    }
+
+    /**
+     * Report parts with a fixed time to first byte and throughput.
+     */
+    private static void finishParts(PartSizePlanner planner, int parts, double firstByteSeconds, double bytesPerSecond) {
+        for (int i = 0; i < parts; i++) {
+            long bytes = planner.getCurrentPartSize();
+            long firstByte = (long) (firstByteSeconds * SECOND);
+            planner.partFinished(bytes, firstByte, firstByte + (long) (bytes / bytesPerSecond * SECOND));
+        }
+    }
+
+    @Test
+    public void initialPartSizeIsClamped() {
+        PartSizePlanner planner = new PartSizePlanner(8);
+        assertEquals(MIN_PART_SIZE, planner.getCurrentPartSize());
+        // four parts per thread
+        planner.addBytes(100 * MB);
+        assertEquals(MIN_PART_SIZE, planner.getCurrentPartSize());
+        planner.addBytes(10 * GB - 100 * MB);
+        assertEquals(10 * GB / 32, planner.getCurrentPartSize());
+        planner.addBytes(100 * 1024 * GB);
+        assertEquals(MAX_PART_SIZE, planner.getCurrentPartSize());
+    }
+
+    @Test
+    public void measuredPartSizeIsClamped() {
+        PartSizePlanner planner = new PartSizePlanner(8);
+        planner.addBytes(10 * GB);
+        long initialPartSize = planner.getCurrentPartSize();
+        // a fast and close endpoint does not shrink the parts below the initial plan
+        finishParts(planner, 20, 0.001, 1e6);
+        assertEquals(initialPartSize, planner.getCurrentPartSize());
+        // the plan only changes once enough parts have finished
+        planner = new PartSizePlanner(8);
+        planner.addBytes(10 * GB);
+        finishParts(planner, 7, 0.1, 200 * MB);
+        assertEquals(initialPartSize, planner.getCurrentPartSize());
+        // latency may cost a twentieth of a part: 20 * 100ms * 200MB/s
+        finishParts(planner, 1, 0.1, 200 * MB);
+        assertEquals(400 * MB, planner.getCurrentPartSize());
+        finishParts(planner, 20, 1, 1e9);
+        assertEquals(MAX_PART_SIZE, planner.getCurrentPartSize());
+        // bytes added later don't replace the measured plan
+        planner.addBytes(MB);
+        assertEquals(MAX_PART_SIZE, planner.getCurrentPartSize());
+    }
+
+    @Test
+    public void planCoversTheObject() {
+        for (int threads : new int[]{1, 8, 50, 200}) {
+            for (long size : new long[]{MIN_PART_SIZE, 100 * MB, 10 * GB, 1024 * GB, 5 * 1024 * GB}) {
+                PartSizePlanner planner = new PartSizePlanner(threads);
+                planner.addBytes(size);
+                assertWithinBounds(plan(planner, size), size);
+            }
+        }
+        for (double bytesPerSecond : new double[]{1e5, 1e8, 1e11}) {
+            PartSizePlanner planner = new PartSizePlanner(50);
+            long size = 5 * 1024 * GB;
+            planner.addBytes(size);
+            finishParts(planner, 20, 0.5, bytesPerSecond);
+            assertWithinBounds(plan(planner, size), size);
+        }
+    }
+
+    @Test
+    public void partsShrinkTowardsTheEnd() {
+        PartSizePlanner planner = new PartSizePlanner(8);
+        planner.addBytes(10 * GB);
+        List<Long> parts = plan(planner, 10 * GB);
+        assertEquals(10 * GB / 32, (long) parts.get(0));
+        assertEquals(MIN_PART_SIZE, (long) parts.get(parts.size() - 2));
+    }
+
+    @Test
+    public void remainderIsAddedToTheLastPart() {
+        PartSizePlanner planner = new PartSizePlanner(1);
+        planner.addBytes(12 * MB);
+        // 7MB are left behind the first part, too little for two parts of 5MB
+        assertEquals(Arrays.asList(MIN_PART_SIZE, 12 * MB - MIN_PART_SIZE), plan(planner, 12 * MB));
+    }
+}
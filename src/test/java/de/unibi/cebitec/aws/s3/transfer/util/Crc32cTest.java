@@ -0,0 +1,53 @@
+package de.unibi.cebitec.aws.s3.transfer.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class Crc32cTest {
+
+    @Test
+    public void checkValue() {
+        byte[] b = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0xe3069283L, Crc32c.of(b, 0, b.length));
+        assertEquals("e3069283", Crc32c.toHex(Crc32c.of(b, 0, b.length)));
+    }
+
+    @Test
+    public void updateInPieces() {
+        byte[] b = new byte[100000];
+        new Random(42).nextBytes(b);
+        Crc32c crc = new Crc32c();
+        crc.update(b, 0, 3);
+        crc.update(b[3]);
+        crc.update(b, 4, b.length - 4);
+        assertEquals(Crc32c.of(b, 0, b.length), crc.getValue());
+    }
+
+    @Test
+    public void combine() {
+        byte[] b = new byte[1048576 + 17];
+        new Random(42).nextBytes(b);
+        long whole = Crc32c.of(b, 0, b.length);
+        for (int split : new int[]{0, 1, 7, 8, 4096, 65537, 1048576, b.length - 1, b.length}) {
+            long crc1 = Crc32c.of(b, 0, split);
+            long crc2 = Crc32c.of(b, split, b.length - split);
+            assertEquals("split at " + split, whole, Crc32c.combine(crc1, crc2, b.length - split));
+        }
+    }
+
+    @Test
+    public void combineParts() {
+        byte[] b = new byte[3 * 65536 + 5];
+        new Random(7).nextBytes(b);
+        long combined = Crc32c.of(b, 0, 0);
+        for (int off = 0; off < b.length; off += 65536) {
+            int len = Math.min(65536, b.length - off);
+            combined = Crc32c.combine(combined, Crc32c.of(b, off, len), len);
+        }
+        assertEquals(Crc32c.of(b, 0, b.length), combined);
+    }
+}
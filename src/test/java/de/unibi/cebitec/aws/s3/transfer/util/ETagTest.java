@@ -0,0 +1,49 @@
+package de.unibi.cebitec.aws.s3.transfer.util;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ETagTest {
+    private static final int MB = 1048576;
+
+    @Test
+    public void singlePart() {
+        // ETag of an empty object
+        List<byte[]> digests = Collections.singletonList(ETag.newMd5().digest());
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", ETag.of(digests, false));
+    }
+
+    @Test
+    public void multipart() {
+        // 11MB of zeros uploaded in parts of 5MB, as reported by S3
+        List<byte[]> digests = new ArrayList<>();
+        for (int size : new int[]{5 * MB, 5 * MB, MB}) {
+            MessageDigest md5 = ETag.newMd5();
+            md5.update(new byte[size]);
+            digests.add(md5.digest());
+        }
+        String etag = ETag.of(digests, true);
+        assertEquals("e3bc5f891b51a71011bfcec5583ace3c-3", etag);
+        assertTrue(ETag.matches("\"E3BC5F891B51A71011BFCEC5583ACE3C-3\"", etag));
+        assertEquals(3, ETag.getPartCount(etag));
+        assertTrue(ETag.isMultipart(etag));
+        assertEquals(5 * MB, ETag.guessPartSize(11 * MB, 3, 8 * MB));
+    }
+
+    @Test
+    public void parse() {
+        assertEquals(1, ETag.getPartCount("\"d41d8cd98f00b204e9800998ecf8427e\""));
+        assertFalse(ETag.isMultipart("d41d8cd98f00b204e9800998ecf8427e"));
+        assertTrue(ETag.isMultipart("d41d8cd98f00b204e9800998ecf8427e-1"));
+        assertEquals(-1, ETag.getPartCount("not-an-etag"));
+        assertEquals(-1, ETag.getPartCount(null));
+    }
+}